@@ -19,9 +19,14 @@
  */
 package com.xwiki.authentication.headers;
 
+import java.io.UnsupportedEncodingException;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
 
+import org.apache.commons.codec.digest.DigestUtils;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import com.xpn.xwiki.XWikiContext;
@@ -43,6 +48,11 @@ import com.xpn.xwiki.user.impl.xwiki.XWikiAuthServiceImpl;
  * user profile page. The default field is the same as auth field.</li>
  * <li>xwiki.authentication.headers.fields_mapping: mapping between HTTP header values and XWiki user profile values.
  * The default mapping is <code>{@value #DEFAULT_FILEDS_MAPPING}.</code></li>
+ * <li>xwiki.authentication.headers.sync_cache_ttl: the user profile is not checked and synchronized again during this
+ * number of seconds as long as the mapped headers values don't change, even in a new session. The default is
+ * <code>{@value #DEFAULT_SYNC_CACHE_TTL}</code>, 0 disables the cache.</li>
+ * <li>xwiki.authentication.headers.sync_cache_size: the maximum number of users remembered by this cache. The default
+ * is <code>{@value #DEFAULT_SYNC_CACHE_SIZE}</code>.</li>
  * </ul>
  *
  * @version $Id$
@@ -60,8 +70,43 @@ public class XWikiHeadersAuthenticator extends XWikiAuthServiceImpl
 
     private static final String DEFAULT_FILEDS_MAPPING = "email=mail,first_name=givenname,last_name=sn";
 
+    private static final String DEFAULT_SYNC_CACHE_TTL = "3600";
+
+    private static final String DEFAULT_SYNC_CACHE_SIZE = "10000";
+
+    private static final String SESSION_ATTRIBUTE = "xwikiheadersauthenticator";
+
+    /**
+     * The fingerprint of the headers values last synchronized for a user.
+     */
+    private static class SyncFingerprint
+    {
+        private final String value;
+
+        private final long expires;
+
+        public SyncFingerprint(String value, long expires)
+        {
+            this.value = value;
+            this.expires = expires;
+        }
+    }
+
     private Map<String, String> userMappings;
 
+    /**
+     * The last synchronized headers values by user, the least recently used first. Guarded by itself.
+     */
+    private Map<String, SyncFingerprint> syncFingerprints;
+
+    private long syncCacheTTL;
+
+    private final AtomicLong sessionHits = new AtomicLong();
+
+    private final AtomicLong syncCacheHits = new AtomicLong();
+
+    private final AtomicLong syncCacheMisses = new AtomicLong();
+
     /**
      * {@inheritDoc}
      *
@@ -83,6 +128,54 @@ public class XWikiHeadersAuthenticator extends XWikiAuthServiceImpl
         String validUserName = getValidUserName(id);
         String validUserFullName = "XWiki." + validUserName;
 
+        if (validUserFullName.equals(context.getRequest().getSession().getAttribute(SESSION_ATTRIBUTE))) {
+            // already checked in this session
+            this.sessionHits.incrementAndGet();
+        } else {
+            Map<String, String> extended = getExtendedInformations(context);
+
+            String fingerprintKey = context.getMainXWiki() + ":" + validUserFullName;
+            String fingerprint = getFingerprint(extended);
+
+            if (fingerprint.equals(getSyncFingerprint(fingerprintKey, context))) {
+                // checked recently in another session with the same headers
+                this.syncCacheHits.incrementAndGet();
+
+                if (LOG.isDebugEnabled()) {
+                    LOG.debug("User " + validUserName + " already synchronized with the same headers");
+                }
+            } else {
+                this.syncCacheMisses.incrementAndGet();
+
+                if (syncUser(validUserName, validUserFullName, extended, context)) {
+                    putSyncFingerprint(fingerprintKey, fingerprint, context);
+                }
+            }
+
+            // mark that we have checked the user in the session
+            context.getRequest().getSession().setAttribute(SESSION_ATTRIBUTE, validUserFullName);
+        }
+
+        if (context.isMainWiki()) {
+            return new XWikiUser(validUserFullName);
+        } else {
+            return new XWikiUser(context.getMainXWiki() + ":" + validUserFullName);
+        }
+    }
+
+    /**
+     * Create the user profile if it does not exist, or update it with the provided values.
+     * 
+     * @param validUserName the name of the user profile page.
+     * @param validUserFullName the full name of the user profile page.
+     * @param extended the user profile values.
+     * @param context the XWiki context.
+     * @return true if the user profile is up to date.
+     * @throws XWikiException error when reading or saving the user profile.
+     */
+    private boolean syncUser(String validUserName, String validUserFullName, Map<String, String> extended,
+        XWikiContext context) throws XWikiException
+    {
         String database = context.getDatabase();
         try {
             // Switch to main wiki to force users to be global users
@@ -95,20 +188,22 @@ public class XWikiHeadersAuthenticator extends XWikiAuthServiceImpl
                 }
 
                 // create user
-                Map<String, String> extended = getExtendedInformations(context);
-                extended.put("active", "1");
+                Map<String, String> userData = new HashMap<String, String>(extended);
+                userData.put("active", "1");
 
-                context.getWiki().createUser(validUserName, extended, "XWiki.XWikiUsers",
+                int result = context.getWiki().createUser(validUserName, userData, "XWiki.XWikiUsers",
                     "#includeForm(\"XWiki.XWikiUserSheet\")", "edit", context);
 
-                // mark that we have created the user in the session
-                context.getRequest().getSession().setAttribute("xwikiheadersauthenticator", validUserFullName);
-                
+                if (result < 0) {
+                    LOG.error("Failed to create user " + validUserName + " with code " + result);
+
+                    return false;
+                }
+
                 if (LOG.isDebugEnabled()) {
                     LOG.debug("User " + validUserName + " has been successfully created");
                 }
-            } else if (!validUserFullName.equals(context.getRequest().getSession().getAttribute("xwikiheadersauthenticator"))) {
-                Map<String, String> extended = getExtendedInformations(context);
+            } else {
                 XWikiDocument userDoc = context.getWiki().getDocument(validUserFullName, context);                
                 BaseObject userObj = userDoc.getObject("XWiki.XWikiUsers");
                 boolean updated = false;
@@ -127,21 +222,141 @@ public class XWikiHeadersAuthenticator extends XWikiAuthServiceImpl
                 if (updated==true) {
                    context.getWiki().saveDocument(userDoc, context);
                 }
-
-                // mark that we have checked the user in the session
-                context.getRequest().getSession().setAttribute("xwikiheadersauthenticator", validUserFullName);
             }
         } finally {
             context.setDatabase(database);
         }
 
-        if (context.isMainWiki()) {
-            return new XWikiUser(validUserFullName);
+        return true;
+    }
+
+    /**
+     * @param extended the user profile values.
+     * @return a hash of the values, whatever their order.
+     */
+    private String getFingerprint(Map<String, String> extended)
+    {
+        // Each key and value is prefixed by its length, so that no separator found in a value can make two
+        // different profiles look the same
+        StringBuilder encoded = new StringBuilder();
+        for (Map.Entry<String, String> entry : new TreeMap<String, String>(extended).entrySet()) {
+            appendLengthPrefixed(encoded, entry.getKey());
+            appendLengthPrefixed(encoded, entry.getValue());
+        }
+
+        try {
+            return DigestUtils.md5Hex(encoded.toString().getBytes("UTF-8"));
+        } catch (UnsupportedEncodingException e) {
+            // UTF-8 is always supported
+            throw new RuntimeException(e);
+        }
+    }
+
+    private void appendLengthPrefixed(StringBuilder encoded, String value)
+    {
+        if (value == null) {
+            encoded.append("-1:");
         } else {
-            return new XWikiUser(context.getMainXWiki() + ":" + validUserFullName);
+            encoded.append(value.length()).append(':').append(value);
         }
     }
 
+    private String getSyncFingerprint(String key, XWikiContext context)
+    {
+        Map<String, SyncFingerprint> fingerprints = getSyncFingerprints(context);
+        if (fingerprints == null) {
+            return null;
+        }
+
+        synchronized (fingerprints) {
+            SyncFingerprint fingerprint = fingerprints.get(key);
+            if (fingerprint == null) {
+                return null;
+            }
+            if (fingerprint.expires <= System.currentTimeMillis()) {
+                fingerprints.remove(key);
+
+                return null;
+            }
+
+            return fingerprint.value;
+        }
+    }
+
+    private void putSyncFingerprint(String key, String fingerprint, XWikiContext context)
+    {
+        Map<String, SyncFingerprint> fingerprints = getSyncFingerprints(context);
+        if (fingerprints != null) {
+            synchronized (fingerprints) {
+                fingerprints.put(key, new SyncFingerprint(fingerprint, System.currentTimeMillis() + this.syncCacheTTL));
+            }
+        }
+    }
+
+    /**
+     * @param context the XWiki context.
+     * @return the synchronized headers values cache, null if it's disabled.
+     */
+    private synchronized Map<String, SyncFingerprint> getSyncFingerprints(XWikiContext context)
+    {
+        if (this.syncFingerprints == null) {
+            this.syncCacheTTL =
+                Long.parseLong(context.getWiki().Param("xwiki.authentication.headers.sync_cache_ttl",
+                    DEFAULT_SYNC_CACHE_TTL).trim()) * 1000L;
+            final int size =
+                Integer.parseInt(context.getWiki().Param("xwiki.authentication.headers.sync_cache_size",
+                    DEFAULT_SYNC_CACHE_SIZE).trim());
+
+            this.syncFingerprints = new LinkedHashMap<String, SyncFingerprint>(16, 0.75f, true)
+            {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, SyncFingerprint> eldest)
+                {
+                    return size() > size;
+                }
+            };
+        }
+
+        return this.syncCacheTTL > 0 ? this.syncFingerprints : null;
+    }
+
+    /**
+     * Forget the synchronized headers values, the next authentication of each user checks and updates its profile.
+     */
+    public synchronized void flushSyncCache()
+    {
+        if (this.syncFingerprints != null) {
+            synchronized (this.syncFingerprints) {
+                this.syncFingerprints.clear();
+            }
+        }
+    }
+
+    /**
+     * @return the number of authentications for which the user was already checked in the session.
+     */
+    public long getSessionHits()
+    {
+        return this.sessionHits.get();
+    }
+
+    /**
+     * @return the number of new sessions for which the user profile was not checked because the headers values did
+     *         not change since the last check.
+     */
+    public long getSyncCacheHits()
+    {
+        return this.syncCacheHits.get();
+    }
+
+    /**
+     * @return the number of new sessions for which the user profile was checked.
+     */
+    public long getSyncCacheMisses()
+    {
+        return this.syncCacheMisses.get();
+    }
+
     public String getValidUserName(String userName)
     {
         return userName.replace('.', '=').replace('@', '_');
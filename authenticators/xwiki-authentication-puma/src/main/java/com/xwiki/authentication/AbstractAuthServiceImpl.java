@@ -23,15 +23,23 @@ package com.xwiki.authentication;
 
 import java.security.Principal;
 import java.text.MessageFormat;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import javax.crypto.Cipher;
 import javax.crypto.spec.SecretKeySpec;
 import javax.servlet.http.Cookie;
 
 import org.apache.commons.codec.binary.Base64;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.lang.StringUtils;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
@@ -55,6 +63,25 @@ public abstract class AbstractAuthServiceImpl extends XWikiAuthServiceImpl
      */
     private static final Log LOG = LogFactory.getLog(AbstractAuthServiceImpl.class);
 
+    /**
+     * Maximum number of users whose last applied groups membership is remembered.
+     */
+    private static final int MAX_GROUPS_FINGERPRINTS = 10000;
+
+    /**
+     * The fingerprint of the last groups membership applied for each user, by wiki and user full name. The
+     * membership isn't synchronized again as long as the directory provides the same one.
+     */
+    private final Map<String, String> groupsFingerprints = Collections
+        .synchronizedMap(new LinkedHashMap<String, String>(16, 0.75f, true)
+        {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, String> eldest)
+            {
+                return size() > MAX_GROUPS_FINGERPRINTS;
+            }
+        });
+
     protected XWikiAuthService getFallback(XWikiContext context)
     {
         return null;
@@ -224,11 +251,33 @@ public abstract class AbstractAuthServiceImpl extends XWikiAuthServiceImpl
         return valueStr;
     }
 
+    /**
+     * Make the user member of the provided groups and not member of the others.
+     * <p>
+     * The difference between the provided membership and the current one is computed once, then each group document
+     * which needs a change is saved once. Nothing is done, not even reading the current membership, when the provided
+     * membership is the same as the last one applied for the user: to force a synchronization after a group has been
+     * modified in XWiki call {@link #flushGroupsFingerprints()}.
+     * 
+     * @param userProfile the user profile page.
+     * @param xwikiGroupsIn the groups the user should be member of, this wins over xwikiGroupsOut.
+     * @param xwikiGroupsOut the groups the user should not be member of.
+     * @param context the XWiki context.
+     * @throws XWikiException error when getting the current membership of the user.
+     */
     protected void syncGroupsMembership(XWikiDocument userProfile, Collection<String> xwikiGroupsIn,
         Collection<String> xwikiGroupsOut, XWikiContext context) throws XWikiException
     {
         String fullName = userProfile.getFullName();
 
+        String fingerprintKey = context.getDatabase() + ":" + fullName;
+        String fingerprint = getGroupsFingerprint(xwikiGroupsIn, xwikiGroupsOut);
+        if (fingerprint.equals(this.groupsFingerprints.get(fingerprintKey))) {
+            LOG.debug("Groups membership of user [" + fullName + "] did not change since last synchronization");
+
+            return;
+        }
+
         Collection<String> xwikiUserGroupList =
             context.getWiki().getGroupService(context).getAllGroupsNamesForMember(fullName, 0, 0, context);
 
@@ -238,40 +287,144 @@ public abstract class AbstractAuthServiceImpl extends XWikiAuthServiceImpl
             LOG.debug("The user belongs to following XWiki groups: " + xwikiUserGroupList);
         }
 
-        for (String xwikiGroupName : xwikiGroupsIn) {
-            if (!xwikiUserGroupList.contains(xwikiGroupName)) {
-                addUserToXWikiGroup(fullName, xwikiGroupName, context);
+        Set<String> groupsToAdd = new LinkedHashSet<String>(xwikiGroupsIn);
+        groupsToAdd.removeAll(xwikiUserGroupList);
+
+        Set<String> groupsToRemove = new LinkedHashSet<String>(xwikiGroupsOut);
+        groupsToRemove.retainAll(xwikiUserGroupList);
+        groupsToRemove.removeAll(xwikiGroupsIn);
+
+        boolean synchronizedMembership = true;
+
+        if (!groupsToAdd.isEmpty() || !groupsToRemove.isEmpty()) {
+            String groupClassName = context.getWiki().getGroupClass(context).getName();
+
+            for (String xwikiGroupName : groupsToAdd) {
+                synchronizedMembership &= updateXWikiGroup(fullName, xwikiGroupName, true, groupClassName, context);
             }
-        }
 
-        for (String xwikiGroupName : xwikiGroupsOut) {
-            if (xwikiUserGroupList.contains(xwikiGroupName)) {
-                removeUserFromXWikiGroup(fullName, xwikiGroupName, context);
+            for (String xwikiGroupName : groupsToRemove) {
+                synchronizedMembership &= updateXWikiGroup(fullName, xwikiGroupName, false, groupClassName, context);
             }
         }
+
+        // Try again at next authentication if something failed
+        if (synchronizedMembership) {
+            this.groupsFingerprints.put(fingerprintKey, fingerprint);
+        } else {
+            this.groupsFingerprints.remove(fingerprintKey);
+        }
     }
 
     /**
-     * Remove user name from provided XWiki group.
+     * Forget the groups membership applied for each user, the next authentication of each user synchronizes its
+     * membership.
+     */
+    public void flushGroupsFingerprints()
+    {
+        this.groupsFingerprints.clear();
+    }
+
+    private String getGroupsFingerprint(Collection<String> xwikiGroupsIn, Collection<String> xwikiGroupsOut)
+    {
+        List<String> groupsIn = new ArrayList<String>(xwikiGroupsIn);
+        Collections.sort(groupsIn);
+        List<String> groupsOut = new ArrayList<String>(xwikiGroupsOut);
+        Collections.sort(groupsOut);
+
+        return DigestUtils.md5Hex(groupsIn + "\n" + groupsOut);
+    }
+
+    /**
+     * Add or remove a user from a group, saving the group document at most once.
      * 
      * @param xwikiUserName the full name of the user.
      * @param groupName the name of the group.
+     * @param member true to make the user member of the group, false to remove it from the group.
+     * @param groupClassName the name of the class of the group members objects.
      * @param context the XWiki context.
+     * @return false if the group could not be updated.
      */
-    protected void removeUserFromXWikiGroup(String xwikiUserName, String groupName, XWikiContext context)
+    private boolean updateXWikiGroup(String xwikiUserName, String groupName, boolean member, String groupClassName,
+        XWikiContext context)
     {
         try {
-            String groupClassName = context.getWiki().getGroupClass(context).getName();
+            if (LOG.isDebugEnabled()) {
+                LOG.debug(MessageFormat.format(member ? "Adding user {0} to xwiki group {1}"
+                    : "Removing user {0} from xwiki group {1}", xwikiUserName, groupName));
+            }
 
             // Get the XWiki document holding the objects comprising the group membership list
             XWikiDocument groupDoc = context.getWiki().getDocument(groupName, context);
 
-            // Get and remove the specific group membership object for the user
-            BaseObject groupObj = groupDoc.getObject(groupClassName, "member", xwikiUserName);
-            groupDoc.removeObject(groupObj);
+            List<BaseObject> groupObjects = groupDoc.getObjects(groupClassName);
+            if (groupObjects == null || groupObjects.isEmpty()) {
+                if (member) {
+                    throw new Exception("Group [" + groupName + "] does not exists");
+                }
+
+                return true;
+            }
+
+            boolean needsUpdate = false;
+            if (member) {
+                // A group created without members contains an empty member object, fill it instead of adding one
+                BaseObject memberObj = null;
+                for (BaseObject groupObj : groupObjects) {
+                    if (groupObj != null && StringUtils.isBlank(groupObj.getStringValue("member"))) {
+                        memberObj = groupObj;
+                        break;
+                    }
+                }
+                if (memberObj == null) {
+                    memberObj = new BaseObject();
+                    memberObj.setClassName(groupClassName);
+                    groupDoc.addXObject(memberObj);
+                }
+                memberObj.setStringValue("member", xwikiUserName);
+                needsUpdate = true;
+            } else {
+                // Remove every membership object of the user, there can be duplicates
+                for (BaseObject groupObj : new ArrayList<BaseObject>(groupObjects)) {
+                    if (groupObj != null && xwikiUserName.equals(groupObj.getStringValue("member"))) {
+                        groupDoc.removeObject(groupObj);
+                        needsUpdate = true;
+                    }
+                }
+            }
 
             // Save modifications
-            context.getWiki().saveDocument(groupDoc, context);
+            if (needsUpdate) {
+                context.getWiki().saveDocument(groupDoc, context);
+            }
+
+            if (LOG.isDebugEnabled()) {
+                LOG.debug(MessageFormat.format(member ? "Finished adding user {0} to xwiki group {1}"
+                    : "Finished removing user {0} from xwiki group {1}", xwikiUserName, groupName));
+            }
+
+            return true;
+        } catch (Exception e) {
+            LOG.error(MessageFormat.format(member ? "Failed to add a user [{0}] to a group [{1}]"
+                : "Failed to remove a user [{0}] from a group [{1}]", xwikiUserName, groupName), e);
+
+            return false;
+        }
+    }
+
+    /**
+     * Remove user name from provided XWiki group.
+     * 
+     * @param xwikiUserName the full name of the user.
+     * @param groupName the name of the group.
+     * @param context the XWiki context.
+     */
+    protected void removeUserFromXWikiGroup(String xwikiUserName, String groupName, XWikiContext context)
+    {
+        try {
+            String groupClassName = context.getWiki().getGroupClass(context).getName();
+
+            updateXWikiGroup(xwikiUserName, groupName, false, groupClassName, context);
         } catch (Exception e) {
             LOG.error("Failed to remove a user from a group " + xwikiUserName + " group: " + groupName, e);
         }
@@ -287,33 +440,9 @@ public abstract class AbstractAuthServiceImpl extends XWikiAuthServiceImpl
     protected void addUserToXWikiGroup(String xwikiUserName, String groupName, XWikiContext context)
     {
         try {
-            if (LOG.isDebugEnabled()) {
-                LOG.debug(MessageFormat.format("Adding user {0} to xwiki group {1}", xwikiUserName, groupName));
-            }
-
-            BaseClass groupClass = context.getWiki().getGroupClass(context);
-
-            // Get document representing group
-            XWikiDocument groupDoc = context.getWiki().getDocument(groupName, context);
-
-            // Add a member object to document
-            BaseObject memberObj = groupDoc.getObject(groupClass.getName());
-
-            if (memberObj == null) {
-                throw new Exception("Group [" + groupName + "] does not exists");
-            }
-
-            Map<String, String> map = new HashMap<String, String>();
-            map.put("member", xwikiUserName);
-            groupClass.fromMap(map, memberObj);
-
-            // Save modifications
-            context.getWiki().saveDocument(groupDoc, context);
-
-            if (LOG.isDebugEnabled()) {
-                LOG.debug(MessageFormat.format("Finished adding user {0} to xwiki group {1}", xwikiUserName, groupName));
-            }
+            String groupClassName = context.getWiki().getGroupClass(context).getName();
 
+            updateXWikiGroup(xwikiUserName, groupName, true, groupClassName, context);
         } catch (Exception e) {
             LOG.error(MessageFormat.format("Failed to add a user [{0}] to a group [{1}]", xwikiUserName, groupName), e);
         }
@@ -4,6 +4,8 @@ import java.security.Principal;
 import java.util.Arrays;
 import java.util.Map;
 
+import junit.framework.Assert;
+
 import org.jmock.Expectations;
 import org.jmock.Mockery;
 import org.jmock.lib.legacy.ClassImposteriser;
@@ -126,4 +128,95 @@ public class AuthServiceImplTest extends AbstractBridgedComponentTestCase
         this.authService.syncGroupsMembership(this.user, Arrays.asList(group.getFullName()), Arrays.<String> asList(),
             getContext());
     }
+
+    @Test
+    public void testSyncGroupsMembershipKeepsOtherMembers() throws Exception
+    {
+        this.mockery.checking(new Expectations()
+        {{
+            allowing(xwikiMock).getGroupService(getContext()); will(returnValue(xwikiGroupServiceMock));
+            allowing(xwikiGroupServiceMock).getAllGroupsNamesForMember(user.getFullName(), 0, 0, getContext()); will(returnValue(Arrays.<String> asList()));
+            oneOf(xwikiMock).getDocument(group.getFullName(), getContext()); will(returnValue(group));
+            oneOf(xwikiMock).getGroupClass(getContext()); will(returnValue(groupClass));
+            oneOf(xwikiMock).saveDocument(group, getContext());
+        }});
+
+        this.groupObject.setStringValue("member", "XWiki.otheruser");
+
+        this.authService.syncGroupsMembership(this.user, Arrays.asList(group.getFullName()), Arrays.<String> asList(),
+            getContext());
+
+        Assert.assertEquals("XWiki.otheruser", this.groupObject.getStringValue("member"));
+        Assert.assertNotNull(this.group.getObject("XWiki.XWikiGroups", "member", this.user.getFullName()));
+    }
+
+    @Test
+    public void testSyncGroupsMembershipRemoveWithOneSave() throws Exception
+    {
+        this.mockery.checking(new Expectations()
+        {{
+            allowing(xwikiMock).getGroupService(getContext()); will(returnValue(xwikiGroupServiceMock));
+            allowing(xwikiGroupServiceMock).getAllGroupsNamesForMember(user.getFullName(), 0, 0, getContext()); will(returnValue(Arrays.<String> asList(group.getFullName())));
+            oneOf(xwikiMock).getDocument(group.getFullName(), getContext()); will(returnValue(group));
+            oneOf(xwikiMock).getGroupClass(getContext()); will(returnValue(groupClass));
+            oneOf(xwikiMock).saveDocument(group, getContext());
+        }});
+
+        // Duplicated membership
+        BaseObject duplicatedObject = new BaseObject();
+        duplicatedObject.setClassName("XWiki.XWikiGroups");
+        duplicatedObject.setStringValue("member", this.user.getFullName());
+        this.group.addXObject(duplicatedObject);
+
+        this.authService.syncGroupsMembership(this.user, Arrays.<String> asList(), Arrays.asList(group.getFullName()),
+            getContext());
+
+        Assert.assertNull(this.group.getObject("XWiki.XWikiGroups", "member", this.user.getFullName()));
+    }
+
+    @Test
+    public void testSyncGroupsMembershipInWinsOverOut() throws Exception
+    {
+        this.mockery.checking(new Expectations()
+        {{
+            allowing(xwikiMock).getGroupService(getContext()); will(returnValue(xwikiGroupServiceMock));
+            allowing(xwikiGroupServiceMock).getAllGroupsNamesForMember(user.getFullName(), 0, 0, getContext()); will(returnValue(Arrays.<String> asList(group.getFullName())));
+        }});
+
+        this.authService.syncGroupsMembership(this.user, Arrays.asList(group.getFullName()),
+            Arrays.asList(group.getFullName()), getContext());
+
+        Assert.assertSame(this.groupObject, this.group.getObject("XWiki.XWikiGroups", "member", this.user.getFullName()));
+    }
+
+    @Test
+    public void testSyncGroupsMembershipSkippedWhenUnchanged() throws Exception
+    {
+        this.mockery.checking(new Expectations()
+        {{
+            oneOf(xwikiMock).getGroupService(getContext()); will(returnValue(xwikiGroupServiceMock));
+            oneOf(xwikiGroupServiceMock).getAllGroupsNamesForMember(user.getFullName(), 0, 0, getContext()); will(returnValue(Arrays.<String> asList(group.getFullName())));
+        }});
+
+        this.authService.syncGroupsMembership(this.user, Arrays.asList(group.getFullName()), Arrays.<String> asList(),
+            getContext());
+        this.authService.syncGroupsMembership(this.user, Arrays.asList(group.getFullName()), Arrays.<String> asList(),
+            getContext());
+    }
+
+    @Test
+    public void testSyncGroupsMembershipAfterFlush() throws Exception
+    {
+        this.mockery.checking(new Expectations()
+        {{
+            exactly(2).of(xwikiMock).getGroupService(getContext()); will(returnValue(xwikiGroupServiceMock));
+            exactly(2).of(xwikiGroupServiceMock).getAllGroupsNamesForMember(user.getFullName(), 0, 0, getContext()); will(returnValue(Arrays.<String> asList(group.getFullName())));
+        }});
+
+        this.authService.syncGroupsMembership(this.user, Arrays.asList(group.getFullName()), Arrays.<String> asList(),
+            getContext());
+        this.authService.flushGroupsFingerprints();
+        this.authService.syncGroupsMembership(this.user, Arrays.asList(group.getFullName()), Arrays.<String> asList(),
+            getContext());
+    }
 }
@@ -0,0 +1,175 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xwiki.authentication.saml;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.net.URLConnection;
+import java.security.cert.CertificateException;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.opensaml.xml.security.x509.BasicX509Credential;
+import org.opensaml.xml.signature.SignatureValidator;
+
+/**
+ * Keeps the parsed identity provider certificates used to verify the SAML responses signatures.
+ * <p>
+ * A certificate is read again only when its resource has been modified, and the modification date is checked at most
+ * once per check interval.
+ *
+ * @version $Id$
+ */
+public class SAMLCertificateCache
+{
+    /**
+     * A parsed certificate and what's needed to know if it's still up to date.
+     */
+    private static class CachedCertificate
+    {
+        private X509Certificate certificate;
+
+        private SignatureValidator signatureValidator;
+
+        private long lastModified;
+
+        private long lastChecked;
+    }
+
+    /**
+     * Logging tool.
+     */
+    private static final Log LOG = LogFactory.getLog(SAMLCertificateCache.class);
+
+    private final long checkInterval;
+
+    /**
+     * Not documented as thread safe, only used with the lock of this cache held.
+     */
+    private final CertificateFactory certificateFactory;
+
+    private final Map<URL, CachedCertificate> certificates = new HashMap<URL, CachedCertificate>();
+
+    /**
+     * @param checkInterval the minimum time in milliseconds between two checks of the modification date of a
+     *            certificate
+     * @throws CertificateException when X.509 certificates are not supported by the JVM
+     */
+    public SAMLCertificateCache(long checkInterval) throws CertificateException
+    {
+        this.checkInterval = checkInterval;
+        this.certificateFactory = CertificateFactory.getInstance("X.509");
+    }
+
+    /**
+     * @param url the location of the certificate
+     * @return the certificate
+     * @throws IOException when the certificate can't be read
+     * @throws CertificateException when the certificate can't be parsed
+     */
+    public synchronized X509Certificate getCertificate(URL url) throws IOException, CertificateException
+    {
+        return get(url).certificate;
+    }
+
+    /**
+     * @param url the location of the certificate
+     * @return a validator of the signatures made with the private key of the certificate
+     * @throws IOException when the certificate can't be read
+     * @throws CertificateException when the certificate can't be parsed
+     */
+    public synchronized SignatureValidator getSignatureValidator(URL url) throws IOException, CertificateException
+    {
+        return get(url).signatureValidator;
+    }
+
+    /**
+     * Forget all the certificates, they are read again next time they're needed.
+     */
+    public synchronized void clear()
+    {
+        this.certificates.clear();
+    }
+
+    private CachedCertificate get(URL url) throws IOException, CertificateException
+    {
+        long now = System.currentTimeMillis();
+
+        CachedCertificate cached = this.certificates.get(url);
+        if (cached != null && now - cached.lastChecked < this.checkInterval) {
+            return cached;
+        }
+
+        long lastModified = getLastModified(url);
+        if (cached == null || cached.lastModified != lastModified) {
+            if (LOG.isDebugEnabled()) {
+                LOG.debug("Reading certificate " + url);
+            }
+
+            cached = new CachedCertificate();
+            cached.certificate = read(url);
+            cached.lastModified = lastModified;
+
+            BasicX509Credential credential = new BasicX509Credential();
+            credential.setEntityCertificate(cached.certificate);
+            cached.signatureValidator = new SignatureValidator(credential);
+
+            this.certificates.put(url, cached);
+        }
+        cached.lastChecked = now;
+
+        return cached;
+    }
+
+    private X509Certificate read(URL url) throws IOException, CertificateException
+    {
+        InputStream stream = url.openStream();
+        try {
+            return (X509Certificate) this.certificateFactory.generateCertificate(stream);
+        } finally {
+            stream.close();
+        }
+    }
+
+    private long getLastModified(URL url) throws IOException
+    {
+        if ("file".equals(url.getProtocol())) {
+            try {
+                return new File(url.toURI()).lastModified();
+            } catch (URISyntaxException e) {
+                // Let the connection find it
+            }
+        }
+
+        URLConnection connection = url.openConnection();
+        try {
+            return connection.getLastModified();
+        } finally {
+            connection.getInputStream().close();
+        }
+    }
+}
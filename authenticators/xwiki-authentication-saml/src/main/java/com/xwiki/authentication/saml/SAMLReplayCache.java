@@ -0,0 +1,100 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xwiki.authentication.saml;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Remembers the identifiers of the SAML responses already accepted until they expire, to reject a response posted a
+ * second time.
+ * <p>
+ * The memory is bounded: when the cache is full the oldest identifiers are forgotten even if they did not expire yet.
+ *
+ * @version $Id$
+ */
+public class SAMLReplayCache
+{
+    /**
+     * The expiration dates by identifier, the oldest first.
+     */
+    private final Map<String, Long> identifiers;
+
+    /**
+     * @param maxEntries the maximum number of identifiers to remember
+     */
+    public SAMLReplayCache(final int maxEntries)
+    {
+        this.identifiers = new LinkedHashMap<String, Long>()
+        {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Long> eldest)
+            {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+    /**
+     * Check if an identifier was already seen and remember it.
+     *
+     * @param identifier the identifier of the SAML response
+     * @param expires the date in milliseconds after which the response is not valid anymore
+     * @return true if the identifier was already seen and did not expire
+     */
+    public synchronized boolean isReplay(String identifier, long expires)
+    {
+        long now = System.currentTimeMillis();
+
+        purge(now);
+
+        Long previousExpires = this.identifiers.get(identifier);
+        if (previousExpires != null && previousExpires > now) {
+            return true;
+        }
+
+        this.identifiers.remove(identifier);
+        this.identifiers.put(identifier, expires);
+
+        return false;
+    }
+
+    /**
+     * @return the number of identifiers remembered
+     */
+    public synchronized int size()
+    {
+        return this.identifiers.size();
+    }
+
+    /**
+     * Forget the expired identifiers at the beginning of the cache.
+     */
+    private void purge(long now)
+    {
+        for (Iterator<Long> it = this.identifiers.values().iterator(); it.hasNext();) {
+            if (it.next() > now) {
+                break;
+            }
+            it.remove();
+        }
+    }
+}
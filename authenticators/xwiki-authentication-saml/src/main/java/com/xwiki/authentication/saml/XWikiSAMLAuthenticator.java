@@ -19,6 +19,7 @@
  */
 package com.xwiki.authentication.saml;
 
+import java.security.cert.CertificateException;
 import java.security.cert.CertificateFactory;
 import java.security.cert.X509Certificate;
 import java.util.HashMap;
@@ -56,6 +57,7 @@ import org.w3c.dom.Element;
 import org.joda.time.*;
 import java.util.zip.*;
 import java.io.*;
+import java.net.URL;
 import java.net.URLEncoder;
 
 import javax.security.cert.Certificate;
@@ -96,8 +98,32 @@ public class XWikiSAMLAuthenticator extends XWikiAuthServiceImpl
 
 	private static final String DEFAULT_XWIKI_USERNAME_RULE_CAPITALIZE = "1";
 
+	private static final String DEFAULT_CERT_CHECK_INTERVAL = "10";
+
+	private static final String DEFAULT_REPLAY_CACHE_SIZE = "10000";
+
+	/**
+	 * How long in milliseconds a response identifier is remembered when its assertions don't tell.
+	 */
+	private static final long DEFAULT_RESPONSE_VALIDITY = 5 * 60 * 1000L;
+
+	/**
+	 * Shared by all the requests, the parser pool is thread safe.
+	 */
+	private static final BasicParserPool PARSER_POOL = new BasicParserPool();
+
+	static {
+		PARSER_POOL.setNamespaceAware(true);
+	}
+
+	private static final SAMLSignatureProfileValidator PROFILE_VALIDATOR = new SAMLSignatureProfileValidator();
+
 	private Map<String, String> userMappings;
 
+	private SAMLCertificateCache certificateCache;
+
+	private SAMLReplayCache replayCache;
+
 
 	public void showLogin(XWikiContext context) throws XWikiException {
 		XWikiRequest request = context.getRequest();
@@ -258,12 +284,7 @@ public class XWikiSAMLAuthenticator extends XWikiAuthServiceImpl
 				LOG.debug("SAML Response is " + samlResponse);	
 			}
 
-			// Get parser pool manager
-			BasicParserPool ppMgr = new BasicParserPool();
-			ppMgr.setNamespaceAware( true );
-			Document inCommonMDDoc;
-
-			inCommonMDDoc = ppMgr.parse( new StringReader(samlResponse));
+			Document inCommonMDDoc = PARSER_POOL.parse(new StringReader(samlResponse));
 			Element ResponseRoot = inCommonMDDoc.getDocumentElement();
 			// Get apropriate unmarshaller
 			UnmarshallerFactory unmarshallerFactory = Configuration.getUnmarshallerFactory();
@@ -272,26 +293,24 @@ public class XWikiSAMLAuthenticator extends XWikiAuthServiceImpl
 			Response response = (Response) unmarshaller.unmarshall( ResponseRoot );
 
 			// reading cert
-			CertificateFactory cf = CertificateFactory.getInstance("X.509");
 			String cert = getSAMLCertificate(context);
 			if (LOG.isDebugEnabled()) {
 				LOG.debug("Verification signature using certificate " + cert);	
 			}			
-			InputStream sis = context.getEngineContext().getResourceAsStream(cert);
-			X509Certificate certificate = (X509Certificate) cf.generateCertificate(sis);
-			sis.close();
+			URL certURL = context.getEngineContext().getResource(cert);
+			if (certURL == null) {
+				throw new FileNotFoundException("Certificate " + cert + " not found");
+			}
+			SignatureValidator sigValidator = getCertificateCache(context).getSignatureValidator(certURL);
 
 			response.validate(true);
 			Signature signature = response.getSignature();
-			SAMLSignatureProfileValidator pv = new SAMLSignatureProfileValidator();
-			pv.validate(signature);
-			BasicX509Credential credential = new BasicX509Credential();
-			credential.setEntityCertificate(certificate);
-			SignatureValidator sigValidator = new SignatureValidator(credential);
+			PROFILE_VALIDATOR.validate(signature);
 			sigValidator.validate(signature); 
 
 			Assertion subjectAssertion = null;
 			boolean isValidDate = true;
+			DateTime expires = null;
 
 			if (LOG.isDebugEnabled()) {
 				LOG.debug("Reading SAML User data");	
@@ -304,6 +323,9 @@ public class XWikiSAMLAuthenticator extends XWikiAuthServiceImpl
 					if (a.getConditions().getNotOnOrAfter().isBeforeNow())
 						isValidDate = false;
 				}       
+				if (a.getConditions() != null && a.getConditions().getNotOnOrAfter() != null
+						&& (expires == null || a.getConditions().getNotOnOrAfter().isAfter(expires)))
+					expires = a.getConditions().getNotOnOrAfter();
 
 				// Process all attributes
 				for (AttributeStatement attStatement: a.getAttributeStatements()) {
@@ -337,6 +359,15 @@ public class XWikiSAMLAuthenticator extends XWikiAuthServiceImpl
 				}
 				return false;	
 			}
+			long expiresMillis = (expires == null) ? System.currentTimeMillis() + DEFAULT_RESPONSE_VALIDITY
+					: expires.getMillis();
+			if (getReplayCache(context).isReplay(response.getID(), expiresMillis)) {
+				// already used response
+				if (LOG.isErrorEnabled()) {
+					LOG.error("SAML Response " + response.getID() + " has already been used");	
+				}
+				return false;	
+			}
 		} catch (Exception e1) {
 			// failed to read SAMLResponse
 			if (LOG.isErrorEnabled()) {
@@ -535,6 +566,26 @@ public class XWikiSAMLAuthenticator extends XWikiAuthServiceImpl
 		return context.getWiki().Param("xwiki.authentication.saml.cert");   	
 	}
 
+	private synchronized SAMLCertificateCache getCertificateCache(XWikiContext context) throws CertificateException {
+		if (this.certificateCache == null) {
+			String interval = context.getWiki().Param("xwiki.authentication.saml.cert_check_interval",
+					DEFAULT_CERT_CHECK_INTERVAL);
+			this.certificateCache = new SAMLCertificateCache(Long.parseLong(interval.trim()) * 1000L);
+		}
+
+		return this.certificateCache;
+	}
+
+	private synchronized SAMLReplayCache getReplayCache(XWikiContext context) {
+		if (this.replayCache == null) {
+			String size = context.getWiki().Param("xwiki.authentication.saml.replay_cache_size",
+					DEFAULT_REPLAY_CACHE_SIZE);
+			this.replayCache = new SAMLReplayCache(Integer.parseInt(size.trim()));
+		}
+
+		return this.replayCache;
+	}
+
 	private String getSAMLAuthenticatorURL(XWikiContext context) {
 		return context.getWiki().Param("xwiki.authentication.saml.authurl");   	
 	}
@@ -0,0 +1,169 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xwiki.authentication.saml;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URL;
+import java.security.KeyStore;
+import java.security.cert.X509Certificate;
+
+import junit.framework.Assert;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class SAMLCertificateCacheTest
+{
+    private static final String PASSWORD = "changeit";
+
+    private File directory;
+
+    private File certificateFile;
+
+    private URL certificateURL;
+
+    private byte[] certificate1;
+
+    private byte[] certificate2;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        this.directory = File.createTempFile("samlcertificates", "");
+        this.directory.delete();
+        this.directory.mkdirs();
+        this.certificateFile = new File(this.directory, "idp.crt");
+        this.certificateURL = this.certificateFile.toURI().toURL();
+        this.certificate1 = generateCertificate("CN=IdP 1");
+        this.certificate2 = generateCertificate("CN=IdP 2");
+    }
+
+    @After
+    public void tearDown()
+    {
+        for (File file : this.directory.listFiles()) {
+            file.delete();
+        }
+        this.directory.delete();
+    }
+
+    @Test
+    public void testCertificateIsParsedOnce() throws Exception
+    {
+        writeCertificate(this.certificate1, 1000000000000L);
+        SAMLCertificateCache cache = new SAMLCertificateCache(60000);
+
+        X509Certificate certificate = cache.getCertificate(this.certificateURL);
+
+        Assert.assertEquals("CN=IdP 1", certificate.getSubjectX500Principal().getName());
+        Assert.assertSame(certificate, cache.getCertificate(this.certificateURL));
+        Assert.assertSame(cache.getSignatureValidator(this.certificateURL),
+            cache.getSignatureValidator(this.certificateURL));
+    }
+
+    @Test
+    public void testModifiedCertificateIsReadAgain() throws Exception
+    {
+        writeCertificate(this.certificate1, 1000000000000L);
+        SAMLCertificateCache cache = new SAMLCertificateCache(0);
+        X509Certificate certificate = cache.getCertificate(this.certificateURL);
+
+        writeCertificate(this.certificate2, 1000000010000L);
+
+        X509Certificate modified = cache.getCertificate(this.certificateURL);
+        Assert.assertNotSame(certificate, modified);
+        Assert.assertEquals("CN=IdP 2", modified.getSubjectX500Principal().getName());
+    }
+
+    @Test
+    public void testModificationIsCheckedOncePerInterval() throws Exception
+    {
+        writeCertificate(this.certificate1, 1000000000000L);
+        SAMLCertificateCache cache = new SAMLCertificateCache(200);
+        X509Certificate certificate = cache.getCertificate(this.certificateURL);
+
+        writeCertificate(this.certificate2, 1000000010000L);
+        Assert.assertSame(certificate, cache.getCertificate(this.certificateURL));
+
+        Thread.sleep(300);
+        Assert.assertEquals("CN=IdP 2", cache.getCertificate(this.certificateURL).getSubjectX500Principal()
+            .getName());
+    }
+
+    @Test
+    public void testClear() throws Exception
+    {
+        writeCertificate(this.certificate1, 1000000000000L);
+        SAMLCertificateCache cache = new SAMLCertificateCache(60000);
+        X509Certificate certificate = cache.getCertificate(this.certificateURL);
+
+        // Same modification date, only clear() makes the cache read it again
+        writeCertificate(this.certificate2, 1000000000000L);
+        Assert.assertSame(certificate, cache.getCertificate(this.certificateURL));
+
+        cache.clear();
+        Assert.assertEquals("CN=IdP 2", cache.getCertificate(this.certificateURL).getSubjectX500Principal()
+            .getName());
+    }
+
+    /**
+     * Generate a self-signed certificate with keytool.
+     */
+    private byte[] generateCertificate(String name) throws Exception
+    {
+        File keyStoreFile = new File(this.directory, "idp.jks");
+        keyStoreFile.delete();
+        String keytool = new File(new File(System.getProperty("java.home"), "bin"), "keytool").getPath();
+        Process process =
+            new ProcessBuilder(keytool, "-genkeypair", "-alias", "idp", "-keyalg", "RSA", "-keysize", "1024",
+                "-dname", name, "-validity", "1", "-storetype", "JKS", "-keystore", keyStoreFile.getPath(),
+                "-storepass", PASSWORD, "-keypass", PASSWORD).redirectErrorStream(true).start();
+        InputStream output = process.getInputStream();
+        while (output.read() != -1) {
+            // Ignore keytool output
+        }
+        Assert.assertEquals(0, process.waitFor());
+
+        KeyStore keyStore = KeyStore.getInstance("JKS");
+        InputStream stream = new FileInputStream(keyStoreFile);
+        try {
+            keyStore.load(stream, PASSWORD.toCharArray());
+        } finally {
+            stream.close();
+        }
+        return keyStore.getCertificate("idp").getEncoded();
+    }
+
+    private void writeCertificate(byte[] certificate, long lastModified) throws Exception
+    {
+        OutputStream out = new FileOutputStream(this.certificateFile);
+        try {
+            out.write(certificate);
+        } finally {
+            out.close();
+        }
+        this.certificateFile.setLastModified(lastModified);
+    }
+}
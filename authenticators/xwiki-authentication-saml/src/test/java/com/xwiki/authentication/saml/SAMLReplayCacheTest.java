@@ -0,0 +1,81 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xwiki.authentication.saml;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+public class SAMLReplayCacheTest
+{
+    @Test
+    public void testRejectReplayInsideWindow()
+    {
+        SAMLReplayCache cache = new SAMLReplayCache(10);
+        long expires = System.currentTimeMillis() + 60000;
+
+        Assert.assertFalse(cache.isReplay("_response1", expires));
+        Assert.assertTrue(cache.isReplay("_response1", expires));
+        Assert.assertFalse(cache.isReplay("_response2", expires));
+        Assert.assertTrue(cache.isReplay("_response2", expires));
+    }
+
+    @Test
+    public void testAcceptAfterExpiration() throws Exception
+    {
+        SAMLReplayCache cache = new SAMLReplayCache(10);
+
+        Assert.assertFalse(cache.isReplay("_response1", System.currentTimeMillis() + 20));
+        Thread.sleep(50);
+
+        Assert.assertFalse(cache.isReplay("_response1", System.currentTimeMillis() + 60000));
+        Assert.assertTrue(cache.isReplay("_response1", System.currentTimeMillis() + 60000));
+    }
+
+    @Test
+    public void testExpiredIdentifiersAreForgotten() throws Exception
+    {
+        SAMLReplayCache cache = new SAMLReplayCache(10);
+        cache.isReplay("_response1", System.currentTimeMillis() + 20);
+        cache.isReplay("_response2", System.currentTimeMillis() + 20);
+        Thread.sleep(50);
+
+        cache.isReplay("_response3", System.currentTimeMillis() + 60000);
+
+        Assert.assertEquals(1, cache.size());
+    }
+
+    @Test
+    public void testSizeBound()
+    {
+        SAMLReplayCache cache = new SAMLReplayCache(3);
+        long expires = System.currentTimeMillis() + 60000;
+        for (int i = 0; i < 10; ++i) {
+            Assert.assertFalse(cache.isReplay("_response" + i, expires));
+            Assert.assertTrue(cache.size() <= 3);
+        }
+
+        // The oldest identifiers were dropped first
+        Assert.assertTrue(cache.isReplay("_response9", expires));
+        Assert.assertTrue(cache.isReplay("_response8", expires));
+        Assert.assertFalse(cache.isReplay("_response0", expires));
+        Assert.assertEquals(3, cache.size());
+    }
+}
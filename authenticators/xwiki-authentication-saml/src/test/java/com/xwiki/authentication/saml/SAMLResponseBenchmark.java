@@ -0,0 +1,289 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xwiki.authentication.saml;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.StringReader;
+import java.security.KeyStore;
+import java.security.PrivateKey;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
+import java.util.concurrent.TimeUnit;
+
+import javax.xml.namespace.QName;
+
+import org.joda.time.DateTime;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.opensaml.DefaultBootstrap;
+import org.opensaml.common.SAMLVersion;
+import org.opensaml.saml2.core.Assertion;
+import org.opensaml.saml2.core.AuthnStatement;
+import org.opensaml.saml2.core.Conditions;
+import org.opensaml.saml2.core.Response;
+import org.opensaml.security.SAMLSignatureProfileValidator;
+import org.opensaml.xml.Configuration;
+import org.opensaml.xml.XMLObjectBuilderFactory;
+import org.opensaml.xml.parse.BasicParserPool;
+import org.opensaml.xml.security.x509.BasicX509Credential;
+import org.opensaml.xml.signature.Signature;
+import org.opensaml.xml.signature.SignatureConstants;
+import org.opensaml.xml.signature.SignatureValidator;
+import org.opensaml.xml.signature.Signer;
+import org.opensaml.xml.util.XMLHelper;
+import org.w3c.dom.Element;
+
+/**
+ * JMH benchmark comparing the cost of reading and verifying a signed SAML response with a new parser pool and
+ * certificate per request, as {@link XWikiSAMLAuthenticator} used to do, and with the shared parser pool and the
+ * {@link SAMLCertificateCache}.
+ * <p>
+ * The responses are signed with a key pair generated by the JDK <code>keytool</code>. Run it with
+ * <code>org.openjdk.jmh.Main SAMLResponseBenchmark</code> from the test class path.
+ *
+ * @version $Id$
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(2)
+public class SAMLResponseBenchmark
+{
+    private static final String PASSWORD = "benchmark";
+
+    /** The number of distinct signed responses, verified in turn. */
+    @Param("200")
+    private int count;
+
+    private File directory;
+
+    private File certificateFile;
+
+    private String[] responses;
+
+    private int next;
+
+    private BasicParserPool parserPool;
+
+    private SAMLCertificateCache certificateCache;
+
+    private SAMLReplayCache replayCache;
+
+    /**
+     * Generates the key pair of the identity provider and signs the responses.
+     *
+     * @throws Exception when failing to generate the key pair or to sign the responses
+     */
+    @Setup
+    public void setUp() throws Exception
+    {
+        DefaultBootstrap.bootstrap();
+
+        this.directory = File.createTempFile("samlbenchmark", "");
+        this.directory.delete();
+        this.directory.mkdirs();
+
+        File keyStoreFile = new File(this.directory, "idp.jks");
+        this.certificateFile = new File(this.directory, "idp.crt");
+        generateKeyPair(keyStoreFile);
+
+        KeyStore keyStore = KeyStore.getInstance("JKS");
+        InputStream stream = new FileInputStream(keyStoreFile);
+        try {
+            keyStore.load(stream, PASSWORD.toCharArray());
+        } finally {
+            stream.close();
+        }
+        X509Certificate certificate = (X509Certificate) keyStore.getCertificate("idp");
+        OutputStream out = new FileOutputStream(this.certificateFile);
+        try {
+            out.write(certificate.getEncoded());
+        } finally {
+            out.close();
+        }
+
+        BasicX509Credential credential = new BasicX509Credential();
+        credential.setEntityCertificate(certificate);
+        credential.setPrivateKey((PrivateKey) keyStore.getKey("idp", PASSWORD.toCharArray()));
+
+        this.responses = new String[this.count];
+        for (int i = 0; i < this.count; ++i) {
+            this.responses[i] = createResponse("_response" + i, credential);
+        }
+
+        this.parserPool = new BasicParserPool();
+        this.parserPool.setNamespaceAware(true);
+        this.certificateCache = new SAMLCertificateCache(10000);
+        // The responses are verified in turn, so a response is always forgotten before it comes again
+        this.replayCache = new SAMLReplayCache(this.count - 1);
+    }
+
+    /**
+     * Deletes the key store and the certificate.
+     */
+    @TearDown
+    public void tearDown()
+    {
+        for (File file : this.directory.listFiles()) {
+            file.delete();
+        }
+        this.directory.delete();
+    }
+
+    private void generateKeyPair(File keyStoreFile) throws Exception
+    {
+        String keytool = new File(new File(System.getProperty("java.home"), "bin"), "keytool").getPath();
+        Process process =
+            new ProcessBuilder(keytool, "-genkeypair", "-alias", "idp", "-keyalg", "RSA", "-keysize", "2048",
+                "-dname", "CN=Benchmark IdP", "-validity", "1", "-storetype", "JKS", "-keystore",
+                keyStoreFile.getPath(), "-storepass", PASSWORD, "-keypass", PASSWORD).redirectErrorStream(true)
+                .start();
+        InputStream output = process.getInputStream();
+        while (output.read() != -1) {
+            // Ignore keytool output
+        }
+        if (process.waitFor() != 0) {
+            throw new Exception("keytool failed to generate the key pair");
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private <T> T build(QName name)
+    {
+        XMLObjectBuilderFactory builderFactory = Configuration.getBuilderFactory();
+
+        return (T) builderFactory.getBuilder(name).buildObject(name);
+    }
+
+    private String createResponse(String id, BasicX509Credential credential) throws Exception
+    {
+        DateTime now = new DateTime();
+
+        Conditions conditions = build(Conditions.DEFAULT_ELEMENT_NAME);
+        conditions.setNotBefore(now.minusMinutes(1));
+        conditions.setNotOnOrAfter(now.plusMinutes(5));
+
+        AuthnStatement authnStatement = build(AuthnStatement.DEFAULT_ELEMENT_NAME);
+        authnStatement.setAuthnInstant(now);
+
+        Assertion assertion = build(Assertion.DEFAULT_ELEMENT_NAME);
+        assertion.setID(id + "_assertion");
+        assertion.setIssueInstant(now);
+        assertion.setVersion(SAMLVersion.VERSION_20);
+        assertion.setConditions(conditions);
+        assertion.getAuthnStatements().add(authnStatement);
+
+        Response response = build(Response.DEFAULT_ELEMENT_NAME);
+        response.setID(id);
+        response.setIssueInstant(now);
+        response.setVersion(SAMLVersion.VERSION_20);
+        response.setInResponseTo("_request");
+        response.getAssertions().add(assertion);
+
+        Signature signature = build(Signature.DEFAULT_ELEMENT_NAME);
+        signature.setSigningCredential(credential);
+        signature.setSignatureAlgorithm(SignatureConstants.ALGO_ID_SIGNATURE_RSA_SHA1);
+        signature.setCanonicalizationAlgorithm(SignatureConstants.ALGO_ID_C14N_EXCL_OMIT_COMMENTS);
+        response.setSignature(signature);
+
+        Element element = Configuration.getMarshallerFactory().getMarshaller(response).marshall(response);
+        Signer.signObject(signature);
+
+        return XMLHelper.nodeToString(element);
+    }
+
+    private String nextResponse()
+    {
+        String xml = this.responses[this.next];
+        this.next = (this.next + 1) % this.responses.length;
+
+        return xml;
+    }
+
+    /**
+     * The way responses were verified before: everything is created again for each request.
+     *
+     * @return the verified response
+     * @throws Exception when the response is not valid
+     */
+    @Benchmark
+    public Response verifyUncached() throws Exception
+    {
+        BasicParserPool ppMgr = new BasicParserPool();
+        ppMgr.setNamespaceAware(true);
+        Element root = ppMgr.parse(new StringReader(nextResponse())).getDocumentElement();
+        Response response = (Response) Configuration.getUnmarshallerFactory().getUnmarshaller(root).unmarshall(root);
+
+        CertificateFactory cf = CertificateFactory.getInstance("X.509");
+        InputStream sis = new FileInputStream(this.certificateFile);
+        X509Certificate certificate = (X509Certificate) cf.generateCertificate(sis);
+        sis.close();
+
+        response.validate(true);
+        new SAMLSignatureProfileValidator().validate(response.getSignature());
+        BasicX509Credential credential = new BasicX509Credential();
+        credential.setEntityCertificate(certificate);
+        new SignatureValidator(credential).validate(response.getSignature());
+
+        return response;
+    }
+
+    /**
+     * With the shared parser pool, the certificate cache and the replay check.
+     *
+     * @return the verified response
+     * @throws Exception when the response is not valid or replayed
+     */
+    @Benchmark
+    public Response verifyCached() throws Exception
+    {
+        Element root = this.parserPool.parse(new StringReader(nextResponse())).getDocumentElement();
+        Response response = (Response) Configuration.getUnmarshallerFactory().getUnmarshaller(root).unmarshall(root);
+
+        SignatureValidator validator =
+            this.certificateCache.getSignatureValidator(this.certificateFile.toURI().toURL());
+
+        response.validate(true);
+        new SAMLSignatureProfileValidator().validate(response.getSignature());
+        validator.validate(response.getSignature());
+
+        if (this.replayCache.isReplay(response.getID(), System.currentTimeMillis() + 60000)) {
+            throw new Exception("Unexpected replay of " + response.getID());
+        }
+
+        return response;
+    }
+}
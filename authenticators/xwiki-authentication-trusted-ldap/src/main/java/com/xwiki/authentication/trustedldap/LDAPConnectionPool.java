@@ -0,0 +1,330 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ *
+ */
+
+package com.xwiki.authentication.trustedldap;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeoutException;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Bounded pool of bound LDAP connections.
+ * <p>
+ * Connections are pooled by key, the key identifying the server and the identity the connection is bound with. The
+ * bound is on the total number of open connections whatever their key: when it's reached an idle connection with
+ * another key is closed to make room, and when there's none the caller waits for a connection to be released.
+ *
+ * @param <C> the type of the connections
+ * @version $Id$
+ */
+public class LDAPConnectionPool<C>
+{
+    /**
+     * Opens a connection for a given key.
+     *
+     * @param <C> the type of the connections
+     */
+    public interface ConnectionOpener<C>
+    {
+        /**
+         * @return a new connection, already bound
+         * @throws Exception when the connection can't be opened or bound
+         */
+        C open() throws Exception;
+    }
+
+    /**
+     * Checks and closes the connections of the pool.
+     *
+     * @param <C> the type of the connections
+     */
+    public interface ConnectionHandler<C>
+    {
+        /**
+         * @param connection an idle connection
+         * @return false if the connection has been closed in the meantime
+         */
+        boolean isAlive(C connection);
+
+        /**
+         * @param connection the connection to close, errors should be ignored
+         */
+        void close(C connection);
+    }
+
+    /** An idle connection and since when it is idle. */
+    private static class IdleConnection<C>
+    {
+        private final C connection;
+
+        private final long idleSince;
+
+        public IdleConnection(C connection, long idleSince)
+        {
+            this.connection = connection;
+            this.idleSince = idleSince;
+        }
+    }
+
+    /** LogFactory <code>LOGGER</code>. */
+    private static final Log LOG = LogFactory.getLog(LDAPConnectionPool.class);
+
+    private final ConnectionHandler<C> handler;
+
+    private final int maxConnections;
+
+    private final long maxIdleTime;
+
+    private final long waitTimeout;
+
+    private final TrustedLDAPMetrics metrics;
+
+    /** The idle connections by key, the most recently released last. Guarded by itself. */
+    private final Map<String, LinkedList<IdleConnection<C>>> idleConnections =
+        new HashMap<String, LinkedList<IdleConnection<C>>>();
+
+    /** The number of connections open, idle or not. Guarded by {@link #idleConnections}. */
+    private int openConnections;
+
+    /**
+     * @param handler checks and closes the connections
+     * @param maxConnections the maximum number of connections open at the same time
+     * @param maxIdleTime the time in milliseconds after which an idle connection is closed instead of being reused,
+     *            it should be lower than the idle timeout of the LDAP server
+     * @param waitTimeout the maximum time in milliseconds to wait for a connection when the pool is exhausted
+     * @param metrics where to count the connections opened and reused
+     */
+    public LDAPConnectionPool(ConnectionHandler<C> handler, int maxConnections, long maxIdleTime, long waitTimeout,
+        TrustedLDAPMetrics metrics)
+    {
+        this.handler = handler;
+        this.maxConnections = Math.max(1, maxConnections);
+        this.maxIdleTime = maxIdleTime;
+        this.waitTimeout = waitTimeout;
+        this.metrics = metrics;
+    }
+
+    /**
+     * Take an idle connection with the given key, or open a new one.
+     *
+     * @param key identifies the server and the bind identity of the connection
+     * @param opener used to open a new connection if there's no idle one for the key
+     * @return a bound connection, to give back with {@link #release(String, Object)} or {@link #invalidate(Object)}
+     * @throws TimeoutException when no connection was released in time while the pool is exhausted
+     * @throws Exception when opening the connection failed
+     */
+    public C borrow(String key, ConnectionOpener<C> opener) throws Exception
+    {
+        long deadline = System.currentTimeMillis() + this.waitTimeout;
+
+        while (true) {
+            List<IdleConnection<C>> toClose = new ArrayList<IdleConnection<C>>();
+            IdleConnection<C> idle = null;
+            boolean reserved = false;
+
+            synchronized (this.idleConnections) {
+                long now = System.currentTimeMillis();
+                evictExpired(now, toClose);
+
+                LinkedList<IdleConnection<C>> connections = this.idleConnections.get(key);
+                if (connections != null && !connections.isEmpty()) {
+                    idle = connections.removeLast();
+                } else if (this.openConnections < this.maxConnections) {
+                    ++this.openConnections;
+                    reserved = true;
+                } else if (evictOldest(toClose)) {
+                    ++this.openConnections;
+                    reserved = true;
+                } else if (toClose.isEmpty()) {
+                    long remaining = deadline - now;
+                    if (remaining <= 0) {
+                        this.metrics.borrowTimeout();
+                        throw new TimeoutException("No LDAP connection released in " + this.waitTimeout + "ms, "
+                            + this.openConnections + " connections are in use");
+                    }
+                    this.metrics.borrowWait();
+                    this.idleConnections.wait(remaining);
+                }
+            }
+
+            close(toClose);
+
+            if (idle != null) {
+                if (this.handler.isAlive(idle.connection)) {
+                    this.metrics.connectionReused();
+
+                    return idle.connection;
+                }
+                invalidate(idle.connection);
+            } else if (reserved) {
+                return open(opener);
+            }
+        }
+    }
+
+    /**
+     * Give back a connection which can be reused.
+     *
+     * @param key the key the connection was borrowed with
+     * @param connection the connection, it must be bound with the same identity as when it was borrowed
+     */
+    public void release(String key, C connection)
+    {
+        synchronized (this.idleConnections) {
+            LinkedList<IdleConnection<C>> connections = this.idleConnections.get(key);
+            if (connections == null) {
+                connections = new LinkedList<IdleConnection<C>>();
+                this.idleConnections.put(key, connections);
+            }
+            connections.addLast(new IdleConnection<C>(connection, System.currentTimeMillis()));
+            this.idleConnections.notifyAll();
+        }
+    }
+
+    /**
+     * Close a connection which must not be reused, because an error happened or because it's not bound with the
+     * same identity anymore.
+     *
+     * @param connection the connection
+     */
+    public void invalidate(C connection)
+    {
+        try {
+            this.handler.close(connection);
+        } finally {
+            synchronized (this.idleConnections) {
+                --this.openConnections;
+                this.idleConnections.notifyAll();
+            }
+            this.metrics.connectionClosed();
+        }
+    }
+
+    /**
+     * Close all the idle connections. The connections in use are closed when released.
+     */
+    public void close()
+    {
+        List<IdleConnection<C>> toClose = new ArrayList<IdleConnection<C>>();
+        synchronized (this.idleConnections) {
+            for (LinkedList<IdleConnection<C>> connections : this.idleConnections.values()) {
+                toClose.addAll(connections);
+            }
+            this.idleConnections.clear();
+            this.openConnections -= toClose.size();
+            this.idleConnections.notifyAll();
+        }
+
+        close(toClose);
+    }
+
+    /**
+     * @return the number of open connections, idle or not
+     */
+    public int getOpenConnections()
+    {
+        synchronized (this.idleConnections) {
+            return this.openConnections;
+        }
+    }
+
+    private C open(ConnectionOpener<C> opener) throws Exception
+    {
+        boolean opened = false;
+        try {
+            C connection = opener.open();
+            opened = true;
+            this.metrics.connectionOpened();
+
+            return connection;
+        } finally {
+            if (!opened) {
+                synchronized (this.idleConnections) {
+                    --this.openConnections;
+                    this.idleConnections.notifyAll();
+                }
+            }
+        }
+    }
+
+    /**
+     * Move the connections idle for too long to the list of connections to close. Must be called with the lock held.
+     */
+    private void evictExpired(long now, List<IdleConnection<C>> toClose)
+    {
+        for (Iterator<LinkedList<IdleConnection<C>>> it = this.idleConnections.values().iterator(); it.hasNext();) {
+            LinkedList<IdleConnection<C>> connections = it.next();
+            // The oldest are first
+            while (!connections.isEmpty() && now - connections.getFirst().idleSince > this.maxIdleTime) {
+                toClose.add(connections.removeFirst());
+                --this.openConnections;
+            }
+            if (connections.isEmpty()) {
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * Move the connection idle for the longest time, whatever its key, to the list of connections to close. Must be
+     * called with the lock held.
+     *
+     * @return false if there's no idle connection
+     */
+    private boolean evictOldest(List<IdleConnection<C>> toClose)
+    {
+        LinkedList<IdleConnection<C>> oldest = null;
+        for (LinkedList<IdleConnection<C>> connections : this.idleConnections.values()) {
+            if (!connections.isEmpty()
+                && (oldest == null || connections.getFirst().idleSince < oldest.getFirst().idleSince)) {
+                oldest = connections;
+            }
+        }
+
+        if (oldest == null) {
+            return false;
+        }
+
+        toClose.add(oldest.removeFirst());
+        --this.openConnections;
+
+        return true;
+    }
+
+    private void close(List<IdleConnection<C>> connections)
+    {
+        for (IdleConnection<C> idle : connections) {
+            try {
+                this.handler.close(idle.connection);
+            } catch (RuntimeException e) {
+                LOG.debug("Failed to close idle LDAP connection", e);
+            }
+            this.metrics.connectionClosed();
+        }
+    }
+}
@@ -57,8 +57,32 @@ public class TrustedLDAPAuthServiceImpl extends XWikiLDAPAuthServiceImpl
     /** LogFactory <code>LOGGER</code>. */
     private static final Log LOG = LogFactory.getLog(TrustedLDAPAuthServiceImpl.class);
 
+    private static final LDAPConnectionPool.ConnectionHandler<XWikiLDAPConnection> CONNECTION_HANDLER =
+        new LDAPConnectionPool.ConnectionHandler<XWikiLDAPConnection>()
+        {
+            public boolean isAlive(XWikiLDAPConnection connection)
+            {
+                return connection.getConnection() != null && connection.getConnection().isConnected();
+            }
+
+            public void close(XWikiLDAPConnection connection)
+            {
+                connection.close();
+            }
+        };
+
     private TrustedLDAPConfig config = null;
 
+    private final TrustedLDAPMetrics metrics = new TrustedLDAPMetrics();
+
+    /** Bound connections reused between authentications, created with the first one. */
+    private LDAPConnectionPool<XWikiLDAPConnection> connectionPool;
+
+    /** Users synchronized recently, created with the first authentication. */
+    private TrustedLDAPLoginCache loginCache;
+
+    private boolean loginCacheInitialized;
+
     protected String encryptText(String text, XWikiContext context)
     {
         try {
@@ -121,6 +145,57 @@ public class TrustedLDAPAuthServiceImpl extends XWikiLDAPAuthServiceImpl
         return this.config;
     }
 
+    /**
+     * @return counters about the SSO authentications, the login cache and the LDAP connection pool
+     */
+    public TrustedLDAPMetrics getMetrics()
+    {
+        return this.metrics;
+    }
+
+    protected synchronized LDAPConnectionPool<XWikiLDAPConnection> getConnectionPool(XWikiContext context)
+    {
+        if (this.connectionPool == null) {
+            this.connectionPool =
+                new LDAPConnectionPool<XWikiLDAPConnection>(CONNECTION_HANDLER, getConfig().getPoolMaxConnections(
+                    context), getConfig().getPoolMaxIdleTime(context) * 1000L,
+                    getConfig().getPoolWaitTimeout(context) * 1000L, this.metrics);
+        }
+
+        return this.connectionPool;
+    }
+
+    /**
+     * @return the users synchronized recently, null if the cache is disabled
+     */
+    protected synchronized TrustedLDAPLoginCache getLoginCache(XWikiContext context)
+    {
+        if (!this.loginCacheInitialized) {
+            int timeToLive = getConfig().getCacheTimeToLive(context);
+            if (timeToLive > 0) {
+                this.loginCache =
+                    new TrustedLDAPLoginCache(timeToLive * 1000L, getConfig().getCacheMaxEntries(context));
+            }
+            this.loginCacheInitialized = true;
+        }
+
+        return this.loginCache;
+    }
+
+    /**
+     * Forget the users synchronized recently, their next authentication synchronizes them again with LDAP.
+     */
+    public void flushLoginCache()
+    {
+        TrustedLDAPLoginCache cache;
+        synchronized (this) {
+            cache = this.loginCache;
+        }
+        if (cache != null) {
+            cache.clear();
+        }
+    }
+
     protected Cookie getCookie(String cookieName, XWikiContext context)
     {
         Cookie[] cookies = context.getRequest().getCookies();
@@ -260,6 +335,7 @@ public class TrustedLDAPAuthServiceImpl extends XWikiLDAPAuthServiceImpl
         String wikiName = context.getDatabase();
 
         // SSO authentication
+        long start = System.currentTimeMillis();
         try {
             context.setDatabase(context.getMainXWiki());
 
@@ -268,6 +344,11 @@ public class TrustedLDAPAuthServiceImpl extends XWikiLDAPAuthServiceImpl
             LOG.debug("Failed to authenticate with SSO", e);
         } finally {
             context.setDatabase(wikiName);
+
+            this.metrics.authentication(principal != null, System.currentTimeMillis() - start);
+            if (LOG.isDebugEnabled()) {
+                LOG.debug("SSO metrics: " + this.metrics);
+            }
         }
 
         // Falback on LDAP authenticator
@@ -356,6 +437,141 @@ public class TrustedLDAPAuthServiceImpl extends XWikiLDAPAuthServiceImpl
         return bind;
     }
 
+    /**
+     * @return the key of the connection pool to use for the given remote user, null if the connection is bound with
+     *         the credentials of the user and can't be shared
+     */
+    protected String getConnectionPoolKey(Map<String, String> remoteUserLdapConfiguration, XWikiContext context)
+    {
+        XWikiLDAPConfig config = XWikiLDAPConfig.getInstance();
+
+        String ldapUserName = remoteUserLdapConfiguration.get("login");
+        String password = remoteUserLdapConfiguration.get("password");
+
+        String bindDN = config.getLDAPBindDN(ldapUserName, password, context);
+        if (!bindDN.equals(config.getLDAPBindDN(context))
+            || !config.getLDAPBindPassword(ldapUserName, password, context).equals(
+                config.getLDAPBindPassword(context))) {
+            return null;
+        }
+
+        String ldapHost = remoteUserLdapConfiguration.get("ldap_server");
+        if (ldapHost == null) {
+            ldapHost = config.getLDAPParam("ldap_server", "localhost", context);
+        }
+
+        return ldapHost + ":" + config.getLDAPPort(context) + ":" + config.getLDAPParam("ldap_ssl", "0", context) + ":"
+            + bindDN;
+    }
+
+    /**
+     * Take a bound connection from the pool, or open one bound with the credentials of the user if it can't be
+     * shared.
+     */
+    private XWikiLDAPConnection borrowConnection(String poolKey,
+        final Map<String, String> remoteUserLdapConfiguration, final XWikiContext context) throws XWikiException
+    {
+        LDAPConnectionPool.ConnectionOpener<XWikiLDAPConnection> opener =
+            new LDAPConnectionPool.ConnectionOpener<XWikiLDAPConnection>()
+            {
+                public XWikiLDAPConnection open() throws Exception
+                {
+                    XWikiLDAPConnection connector = new XWikiLDAPConnection();
+                    if (!TrustedLDAPAuthServiceImpl.this.open(connector, remoteUserLdapConfiguration, context)) {
+                        connector.close();
+
+                        throw new XWikiException(XWikiException.MODULE_XWIKI_USER,
+                            XWikiException.ERROR_XWIKI_USER_INIT, "Bind to LDAP server failed.");
+                    }
+
+                    return connector;
+                }
+            };
+
+        try {
+            if (poolKey == null) {
+                XWikiLDAPConnection connector = opener.open();
+                this.metrics.connectionOpened();
+
+                return connector;
+            }
+
+            return getConnectionPool(context).borrow(poolKey, opener);
+        } catch (XWikiException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new XWikiException(XWikiException.MODULE_XWIKI_USER, XWikiException.ERROR_XWIKI_USER_INIT,
+                "Failed to get a connection to the LDAP server", e);
+        }
+    }
+
+    /**
+     * Give a connection back to the pool, or close it if it can't be shared or if it may not be bound with the
+     * pool identity anymore.
+     */
+    private void releaseConnection(String poolKey, XWikiLDAPConnection connector, boolean reusable,
+        XWikiContext context)
+    {
+        if (poolKey == null) {
+            connector.close();
+            this.metrics.connectionClosed();
+        } else if (reusable) {
+            getConnectionPool(context).release(poolKey, connector);
+        } else {
+            getConnectionPool(context).invalidate(connector);
+        }
+    }
+
+    protected String getLoginCacheKey(String ldapUid, Map<String, String> remoteUserLdapConfiguration,
+        XWikiContext context)
+    {
+        return context.getDatabase() + ":" + remoteUserLdapConfiguration.get("ldap_server") + ":"
+            + remoteUserLdapConfiguration.get("ldap_base_DN") + ":" + ldapUid;
+    }
+
+    private Principal createPrincipal(String userFullName, boolean local, XWikiContext context)
+    {
+        if (local) {
+            return new SimplePrincipal(userFullName);
+        } else {
+            return new SimplePrincipal(context.getDatabase() + ":" + userFullName);
+        }
+    }
+
+    /**
+     * Validate the password provided by the user.
+     */
+    private void checkPassword(XWikiLDAPConnection connector, String ldapDn, String ldapUid, String password,
+        XWikiContext context) throws XWikiException, LDAPException
+    {
+        XWikiLDAPConfig config = XWikiLDAPConfig.getInstance();
+
+        if ("1".equals(config.getLDAPParam("ldap_validate_password", "0", context))) {
+            String passwordField = config.getLDAPParam("ldap_password_field", "userPassword", context);
+            if (!connector.checkPassword(ldapDn, password, passwordField)) {
+                LOG.debug("Password comparison failed, are you really sure you need validate_password ?"
+                    + " If you don't enable it, it does not mean user credentials are not validated."
+                    + " The goal of this property is to bypass standard LDAP bind"
+                    + " which is usually bad unless you really know what you do.");
+
+                throw new XWikiException(XWikiException.MODULE_XWIKI_USER, XWikiException.ERROR_XWIKI_USER_INIT,
+                    "LDAP authentication failed:" + " could not validate the password: wrong password for "
+                        + ldapDn);
+            }
+        } else {
+            String bindDNFormat = config.getLDAPBindDN(context);
+            String bindDN = config.getLDAPBindDN(ldapUid, password, context);
+
+            if (bindDNFormat.equals(bindDN)) {
+                // Validate user credentials
+                connector.bind(ldapDn, password);
+
+                // Rebind admin user
+                connector.bind(bindDN, config.getLDAPBindPassword(ldapUid, password, context));
+            }
+        }
+    }
+
     public Principal authenticateSSOInContext(String login, String password, boolean local, XWikiContext context)
         throws XWikiException, UnsupportedEncodingException, LDAPException
     {
@@ -374,7 +590,8 @@ public class TrustedLDAPAuthServiceImpl extends XWikiLDAPAuthServiceImpl
             checkAuth = true;
 
             if (ssoRemoteUser == null) {
-                LOG.warn("Failed to resolve remote user. It usually mean that no SSO information has been provided to XWiki.");
+                LOG.warn("Failed to resolve remote user. "
+                    + "It usually mean that no SSO information has been provided to XWiki.");
 
                 return null;
             }
@@ -400,119 +617,141 @@ public class TrustedLDAPAuthServiceImpl extends XWikiLDAPAuthServiceImpl
         LOG.debug("validXWikiUserName: " + validXWikiUserName);
 
         // ////////////////////////////////////////////////////////////////////
-        // LDAP
+        // Users synchronized recently
         // ////////////////////////////////////////////////////////////////////
 
-        XWikiLDAPConnection connector = new XWikiLDAPConnection();
-        XWikiLDAPUtils ldapUtils = new XWikiLDAPUtils(connector);
+        TrustedLDAPLoginCache loginCache = getLoginCache(context);
+        String loginCacheKey = getLoginCacheKey(ldapUid, remoteUserLdapConfiguration, context);
+        TrustedLDAPLoginCache.Entry cachedLogin = loginCache != null ? loginCache.get(loginCacheKey) : null;
+
+        if (cachedLogin != null) {
+            this.metrics.cacheHit();
+            LOG.debug("User [" + ldapUid + "] already synchronized as [" + cachedLogin.getUserFullName() + "]");
+
+            if (checkAuth) {
+                // The password still has to be checked at each authentication
+                String poolKey = getConnectionPoolKey(remoteUserLdapConfiguration, context);
+                XWikiLDAPConnection connector = borrowConnection(poolKey, remoteUserLdapConfiguration, context);
+                boolean reusable = false;
+                try {
+                    checkPassword(connector, cachedLogin.getLdapDn(), ldapUid, password, context);
+                    reusable = true;
+                } finally {
+                    releaseConnection(poolKey, connector, reusable, context);
+                }
+            }
 
-        XWikiLDAPConfig config = XWikiLDAPConfig.getInstance();
-        ldapUtils.setUidAttributeName(config.getLDAPParam(XWikiLDAPConfig.PREF_LDAP_UID, "cn", context));
-        ldapUtils.setGroupClasses(config.getGroupClasses(context));
-        ldapUtils.setGroupMemberFields(config.getGroupMemberFields(context));
-        ldapUtils.setUserSearchFormatString(config.getLDAPParam("ldap_user_search_fmt", "({0}={1})", context));
+            principal = createPrincipal(cachedLogin.getUserFullName(), local, context);
 
-        ldapUtils.setBaseDN(remoteUserLdapConfiguration.containsKey("ldap_base_DN") ? remoteUserLdapConfiguration
-            .get("ldap_base_DN") : config.getLDAPParam("ldap_base_DN", "", context));
+            LOG.debug("Principal=" + principal);
+
+            return principal;
+        }
+
+        if (loginCache != null) {
+            this.metrics.cacheMiss();
+        }
 
         // ////////////////////////////////////////////////////////////////////
-        // bind to LDAP
+        // LDAP
         // ////////////////////////////////////////////////////////////////////
 
-        if (!open(connector, remoteUserLdapConfiguration, context)) {
-            throw new XWikiException(XWikiException.MODULE_XWIKI_USER, XWikiException.ERROR_XWIKI_USER_INIT,
-                "Bind to LDAP server failed.");
-        }
+        XWikiLDAPConfig config = XWikiLDAPConfig.getInstance();
 
         // ////////////////////////////////////////////////////////////////////
-        // find XWiki user profile page
+        // bind to LDAP
         // ////////////////////////////////////////////////////////////////////
 
-        LDAPProfileXClass ldapProfileClass = new LDAPProfileXClass(context);
+        String poolKey = getConnectionPoolKey(remoteUserLdapConfiguration, context);
+        XWikiLDAPConnection connector = borrowConnection(poolKey, remoteUserLdapConfiguration, context);
+        // A connection is only given back to the pool when nothing failed, it could be bound with the user
+        // credentials otherwise
+        boolean reusable = false;
+        try {
+            XWikiLDAPUtils ldapUtils = new XWikiLDAPUtils(connector);
 
-        XWikiDocument userProfile = getUserProfileByUid(validXWikiUserName, ldapUid, context);
+            ldapUtils.setUidAttributeName(config.getLDAPParam(XWikiLDAPConfig.PREF_LDAP_UID, "cn", context));
+            ldapUtils.setGroupClasses(config.getGroupClasses(context));
+            ldapUtils.setGroupMemberFields(config.getGroupMemberFields(context));
+            ldapUtils.setUserSearchFormatString(config.getLDAPParam("ldap_user_search_fmt", "({0}={1})", context));
 
-        // get DN from existing XWiki user
-        String ldapDn = ldapProfileClass.getDn(userProfile);
+            ldapUtils.setBaseDN(remoteUserLdapConfiguration.containsKey("ldap_base_DN") ? remoteUserLdapConfiguration
+                .get("ldap_base_DN") : config.getLDAPParam("ldap_base_DN", "", context));
 
-        if (LOG.isDebugEnabled() && ldapDn != null) {
-            LOG.debug("Found user dn with the user object: " + ldapDn);
-        }
+            // ////////////////////////////////////////////////////////////////////
+            // find XWiki user profile page
+            // ////////////////////////////////////////////////////////////////////
 
-        List<XWikiLDAPSearchAttribute> searchAttributes = null;
+            LDAPProfileXClass ldapProfileClass = new LDAPProfileXClass(context);
 
-        // if we still don't have a dn, search for it. Also get the attributes, we might need
-        // them
-        if (ldapDn == null) {
-            searchAttributes = ldapUtils.searchUserAttributesByUid(ldapUid, getAttributeNameTable(context));
+            XWikiDocument userProfile = getUserProfileByUid(validXWikiUserName, ldapUid, context);
 
-            if (searchAttributes != null) {
-                for (XWikiLDAPSearchAttribute searchAttribute : searchAttributes) {
-                    if ("dn".equals(searchAttribute.name)) {
-                        ldapDn = searchAttribute.value;
+            // get DN from existing XWiki user
+            String ldapDn = ldapProfileClass.getDn(userProfile);
 
-                        break;
-                    }
-                }
+            if (LOG.isDebugEnabled() && ldapDn != null) {
+                LOG.debug("Found user dn with the user object: " + ldapDn);
             }
-        }
 
-        if (ldapDn == null) {
-            throw new XWikiException(XWikiException.MODULE_XWIKI_USER, XWikiException.ERROR_XWIKI_USER_INIT,
-                "Can't find LDAP user DN for [" + ldapUid + "]");
-        }
-
-        // if using form user/password, validate it
-        if (checkAuth) {
-            if ("1".equals(config.getLDAPParam("ldap_validate_password", "0", context))) {
-                String passwordField = config.getLDAPParam("ldap_password_field", "userPassword", context);
-                if (!connector.checkPassword(ldapDn, password, passwordField)) {
-                    LOG.debug("Password comparison failed, are you really sure you need validate_password ?"
-                        + " If you don't enable it, it does not mean user credentials are not validated."
-                        + " The goal of this property is to bypass standard LDAP bind"
-                        + " which is usually bad unless you really know what you do.");
-
-                    throw new XWikiException(XWikiException.MODULE_XWIKI_USER, XWikiException.ERROR_XWIKI_USER_INIT,
-                        "LDAP authentication failed:" + " could not validate the password: wrong password for "
-                            + ldapDn);
-                }
-            } else {
-                String bindDNFormat = config.getLDAPBindDN(context);
-                String bindDN = config.getLDAPBindDN(ldapUid, password, context);
+            List<XWikiLDAPSearchAttribute> searchAttributes = null;
 
-                if (bindDNFormat.equals(bindDN)) {
-                    // Validate user credentials
-                    connector.bind(ldapDn, password);
+            // if we still don't have a dn, search for it. Also get the attributes, we might need
+            // them
+            if (ldapDn == null) {
+                searchAttributes = ldapUtils.searchUserAttributesByUid(ldapUid, getAttributeNameTable(context));
 
-                    // Rebind admin user
-                    connector.bind(bindDN, config.getLDAPBindPassword(ldapUid, password, context));
+                if (searchAttributes != null) {
+                    for (XWikiLDAPSearchAttribute searchAttribute : searchAttributes) {
+                        if ("dn".equals(searchAttribute.name)) {
+                            ldapDn = searchAttribute.value;
+
+                            break;
+                        }
+                    }
                 }
             }
-        }
 
-        // ////////////////////////////////////////////////////////////////////
-        // sync user
-        // ////////////////////////////////////////////////////////////////////
+            if (ldapDn == null) {
+                throw new XWikiException(XWikiException.MODULE_XWIKI_USER, XWikiException.ERROR_XWIKI_USER_INIT,
+                    "Can't find LDAP user DN for [" + ldapUid + "]");
+            }
 
-        boolean isNewUser = userProfile.isNew();
+            // if using form user/password, validate it
+            if (checkAuth) {
+                checkPassword(connector, ldapDn, ldapUid, password, context);
+            }
 
-        syncUser(userProfile, searchAttributes, ldapDn, ldapUid, ldapUtils, context);
+            // ////////////////////////////////////////////////////////////////////
+            // sync user
+            // ////////////////////////////////////////////////////////////////////
 
-        // from now on we can enter the application
-        if (local) {
-            principal = new SimplePrincipal(userProfile.getFullName());
-        } else {
-            principal = new SimplePrincipal(context.getDatabase() + ":" + userProfile.getFullName());
-        }
+            boolean isNewUser = userProfile.isNew();
 
-        // ////////////////////////////////////////////////////////////////////
-        // sync groups membership
-        // ////////////////////////////////////////////////////////////////////
+            syncUser(userProfile, searchAttributes, ldapDn, ldapUid, ldapUtils, context);
 
-        try {
-            syncGroupsMembership(userProfile.getFullName(), ldapDn, isNewUser, ldapUtils, context);
-        } catch (XWikiException e) {
-            LOG.error("Failed to synchronise user's groups membership", e);
+            // from now on we can enter the application
+            principal = createPrincipal(userProfile.getFullName(), local, context);
+
+            // ////////////////////////////////////////////////////////////////////
+            // sync groups membership
+            // ////////////////////////////////////////////////////////////////////
+
+            boolean groupsSynchronized = false;
+            try {
+                syncGroupsMembership(userProfile.getFullName(), ldapDn, isNewUser, ldapUtils, context);
+                groupsSynchronized = true;
+            } catch (XWikiException e) {
+                LOG.error("Failed to synchronise user's groups membership", e);
+            }
+
+            // Only remember complete synchronizations, the next authentication tries again otherwise
+            if (loginCache != null && groupsSynchronized) {
+                loginCache.put(loginCacheKey, ldapDn, userProfile.getFullName());
+            }
+
+            reusable = true;
+        } finally {
+            releaseConnection(poolKey, connector, reusable, context);
         }
 
         LOG.debug("Principal=" + principal);
@@ -68,4 +68,63 @@ public class TrustedLDAPConfig extends Config
         return getMapParam("remoteUserMapping." + propertyName, '|', Collections.<String, String> emptyMap(),
             forceLowerCaseKey, context);
     }
+
+    public int getIntParam(String name, int def, XWikiContext context)
+    {
+        String param = getParam(name, null, context);
+
+        if (param != null) {
+            try {
+                return Integer.parseInt(param.trim());
+            } catch (NumberFormatException e) {
+                LOG.warn("Invalid integer value for [" + name + "]: " + param);
+            }
+        }
+
+        return def;
+    }
+
+    /**
+     * @return the maximum number of LDAP connections open at the same time
+     */
+    public int getPoolMaxConnections(XWikiContext context)
+    {
+        return getIntParam("pool.maxConnections", 10, context);
+    }
+
+    /**
+     * @return the time in seconds after which an idle LDAP connection is closed
+     */
+    public int getPoolMaxIdleTime(XWikiContext context)
+    {
+        return getIntParam("pool.maxIdleTime", 60, context);
+    }
+
+    /**
+     * @return the maximum time in seconds to wait for an LDAP connection when they are all in use
+     */
+    public int getPoolWaitTimeout(XWikiContext context)
+    {
+        return getIntParam("pool.waitTimeout", 10, context);
+    }
+
+    /**
+     * The login cache is disabled by default: while an entry is cached, a user disabled or removed in LDAP keeps its
+     * SSO access and its previous groups until the entry expires.
+     * 
+     * @return the time in seconds during which a user isn't synchronized again with LDAP, 0 (the default) to
+     *         synchronize at each authentication
+     */
+    public int getCacheTimeToLive(XWikiContext context)
+    {
+        return getIntParam("cache.timeToLive", 0, context);
+    }
+
+    /**
+     * @return the maximum number of users remembered as synchronized
+     */
+    public int getCacheMaxEntries(XWikiContext context)
+    {
+        return getIntParam("cache.maxEntries", 1000, context);
+    }
 }
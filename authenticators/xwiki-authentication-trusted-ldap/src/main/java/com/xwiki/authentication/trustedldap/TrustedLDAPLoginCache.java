@@ -0,0 +1,141 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ *
+ */
+
+package com.xwiki.authentication.trustedldap;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Remembers for a limited time the users whose LDAP attributes and groups membership were synchronized, so that the
+ * following authentications of the same user don't search and synchronize them again.
+ * <p>
+ * The cache is bounded, the least recently used entries are dropped first.
+ *
+ * @version $Id$
+ */
+public class TrustedLDAPLoginCache
+{
+    /**
+     * The result of a synchronization.
+     */
+    public static class Entry
+    {
+        private final String ldapDn;
+
+        private final String userFullName;
+
+        private final long expires;
+
+        Entry(String ldapDn, String userFullName, long expires)
+        {
+            this.ldapDn = ldapDn;
+            this.userFullName = userFullName;
+            this.expires = expires;
+        }
+
+        /**
+         * @return the LDAP DN of the user
+         */
+        public String getLdapDn()
+        {
+            return this.ldapDn;
+        }
+
+        /**
+         * @return the full name of the XWiki profile of the user
+         */
+        public String getUserFullName()
+        {
+            return this.userFullName;
+        }
+    }
+
+    private final long timeToLive;
+
+    private final Map<String, Entry> entries;
+
+    /**
+     * @param timeToLive the time in milliseconds an entry is kept
+     * @param maxEntries the maximum number of entries
+     */
+    public TrustedLDAPLoginCache(long timeToLive, final int maxEntries)
+    {
+        this.timeToLive = timeToLive;
+        this.entries = new LinkedHashMap<String, Entry>(16, 0.75f, true)
+        {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest)
+            {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+    /**
+     * @param key identifies the user and the LDAP server
+     * @return the last synchronization of the user if it's recent enough, null otherwise
+     */
+    public synchronized Entry get(String key)
+    {
+        Entry entry = this.entries.get(key);
+        if (entry != null && entry.expires <= System.currentTimeMillis()) {
+            this.entries.remove(key);
+            entry = null;
+        }
+
+        return entry;
+    }
+
+    /**
+     * @param key identifies the user and the LDAP server
+     * @param ldapDn the LDAP DN of the user
+     * @param userFullName the full name of the XWiki profile of the user
+     */
+    public synchronized void put(String key, String ldapDn, String userFullName)
+    {
+        this.entries.put(key, new Entry(ldapDn, userFullName, System.currentTimeMillis() + this.timeToLive));
+    }
+
+    /**
+     * @param key identifies the user and the LDAP server
+     */
+    public synchronized void remove(String key)
+    {
+        this.entries.remove(key);
+    }
+
+    /**
+     * Forget all the users, the next authentication of each of them synchronizes them.
+     */
+    public synchronized void clear()
+    {
+        this.entries.clear();
+    }
+
+    /**
+     * @return the number of entries, expired or not
+     */
+    public synchronized int size()
+    {
+        return this.entries.size();
+    }
+}
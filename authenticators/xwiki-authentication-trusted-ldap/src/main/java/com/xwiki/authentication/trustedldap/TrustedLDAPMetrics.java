@@ -0,0 +1,192 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ *
+ */
+
+package com.xwiki.authentication.trustedldap;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters about the SSO authentications, the login cache and the LDAP connection pool, since the authenticator was
+ * created.
+ *
+ * @version $Id$
+ */
+public class TrustedLDAPMetrics
+{
+    private final AtomicLong authentications = new AtomicLong();
+
+    private final AtomicLong failedAuthentications = new AtomicLong();
+
+    private final AtomicLong authenticationTime = new AtomicLong();
+
+    private final AtomicLong cacheHits = new AtomicLong();
+
+    private final AtomicLong cacheMisses = new AtomicLong();
+
+    private final AtomicLong connectionsOpened = new AtomicLong();
+
+    private final AtomicLong connectionsReused = new AtomicLong();
+
+    private final AtomicLong connectionsClosed = new AtomicLong();
+
+    private final AtomicLong borrowWaits = new AtomicLong();
+
+    private final AtomicLong borrowTimeouts = new AtomicLong();
+
+    void authentication(boolean succeeded, long time)
+    {
+        this.authentications.incrementAndGet();
+        if (!succeeded) {
+            this.failedAuthentications.incrementAndGet();
+        }
+        this.authenticationTime.addAndGet(time);
+    }
+
+    void cacheHit()
+    {
+        this.cacheHits.incrementAndGet();
+    }
+
+    void cacheMiss()
+    {
+        this.cacheMisses.incrementAndGet();
+    }
+
+    void connectionOpened()
+    {
+        this.connectionsOpened.incrementAndGet();
+    }
+
+    void connectionReused()
+    {
+        this.connectionsReused.incrementAndGet();
+    }
+
+    void connectionClosed()
+    {
+        this.connectionsClosed.incrementAndGet();
+    }
+
+    void borrowWait()
+    {
+        this.borrowWaits.incrementAndGet();
+    }
+
+    void borrowTimeout()
+    {
+        this.borrowTimeouts.incrementAndGet();
+    }
+
+    /**
+     * @return the number of SSO authentications, failed or not
+     */
+    public long getAuthentications()
+    {
+        return this.authentications.get();
+    }
+
+    /**
+     * @return the number of SSO authentications which failed, the standard LDAP authentication is tried after them
+     */
+    public long getFailedAuthentications()
+    {
+        return this.failedAuthentications.get();
+    }
+
+    /**
+     * @return the total time spent in SSO authentications, in milliseconds
+     */
+    public long getAuthenticationTime()
+    {
+        return this.authenticationTime.get();
+    }
+
+    /**
+     * @return the number of authentications which didn't need to search and synchronize the user
+     */
+    public long getCacheHits()
+    {
+        return this.cacheHits.get();
+    }
+
+    /**
+     * @return the number of authentications which searched and synchronized the user
+     */
+    public long getCacheMisses()
+    {
+        return this.cacheMisses.get();
+    }
+
+    /**
+     * @return the number of LDAP connections opened
+     */
+    public long getConnectionsOpened()
+    {
+        return this.connectionsOpened.get();
+    }
+
+    /**
+     * @return the number of times an idle LDAP connection was reused instead of opening a new one
+     */
+    public long getConnectionsReused()
+    {
+        return this.connectionsReused.get();
+    }
+
+    /**
+     * @return the number of LDAP connections closed
+     */
+    public long getConnectionsClosed()
+    {
+        return this.connectionsClosed.get();
+    }
+
+    /**
+     * @return the number of times an authentication had to wait for a connection because the pool was exhausted
+     */
+    public long getBorrowWaits()
+    {
+        return this.borrowWaits.get();
+    }
+
+    /**
+     * @return the number of times an authentication gave up waiting for a connection
+     */
+    public long getBorrowTimeouts()
+    {
+        return this.borrowTimeouts.get();
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * @see java.lang.Object#toString()
+     */
+    @Override
+    public String toString()
+    {
+        return "authentications=" + getAuthentications() + " failed=" + getFailedAuthentications() + " time="
+            + getAuthenticationTime() + "ms cacheHits=" + getCacheHits() + " cacheMisses=" + getCacheMisses()
+            + " connectionsOpened=" + getConnectionsOpened() + " connectionsReused=" + getConnectionsReused()
+            + " connectionsClosed=" + getConnectionsClosed() + " borrowWaits=" + getBorrowWaits()
+            + " borrowTimeouts=" + getBorrowTimeouts();
+    }
+}
@@ -0,0 +1,241 @@
+package com.xwiki.authentication.trustedldap;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.Assert;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.unboundid.ldap.listener.InMemoryDirectoryServer;
+import com.unboundid.ldap.listener.InMemoryDirectoryServerConfig;
+import com.unboundid.ldap.sdk.LDAPConnection;
+import com.unboundid.ldap.sdk.SearchResult;
+import com.unboundid.ldap.sdk.SearchScope;
+
+/**
+ * Checks {@link LDAPConnectionPool} against an in-memory LDAP server.
+ */
+public class LDAPConnectionPoolTest
+{
+    private static final String BIND_DN = "cn=admin,dc=example,dc=com";
+
+    private static final String BIND_PASSWORD = "secret";
+
+    private InMemoryDirectoryServer server;
+
+    private TrustedLDAPMetrics metrics;
+
+    private AtomicInteger opened = new AtomicInteger();
+
+    private LDAPConnectionPool.ConnectionHandler<LDAPConnection> handler =
+        new LDAPConnectionPool.ConnectionHandler<LDAPConnection>()
+        {
+            public boolean isAlive(LDAPConnection connection)
+            {
+                return connection.isConnected();
+            }
+
+            public void close(LDAPConnection connection)
+            {
+                connection.close();
+            }
+        };
+
+    private LDAPConnectionPool.ConnectionOpener<LDAPConnection> opener =
+        new LDAPConnectionPool.ConnectionOpener<LDAPConnection>()
+        {
+            public LDAPConnection open() throws Exception
+            {
+                opened.incrementAndGet();
+
+                return new LDAPConnection("localhost", server.getListenPort(), BIND_DN, BIND_PASSWORD);
+            }
+        };
+
+    @Before
+    public void setUp() throws Exception
+    {
+        InMemoryDirectoryServerConfig config = new InMemoryDirectoryServerConfig("dc=example,dc=com");
+        config.addAdditionalBindCredentials(BIND_DN, BIND_PASSWORD);
+        this.server = new InMemoryDirectoryServer(config);
+        this.server.add("dn: dc=example,dc=com", "objectClass: top", "objectClass: domain", "dc: example");
+        for (int i = 0; i < 20; ++i) {
+            this.server.add("dn: uid=user" + i + ",dc=example,dc=com", "objectClass: top",
+                "objectClass: inetOrgPerson", "uid: user" + i, "cn: User " + i, "sn: " + i);
+        }
+        this.server.startListening();
+
+        this.metrics = new TrustedLDAPMetrics();
+    }
+
+    @After
+    public void tearDown()
+    {
+        this.server.shutDown(true);
+    }
+
+    @Test
+    public void testReuseReleasedConnection() throws Exception
+    {
+        LDAPConnectionPool<LDAPConnection> pool =
+            new LDAPConnectionPool<LDAPConnection>(this.handler, 5, 60000, 1000, this.metrics);
+
+        LDAPConnection connection = pool.borrow("server", this.opener);
+        pool.release("server", connection);
+
+        Assert.assertSame(connection, pool.borrow("server", this.opener));
+        Assert.assertEquals(1, this.opened.get());
+        Assert.assertEquals(1, this.metrics.getConnectionsReused());
+    }
+
+    @Test
+    public void testDoNotReuseConnectionOfOtherKey() throws Exception
+    {
+        LDAPConnectionPool<LDAPConnection> pool =
+            new LDAPConnectionPool<LDAPConnection>(this.handler, 5, 60000, 1000, this.metrics);
+
+        LDAPConnection connection = pool.borrow("server1", this.opener);
+        pool.release("server1", connection);
+
+        Assert.assertNotSame(connection, pool.borrow("server2", this.opener));
+        Assert.assertEquals(2, pool.getOpenConnections());
+    }
+
+    @Test
+    public void testCloseIdleConnectionOfOtherKeyWhenFull() throws Exception
+    {
+        LDAPConnectionPool<LDAPConnection> pool =
+            new LDAPConnectionPool<LDAPConnection>(this.handler, 1, 60000, 1000, this.metrics);
+
+        LDAPConnection connection = pool.borrow("server1", this.opener);
+        pool.release("server1", connection);
+        pool.borrow("server2", this.opener);
+
+        Assert.assertFalse(connection.isConnected());
+        Assert.assertEquals(1, pool.getOpenConnections());
+    }
+
+    @Test
+    public void testDoNotReuseDeadConnection() throws Exception
+    {
+        LDAPConnectionPool<LDAPConnection> pool =
+            new LDAPConnectionPool<LDAPConnection>(this.handler, 5, 60000, 1000, this.metrics);
+
+        LDAPConnection connection = pool.borrow("server", this.opener);
+        pool.release("server", connection);
+        connection.close();
+
+        LDAPConnection newConnection = pool.borrow("server", this.opener);
+
+        Assert.assertNotSame(connection, newConnection);
+        Assert.assertTrue(newConnection.isConnected());
+        Assert.assertEquals(1, pool.getOpenConnections());
+    }
+
+    @Test
+    public void testCloseExpiredIdleConnection() throws Exception
+    {
+        LDAPConnectionPool<LDAPConnection> pool =
+            new LDAPConnectionPool<LDAPConnection>(this.handler, 5, 10, 1000, this.metrics);
+
+        LDAPConnection connection = pool.borrow("server", this.opener);
+        pool.release("server", connection);
+        Thread.sleep(50);
+
+        Assert.assertNotSame(connection, pool.borrow("server", this.opener));
+        Assert.assertFalse(connection.isConnected());
+    }
+
+    @Test
+    public void testTimeoutWhenExhausted() throws Exception
+    {
+        LDAPConnectionPool<LDAPConnection> pool =
+            new LDAPConnectionPool<LDAPConnection>(this.handler, 1, 60000, 50, this.metrics);
+
+        pool.borrow("server", this.opener);
+        try {
+            pool.borrow("server", this.opener);
+            Assert.fail("Should have timed out");
+        } catch (TimeoutException expected) {
+            Assert.assertEquals(1, this.metrics.getBorrowTimeouts());
+        }
+    }
+
+    @Test
+    public void testFailedOpenGivesBackItsSlot() throws Exception
+    {
+        LDAPConnectionPool<LDAPConnection> pool =
+            new LDAPConnectionPool<LDAPConnection>(this.handler, 1, 60000, 50, this.metrics);
+
+        try {
+            pool.borrow("server", new LDAPConnectionPool.ConnectionOpener<LDAPConnection>()
+            {
+                public LDAPConnection open() throws Exception
+                {
+                    return new LDAPConnection("localhost", server.getListenPort(), BIND_DN, "wrong");
+                }
+            });
+            Assert.fail("Bind should have failed");
+        } catch (Exception expected) {
+            // expected
+        }
+
+        Assert.assertEquals(0, pool.getOpenConnections());
+        Assert.assertNotNull(pool.borrow("server", this.opener));
+    }
+
+    /**
+     * A login storm: many more concurrent searches than connections, the server never sees more connections than
+     * the pool allows.
+     */
+    @Test
+    public void testLoginStorm() throws Exception
+    {
+        final LDAPConnectionPool<LDAPConnection> pool =
+            new LDAPConnectionPool<LDAPConnection>(this.handler, 4, 60000, 10000, this.metrics);
+
+        ExecutorService executor = Executors.newFixedThreadPool(32);
+        try {
+            List<Callable<Integer>> logins = new ArrayList<Callable<Integer>>();
+            for (int i = 0; i < 400; ++i) {
+                final String uid = "user" + (i % 20);
+                logins.add(new Callable<Integer>()
+                {
+                    public Integer call() throws Exception
+                    {
+                        LDAPConnection connection = pool.borrow("server", opener);
+                        try {
+                            SearchResult result =
+                                connection.search("dc=example,dc=com", SearchScope.SUB, "(uid=" + uid + ")");
+
+                            return result.getEntryCount();
+                        } finally {
+                            pool.release("server", connection);
+                        }
+                    }
+                });
+            }
+
+            for (Future<Integer> login : executor.invokeAll(logins)) {
+                Assert.assertEquals(Integer.valueOf(1), login.get());
+            }
+        } finally {
+            executor.shutdown();
+        }
+
+        Assert.assertTrue("Opened " + this.opened.get() + " connections", this.opened.get() <= 4);
+        Assert.assertEquals(400, this.metrics.getConnectionsOpened() + this.metrics.getConnectionsReused());
+
+        pool.close();
+        Assert.assertEquals(0, pool.getOpenConnections());
+    }
+}
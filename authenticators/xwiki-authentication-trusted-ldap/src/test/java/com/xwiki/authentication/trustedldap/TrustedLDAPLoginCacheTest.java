@@ -0,0 +1,46 @@
+package com.xwiki.authentication.trustedldap;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+public class TrustedLDAPLoginCacheTest
+{
+    @Test
+    public void testGet()
+    {
+        TrustedLDAPLoginCache cache = new TrustedLDAPLoginCache(60000, 10);
+        cache.put("xwiki:ldap:user", "uid=user,dc=example,dc=com", "XWiki.user");
+
+        TrustedLDAPLoginCache.Entry entry = cache.get("xwiki:ldap:user");
+
+        Assert.assertEquals("uid=user,dc=example,dc=com", entry.getLdapDn());
+        Assert.assertEquals("XWiki.user", entry.getUserFullName());
+        Assert.assertNull(cache.get("xwiki:ldap:other"));
+    }
+
+    @Test
+    public void testExpire() throws Exception
+    {
+        TrustedLDAPLoginCache cache = new TrustedLDAPLoginCache(10, 10);
+        cache.put("xwiki:ldap:user", "uid=user,dc=example,dc=com", "XWiki.user");
+        Thread.sleep(50);
+
+        Assert.assertNull(cache.get("xwiki:ldap:user"));
+        Assert.assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void testEvictLeastRecentlyUsed()
+    {
+        TrustedLDAPLoginCache cache = new TrustedLDAPLoginCache(60000, 2);
+        cache.put("user1", "uid=user1", "XWiki.user1");
+        cache.put("user2", "uid=user2", "XWiki.user2");
+        cache.get("user1");
+        cache.put("user3", "uid=user3", "XWiki.user3");
+
+        Assert.assertNotNull(cache.get("user1"));
+        Assert.assertNull(cache.get("user2"));
+        Assert.assertNotNull(cache.get("user3"));
+    }
+}
@@ -19,10 +19,17 @@
  */
 package org.xwiki.opensocial.social.spi.internal;
 
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Set;
 import java.util.concurrent.Future;
 
+import javax.servlet.http.HttpServletResponse;
+
 import org.apache.shindig.auth.SecurityToken;
+import org.apache.shindig.common.util.ImmediateFuture;
 import org.apache.shindig.protocol.ProtocolException;
 import org.apache.shindig.protocol.RestfulCollection;
 import org.apache.shindig.social.opensocial.model.Activity;
@@ -34,18 +41,49 @@ import org.xwiki.bridge.DocumentAccessBridge;
 import org.xwiki.component.annotation.Component;
 import org.xwiki.component.annotation.Requirement;
 import org.xwiki.component.logging.AbstractLogEnabled;
+import org.xwiki.component.manager.ComponentLifecycleException;
+import org.xwiki.component.phase.Disposable;
 import org.xwiki.component.phase.Initializable;
 import org.xwiki.component.phase.InitializationException;
+import org.xwiki.configuration.ConfigurationSource;
 import org.xwiki.opensocial.social.spi.SocialServiceComponent;
+import org.xwiki.query.QueryException;
+import org.xwiki.query.QueryManager;
 
+/**
+ * Activities stored locally in an {@link ActivityStore}, in the directory configured by the
+ * <code>opensocial.activities.storageDirectory</code> property, which is required.
+ * <p>
+ * The activities are partitioned by period of <code>opensocial.activities.partitionDuration</code> hours (one day by
+ * default) and deleted when older than <code>opensocial.activities.maxAge</code> days (kept forever by default).
+ * The partition files are closed when the component is disposed.
+ */
 @Component("ActivityServiceXW")
 public class ActivityServiceXW extends AbstractLogEnabled implements ActivityService, SocialServiceComponent,
-    Initializable
+    Initializable, Disposable
 {
+    /** Number of activities returned when the request does not tell. */
+    private static final int DEFAULT_MAX = 20;
+
+    /** Maximum number of activities returned by a single request. */
+    private static final int MAX_RESULTS = 1000;
+
+    private static final long HOUR = 60L * 60 * 1000;
+
     /** Provides access to documents */
     @Requirement
     private DocumentAccessBridge documentAccessBridge;
 
+    /** Used to find the friends of the users */
+    @Requirement
+    private QueryManager queryManager;
+
+    /** Where the storage directory is configured */
+    @Requirement
+    private ConfigurationSource configuration;
+
+    private ActivityStore store;
+
     /**
      * Allows overriding the Document Access Bridge used (useful for unit tests).
      * 
@@ -56,13 +94,85 @@ public class ActivityServiceXW extends AbstractLogEnabled implements ActivitySer
         this.documentAccessBridge = documentAccessBridge;
     }
 
+    /**
+     * Allows overriding the Query Manager used (useful for unit tests).
+     * 
+     * @param queryManager the new Query Manager to use
+     */
+    public void setQueryManager(QueryManager queryManager)
+    {
+        this.queryManager = queryManager;
+    }
+
+    /**
+     * Allows overriding the configuration used (useful for unit tests).
+     * 
+     * @param configuration the new configuration source to use
+     */
+    public void setConfiguration(ConfigurationSource configuration)
+    {
+        this.configuration = configuration;
+    }
+
     /**
      * {@inheritDoc}
+     * <p>
+     * Only the requested page of the latest activities is read from the store, at most {@value #MAX_RESULTS}
+     * activities.
      */
     public Future<RestfulCollection<Activity>> getActivities(Set<UserId> userIds, GroupId groupId, String appId,
         Set<String> fields, CollectionOptions options, SecurityToken token) throws ProtocolException
     {
-        return null;
+        List<String> uids = new ArrayList<String>();
+        for (UserId userId : userIds) {
+            uids.add(userId.getUserId(token));
+        }
+
+        switch (groupId.getType()) {
+            case self:
+                break;
+            case friends:
+                try {
+                    uids = FriendsQuery.getFriends(this.queryManager, uids);
+                } catch (QueryException e) {
+                    throw new ProtocolException(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, e.getMessage(), e);
+                }
+                break;
+            case all:
+                throw new ProtocolException(HttpServletResponse.SC_NOT_IMPLEMENTED, "Not yet implemented", null);
+            case groupId:
+                throw new ProtocolException(HttpServletResponse.SC_NOT_IMPLEMENTED, "Not yet implemented", null);
+            case deleted:
+                throw new ProtocolException(HttpServletResponse.SC_NOT_IMPLEMENTED, "Not yet implemented", null);
+            default:
+                throw new ProtocolException(HttpServletResponse.SC_BAD_REQUEST, "Group ID not recognized", null);
+        }
+
+        int first = 0;
+        int max = DEFAULT_MAX;
+        long since = Long.MIN_VALUE;
+        if (options != null) {
+            first = Math.max(options.getFirst(), 0);
+            if (options.getMax() > 0) {
+                max = Math.min(options.getMax(), MAX_RESULTS);
+            }
+            if (options.getUpdatedSince() != null) {
+                since = options.getUpdatedSince().getTime();
+            }
+        }
+
+        try {
+            List<Activity> activities = this.store.getLatest(uids, appId, since, first, max);
+            int total = this.store.count(uids, appId, since);
+
+            RestfulCollection<Activity> collection = new RestfulCollection<Activity>(activities, first, total, max);
+            collection.setSorted(true);
+            collection.setUpdatedSince(since != Long.MIN_VALUE);
+
+            return ImmediateFuture.newInstance(collection);
+        } catch (IOException e) {
+            throw new ProtocolException(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, e.getMessage(), e);
+        }
     }
 
     /**
@@ -72,7 +182,13 @@ public class ActivityServiceXW extends AbstractLogEnabled implements ActivitySer
         Set<String> fields, CollectionOptions options, Set<String> activityIds, SecurityToken token)
         throws ProtocolException
     {
-        return null;
+        try {
+            List<Activity> activities = this.store.get(userId.getUserId(token), appId, activityIds);
+
+            return ImmediateFuture.newInstance(new RestfulCollection<Activity>(activities));
+        } catch (IOException e) {
+            throw new ProtocolException(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, e.getMessage(), e);
+        }
     }
 
     /**
@@ -81,7 +197,18 @@ public class ActivityServiceXW extends AbstractLogEnabled implements ActivitySer
     public Future<Activity> getActivity(UserId userId, GroupId groupId, String appId, Set<String> fields,
         String activityId, SecurityToken token) throws ProtocolException
     {
-        return null;
+        Activity activity;
+        try {
+            activity = this.store.get(userId.getUserId(token), activityId);
+        } catch (IOException e) {
+            throw new ProtocolException(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, e.getMessage(), e);
+        }
+
+        if (activity == null || (appId != null && !appId.equals(activity.getAppId()))) {
+            throw new ProtocolException(HttpServletResponse.SC_BAD_REQUEST, "Activity not found");
+        }
+
+        return ImmediateFuture.newInstance(activity);
     }
 
     /**
@@ -90,7 +217,13 @@ public class ActivityServiceXW extends AbstractLogEnabled implements ActivitySer
     public Future<Void> deleteActivities(UserId userId, GroupId groupId, String appId, Set<String> activityIds,
         SecurityToken token) throws ProtocolException
     {
-        return null;
+        try {
+            this.store.delete(userId.getUserId(token), appId, activityIds);
+        } catch (IOException e) {
+            throw new ProtocolException(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, e.getMessage(), e);
+        }
+
+        return ImmediateFuture.newInstance(null);
     }
 
     /**
@@ -99,11 +232,53 @@ public class ActivityServiceXW extends AbstractLogEnabled implements ActivitySer
     public Future<Void> createActivity(UserId userId, GroupId groupId, String appId, Set<String> fields,
         Activity activity, SecurityToken token) throws ProtocolException
     {
-        return null;
+        activity.setUserId(userId.getUserId(token));
+        activity.setAppId(appId);
+
+        try {
+            this.store.add(activity);
+        } catch (IOException e) {
+            throw new ProtocolException(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, e.getMessage(), e);
+        }
+
+        return ImmediateFuture.newInstance(null);
     }
 
+    /**
+     * {@inheritDoc}
+     */
     public void initialize() throws InitializationException
     {
+        String path = this.configuration.getProperty("opensocial.activities.storageDirectory", String.class);
+        if (path == null || path.trim().length() == 0) {
+            // The activities are kept for good, they must not end up in a temporary directory
+            throw new InitializationException("The opensocial.activities.storageDirectory property is not set");
+        }
+        File directory = new File(path.trim());
+        int partitionDuration = this.configuration.getProperty("opensocial.activities.partitionDuration", 24);
+        int maxAge = this.configuration.getProperty("opensocial.activities.maxAge", 0);
+
+        this.store = new ActivityStore(directory, Math.max(partitionDuration, 1) * HOUR, maxAge * 24 * HOUR);
+        try {
+            this.store.open();
+        } catch (IOException e) {
+            throw new InitializationException("Failed to load the activities from " + directory, e);
+        }
+
+        getLogger().debug("Loaded " + this.store.size() + " activities from " + directory);
+    }
 
+    /**
+     * {@inheritDoc}
+     * <p>
+     * Closes the partition files.
+     */
+    public void dispose() throws ComponentLifecycleException
+    {
+        try {
+            this.store.close();
+        } catch (IOException e) {
+            throw new ComponentLifecycleException("Failed to close the activities store", e);
+        }
     }
 }
@@ -0,0 +1,986 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.opensocial.social.spi.internal;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.apache.shindig.social.core.model.ActivityImpl;
+import org.apache.shindig.social.core.model.MediaItemImpl;
+import org.apache.shindig.social.opensocial.model.Activity;
+import org.apache.shindig.social.opensocial.model.MediaItem;
+
+/**
+ * Append-only store of the OpenSocial activities, partitioned by posted time.
+ * <p>
+ * Each partition is a file holding the activities posted during a period of time, and the deletions of these
+ * activities. Records are only ever appended to a partition file, and a whole partition is deleted when it's older than
+ * the maximum age of the activities.
+ * <p>
+ * Only an index of the activities is kept in memory: for each user, the activities sorted by posted time, in total and
+ * per application, with their position in the partition files. The latest activities of a set of users are found by
+ * merging the end of their timelines, so a query reads as many activities as it returns, whatever the number of stored
+ * activities. The index is rebuilt from the partition files when the store is opened.
+ * <p>
+ * The activities are read concurrently, with positional reads of the partition files, while adding or deleting
+ * activities is exclusive.
+ *
+ * @version $Id$
+ */
+public class ActivityStore
+{
+    /** Record of a new or updated activity. */
+    private static final byte ADD = 1;
+
+    /** Record of a deleted activity. */
+    private static final byte DELETE = 2;
+
+    /** Prefix of the partition files names, followed by the partition start time. */
+    private static final String FILE_PREFIX = "activities-";
+
+    /** Suffix of the partition files names. */
+    private static final String FILE_SUFFIX = ".log";
+
+    /**
+     * The records of the activities posted during a period of time.
+     */
+    private static class Partition
+    {
+        private final long start;
+
+        private final File file;
+
+        private RandomAccessFile data;
+
+        private long length;
+
+        Partition(long start, File file)
+        {
+            this.start = start;
+            this.file = file;
+        }
+
+        /**
+         * Synchronized since the partition file is opened on the first read, by any of the concurrent readers.
+         */
+        private synchronized RandomAccessFile getData() throws IOException
+        {
+            if (this.data == null) {
+                this.data = new RandomAccessFile(this.file, "rw");
+            }
+
+            return this.data;
+        }
+
+        /**
+         * @return the position of the record in the partition file
+         */
+        long append(byte[] record) throws IOException
+        {
+            long offset = this.length;
+
+            RandomAccessFile raf = getData();
+            raf.seek(offset);
+            raf.writeInt(record.length);
+            raf.write(record);
+            this.length = offset + 4 + record.length;
+
+            return offset;
+        }
+
+        /**
+         * Read a record without moving the file pointer, so that records are read concurrently.
+         */
+        byte[] read(long offset) throws IOException
+        {
+            FileChannel channel = getData().getChannel();
+            ByteBuffer length = ByteBuffer.allocate(4);
+            readFully(channel, length, offset);
+            ByteBuffer record = ByteBuffer.allocate(length.getInt(0));
+            readFully(channel, record, offset + 4);
+
+            return record.array();
+        }
+
+        private static void readFully(FileChannel channel, ByteBuffer buffer, long offset) throws IOException
+        {
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer, offset + buffer.position()) < 0) {
+                    throw new EOFException();
+                }
+            }
+        }
+
+        synchronized void close() throws IOException
+        {
+            if (this.data != null) {
+                this.data.close();
+                this.data = null;
+            }
+        }
+    }
+
+    /**
+     * The position of an activity in the partition files.
+     */
+    private static class Entry
+    {
+        private final long time;
+
+        private final String id;
+
+        private final String appId;
+
+        private final Partition partition;
+
+        private final long offset;
+
+        Entry(long time, String id, String appId, Partition partition, long offset)
+        {
+            this.time = time;
+            this.id = id;
+            this.appId = appId;
+            this.partition = partition;
+            this.offset = offset;
+        }
+    }
+
+    /**
+     * Activities sorted by posted time, the oldest first.
+     */
+    private static class Timeline
+    {
+        private final List<Entry> entries = new ArrayList<Entry>();
+
+        void add(Entry entry)
+        {
+            int size = this.entries.size();
+            if (size == 0 || this.entries.get(size - 1).time <= entry.time) {
+                this.entries.add(entry);
+            } else {
+                this.entries.add(indexAfter(entry.time), entry);
+            }
+        }
+
+        void remove(Entry entry)
+        {
+            for (int i = indexAfter(entry.time) - 1; i >= 0 && this.entries.get(i).time == entry.time; --i) {
+                if (this.entries.get(i) == entry) {
+                    this.entries.remove(i);
+                    break;
+                }
+            }
+        }
+
+        /**
+         * @return the index of the first activity posted after the given time
+         */
+        int indexAfter(long time)
+        {
+            int low = 0;
+            int high = this.entries.size();
+            while (low < high) {
+                int middle = (low + high) >>> 1;
+                if (this.entries.get(middle).time <= time) {
+                    low = middle + 1;
+                } else {
+                    high = middle;
+                }
+            }
+
+            return low;
+        }
+
+        /**
+         * @return the index of the first activity posted at or after the given time
+         */
+        int indexFrom(long time)
+        {
+            return time == Long.MIN_VALUE ? 0 : indexAfter(time - 1);
+        }
+
+        /**
+         * Forget the activities of a partition.
+         */
+        void removePartition(Partition partition)
+        {
+            int kept = 0;
+            for (Entry entry : this.entries) {
+                if (entry.partition != partition) {
+                    this.entries.set(kept++, entry);
+                }
+            }
+            this.entries.subList(kept, this.entries.size()).clear();
+        }
+    }
+
+    /**
+     * The activities of a user.
+     */
+    private static class UserActivities
+    {
+        private final Timeline all = new Timeline();
+
+        private final Map<String, Timeline> apps = new HashMap<String, Timeline>();
+
+        private final Map<String, Entry> ids = new HashMap<String, Entry>();
+
+        void add(Entry entry)
+        {
+            Entry previous = this.ids.put(entry.id, entry);
+            if (previous != null) {
+                removeFromTimelines(previous);
+            }
+
+            this.all.add(entry);
+            Timeline app = this.apps.get(entry.appId);
+            if (app == null) {
+                app = new Timeline();
+                this.apps.put(entry.appId, app);
+            }
+            app.add(entry);
+        }
+
+        Entry remove(String id)
+        {
+            Entry entry = this.ids.remove(id);
+            if (entry != null) {
+                removeFromTimelines(entry);
+            }
+
+            return entry;
+        }
+
+        private void removeFromTimelines(Entry entry)
+        {
+            this.all.remove(entry);
+            Timeline app = this.apps.get(entry.appId);
+            app.remove(entry);
+            if (app.entries.isEmpty()) {
+                this.apps.remove(entry.appId);
+            }
+        }
+
+        /**
+         * @return the number of activities removed
+         */
+        int removePartition(Partition partition)
+        {
+            int size = this.all.entries.size();
+            this.all.removePartition(partition);
+            int removed = size - this.all.entries.size();
+            if (removed > 0) {
+                for (Iterator<Timeline> it = this.apps.values().iterator(); it.hasNext();) {
+                    Timeline app = it.next();
+                    app.removePartition(partition);
+                    if (app.entries.isEmpty()) {
+                        it.remove();
+                    }
+                }
+                for (Iterator<Entry> it = this.ids.values().iterator(); it.hasNext();) {
+                    if (it.next().partition == partition) {
+                        it.remove();
+                    }
+                }
+            }
+
+            return removed;
+        }
+
+        Timeline getTimeline(String appId)
+        {
+            return appId == null ? this.all : this.apps.get(appId);
+        }
+    }
+
+    /**
+     * Position in a timeline while merging the timelines of several users, from the latest activity.
+     */
+    private static class Cursor implements Comparable<Cursor>
+    {
+        private final Timeline timeline;
+
+        private final int start;
+
+        private int index;
+
+        Cursor(Timeline timeline, int start)
+        {
+            this.timeline = timeline;
+            this.start = start;
+            this.index = timeline.entries.size() - 1;
+        }
+
+        Entry current()
+        {
+            return this.timeline.entries.get(this.index);
+        }
+
+        boolean next()
+        {
+            return --this.index >= this.start;
+        }
+
+        public int compareTo(Cursor other)
+        {
+            long time = current().time;
+            long otherTime = other.current().time;
+
+            return time > otherTime ? -1 : (time < otherTime ? 1 : 0);
+        }
+    }
+
+    private final File directory;
+
+    private final long partitionDuration;
+
+    private final long maxAge;
+
+    /** The partitions by start time. */
+    private final TreeMap<Long, Partition> partitions = new TreeMap<Long, Partition>();
+
+    private final Map<String, UserActivities> users = new HashMap<String, UserActivities>();
+
+    /** Shared by the queries, exclusive to the changes of the index and of the partition files. */
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    private int size;
+
+    /**
+     * @param directory the directory of the partition files
+     * @param partitionDuration the period of time covered by a partition, in milliseconds
+     * @param maxAge the time in milliseconds after which the activities are deleted, 0 to keep them forever
+     */
+    public ActivityStore(File directory, long partitionDuration, long maxAge)
+    {
+        this.directory = directory;
+        this.partitionDuration = partitionDuration;
+        this.maxAge = maxAge;
+    }
+
+    /**
+     * Read the partition files to build the index of the activities.
+     * <p>
+     * A record partially written when the application stopped is removed from the end of its partition file.
+     *
+     * @throws IOException when failing to read the partition files
+     */
+    public void open() throws IOException
+    {
+        this.lock.writeLock().lock();
+        try {
+            if (!this.directory.isDirectory() && !this.directory.mkdirs()) {
+                throw new IOException("Failed to create the activities directory " + this.directory);
+            }
+
+            File[] files = this.directory.listFiles();
+            for (File file : files) {
+                String name = file.getName();
+                if (name.startsWith(FILE_PREFIX) && name.endsWith(FILE_SUFFIX)) {
+                    try {
+                        long start =
+                            Long.parseLong(name.substring(FILE_PREFIX.length(), name.length() - FILE_SUFFIX.length()));
+                        this.partitions.put(start, new Partition(start, file));
+                    } catch (NumberFormatException e) {
+                        // Not a partition file
+                    }
+                }
+            }
+
+            for (Partition partition : this.partitions.values()) {
+                load(partition);
+            }
+
+            purge(System.currentTimeMillis());
+        } finally {
+            this.lock.writeLock().unlock();
+        }
+    }
+
+    private void load(Partition partition) throws IOException
+    {
+        long fileLength = partition.file.length();
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(partition.file)));
+        long offset = 0;
+        try {
+            while (true) {
+                byte[] record;
+                try {
+                    int length = in.readInt();
+                    if (length < 0 || offset + 4 + length > fileLength) {
+                        break;
+                    }
+                    record = new byte[length];
+                    in.readFully(record);
+                } catch (EOFException e) {
+                    break;
+                }
+
+                DataInputStream recordIn = new DataInputStream(new ByteArrayInputStream(record));
+                byte type = recordIn.readByte();
+                if (type == ADD) {
+                    long time = recordIn.readLong();
+                    String userId = readString(recordIn);
+                    String appId = readString(recordIn);
+                    String id = readString(recordIn);
+                    index(userId, new Entry(time, id, appId, partition, offset));
+                } else if (type == DELETE) {
+                    String userId = readString(recordIn);
+                    String id = readString(recordIn);
+                    long deletedOffset = recordIn.readLong();
+                    // Only the record written before in this partition is deleted, not a replacing activity
+                    Entry entry = getEntry(userId, id);
+                    if (entry != null && entry.partition == partition && entry.offset == deletedOffset) {
+                        unindex(userId, id);
+                    }
+                }
+
+                offset += 4 + record.length;
+            }
+        } finally {
+            in.close();
+        }
+
+        partition.length = offset;
+        if (fileLength > offset) {
+            // Drop the incomplete record
+            partition.getData().setLength(offset);
+        }
+    }
+
+    /**
+     * Close the partition files. The activities are written as soon as they are added, closing the store is only
+     * needed to release the files.
+     *
+     * @throws IOException when failing to close a partition file
+     */
+    public void close() throws IOException
+    {
+        this.lock.writeLock().lock();
+        try {
+            for (Partition partition : this.partitions.values()) {
+                partition.close();
+            }
+            this.partitions.clear();
+            this.users.clear();
+            this.size = 0;
+        } finally {
+            this.lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Add an activity, or replace the activity of the same user with the same identifier.
+     *
+     * @param activity the activity, with its user identifier; a new identifier is generated when it has none and the
+     *            current time is used as posted time when it has none
+     * @return the added activity
+     * @throws IOException when failing to write the activity
+     */
+    public Activity add(Activity activity) throws IOException
+    {
+        this.lock.writeLock().lock();
+        try {
+            if (activity.getUserId() == null) {
+                throw new IllegalArgumentException("The activity has no user");
+            }
+
+            long now = System.currentTimeMillis();
+            if (activity.getId() == null) {
+                activity.setId(UUID.randomUUID().toString());
+            }
+            if (activity.getPostedTime() == null) {
+                activity.setPostedTime(now);
+            }
+            long time = activity.getPostedTime();
+
+            Partition partition = getPartition(time);
+            Entry previous = getEntry(activity.getUserId(), activity.getId());
+            if (previous != null) {
+                appendDelete(activity.getUserId(), previous);
+                // The replacing activity must come after the replaced one when the partitions are loaded
+                if (previous.partition.start > partition.start) {
+                    partition = previous.partition;
+                }
+            }
+            long offset = partition.append(write(activity));
+            index(activity.getUserId(), new Entry(time, activity.getId(), activity.getAppId(), partition, offset));
+
+            purge(now);
+
+            return activity;
+        } finally {
+            this.lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Delete activities of a user.
+     *
+     * @param userId the user
+     * @param appId the application of the activities, null for any application
+     * @param ids the identifiers of the activities
+     * @return the number of deleted activities
+     * @throws IOException when failing to write the deletions
+     */
+    public int delete(String userId, String appId, Collection<String> ids) throws IOException
+    {
+        this.lock.writeLock().lock();
+        try {
+            UserActivities activities = this.users.get(userId);
+            if (activities == null) {
+                return 0;
+            }
+
+            int deleted = 0;
+            for (String id : ids) {
+                Entry entry = activities.ids.get(id);
+                if (entry == null || (appId != null && !appId.equals(entry.appId))) {
+                    continue;
+                }
+
+                appendDelete(userId, entry);
+                unindex(userId, id);
+                ++deleted;
+            }
+
+            return deleted;
+        } finally {
+            this.lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * @param userId the user
+     * @param id the identifier of the activity
+     * @return the activity or null if the user has no such activity
+     * @throws IOException when failing to read the activity
+     */
+    public Activity get(String userId, String id) throws IOException
+    {
+        this.lock.readLock().lock();
+        try {
+            Entry entry = getEntry(userId, id);
+
+            return entry != null ? read(entry) : null;
+        } finally {
+            this.lock.readLock().unlock();
+        }
+    }
+
+    private Entry getEntry(String userId, String id)
+    {
+        UserActivities activities = this.users.get(userId);
+
+        return activities != null ? activities.ids.get(id) : null;
+    }
+
+    /**
+     * Write the deletion of an activity record. The deletion goes in the partition of the record so that they are
+     * purged together.
+     */
+    private void appendDelete(String userId, Entry entry) throws IOException
+    {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(buffer);
+        out.writeByte(DELETE);
+        writeString(out, userId);
+        writeString(out, entry.id);
+        out.writeLong(entry.offset);
+        out.close();
+
+        entry.partition.append(buffer.toByteArray());
+    }
+
+    /**
+     * @param userId the user
+     * @param appId the application of the activities, null for any application
+     * @param ids the identifiers of the activities
+     * @return the existing activities, the latest first
+     * @throws IOException when failing to read the activities
+     */
+    public List<Activity> get(String userId, String appId, Collection<String> ids) throws IOException
+    {
+        this.lock.readLock().lock();
+        try {
+            List<Activity> result = new ArrayList<Activity>();
+
+            UserActivities activities = this.users.get(userId);
+            if (activities != null) {
+                List<Entry> entries = new ArrayList<Entry>();
+                for (String id : ids) {
+                    Entry entry = activities.ids.get(id);
+                    if (entry != null && (appId == null || appId.equals(entry.appId))) {
+                        entries.add(entry);
+                    }
+                }
+                Collections.sort(entries, new Comparator<Entry>()
+                {
+                    public int compare(Entry entry1, Entry entry2)
+                    {
+                        return entry1.time > entry2.time ? -1 : (entry1.time < entry2.time ? 1 : 0);
+                    }
+                });
+                for (Entry entry : entries) {
+                    result.add(read(entry));
+                }
+            }
+
+            return result;
+        } finally {
+            this.lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Get a page of the latest activities of a set of users.
+     *
+     * @param userIds the users
+     * @param appId the application of the activities, null for any application
+     * @param since the minimum posted time of the activities, {@link Long#MIN_VALUE} for no minimum
+     * @param first the index of the first activity of the page
+     * @param max the maximum number of activities in the page
+     * @return the activities, the latest first
+     * @throws IOException when failing to read the activities
+     */
+    public List<Activity> getLatest(Collection<String> userIds, String appId, long since, int first,
+        int max) throws IOException
+    {
+        this.lock.readLock().lock();
+        try {
+            PriorityQueue<Cursor> cursors = new PriorityQueue<Cursor>();
+            for (Timeline timeline : getTimelines(userIds, appId)) {
+                int start = timeline.indexFrom(since);
+                if (start < timeline.entries.size()) {
+                    cursors.add(new Cursor(timeline, start));
+                }
+            }
+
+            List<Entry> entries = new ArrayList<Entry>(Math.min(max, 1024));
+            int skipped = 0;
+            while (entries.size() < max && !cursors.isEmpty()) {
+                Cursor cursor = cursors.poll();
+                if (skipped < first) {
+                    ++skipped;
+                } else {
+                    entries.add(cursor.current());
+                }
+                if (cursor.next()) {
+                    cursors.add(cursor);
+                }
+            }
+
+            List<Activity> result = new ArrayList<Activity>(entries.size());
+            for (Entry entry : entries) {
+                result.add(read(entry));
+            }
+
+            return result;
+        } finally {
+            this.lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @param userIds the users
+     * @param appId the application of the activities, null for any application
+     * @param since the minimum posted time of the activities, {@link Long#MIN_VALUE} for no minimum
+     * @return the number of activities of the users
+     */
+    public int count(Collection<String> userIds, String appId, long since)
+    {
+        this.lock.readLock().lock();
+        try {
+            int count = 0;
+            for (Timeline timeline : getTimelines(userIds, appId)) {
+                count += timeline.entries.size() - timeline.indexFrom(since);
+            }
+
+            return count;
+        } finally {
+            this.lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return the number of activities in the store
+     */
+    public int size()
+    {
+        this.lock.readLock().lock();
+        try {
+            return this.size;
+        } finally {
+            this.lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return the number of partition files
+     */
+    public int getPartitionCount()
+    {
+        this.lock.readLock().lock();
+        try {
+            return this.partitions.size();
+        } finally {
+            this.lock.readLock().unlock();
+        }
+    }
+
+    private List<Timeline> getTimelines(Collection<String> userIds, String appId)
+    {
+        List<Timeline> timelines = new ArrayList<Timeline>(userIds.size());
+        for (String userId : new LinkedHashSet<String>(userIds)) {
+            UserActivities activities = this.users.get(userId);
+            Timeline timeline = activities != null ? activities.getTimeline(appId) : null;
+            if (timeline != null) {
+                timelines.add(timeline);
+            }
+        }
+
+        return timelines;
+    }
+
+    private Partition getPartition(long time)
+    {
+        long start = time - (((time % this.partitionDuration) + this.partitionDuration) % this.partitionDuration);
+        Partition partition = this.partitions.get(start);
+        if (partition == null) {
+            partition = new Partition(start, new File(this.directory, FILE_PREFIX + start + FILE_SUFFIX));
+            this.partitions.put(start, partition);
+        }
+
+        return partition;
+    }
+
+    /**
+     * Delete the partitions whose activities are all older than the maximum age.
+     */
+    private void purge(long now) throws IOException
+    {
+        if (this.maxAge <= 0) {
+            return;
+        }
+
+        while (!this.partitions.isEmpty()
+            && this.partitions.firstKey() + this.partitionDuration <= now - this.maxAge) {
+            Partition partition = this.partitions.remove(this.partitions.firstKey());
+            for (Iterator<UserActivities> it = this.users.values().iterator(); it.hasNext();) {
+                UserActivities activities = it.next();
+                this.size -= activities.removePartition(partition);
+                if (activities.ids.isEmpty()) {
+                    it.remove();
+                }
+            }
+            partition.close();
+            if (!partition.file.delete()) {
+                throw new IOException("Failed to delete the activities partition " + partition.file);
+            }
+        }
+    }
+
+    private void index(String userId, Entry entry)
+    {
+        UserActivities activities = this.users.get(userId);
+        if (activities == null) {
+            activities = new UserActivities();
+            this.users.put(userId, activities);
+        }
+
+        int count = activities.ids.size();
+        activities.add(entry);
+        this.size += activities.ids.size() - count;
+    }
+
+    private void unindex(String userId, String id)
+    {
+        UserActivities activities = this.users.get(userId);
+        if (activities != null && activities.remove(id) != null) {
+            --this.size;
+            if (activities.ids.isEmpty()) {
+                this.users.remove(userId);
+            }
+        }
+    }
+
+    private byte[] write(Activity activity) throws IOException
+    {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream(256);
+        DataOutputStream out = new DataOutputStream(buffer);
+
+        out.writeByte(ADD);
+        // Header, the only part read when loading the index
+        out.writeLong(activity.getPostedTime());
+        writeString(out, activity.getUserId());
+        writeString(out, activity.getAppId());
+        writeString(out, activity.getId());
+
+        writeString(out, activity.getTitle());
+        writeString(out, activity.getTitleId());
+        writeString(out, activity.getBody());
+        writeString(out, activity.getBodyId());
+        writeString(out, activity.getUrl());
+        writeString(out, activity.getExternalId());
+        writeString(out, activity.getStreamTitle());
+        writeString(out, activity.getStreamUrl());
+        writeString(out, activity.getStreamSourceUrl());
+        writeString(out, activity.getStreamFaviconUrl());
+        out.writeBoolean(activity.getPriority() != null);
+        if (activity.getPriority() != null) {
+            out.writeFloat(activity.getPriority());
+        }
+        out.writeBoolean(activity.getUpdated() != null);
+        if (activity.getUpdated() != null) {
+            out.writeLong(activity.getUpdated().getTime());
+        }
+
+        Map<String, String> templateParams = activity.getTemplateParams();
+        out.writeInt(templateParams != null ? templateParams.size() : -1);
+        if (templateParams != null) {
+            for (Map.Entry<String, String> param : templateParams.entrySet()) {
+                writeString(out, param.getKey());
+                writeString(out, param.getValue());
+            }
+        }
+
+        List<MediaItem> mediaItems = activity.getMediaItems();
+        out.writeInt(mediaItems != null ? mediaItems.size() : -1);
+        if (mediaItems != null) {
+            for (MediaItem mediaItem : mediaItems) {
+                writeString(out, mediaItem.getMimeType());
+                writeString(out, mediaItem.getType() != null ? mediaItem.getType().name() : null);
+                writeString(out, mediaItem.getUrl());
+                writeString(out, mediaItem.getThumbnailUrl());
+            }
+        }
+
+        out.close();
+
+        return buffer.toByteArray();
+    }
+
+    private Activity read(Entry entry) throws IOException
+    {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(entry.partition.read(entry.offset)));
+
+        in.readByte();
+        Activity activity = new ActivityImpl();
+        activity.setPostedTime(in.readLong());
+        activity.setUserId(readString(in));
+        activity.setAppId(readString(in));
+        activity.setId(readString(in));
+
+        activity.setTitle(readString(in));
+        activity.setTitleId(readString(in));
+        activity.setBody(readString(in));
+        activity.setBodyId(readString(in));
+        activity.setUrl(readString(in));
+        activity.setExternalId(readString(in));
+        activity.setStreamTitle(readString(in));
+        activity.setStreamUrl(readString(in));
+        activity.setStreamSourceUrl(readString(in));
+        activity.setStreamFaviconUrl(readString(in));
+        if (in.readBoolean()) {
+            activity.setPriority(in.readFloat());
+        }
+        if (in.readBoolean()) {
+            activity.setUpdated(new Date(in.readLong()));
+        }
+
+        int count = in.readInt();
+        if (count >= 0) {
+            Map<String, String> templateParams = new LinkedHashMap<String, String>();
+            for (int i = 0; i < count; ++i) {
+                templateParams.put(readString(in), readString(in));
+            }
+            activity.setTemplateParams(templateParams);
+        }
+
+        count = in.readInt();
+        if (count >= 0) {
+            List<MediaItem> mediaItems = new ArrayList<MediaItem>(count);
+            for (int i = 0; i < count; ++i) {
+                MediaItem mediaItem = new MediaItemImpl();
+                mediaItem.setMimeType(readString(in));
+                String type = readString(in);
+                mediaItem.setType(type != null ? MediaItem.Type.valueOf(type) : null);
+                mediaItem.setUrl(readString(in));
+                mediaItem.setThumbnailUrl(readString(in));
+                mediaItems.add(mediaItem);
+            }
+            activity.setMediaItems(mediaItems);
+        }
+
+        return activity;
+    }
+
+    /**
+     * Unlike {@link DataOutputStream#writeUTF(String)}, supports null and strings longer than 64KB.
+     */
+    private static void writeString(DataOutputStream out, String value) throws IOException
+    {
+        if (value == null) {
+            out.writeInt(-1);
+        } else {
+            byte[] bytes = value.getBytes("UTF-8");
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+    }
+
+    private static String readString(DataInputStream in) throws IOException
+    {
+        int length = in.readInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+
+        return new String(bytes, "UTF-8");
+    }
+}
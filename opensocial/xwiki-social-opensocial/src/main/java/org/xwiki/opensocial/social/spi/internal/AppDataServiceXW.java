@@ -19,11 +19,22 @@
  */
 package org.xwiki.opensocial.social.spi.internal;
 
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.Timer;
+import java.util.TimerTask;
 import java.util.concurrent.Future;
 
+import javax.servlet.http.HttpServletResponse;
+
 import org.apache.shindig.auth.SecurityToken;
+import org.apache.shindig.common.util.ImmediateFuture;
 import org.apache.shindig.protocol.DataCollection;
 import org.apache.shindig.protocol.ProtocolException;
 import org.apache.shindig.social.opensocial.spi.AppDataService;
@@ -33,19 +44,46 @@ import org.xwiki.bridge.DocumentAccessBridge;
 import org.xwiki.component.annotation.Component;
 import org.xwiki.component.annotation.Requirement;
 import org.xwiki.component.logging.AbstractLogEnabled;
+import org.xwiki.component.manager.ComponentLifecycleException;
+import org.xwiki.component.phase.Disposable;
 import org.xwiki.component.phase.Initializable;
 import org.xwiki.component.phase.InitializationException;
+import org.xwiki.configuration.ConfigurationSource;
 import org.xwiki.opensocial.social.spi.SocialServiceComponent;
+import org.xwiki.query.QueryException;
+import org.xwiki.query.QueryManager;
 
+/**
+ * Application data stored locally in an {@link AppDataStore}, in the directory configured by the
+ * <code>opensocial.appdata.storageDirectory</code> property, which is required.
+ * <p>
+ * The changes are written every <code>opensocial.appdata.flushInterval</code> milliseconds (one second by default),
+ * or as soon as the data of {@value #MAX_PENDING} users and applications changed, and when the component is disposed.
+ */
 @Component("AppDataServiceXW")
 public class AppDataServiceXW extends AbstractLogEnabled implements AppDataService, SocialServiceComponent,
-    Initializable
+    Initializable, Disposable
 {
+    /** Number of changed user and application data after which the changes are written without waiting. */
+    private static final int MAX_PENDING = 1000;
 
     /** Provides access to documents */
     @Requirement
     private DocumentAccessBridge documentAccessBridge;
 
+    /** Used to find the friends of the users */
+    @Requirement
+    private QueryManager queryManager;
+
+    /** Where the storage directory is configured */
+    @Requirement
+    private ConfigurationSource configuration;
+
+    private AppDataStore store;
+
+    /** Writes the changes periodically. */
+    private Timer timer;
+
     /**
      * Allows overriding the Document Access Bridge used (useful for unit tests).
      * 
@@ -56,13 +94,70 @@ public class AppDataServiceXW extends AbstractLogEnabled implements AppDataServi
         this.documentAccessBridge = documentAccessBridge;
     }
 
+    /**
+     * Allows overriding the Query Manager used (useful for unit tests).
+     * 
+     * @param queryManager the new Query Manager to use
+     */
+    public void setQueryManager(QueryManager queryManager)
+    {
+        this.queryManager = queryManager;
+    }
+
+    /**
+     * Allows overriding the configuration used (useful for unit tests).
+     * 
+     * @param configuration the new configuration source to use
+     */
+    public void setConfiguration(ConfigurationSource configuration)
+    {
+        this.configuration = configuration;
+    }
+
+    /**
+     * Write the pending changes right away.
+     * 
+     * @throws IOException when failing to write the changes
+     */
+    public void flush() throws IOException
+    {
+        this.store.flush();
+    }
+
     /**
      * {@inheritDoc}
+     * <p>
+     * The data of all the users is read at once.
      */
     public Future<DataCollection> getPersonData(Set<UserId> userIds, GroupId groupId, String appId, Set<String> fields,
         SecurityToken token) throws ProtocolException
     {
-        return null;
+        List<String> uids = new ArrayList<String>();
+        for (UserId userId : userIds) {
+            uids.add(userId.getUserId(token));
+        }
+
+        switch (groupId.getType()) {
+            case self:
+                break;
+            case friends:
+                try {
+                    uids = FriendsQuery.getFriends(this.queryManager, uids);
+                } catch (QueryException e) {
+                    throw new ProtocolException(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, e.getMessage(), e);
+                }
+                break;
+            case all:
+                throw new ProtocolException(HttpServletResponse.SC_NOT_IMPLEMENTED, "Not yet implemented", null);
+            case groupId:
+                throw new ProtocolException(HttpServletResponse.SC_NOT_IMPLEMENTED, "Not yet implemented", null);
+            case deleted:
+                throw new ProtocolException(HttpServletResponse.SC_NOT_IMPLEMENTED, "Not yet implemented", null);
+            default:
+                throw new ProtocolException(HttpServletResponse.SC_BAD_REQUEST, "Group ID not recognized", null);
+        }
+
+        return ImmediateFuture.newInstance(new DataCollection(this.store.get(uids, appId, fields)));
     }
 
     /**
@@ -71,16 +166,36 @@ public class AppDataServiceXW extends AbstractLogEnabled implements AppDataServi
     public Future<Void> deletePersonData(UserId userId, GroupId groupId, String appId, Set<String> fields,
         SecurityToken token) throws ProtocolException
     {
-        return null;
+        try {
+            this.store.delete(userId.getUserId(token), appId, fields);
+        } catch (IOException e) {
+            throw new ProtocolException(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, e.getMessage(), e);
+        }
+
+        return ImmediateFuture.newInstance(null);
     }
 
     /**
      * {@inheritDoc}
+     * <p>
+     * The fields without value are deleted.
      */
     public Future<Void> updatePersonData(UserId userId, GroupId groupId, String appId, Set<String> fields,
         Map<String, String> values, SecurityToken token) throws ProtocolException
     {
-        return null;
+        Set<String> removed = Collections.emptySet();
+        if (fields != null && !values.keySet().containsAll(fields)) {
+            removed = new HashSet<String>(fields);
+            removed.removeAll(values.keySet());
+        }
+
+        try {
+            this.store.update(userId.getUserId(token), appId, values, removed);
+        } catch (IOException e) {
+            throw new ProtocolException(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, e.getMessage(), e);
+        }
+
+        return ImmediateFuture.newInstance(null);
     }
 
     /**
@@ -88,6 +203,51 @@ public class AppDataServiceXW extends AbstractLogEnabled implements AppDataServi
      */
     public void initialize() throws InitializationException
     {
+        String path = this.configuration.getProperty("opensocial.appdata.storageDirectory", String.class);
+        if (path == null || path.trim().length() == 0) {
+            // The application data is kept for good, it must not end up in a temporary directory
+            throw new InitializationException("The opensocial.appdata.storageDirectory property is not set");
+        }
+        File directory = new File(path.trim());
+        long flushInterval = Math.max(this.configuration.getProperty("opensocial.appdata.flushInterval", 1000L), 1);
+
+        this.store = new AppDataStore(new File(directory, "appdata.log"), MAX_PENDING);
+        try {
+            this.store.open();
+        } catch (IOException e) {
+            throw new InitializationException("Failed to load the application data from " + directory, e);
+        }
+
+        this.timer = new Timer("OpenSocial application data writer", true);
+        this.timer.schedule(new TimerTask()
+        {
+            @Override
+            public void run()
+            {
+                try {
+                    flush();
+                } catch (IOException e) {
+                    getLogger().error("Failed to write the application data", e);
+                } catch (RuntimeException e) {
+                    // A task throwing an exception cancels the timer
+                    getLogger().error("Failed to write the application data", e);
+                }
+            }
+        }, flushInterval, flushInterval);
+    }
 
+    /**
+     * {@inheritDoc}
+     * <p>
+     * Stops writing the changes periodically and writes the pending ones.
+     */
+    public void dispose() throws ComponentLifecycleException
+    {
+        this.timer.cancel();
+        try {
+            this.store.close();
+        } catch (IOException e) {
+            throw new ComponentLifecycleException("Failed to write the application data", e);
+        }
     }
 }
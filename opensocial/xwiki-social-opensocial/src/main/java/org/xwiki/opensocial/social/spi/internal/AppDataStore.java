@@ -0,0 +1,539 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.opensocial.social.spi.internal;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Key-value store of the OpenSocial application data, per user and application.
+ * <p>
+ * The values of a user for an application are kept in memory in a compact binary encoding, and decoded only when read.
+ * The changes are not written right away: the users and applications whose data changed are remembered until the next
+ * {@link #flush()}, which appends the latest version of each of them to the data file in a single write. A gadget
+ * saving its preferences many times between two flushes costs a single record. The data file is compacted when it
+ * becomes much larger than the data it holds.
+ *
+ * @version $Id$
+ */
+public class AppDataStore
+{
+    /** Minimum size of the data file before it is compacted. */
+    private static final long COMPACTION_MIN_LENGTH = 1024 * 1024;
+
+    /** The data file is compacted when it is this many times larger than the data. */
+    private static final int COMPACTION_RATIO = 3;
+
+    private static final String ENCODING = "UTF-8";
+
+    /**
+     * A user and an application whose data changed.
+     */
+    private static final class Key
+    {
+        private final String userId;
+
+        private final String appId;
+
+        Key(String userId, String appId)
+        {
+            this.userId = userId;
+            this.appId = appId;
+        }
+
+        @Override
+        public boolean equals(Object object)
+        {
+            if (!(object instanceof Key)) {
+                return false;
+            }
+            Key key = (Key) object;
+
+            // The application may be unknown
+            return this.userId.equals(key.userId)
+                && (this.appId == null ? key.appId == null : this.appId.equals(key.appId));
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return this.userId.hashCode() * 31 + (this.appId != null ? this.appId.hashCode() : 0);
+        }
+    }
+
+    private final File file;
+
+    private final int maxPending;
+
+    /** The encoded values by application by user. */
+    private final Map<String, Map<String, byte[]>> data = new HashMap<String, Map<String, byte[]>>();
+
+    /** The data changed since the last flush. */
+    private final Set<Key> pending = new LinkedHashSet<Key>();
+
+    private RandomAccessFile log;
+
+    /** Size of the data file. */
+    private long length;
+
+    /** Size of the records holding the current data, what the data file would be after a compaction. */
+    private long liveLength;
+
+    /**
+     * @param file the data file
+     * @param maxPending the number of changed user and application data after which the changes are flushed without
+     *            waiting for the next call to {@link #flush()}
+     */
+    public AppDataStore(File file, int maxPending)
+    {
+        this.file = file;
+        this.maxPending = maxPending;
+    }
+
+    /**
+     * Load the data file.
+     * <p>
+     * A record partially written when the application stopped is removed from the end of the data file.
+     *
+     * @throws IOException when failing to read the data file
+     */
+    public synchronized void open() throws IOException
+    {
+        File directory = this.file.getAbsoluteFile().getParentFile();
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Failed to create the application data directory " + directory);
+        }
+
+        long fileLength = this.file.length();
+        long offset = 0;
+        if (fileLength > 0) {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(this.file)));
+            try {
+                while (true) {
+                    byte[] record;
+                    try {
+                        int recordLength = in.readInt();
+                        if (recordLength < 0 || offset + 4 + recordLength > fileLength) {
+                            break;
+                        }
+                        record = new byte[recordLength];
+                        in.readFully(record);
+                    } catch (EOFException e) {
+                        break;
+                    }
+
+                    int[] position = new int[1];
+                    String userId = readString(record, position);
+                    String appId = readNullableString(record, position);
+                    byte[] values = new byte[record.length - position[0]];
+                    System.arraycopy(record, position[0], values, 0, values.length);
+                    setValues(userId, appId, values);
+
+                    offset += 4 + record.length;
+                }
+            } finally {
+                in.close();
+            }
+        }
+
+        this.log = new RandomAccessFile(this.file, "rw");
+        if (fileLength > offset) {
+            // Drop the incomplete record
+            this.log.setLength(offset);
+        }
+        this.length = offset;
+        this.liveLength = 0;
+        for (Map.Entry<String, Map<String, byte[]>> user : this.data.entrySet()) {
+            for (Map.Entry<String, byte[]> app : user.getValue().entrySet()) {
+                this.liveLength += getRecordLength(user.getKey(), app.getKey(), app.getValue());
+            }
+        }
+    }
+
+    /**
+     * Write the pending changes and close the data file.
+     *
+     * @throws IOException when failing to write the changes
+     */
+    public synchronized void close() throws IOException
+    {
+        if (this.log != null) {
+            try {
+                flush();
+            } finally {
+                this.log.close();
+                this.log = null;
+                this.data.clear();
+            }
+        }
+    }
+
+    /**
+     * Get the data of several users at once.
+     *
+     * @param userIds the users
+     * @param appId the application
+     * @param keys the keys of the values to get, all of them when empty or null
+     * @return the values by user, only for the users having values
+     */
+    public synchronized Map<String, Map<String, String>> get(Collection<String> userIds, String appId,
+        Collection<String> keys)
+    {
+        Map<String, Map<String, String>> result = new LinkedHashMap<String, Map<String, String>>();
+        for (String userId : userIds) {
+            Map<String, byte[]> apps = this.data.get(userId);
+            byte[] encoded = apps != null ? apps.get(appId) : null;
+            if (encoded == null) {
+                continue;
+            }
+
+            Map<String, String> values = decode(encoded);
+            if (keys != null && !keys.isEmpty()) {
+                values.keySet().retainAll(keys);
+            }
+            result.put(userId, values);
+        }
+
+        return result;
+    }
+
+    /**
+     * Update the data of a user.
+     *
+     * @param userId the user
+     * @param appId the application
+     * @param values the values to set
+     * @param removedKeys the keys of the values to remove
+     * @throws IOException when failing to flush the changes
+     */
+    public synchronized void update(String userId, String appId, Map<String, String> values,
+        Collection<String> removedKeys) throws IOException
+    {
+        Map<String, String> current = getValues(userId, appId);
+        current.keySet().removeAll(removedKeys);
+        current.putAll(values);
+
+        change(userId, appId, current);
+    }
+
+    /**
+     * Delete values of a user.
+     *
+     * @param userId the user
+     * @param appId the application
+     * @param keys the keys of the values to delete, all of them when empty or null
+     * @throws IOException when failing to flush the changes
+     */
+    public synchronized void delete(String userId, String appId, Collection<String> keys) throws IOException
+    {
+        Map<String, String> current = getValues(userId, appId);
+        if (keys == null || keys.isEmpty()) {
+            current.clear();
+        } else {
+            current.keySet().removeAll(keys);
+        }
+
+        change(userId, appId, current);
+    }
+
+    /**
+     * Write the changes made since the last flush.
+     *
+     * @throws IOException when failing to write the changes
+     */
+    public synchronized void flush() throws IOException
+    {
+        if (this.pending.isEmpty()) {
+            return;
+        }
+
+        if (this.length > COMPACTION_MIN_LENGTH && this.length > COMPACTION_RATIO * this.liveLength) {
+            compact();
+        } else {
+            ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+            for (Key key : this.pending) {
+                Map<String, byte[]> apps = this.data.get(key.userId);
+                byte[] values = apps != null ? apps.get(key.appId) : null;
+                // An empty record removes the data
+                writeRecord(buffer, encodeRecord(key.userId, key.appId, values != null ? values : new byte[0]));
+            }
+            this.log.seek(this.length);
+            this.log.write(buffer.toByteArray());
+            this.log.getChannel().force(false);
+            this.length += buffer.size();
+        }
+
+        this.pending.clear();
+    }
+
+    /**
+     * @return the number of users and applications whose data changed since the last flush
+     */
+    public synchronized int getPendingCount()
+    {
+        return this.pending.size();
+    }
+
+    /**
+     * @return the size of the data file
+     */
+    public synchronized long getLength()
+    {
+        return this.length;
+    }
+
+    private Map<String, String> getValues(String userId, String appId)
+    {
+        Map<String, byte[]> apps = this.data.get(userId);
+        byte[] encoded = apps != null ? apps.get(appId) : null;
+
+        return encoded != null ? decode(encoded) : new LinkedHashMap<String, String>();
+    }
+
+    private void change(String userId, String appId, Map<String, String> values) throws IOException
+    {
+        byte[] encoded = values.isEmpty() ? new byte[0] : encode(values);
+        byte[] previous = setValues(userId, appId, encoded);
+        if (previous != null) {
+            this.liveLength -= getRecordLength(userId, appId, previous);
+        }
+        if (encoded.length > 0) {
+            this.liveLength += getRecordLength(userId, appId, encoded);
+        }
+
+        this.pending.add(new Key(userId, appId));
+        if (this.pending.size() >= this.maxPending) {
+            flush();
+        }
+    }
+
+    /**
+     * @param values the encoded values, empty to remove the data
+     * @return the previous encoded values
+     */
+    private byte[] setValues(String userId, String appId, byte[] values)
+    {
+        Map<String, byte[]> apps = this.data.get(userId);
+        byte[] previous;
+        if (values.length == 0) {
+            previous = apps != null ? apps.remove(appId) : null;
+            if (apps != null && apps.isEmpty()) {
+                this.data.remove(userId);
+            }
+        } else {
+            if (apps == null) {
+                apps = new HashMap<String, byte[]>(4);
+                this.data.put(userId, apps);
+            }
+            previous = apps.put(appId, values);
+        }
+
+        return previous;
+    }
+
+    /**
+     * Write only the current data to a new data file and replace the current data file with it.
+     */
+    private void compact() throws IOException
+    {
+        File compacted = new File(this.file.getPath() + ".tmp");
+        FileOutputStream out = new FileOutputStream(compacted);
+        long compactedLength = 0;
+        try {
+            ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+            for (Map.Entry<String, Map<String, byte[]>> user : this.data.entrySet()) {
+                for (Map.Entry<String, byte[]> app : user.getValue().entrySet()) {
+                    writeRecord(buffer, encodeRecord(user.getKey(), app.getKey(), app.getValue()));
+                    if (buffer.size() > 64 * 1024) {
+                        out.write(buffer.toByteArray());
+                        compactedLength += buffer.size();
+                        buffer.reset();
+                    }
+                }
+            }
+            out.write(buffer.toByteArray());
+            compactedLength += buffer.size();
+            out.getFD().sync();
+        } finally {
+            out.close();
+        }
+
+        this.log.close();
+        if (!compacted.renameTo(this.file) && !(this.file.delete() && compacted.renameTo(this.file))) {
+            this.log = new RandomAccessFile(this.file, "rw");
+            throw new IOException("Failed to replace " + this.file + " with its compacted version");
+        }
+        this.log = new RandomAccessFile(this.file, "rw");
+        this.length = compactedLength;
+        this.liveLength = compactedLength;
+    }
+
+    private static void writeRecord(ByteArrayOutputStream buffer, byte[] record)
+    {
+        int length = record.length;
+        buffer.write(length >>> 24);
+        buffer.write(length >>> 16);
+        buffer.write(length >>> 8);
+        buffer.write(length);
+        buffer.write(record, 0, length);
+    }
+
+    /**
+     * @return the record, without its length
+     */
+    private static byte[] encodeRecord(String userId, String appId, byte[] values)
+    {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream(values.length + 32);
+        writeString(buffer, userId);
+        writeNullableString(buffer, appId);
+        buffer.write(values, 0, values.length);
+
+        return buffer.toByteArray();
+    }
+
+    /**
+     * @return the size of the record in the data file, with its length
+     */
+    private static int getRecordLength(String userId, String appId, byte[] values)
+    {
+        return 4 + encodeRecord(userId, appId, values).length;
+    }
+
+    /**
+     * Encode values as their number followed by the keys and values, each one prefixed by its length.
+     */
+    private static byte[] encode(Map<String, String> values)
+    {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        writeVarInt(buffer, values.size());
+        for (Map.Entry<String, String> value : values.entrySet()) {
+            writeString(buffer, value.getKey());
+            writeString(buffer, value.getValue() != null ? value.getValue() : "");
+        }
+
+        return buffer.toByteArray();
+    }
+
+    private static Map<String, String> decode(byte[] encoded)
+    {
+        int[] position = new int[1];
+        int count = readVarInt(encoded, position);
+        Map<String, String> values = new LinkedHashMap<String, String>(count * 2);
+        for (int i = 0; i < count; ++i) {
+            values.put(readString(encoded, position), readString(encoded, position));
+        }
+
+        return values;
+    }
+
+    private static void writeVarInt(ByteArrayOutputStream buffer, int value)
+    {
+        int remaining = value;
+        while ((remaining & ~0x7F) != 0) {
+            buffer.write((remaining & 0x7F) | 0x80);
+            remaining >>>= 7;
+        }
+        buffer.write(remaining);
+    }
+
+    private static int readVarInt(byte[] bytes, int[] position)
+    {
+        int value = 0;
+        int shift = 0;
+        byte b;
+        do {
+            b = bytes[position[0]++];
+            value |= (b & 0x7F) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+
+        return value;
+    }
+
+    private static void writeString(ByteArrayOutputStream buffer, String value)
+    {
+        try {
+            byte[] bytes = value.getBytes(ENCODING);
+            writeVarInt(buffer, bytes.length);
+            buffer.write(bytes, 0, bytes.length);
+        } catch (UnsupportedEncodingException e) {
+            // UTF-8 is always supported
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Write a string which may be null as 0 if null, its length plus one followed by the string otherwise.
+     */
+    private static void writeNullableString(ByteArrayOutputStream buffer, String value)
+    {
+        if (value == null) {
+            writeVarInt(buffer, 0);
+        } else {
+            try {
+                byte[] bytes = value.getBytes(ENCODING);
+                writeVarInt(buffer, bytes.length + 1);
+                buffer.write(bytes, 0, bytes.length);
+            } catch (UnsupportedEncodingException e) {
+                // UTF-8 is always supported
+                throw new RuntimeException(e);
+            }
+        }
+    }
+
+    private static String readNullableString(byte[] bytes, int[] position)
+    {
+        int length = readVarInt(bytes, position) - 1;
+
+        return length < 0 ? null : readString(bytes, position, length);
+    }
+
+    private static String readString(byte[] bytes, int[] position)
+    {
+        return readString(bytes, position, readVarInt(bytes, position));
+    }
+
+    private static String readString(byte[] bytes, int[] position, int length)
+    {
+        try {
+            String value = new String(bytes, position[0], length, ENCODING);
+            position[0] += length;
+
+            return value;
+        } catch (UnsupportedEncodingException e) {
+            // UTF-8 is always supported
+            throw new RuntimeException(e);
+        }
+    }
+}
@@ -0,0 +1,79 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.opensocial.social.spi.internal;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+
+import org.xwiki.opensocial.social.model.PersonXW;
+import org.xwiki.query.Query;
+import org.xwiki.query.QueryException;
+import org.xwiki.query.QueryManager;
+
+/**
+ * Finds the friends of a set of users in a single query.
+ *
+ * @version $Id$
+ */
+final class FriendsQuery
+{
+    private FriendsQuery()
+    {
+        // Utility class
+    }
+
+    /**
+     * @param queryManager the query manager to use
+     * @param uids the full names of the users
+     * @return the full names of the friends of the users, without duplicates
+     * @throws QueryException when failing to query the friends
+     */
+    static List<String> getFriends(QueryManager queryManager, List<String> uids) throws QueryException
+    {
+        if (uids.isEmpty()) {
+            return uids;
+        }
+
+        Map<String, Object> values = new HashMap<String, Object>();
+        values.put("friendClass", PersonXW.XWIKI_FRIEND_CLASS_NAME);
+        values.put("friendProperty", PersonXW.XWIKI_FRIEND_NAME_PROPERTY_NAME);
+        StringBuilder parameters = new StringBuilder();
+        int index = 0;
+        for (String uid : uids) {
+            String name = "uid" + index++;
+            parameters.append(parameters.length() > 0 ? ", :" : ":").append(name);
+            values.put(name, uid);
+        }
+
+        Query query =
+            queryManager.createQuery("select friendName.value from BaseObject as friend, StringProperty as friendName"
+                + " where friend.className = :friendClass and friend.name in (" + parameters
+                + ") and friendName.id.id = friend.id and friendName.id.name = :friendProperty", Query.HQL);
+        for (Map.Entry<String, Object> value : values.entrySet()) {
+            query.bindValue(value.getKey(), value.getValue());
+        }
+        List<String> friends = query.execute();
+
+        return new ArrayList<String>(new LinkedHashSet<String>(friends));
+    }
+}
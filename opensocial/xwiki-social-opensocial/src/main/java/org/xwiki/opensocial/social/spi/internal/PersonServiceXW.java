@@ -49,14 +49,22 @@ import org.xwiki.opensocial.social.model.NameXW;
 import org.xwiki.opensocial.social.model.PersonXW;
 import org.xwiki.opensocial.social.model.PersonXWComparator;
 import org.xwiki.opensocial.social.spi.SocialServiceComponent;
+import org.xwiki.query.Query;
+import org.xwiki.query.QueryException;
+import org.xwiki.query.QueryManager;
 
 import com.google.common.collect.Lists;
 
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.EnumMap;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
-import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Future;
 
 import javax.servlet.http.HttpServletResponse;
@@ -65,10 +73,20 @@ import javax.servlet.http.HttpServletResponse;
 public class PersonServiceXW extends AbstractLogEnabled implements PersonService, SocialServiceComponent, Initializable
 {
 
+    /** Maximum number of users whose properties are loaded by a single query. */
+    private static final int BATCH_SIZE = 100;
+
+    /** The user properties stored as large strings, the others are stored as strings. */
+    private static final Set<PersonXW.XWikiField> LARGE_STRING_FIELDS = EnumSet.of(PersonXW.XWikiField.COMMENT);
+
     /** Provides access to documents */
     @Requirement
     private DocumentAccessBridge documentAccessBridge;
 
+    /** Used to load many people at once */
+    @Requirement
+    private QueryManager queryManager;
+
     /**
      * Allows overriding the Document Access Bridge used (useful for unit tests).
      * 
@@ -79,37 +97,34 @@ public class PersonServiceXW extends AbstractLogEnabled implements PersonService
         this.documentAccessBridge = documentAccessBridge;
     }
 
+    /**
+     * Allows overriding the Query Manager used (useful for unit tests).
+     * 
+     * @param queryManager the new Query Manager to use
+     */
+    public void setQueryManager(QueryManager queryManager)
+    {
+        this.queryManager = queryManager;
+    }
+
     /**
      * {@inheritDoc}
+     * <p>
+     * The people are loaded in bulk: one query selects the requested page of people, sorted, and one query per batch
+     * of {@value #BATCH_SIZE} people loads only the properties needed for the requested fields.
      */
     public Future<RestfulCollection<Person>> getPeople(Set<UserId> userIds, GroupId groupId,
         CollectionOptions collectionOptions, Set<String> fields, SecurityToken token) throws ProtocolException
     {
         try {
-            List<Person> people = new ArrayList<Person>();
+            List<String> uids = new ArrayList<String>();
+            for (UserId userId : userIds) {
+                uids.add(userId.getUserId(token));
+            }
+
             switch (groupId.getType()) {
                 case self:
-                    for (UserId userId : userIds) {
-                        Future<Person> person = getPerson(userId, fields, token);
-                        people.add(person.get());
-                    }
-                    break;
                 case friends:
-                    for (UserId userId : userIds) {
-                        String uid = userId.getUserId(token);
-                        String friendUid = null;
-                        int index = 0;
-
-                        // get friends for user uid
-                        while ((friendUid =
-                            (String) documentAccessBridge.getProperty(uid, PersonXW.XWIKI_FRIEND_CLASS_NAME, index,
-                                PersonXW.XWIKI_FRIEND_NAME_PROPERTY_NAME)) != null) {
-                            // get friend with friendUid
-                            Future<Person> person = getPerson(new UserId(UserId.Type.userId, friendUid), fields, token);
-                            people.add(person.get());
-                            index = index + 1;
-                        }
-                    }
                     break;
                 case all:
                     throw new ProtocolException(HttpServletResponse.SC_NOT_IMPLEMENTED, "Not yet implemented", null);
@@ -120,16 +135,13 @@ public class PersonServiceXW extends AbstractLogEnabled implements PersonService
                 default:
                     throw new ProtocolException(HttpServletResponse.SC_BAD_REQUEST, "Group ID not recognized", null);
             }
-
-            if (GroupId.Type.self.equals(groupId.getType()) && people.isEmpty()) {
-                throw new ProtocolException(HttpServletResponse.SC_BAD_REQUEST, "Person not found");
-            }
+            boolean friends = GroupId.Type.friends.equals(groupId.getType());
 
             // Collection Options
             // Filter Collection
             String filter = collectionOptions.getFilter();
             // check if special filter
-            if (GroupId.Type.friends.equals(groupId.getType()) && filter != null) {
+            if (friends && filter != null) {
                 if (PersonService.ALL_FILTER.equals(filter)) {
                     // default value: do nothing
                 } else if (PersonService.TOP_FRIENDS_FILTER.equals(filter)) {
@@ -147,62 +159,407 @@ public class PersonServiceXW extends AbstractLogEnabled implements PersonService
             // Sort Collection
             String sortBy = collectionOptions.getSortBy();
             SortOrder sortOrder = collectionOptions.getSortOrder();
-            if (sortBy != null) {
-                if (PersonService.TOP_FRIENDS_SORT.equals(sortBy)) {
-                    // do nothing - assume already sorted by PersonService.TOP_FRIENDS_SORT
-                    // TODO: implement
-                } else {
-                    // sort by field value
-                    Person.Field sortByField = Person.Field.getField(sortBy);
-                    Collections.sort(people, new PersonXWComparator(sortByField, sortOrder));
+            Person.Field sortByField = null;
+            if (sortBy != null && !PersonService.TOP_FRIENDS_SORT.equals(sortBy)) {
+                // TOP_FRIENDS_SORT: do nothing - assume already sorted by PersonService.TOP_FRIENDS_SORT
+                sortByField = Person.Field.getField(sortBy);
+            }
+
+            // First index & max elements, a negative max for all the people
+            int first = Math.max(collectionOptions.getFirst(), 0);
+            int max = Math.max(collectionOptions.getMax(), 0);
+            if (collectionOptions.getMax() == 0) {
+                // No people requested, only check that the users exist
+                if (!friends && getPeoplePage(uids, false, null, sortOrder, 0, 1).isEmpty()) {
+                    throw new ProtocolException(HttpServletResponse.SC_BAD_REQUEST, "Person not found");
                 }
+
+                return ImmediateFuture.newInstance(new RestfulCollection<Person>(Collections.<Person> emptyList(), 0,
+                    0));
+            }
+
+            List<Person> people;
+            if (sortByField == null || Person.Field.NAME.equals(sortByField)
+                || Person.Field.NICKNAME.equals(sortByField)) {
+                // sort and paginate in the query
+                Map<String, String> page = getPeoplePage(uids, friends, sortByField, sortOrder, first, max);
+                if (page.isEmpty() && first > 0) {
+                    // first is past the last user, start from the first one like when sorting in memory
+                    page = getPeoplePage(uids, friends, sortByField, sortOrder, 0, max);
+                }
+                people = loadPeople(page, getXWikiFields(fields));
+            } else {
+                // the field can't be sorted by the query, sort in memory
+                Map<String, String> all = getPeoplePage(uids, friends, null, sortOrder, 0, 0);
+                people = loadPeople(all, getXWikiFields(fields));
+                Collections.sort(people, new PersonXWComparator(sortByField, sortOrder));
+                if (first >= people.size()) {
+                    first = 0;
+                }
+                if (max == 0 || max > people.size() - first) {
+                    max = people.size() - first;
+                }
+                people = people.subList(first, first + max);
             }
 
-            // First index & max elements
-            int first = collectionOptions.getFirst();
-            int max = collectionOptions.getMax();
-            if (first < 0 || first >= people.size())
-                first = 0;
-            if (max < 0 || max > people.size() - first)
-                max = people.size() - first;
-            people = people.subList(first, first + max);
+            if (!friends && people.isEmpty()) {
+                throw new ProtocolException(HttpServletResponse.SC_BAD_REQUEST, "Person not found");
+            }
 
             return ImmediateFuture.newInstance(new RestfulCollection<Person>(people, 0, people.size()));
-        } catch (InterruptedException e) {
-            throw new ProtocolException(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, e.getMessage(), e);
-        } catch (ExecutionException e) {
+        } catch (QueryException e) {
             throw new ProtocolException(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, e.getMessage(), e);
         }
     }
 
+    /**
+     * Select a sorted page of existing users.
+     * 
+     * @param uids the users to select, or whose friends to select
+     * @param friends true to select the friends of the users instead of the users
+     * @param sortByField the field to sort by, {@link Person.Field#NAME}, {@link Person.Field#NICKNAME} or null to
+     *            keep the order of the friends
+     * @param sortOrder the sort order
+     * @param first the index of the first user of the page
+     * @param max the maximum number of users in the page, 0 for no limit
+     * @return the full names of the users of the page with their page names, in order
+     * @throws QueryException when failing to select the users
+     */
+    private Map<String, String> getPeoplePage(List<String> uids, boolean friends, Person.Field sortByField,
+        SortOrder sortOrder, int first, int max) throws QueryException
+    {
+        Map<String, String> page = new LinkedHashMap<String, String>();
+        if (uids.isEmpty()) {
+            return page;
+        }
+
+        Map<String, Object> values = new HashMap<String, Object>();
+
+        String select = "select doc.fullName, doc.name";
+        StringBuilder from = new StringBuilder(" from XWikiDocument as doc");
+        StringBuilder where = new StringBuilder(" where ");
+        if (friends) {
+            from.append(", BaseObject as friend, StringProperty as friendName");
+            where.append("friend.className = :friendClass and friend.name in (");
+            where.append(getParameters("uid", uids, values));
+            where.append(") and friendName.id.id = friend.id and friendName.id.name = :friendProperty");
+            where.append(" and doc.fullName = friendName.value");
+            values.put("friendClass", PersonXW.XWIKI_FRIEND_CLASS_NAME);
+            values.put("friendProperty", PersonXW.XWIKI_FRIEND_NAME_PROPERTY_NAME);
+        } else {
+            where.append("doc.fullName in (").append(getParameters("uid", uids, values)).append(")");
+        }
+        String direction = SortOrder.descending.equals(sortOrder) ? " desc" : "";
+        String defaultOrder = friends ? "friend.name, friend.number" : "doc.fullName";
+
+        if (Person.Field.NAME.equals(sortByField)) {
+            // Like PersonXWComparator: by family name then by given name, users without them come last. HQL can't
+            // outer join the name properties, so there is a query for each name a user may lack. The users with a
+            // family name are sorted by a single query, so that they are all compared by the database: their family
+            // name is joined with their given name, or with the family name itself when they have no given name, and
+            // "first_name" sorts before "last_name".
+            values.put("userClass", PersonXW.XWIKI_USER_CLASS_NAME);
+            values.put("familyProperty", PersonXW.XWikiField.LAST_NAME.toString());
+            values.put("givenProperty", PersonXW.XWikiField.FIRST_NAME.toString());
+            String noFamilyName =
+                " and not exists (select familyObj.id from " + getNameFrom("family") + " where "
+                    + getNameJoin("family") + ")";
+            String noGivenName =
+                " and not exists (select givenObj.id from " + getNameFrom("given") + " where " + getNameJoin("given")
+                    + ")";
+
+            String familyName =
+                from + ", " + getNameFrom("family") + ", StringProperty as secondProp" + where + " and "
+                    + getNameJoin("family") + " and secondProp.id.id = familyObj.id and (secondProp.id.name = "
+                    + ":givenProperty or (secondProp.id.name = :familyProperty" + noGivenName + "))";
+            String familyNameOrder =
+                " order by familyProp.value" + direction + ", secondProp.id.name" + direction + ", secondProp.value"
+                    + direction + ", " + defaultOrder;
+            String givenNameOnly =
+                from + ", " + getNameFrom("given") + where + noFamilyName + " and " + getNameJoin("given");
+            String givenNameOnlyOrder = " order by givenProp.value" + direction + ", " + defaultOrder;
+            String noName = from.toString() + where + noFamilyName + noGivenName;
+            String noNameOrder = " order by " + defaultOrder;
+
+            // The from and where clauses of each query, followed by its order by clause
+            List<String[]> parts = new ArrayList<String[]>();
+            parts.add(new String[] {familyName, familyNameOrder});
+            parts.add(new String[] {givenNameOnly, givenNameOnlyOrder});
+            parts.add(new String[] {noName, noNameOrder});
+            if (direction.length() > 0) {
+                Collections.reverse(parts);
+            }
+
+            int offset = first;
+            for (String[] part : parts) {
+                int limit = (max > 0) ? max - page.size() : 0;
+                List<Object[]> rows =
+                    execute(this.queryManager.createQuery(select + part[0] + part[1], Query.HQL), values, offset,
+                        limit);
+                if (rows.isEmpty() && offset > 0) {
+                    // The page starts after these users
+                    List<Number> count =
+                        execute(this.queryManager.createQuery("select count(*)" + part[0], Query.HQL), values, 0, 0);
+                    offset -= count.get(0).intValue();
+                    continue;
+                }
+                offset = 0;
+                addRows(rows, page);
+
+                if (max > 0 && page.size() >= max) {
+                    break;
+                }
+            }
+        } else {
+            String order = Person.Field.NICKNAME.equals(sortByField) ? "doc.name" + direction : defaultOrder;
+            Query query = this.queryManager.createQuery(select + from + where + " order by " + order, Query.HQL);
+
+            addRows(execute(query, values, first, max), page);
+        }
+
+        return page;
+    }
+
+    /**
+     * @param alias the prefix of the aliases of the user object and of the name property
+     * @return the tables holding a name property of the users
+     */
+    private static String getNameFrom(String alias)
+    {
+        return "BaseObject as " + alias + "Obj, StringProperty as " + alias + "Prop";
+    }
+
+    /**
+     * @param alias the prefix of the aliases of the user object and of the name property, also the prefix of the
+     *            parameter holding the name of the property
+     * @return the condition joining a name property to the users
+     */
+    private static String getNameJoin(String alias)
+    {
+        return alias + "Obj.name = doc.fullName and " + alias + "Obj.className = :userClass and " + alias
+            + "Prop.id.id = " + alias + "Obj.id and " + alias + "Prop.id.name = :" + alias + "Property";
+    }
+
+    /**
+     * Load people and only the properties needed for the requested fields.
+     * 
+     * @param users the full names of the users with their page names, in order
+     * @param xwikiFields the properties to load
+     * @return the people, in the same order as the users
+     * @throws QueryException when failing to load the properties
+     */
+    private List<Person> loadPeople(Map<String, String> users, Set<PersonXW.XWikiField> xwikiFields)
+        throws QueryException
+    {
+        Map<String, Map<PersonXW.XWikiField, String>> properties =
+            new HashMap<String, Map<PersonXW.XWikiField, String>>();
+
+        List<String> propertyNames = new ArrayList<String>();
+        List<String> largePropertyNames = new ArrayList<String>();
+        for (PersonXW.XWikiField xwikiField : xwikiFields) {
+            if (LARGE_STRING_FIELDS.contains(xwikiField)) {
+                largePropertyNames.add(xwikiField.toString());
+            } else {
+                propertyNames.add(xwikiField.toString());
+            }
+        }
+
+        List<String> uids = new ArrayList<String>(users.keySet());
+        for (int i = 0; i < uids.size(); i += BATCH_SIZE) {
+            List<String> batch = uids.subList(i, Math.min(i + BATCH_SIZE, uids.size()));
+
+            loadProperties(batch, "StringProperty", propertyNames, properties);
+            loadProperties(batch, "LargeStringProperty", largePropertyNames, properties);
+        }
+
+        List<Person> people = new ArrayList<Person>(users.size());
+        for (Map.Entry<String, String> user : users.entrySet()) {
+            Map<PersonXW.XWikiField, String> values = properties.get(user.getKey());
+            if (values == null) {
+                values = Collections.emptyMap();
+            }
+
+            people.add(createPerson(user.getKey(), user.getValue(), values));
+        }
+
+        return people;
+    }
+
+    private void loadProperties(List<String> uids, String propertyType, List<String> propertyNames,
+        Map<String, Map<PersonXW.XWikiField, String>> properties) throws QueryException
+    {
+        if (propertyNames.isEmpty()) {
+            return;
+        }
+
+        Map<String, Object> values = new HashMap<String, Object>();
+        values.put("userClass", PersonXW.XWIKI_USER_CLASS_NAME);
+
+        Query query =
+            this.queryManager.createQuery("select obj.name, prop.id.name, prop.value from BaseObject as obj, "
+                + propertyType + " as prop where obj.className = :userClass and obj.name in ("
+                + getParameters("uid", uids, values) + ") and prop.id.id = obj.id and prop.id.name in ("
+                + getParameters("property", propertyNames, values) + ")", Query.HQL);
+
+        for (Object[] row : this.<Object[]> execute(query, values, 0, 0)) {
+            String uid = (String) row[0];
+            PersonXW.XWikiField xwikiField = PersonXW.XWikiField.getXWikiField((String) row[1]);
+            if (xwikiField == null || row[2] == null) {
+                continue;
+            }
+
+            Map<PersonXW.XWikiField, String> userProperties = properties.get(uid);
+            if (userProperties == null) {
+                userProperties = new EnumMap<PersonXW.XWikiField, String>(PersonXW.XWikiField.class);
+                properties.put(uid, userProperties);
+            }
+            userProperties.put(xwikiField, row[2].toString());
+        }
+    }
+
+    /**
+     * @param fields the requested {@link Person.Field}s, all of them when empty
+     * @return the user properties needed to fill the requested fields
+     */
+    private Set<PersonXW.XWikiField> getXWikiFields(Set<String> fields)
+    {
+        if (fields == null || fields.isEmpty() || fields.contains("@all")) {
+            return EnumSet.allOf(PersonXW.XWikiField.class);
+        }
+
+        // name - REQUIRED
+        Set<PersonXW.XWikiField> xwikiFields =
+            EnumSet.of(PersonXW.XWikiField.FIRST_NAME, PersonXW.XWikiField.LAST_NAME);
+
+        for (String field : fields) {
+            Person.Field personField = Person.Field.getField(field);
+            if (personField == null) {
+                continue;
+            }
+
+            switch (personField) {
+                case THUMBNAIL_URL:
+                    xwikiFields.add(PersonXW.XWikiField.AVATAR);
+                    break;
+                case PHOTOS:
+                    xwikiFields.add(PersonXW.XWikiField.BLOG);
+                    xwikiFields.add(PersonXW.XWikiField.BLOGFEED);
+                    break;
+                case CURRENT_LOCATION:
+                    xwikiFields.add(PersonXW.XWikiField.CITY);
+                    xwikiFields.add(PersonXW.XWikiField.COUNTRY);
+                    break;
+                case ABOUT_ME:
+                    xwikiFields.add(PersonXW.XWikiField.COMMENT);
+                    break;
+                case ORGANIZATIONS:
+                    xwikiFields.add(PersonXW.XWikiField.COMPANY);
+                    break;
+                case EMAILS:
+                    xwikiFields.add(PersonXW.XWikiField.EMAIL);
+                    break;
+                case IMS:
+                    xwikiFields.add(PersonXW.XWikiField.IMACCOUNT);
+                    xwikiFields.add(PersonXW.XWikiField.IMTYPE);
+                    break;
+                default:
+                    break;
+            }
+        }
+
+        return xwikiFields;
+    }
+
+    /**
+     * Add a named parameter per value.
+     * 
+     * @return the comma separated parameters names, to use in a "in" clause
+     */
+    private String getParameters(String prefix, Collection<String> parameterValues, Map<String, Object> values)
+    {
+        StringBuilder parameters = new StringBuilder();
+        int index = 0;
+        for (String value : parameterValues) {
+            if (index > 0) {
+                parameters.append(", ");
+            }
+            String name = prefix + index++;
+            parameters.append(':').append(name);
+            values.put(name, value);
+        }
+
+        return parameters.toString();
+    }
+
+    /**
+     * @param values the values of all the named parameters of the query, and only them
+     */
+    private <T> List<T> execute(Query query, Map<String, Object> values, int offset, int limit)
+        throws QueryException
+    {
+        for (Map.Entry<String, Object> value : values.entrySet()) {
+            query.bindValue(value.getKey(), value.getValue());
+        }
+        query.setOffset(offset);
+        query.setLimit(limit);
+
+        return query.execute();
+    }
+
+    private void addRows(List<Object[]> rows, Map<String, String> page)
+    {
+        for (Object[] row : rows) {
+            page.put((String) row[0], (String) row[1]);
+        }
+    }
+
     /**
      * {@inheritDoc}
      */
     public Future<Person> getPerson(UserId userId, Set<String> fields, SecurityToken token) throws ProtocolException
     {
         String uid = userId.getUserId(token);
-        Person person = new PersonXW();
 
         if (!documentAccessBridge.exists(uid))
             throw new ProtocolException(HttpServletResponse.SC_BAD_REQUEST, "Person not found");
 
+        DocumentName docName = documentAccessBridge.getDocumentName(uid);
+
+        Map<PersonXW.XWikiField, String> values =
+            new EnumMap<PersonXW.XWikiField, String>(PersonXW.XWikiField.class);
+        for (PersonXW.XWikiField prop : PersonXW.XWikiField.values()) {
+            String propValue =
+                (String) documentAccessBridge.getProperty(uid, PersonXW.XWIKI_USER_CLASS_NAME, prop.toString());
+
+            if (propValue != null) {
+                values.put(prop, propValue);
+            }
+        }
+
+        return ImmediateFuture.newInstance(createPerson(uid, docName.getPage(), values));
+    }
+
+    /**
+     * @param uid the full name of the user
+     * @param pageName the name of the user page
+     * @param values the user properties values
+     * @return the person
+     */
+    private Person createPerson(String uid, String pageName, Map<PersonXW.XWikiField, String> values)
+    {
+        Person person = new PersonXW();
+
         // set id - REQUIRED
         person.setId(uid);
 
-        DocumentName docName = documentAccessBridge.getDocumentName(uid);
-
         Name name = new NameXW();
         Address address = null;
         ListField im = null;
 
-        for (PersonXW.XWikiField prop : PersonXW.XWikiField.values()) {
-            String propValue =
-                (String) documentAccessBridge.getProperty(uid, PersonXW.XWIKI_USER_CLASS_NAME, prop.toString());
-
-            if (propValue == null)
-                continue;
+        for (Map.Entry<PersonXW.XWikiField, String> value : values.entrySet()) {
+            String propValue = value.getValue();
 
-            switch (prop) {
+            switch (value.getKey()) {
                 case AVATAR:
                     String avatarUrl = documentAccessBridge.getAttachmentURL(uid, propValue);
                     person.setThumbnailUrl(avatarUrl);
@@ -258,7 +615,7 @@ public class PersonServiceXW extends AbstractLogEnabled implements PersonService
         // set displayName - REQUIRED
         person.setDisplayName(name.getFormatted());
         // set nickname - REQUIRED
-        person.setNickname(docName.getPage());
+        person.setNickname(pageName);
         // set current location
         if (address != null)
             person.setCurrentLocation(address);
@@ -266,7 +623,7 @@ public class PersonServiceXW extends AbstractLogEnabled implements PersonService
         if (im != null)
             person.setIms(Lists.<ListField> newArrayList(im));
 
-        return ImmediateFuture.newInstance(person);
+        return person;
     }
 
     /**
@@ -1,17 +1,49 @@
 package org.xwiki.opensocial.social.spi;
 
+import java.io.File;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.shindig.auth.AnonymousSecurityToken;
+import org.apache.shindig.auth.SecurityToken;
+import org.apache.shindig.protocol.ProtocolException;
+import org.apache.shindig.protocol.RestfulCollection;
+import org.apache.shindig.social.core.model.ActivityImpl;
+import org.apache.shindig.social.opensocial.model.Activity;
+import org.apache.shindig.social.opensocial.spi.CollectionOptions;
+import org.apache.shindig.social.opensocial.spi.GroupId;
+import org.apache.shindig.social.opensocial.spi.UserId;
 import org.jmock.Mock;
+import org.jmock.core.constraint.IsAnything;
 import org.xwiki.bridge.DocumentAccessBridge;
 import org.xwiki.component.descriptor.DefaultComponentDescriptor;
+import org.xwiki.component.phase.InitializationException;
+import org.xwiki.configuration.ConfigurationSource;
+import org.xwiki.opensocial.social.spi.internal.ActivityServiceXW;
+import org.xwiki.query.Query;
+import org.xwiki.query.QueryManager;
 import org.xwiki.test.AbstractXWikiComponentTestCase;
 
 public class ActivityServiceXWTest extends AbstractXWikiComponentTestCase
 {
     private Mock mockDocumentAccessBridge;
 
+    private Mock mockQueryManager;
+
+    private Mock mockConfiguration;
+
+    private File directory;
+
+    private SecurityToken token = new AnonymousSecurityToken();
+
     /**
      * {@inheritDoc}
-     * 
+     *
      * @see org.xwiki.test.AbstractXWikiComponentTestCase#registerComponents()
      */
     @Override
@@ -23,6 +55,63 @@ public class ActivityServiceXWTest extends AbstractXWikiComponentTestCase
         descriptor.setRole(DocumentAccessBridge.class);
         getComponentManager().registerComponent(descriptor,
             (DocumentAccessBridge) this.mockDocumentAccessBridge.proxy());
+
+        this.mockQueryManager = mock(QueryManager.class);
+        DefaultComponentDescriptor<QueryManager> queryManagerDescriptor =
+            new DefaultComponentDescriptor<QueryManager>();
+        queryManagerDescriptor.setRole(QueryManager.class);
+        getComponentManager().registerComponent(queryManagerDescriptor, (QueryManager) this.mockQueryManager.proxy());
+
+        this.directory = File.createTempFile("activities", "");
+        this.directory.delete();
+
+        this.mockConfiguration = mock(ConfigurationSource.class);
+        this.mockConfiguration.stubs().method("getProperty").with(eq("opensocial.activities.storageDirectory"),
+            new IsAnything()).will(returnValue(this.directory.getPath()));
+        this.mockConfiguration.stubs().method("getProperty").with(eq("opensocial.activities.partitionDuration"),
+            new IsAnything()).will(returnValue(24));
+        this.mockConfiguration.stubs().method("getProperty").with(eq("opensocial.activities.maxAge"),
+            new IsAnything()).will(returnValue(0));
+        DefaultComponentDescriptor<ConfigurationSource> configurationDescriptor =
+            new DefaultComponentDescriptor<ConfigurationSource>();
+        configurationDescriptor.setRole(ConfigurationSource.class);
+        getComponentManager().registerComponent(configurationDescriptor,
+            (ConfigurationSource) this.mockConfiguration.proxy());
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * @see org.jmock.core.VerifyingTestCase#tearDown()
+     */
+    @Override
+    protected void tearDown() throws Exception
+    {
+        super.tearDown();
+
+        File[] files = this.directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        this.directory.delete();
+    }
+
+    private ActivityServiceXW getActivityService() throws Exception
+    {
+        return (ActivityServiceXW) getComponentManager().lookup(SocialServiceComponent.class, "ActivityServiceXW");
+    }
+
+    private void createActivity(ActivityServiceXW activityService, String userId, String id, long postedTime)
+        throws Exception
+    {
+        Activity activity = new ActivityImpl(id, null);
+        activity.setTitle("Title of " + id);
+        activity.setPostedTime(postedTime);
+
+        activityService.createActivity(new UserId(UserId.Type.userId, userId), new GroupId(GroupId.Type.self, null),
+            "app", Collections.<String> emptySet(), activity, this.token).get();
     }
 
     /**
@@ -30,6 +119,99 @@ public class ActivityServiceXWTest extends AbstractXWikiComponentTestCase
      */
     public void testGetActivity() throws Exception
     {
+        ActivityServiceXW activityService = getActivityService();
+        createActivity(activityService, "XWiki.Alice", "a1", 1000);
+
+        Activity activity =
+            activityService.getActivity(new UserId(UserId.Type.userId, "XWiki.Alice"),
+                new GroupId(GroupId.Type.self, null), "app", Collections.<String> emptySet(), "a1", this.token).get();
+
+        assertEquals("a1", activity.getId());
+        assertEquals("XWiki.Alice", activity.getUserId());
+        assertEquals("app", activity.getAppId());
+        assertEquals("Title of a1", activity.getTitle());
+
+        try {
+            activityService.getActivity(new UserId(UserId.Type.userId, "XWiki.Bob"), new GroupId(GroupId.Type.self,
+                null), "app", Collections.<String> emptySet(), "a1", this.token);
+            fail("Should have thrown a ProtocolException");
+        } catch (ProtocolException e) {
+            assertEquals(HttpServletResponse.SC_BAD_REQUEST, e.getCode());
+        }
+    }
+
+    /**
+     * @throws Exception
+     */
+    public void testGetActivitiesOfFriends() throws Exception
+    {
+        ActivityServiceXW activityService = getActivityService();
+        createActivity(activityService, "XWiki.Alice", "a1", 4000);
+        createActivity(activityService, "XWiki.Bob", "b1", 1000);
+        createActivity(activityService, "XWiki.Bob", "b2", 3000);
+        createActivity(activityService, "XWiki.Carol", "c1", 2000);
+
+        Mock mockQuery = mock(Query.class);
+        mockQuery.stubs().method("bindValue").will(returnValue(mockQuery.proxy()));
+        mockQuery.expects(once()).method("execute").will(returnValue(Arrays.asList("XWiki.Bob", "XWiki.Carol")));
+        this.mockQueryManager.expects(once()).method("createQuery").with(
+            stringContains("friend.name in (:uid0)"), eq(Query.HQL)).will(returnValue(mockQuery.proxy()));
+
+        CollectionOptions options = new CollectionOptions();
+        options.setFirst(1);
+        options.setMax(2);
+        Set<UserId> userIds = Collections.singleton(new UserId(UserId.Type.userId, "XWiki.Alice"));
+        RestfulCollection<Activity> activities =
+            activityService.getActivities(userIds, new GroupId(GroupId.Type.friends, null), null,
+                Collections.<String> emptySet(), options, this.token).get();
+
+        assertEquals(3, activities.getTotalResults());
+        assertEquals(1, activities.getStartIndex());
+        List<Activity> entries = activities.getEntry();
+        assertEquals(2, entries.size());
+        assertEquals("c1", entries.get(0).getId());
+        assertEquals("b1", entries.get(1).getId());
+    }
+
+    /**
+     * @throws Exception
+     */
+    public void testDeleteActivities() throws Exception
+    {
+        ActivityServiceXW activityService = getActivityService();
+        createActivity(activityService, "XWiki.Alice", "a1", 1000);
+        createActivity(activityService, "XWiki.Alice", "a2", 2000);
+
+        UserId userId = new UserId(UserId.Type.userId, "XWiki.Alice");
+        activityService.deleteActivities(userId, new GroupId(GroupId.Type.self, null), "app",
+            Collections.singleton("a1"), this.token).get();
+
+        RestfulCollection<Activity> activities =
+            activityService.getActivities(userId, new GroupId(GroupId.Type.self, null), "app",
+                Collections.<String> emptySet(), new CollectionOptions(), new HashSet<String>(Arrays.asList(
+                    "a1", "a2")), this.token).get();
+
+        assertEquals(1, activities.getEntry().size());
+        assertEquals("a2", activities.getEntry().get(0).getId());
+    }
+
+    /**
+     * The activities must not be stored in a temporary directory by default.
+     * 
+     * @throws Exception
+     */
+    public void testStorageDirectoryIsRequired() throws Exception
+    {
+        Mock mockEmptyConfiguration = mock(ConfigurationSource.class);
+        mockEmptyConfiguration.stubs().method("getProperty").will(returnValue(null));
 
+        ActivityServiceXW activityService = new ActivityServiceXW();
+        activityService.setConfiguration((ConfigurationSource) mockEmptyConfiguration.proxy());
+        try {
+            activityService.initialize();
+            fail("Should have thrown an InitializationException");
+        } catch (InitializationException e) {
+            // expected
+        }
     }
 }
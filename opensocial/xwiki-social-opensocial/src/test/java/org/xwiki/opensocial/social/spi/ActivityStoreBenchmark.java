@@ -0,0 +1,146 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.opensocial.social.spi;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.apache.shindig.social.core.model.ActivityImpl;
+import org.apache.shindig.social.opensocial.model.Activity;
+import org.xwiki.opensocial.social.spi.internal.ActivityStore;
+
+/**
+ * Load test of the {@link ActivityStore} with millions of synthetic activities: measures how fast the activities are
+ * added, how long it takes to load them again when the store is opened, and the time to get the latest activities of
+ * the friends of a user.
+ * <p>
+ * Run with the test classpath and a large enough heap for the index:
+ * <code>java -Xmx1g org.xwiki.opensocial.social.spi.ActivityStoreBenchmark [activities] [users] [friends] [queries]</code>.
+ *
+ * @version $Id$
+ */
+public class ActivityStoreBenchmark
+{
+    private static final long DAY = 24L * 60 * 60 * 1000;
+
+    private static final int APPLICATIONS = 10;
+
+    private static final int PAGE_SIZE = 20;
+
+    private static long usedMemory()
+    {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; ++i) {
+            System.gc();
+        }
+
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    private static void fill(ActivityStore store, int count, int users, Random random) throws Exception
+    {
+        // One month of activities, in posted order like a live wiki
+        long end = System.currentTimeMillis();
+        long start = end - 30 * DAY;
+        long step = Math.max((end - start) / count, 1);
+
+        long begin = System.nanoTime();
+        for (int i = 0; i < count; ++i) {
+            Activity activity = new ActivityImpl(null, "XWiki.User" + random.nextInt(users));
+            activity.setAppId("app" + random.nextInt(APPLICATIONS));
+            activity.setTitle("Activity " + i);
+            activity.setBody("Synthetic activity number " + i + " of the load test");
+            activity.setUrl("http://www.xwiki.org/activities/" + i);
+            activity.setPostedTime(start + i * step);
+            store.add(activity);
+        }
+        double seconds = (System.nanoTime() - begin) / 1e9;
+
+        System.out.println(String.format("added %d activities in %.1f s (%.0f activities/s)", count, seconds, count
+            / seconds));
+    }
+
+    private static void query(ActivityStore store, int users, int friends, int queries, Random random, String appId)
+        throws Exception
+    {
+        long begin = System.nanoTime();
+        int read = 0;
+        for (int i = 0; i < queries; ++i) {
+            List<String> userIds = new ArrayList<String>(friends);
+            for (int j = 0; j < friends; ++j) {
+                userIds.add("XWiki.User" + random.nextInt(users));
+            }
+            read += store.getLatest(userIds, appId, Long.MIN_VALUE, 0, PAGE_SIZE).size();
+            store.count(userIds, appId, Long.MIN_VALUE);
+        }
+        double millis = (System.nanoTime() - begin) / 1e6;
+
+        System.out.println(String.format("latest %d activities of %d users%s: %.3f ms/query (%d activities read)",
+            PAGE_SIZE, friends, appId != null ? " for " + appId : "", millis / queries, read));
+    }
+
+    public static void main(String[] args) throws Exception
+    {
+        int count = args.length > 0 ? Integer.parseInt(args[0]) : 2000000;
+        int users = args.length > 1 ? Integer.parseInt(args[1]) : 10000;
+        int friends = args.length > 2 ? Integer.parseInt(args[2]) : 100;
+        int queries = args.length > 3 ? Integer.parseInt(args[3]) : 10000;
+
+        File directory = File.createTempFile("activitiesbenchmark", "");
+        directory.delete();
+
+        Random random = new Random(42);
+        try {
+            long memory = usedMemory();
+
+            ActivityStore store = new ActivityStore(directory, DAY, 0);
+            store.open();
+            fill(store, count, users, random);
+            System.out.println(String.format("index: %d MB for %d activities in %d partitions",
+                (usedMemory() - memory) >> 20, store.size(), store.getPartitionCount()));
+
+            // Warm up
+            query(store, users, friends, queries / 10, random, null);
+
+            query(store, users, friends, queries, random, null);
+            query(store, users, friends, queries, random, "app0");
+            store.close();
+
+            long begin = System.nanoTime();
+            store = new ActivityStore(directory, DAY, 0);
+            store.open();
+            System.out.println(String.format("loaded %d activities in %.1f s", store.size(),
+                (System.nanoTime() - begin) / 1e9));
+
+            query(store, users, friends, queries, random, null);
+            store.close();
+        } finally {
+            File[] files = directory.listFiles();
+            if (files != null) {
+                for (File file : files) {
+                    file.delete();
+                }
+            }
+            directory.delete();
+        }
+    }
+}
@@ -0,0 +1,309 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.opensocial.social.spi;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.apache.shindig.social.core.model.ActivityImpl;
+import org.apache.shindig.social.core.model.MediaItemImpl;
+import org.apache.shindig.social.opensocial.model.Activity;
+import org.apache.shindig.social.opensocial.model.MediaItem;
+import org.xwiki.opensocial.social.spi.internal.ActivityStore;
+
+import junit.framework.TestCase;
+
+public class ActivityStoreTest extends TestCase
+{
+    private static final long HOUR = 60L * 60 * 1000;
+
+    private File directory;
+
+    private ActivityStore store;
+
+    /**
+     * {@inheritDoc}
+     *
+     * @see junit.framework.TestCase#setUp()
+     */
+    @Override
+    protected void setUp() throws Exception
+    {
+        this.directory = File.createTempFile("activities", "");
+        this.directory.delete();
+
+        this.store = new ActivityStore(this.directory, HOUR, 0);
+        this.store.open();
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * @see junit.framework.TestCase#tearDown()
+     */
+    @Override
+    protected void tearDown() throws Exception
+    {
+        this.store.close();
+        for (File file : this.directory.listFiles()) {
+            file.delete();
+        }
+        this.directory.delete();
+    }
+
+    private Activity add(String userId, String appId, String id, long time) throws Exception
+    {
+        Activity activity = new ActivityImpl(id, userId);
+        activity.setAppId(appId);
+        activity.setTitle("Title of " + id);
+        activity.setPostedTime(time);
+
+        return this.store.add(activity);
+    }
+
+    private List<String> getIds(List<Activity> activities)
+    {
+        List<String> ids = new ArrayList<String>();
+        for (Activity activity : activities) {
+            ids.add(activity.getId());
+        }
+
+        return ids;
+    }
+
+    /**
+     * @throws Exception
+     */
+    public void testAddAndGet() throws Exception
+    {
+        Activity activity = new ActivityImpl(null, "XWiki.Alice");
+        activity.setAppId("app");
+        activity.setTitle("Title");
+        activity.setBody("Body");
+        activity.setPriority(0.5f);
+        activity.setTemplateParams(Collections.singletonMap("name", "value"));
+        activity.setMediaItems(Arrays.<MediaItem> asList(new MediaItemImpl("image/png", MediaItem.Type.IMAGE,
+            "http://www.xwiki.org/logo.png")));
+        this.store.add(activity);
+
+        assertNotNull(activity.getId());
+        assertNotNull(activity.getPostedTime());
+
+        Activity stored = this.store.get("XWiki.Alice", activity.getId());
+        assertEquals(activity.getId(), stored.getId());
+        assertEquals("XWiki.Alice", stored.getUserId());
+        assertEquals("app", stored.getAppId());
+        assertEquals("Title", stored.getTitle());
+        assertEquals("Body", stored.getBody());
+        assertNull(stored.getUrl());
+        assertEquals(0.5f, stored.getPriority());
+        assertEquals(activity.getPostedTime(), stored.getPostedTime());
+        assertEquals("value", stored.getTemplateParams().get("name"));
+        assertEquals(1, stored.getMediaItems().size());
+        assertEquals(MediaItem.Type.IMAGE, stored.getMediaItems().get(0).getType());
+        assertEquals("http://www.xwiki.org/logo.png", stored.getMediaItems().get(0).getUrl());
+
+        assertNull(this.store.get("XWiki.Bob", activity.getId()));
+    }
+
+    /**
+     * @throws Exception
+     */
+    public void testGetLatest() throws Exception
+    {
+        add("XWiki.Alice", "app1", "a1", 1000);
+        add("XWiki.Bob", "app1", "b1", 2000);
+        add("XWiki.Alice", "app2", "a2", 3000);
+        add("XWiki.Carol", "app1", "c1", 4000);
+        // posted before the others
+        add("XWiki.Bob", "app2", "b2", 500);
+
+        List<String> users = Arrays.asList("XWiki.Alice", "XWiki.Bob");
+        assertEquals(Arrays.asList("a2", "b1", "a1", "b2"), getIds(this.store.getLatest(users, null, Long.MIN_VALUE,
+            0, 10)));
+        assertEquals(Arrays.asList("b1", "a1"), getIds(this.store.getLatest(users, null, Long.MIN_VALUE, 1, 2)));
+        assertEquals(Arrays.asList("b1", "a1"), getIds(this.store.getLatest(users, "app1", Long.MIN_VALUE, 0, 10)));
+        assertEquals(Arrays.asList("a2", "b1"), getIds(this.store.getLatest(users, null, 2000, 0, 10)));
+
+        assertEquals(4, this.store.count(users, null, Long.MIN_VALUE));
+        assertEquals(2, this.store.count(users, "app2", Long.MIN_VALUE));
+        assertEquals(2, this.store.count(users, null, 2000));
+    }
+
+    /**
+     * @throws Exception
+     */
+    public void testDelete() throws Exception
+    {
+        add("XWiki.Alice", "app1", "a1", 1000);
+        add("XWiki.Alice", "app2", "a2", 2000);
+
+        assertEquals(0, this.store.delete("XWiki.Alice", "app1", Arrays.asList("a2")));
+        assertEquals(1, this.store.delete("XWiki.Alice", null, Arrays.asList("a2", "unknown")));
+
+        assertNull(this.store.get("XWiki.Alice", "a2"));
+        assertEquals(Arrays.asList("a1"), getIds(this.store.getLatest(Arrays.asList("XWiki.Alice"), null,
+            Long.MIN_VALUE, 0, 10)));
+        assertEquals(1, this.store.size());
+    }
+
+    /**
+     * @throws Exception
+     */
+    public void testReplace() throws Exception
+    {
+        add("XWiki.Alice", "app1", "a1", 1000);
+        add("XWiki.Alice", "app1", "a1", 3 * HOUR);
+        add("XWiki.Alice", "app1", "a2", 3 * HOUR);
+        // moved back to the first hour
+        add("XWiki.Alice", "app1", "a2", 2000);
+
+        assertEquals(2, this.store.size());
+        assertEquals(3 * HOUR, this.store.get("XWiki.Alice", "a1").getPostedTime().longValue());
+        assertEquals(2000L, this.store.get("XWiki.Alice", "a2").getPostedTime().longValue());
+
+        this.store.close();
+        this.store = new ActivityStore(this.directory, HOUR, 0);
+        this.store.open();
+
+        assertEquals(2, this.store.size());
+        assertEquals(Arrays.asList("a1", "a2"), getIds(this.store.getLatest(Arrays.asList("XWiki.Alice"), null,
+            Long.MIN_VALUE, 0, 10)));
+        assertEquals(2000L, this.store.get("XWiki.Alice", "a2").getPostedTime().longValue());
+    }
+
+    /**
+     * @throws Exception
+     */
+    public void testReopen() throws Exception
+    {
+        add("XWiki.Alice", "app1", "a1", 1000);
+        add("XWiki.Alice", "app1", "a2", 2 * HOUR);
+        add("XWiki.Bob", "app1", "b1", 3 * HOUR);
+        this.store.delete("XWiki.Alice", null, Arrays.asList("a1"));
+
+        this.store.close();
+        this.store = new ActivityStore(this.directory, HOUR, 0);
+        this.store.open();
+
+        assertEquals(3, this.store.getPartitionCount());
+        assertEquals(2, this.store.size());
+        assertNull(this.store.get("XWiki.Alice", "a1"));
+        assertEquals(Arrays.asList("b1", "a2"), getIds(this.store.getLatest(Arrays.asList("XWiki.Alice",
+            "XWiki.Bob"), "app1", Long.MIN_VALUE, 0, 10)));
+
+        // The new activities are appended after the loaded ones
+        add("XWiki.Alice", "app1", "a3", 2 * HOUR + 1);
+        assertEquals("Title of a2", this.store.get("XWiki.Alice", "a2").getTitle());
+        assertEquals("Title of a3", this.store.get("XWiki.Alice", "a3").getTitle());
+    }
+
+    /**
+     * @throws Exception
+     */
+    public void testReopenWithIncompleteRecord() throws Exception
+    {
+        add("XWiki.Alice", "app1", "a1", 1000);
+        this.store.close();
+
+        File partition = this.directory.listFiles()[0];
+        long length = partition.length();
+        RandomAccessFile raf = new RandomAccessFile(partition, "rw");
+        raf.seek(length);
+        raf.writeInt(100);
+        raf.write(new byte[10]);
+        raf.close();
+
+        this.store = new ActivityStore(this.directory, HOUR, 0);
+        this.store.open();
+
+        assertEquals(length, partition.length());
+        assertEquals(1, this.store.size());
+        add("XWiki.Alice", "app1", "a2", 2000);
+        assertEquals("Title of a2", this.store.get("XWiki.Alice", "a2").getTitle());
+    }
+
+    /**
+     * The activities are read concurrently from the same partition files.
+     *
+     * @throws Exception
+     */
+    public void testConcurrentReads() throws Exception
+    {
+        for (int i = 0; i < 100; ++i) {
+            add("XWiki.Alice", "app1", "a" + i, i * HOUR / 50);
+        }
+
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        Thread[] readers = new Thread[4];
+        for (int t = 0; t < readers.length; ++t) {
+            readers[t] = new Thread()
+            {
+                @Override
+                public void run()
+                {
+                    try {
+                        ActivityStore store = ActivityStoreTest.this.store;
+                        for (int i = 0; i < 500; ++i) {
+                            String id = "a" + (i % 100);
+                            assertEquals("Title of " + id, store.get("XWiki.Alice", id).getTitle());
+                            assertEquals(10, store.getLatest(Arrays.asList("XWiki.Alice"), null, Long.MIN_VALUE,
+                                i % 90, 10).size());
+                        }
+                    } catch (Throwable e) {
+                        failure.compareAndSet(null, e);
+                    }
+                }
+            };
+            readers[t].start();
+        }
+        for (Thread reader : readers) {
+            reader.join();
+        }
+
+        if (failure.get() != null) {
+            throw new AssertionError(failure.get());
+        }
+    }
+
+    /**
+     * @throws Exception
+     */
+    public void testPurgeOldPartitions() throws Exception
+    {
+        this.store.close();
+        this.store = new ActivityStore(this.directory, HOUR, 2 * HOUR);
+        this.store.open();
+
+        long now = System.currentTimeMillis();
+        add("XWiki.Alice", "app1", "old", now - 5 * HOUR);
+        assertEquals(0, this.store.size());
+        assertEquals(0, this.directory.listFiles().length);
+
+        add("XWiki.Alice", "app1", "recent", now);
+        assertEquals(1, this.store.size());
+        assertEquals(1, this.directory.listFiles().length);
+    }
+}
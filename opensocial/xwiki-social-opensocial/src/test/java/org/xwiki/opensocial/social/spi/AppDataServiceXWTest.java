@@ -1,17 +1,44 @@
 package org.xwiki.opensocial.social.spi;
 
+import java.io.File;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.shindig.auth.AnonymousSecurityToken;
+import org.apache.shindig.auth.SecurityToken;
+import org.apache.shindig.protocol.DataCollection;
+import org.apache.shindig.social.opensocial.spi.GroupId;
+import org.apache.shindig.social.opensocial.spi.UserId;
 import org.jmock.Mock;
+import org.jmock.core.constraint.IsAnything;
 import org.xwiki.bridge.DocumentAccessBridge;
 import org.xwiki.component.descriptor.DefaultComponentDescriptor;
+import org.xwiki.component.phase.InitializationException;
+import org.xwiki.configuration.ConfigurationSource;
+import org.xwiki.opensocial.social.spi.internal.AppDataServiceXW;
+import org.xwiki.query.Query;
+import org.xwiki.query.QueryManager;
 import org.xwiki.test.AbstractXWikiComponentTestCase;
 
 public class AppDataServiceXWTest extends AbstractXWikiComponentTestCase
 {
     private Mock mockDocumentAccessBridge;
 
+    private Mock mockQueryManager;
+
+    private Mock mockConfiguration;
+
+    private File directory;
+
+    private SecurityToken token = new AnonymousSecurityToken();
+
     /**
      * {@inheritDoc}
-     * 
+     *
      * @see org.xwiki.test.AbstractXWikiComponentTestCase#registerComponents()
      */
     @Override
@@ -23,6 +50,62 @@ public class AppDataServiceXWTest extends AbstractXWikiComponentTestCase
         descriptor.setRole(DocumentAccessBridge.class);
         getComponentManager().registerComponent(descriptor,
             (DocumentAccessBridge) this.mockDocumentAccessBridge.proxy());
+
+        this.mockQueryManager = mock(QueryManager.class);
+        DefaultComponentDescriptor<QueryManager> queryManagerDescriptor =
+            new DefaultComponentDescriptor<QueryManager>();
+        queryManagerDescriptor.setRole(QueryManager.class);
+        getComponentManager().registerComponent(queryManagerDescriptor, (QueryManager) this.mockQueryManager.proxy());
+
+        this.directory = File.createTempFile("appdata", "");
+        this.directory.delete();
+
+        this.mockConfiguration = mock(ConfigurationSource.class);
+        this.mockConfiguration.stubs().method("getProperty").with(eq("opensocial.appdata.storageDirectory"),
+            new IsAnything()).will(returnValue(this.directory.getPath()));
+        this.mockConfiguration.stubs().method("getProperty").with(eq("opensocial.appdata.flushInterval"),
+            new IsAnything()).will(returnValue(60000L));
+        DefaultComponentDescriptor<ConfigurationSource> configurationDescriptor =
+            new DefaultComponentDescriptor<ConfigurationSource>();
+        configurationDescriptor.setRole(ConfigurationSource.class);
+        getComponentManager().registerComponent(configurationDescriptor,
+            (ConfigurationSource) this.mockConfiguration.proxy());
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * @see org.jmock.core.VerifyingTestCase#tearDown()
+     */
+    @Override
+    protected void tearDown() throws Exception
+    {
+        super.tearDown();
+
+        File[] files = this.directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        this.directory.delete();
+    }
+
+    private AppDataServiceXW getAppDataService() throws Exception
+    {
+        return (AppDataServiceXW) getComponentManager().lookup(SocialServiceComponent.class, "AppDataServiceXW");
+    }
+
+    private void update(AppDataServiceXW appDataService, String userId, Set<String> fields, String... values)
+        throws Exception
+    {
+        Map<String, String> map = new HashMap<String, String>();
+        for (int i = 0; i < values.length; i += 2) {
+            map.put(values[i], values[i + 1]);
+        }
+
+        appDataService.updatePersonData(new UserId(UserId.Type.userId, userId), new GroupId(GroupId.Type.self, null),
+            "app", fields, map, this.token).get();
     }
 
     /**
@@ -30,6 +113,104 @@ public class AppDataServiceXWTest extends AbstractXWikiComponentTestCase
      */
     public void testGetPersonData() throws Exception
     {
+        AppDataServiceXW appDataService = getAppDataService();
+        update(appDataService, "XWiki.Alice", null, "color", "red", "size", "10");
+        update(appDataService, "XWiki.Bob", null, "color", "blue");
+
+        Set<UserId> userIds =
+            new HashSet<UserId>(Arrays.asList(new UserId(UserId.Type.userId, "XWiki.Alice"), new UserId(
+                UserId.Type.userId, "XWiki.Bob"), new UserId(UserId.Type.userId, "XWiki.Carol")));
+        DataCollection data =
+            appDataService.getPersonData(userIds, new GroupId(GroupId.Type.self, null), "app",
+                Collections.singleton("color"), this.token).get();
+
+        assertEquals(2, data.getEntry().size());
+        assertEquals(Collections.singletonMap("color", "red"), data.getEntry().get("XWiki.Alice"));
+        assertEquals(Collections.singletonMap("color", "blue"), data.getEntry().get("XWiki.Bob"));
+
+        data =
+            appDataService.getPersonData(userIds, new GroupId(GroupId.Type.self, null), "other",
+                Collections.<String> emptySet(), this.token).get();
+        assertTrue(data.getEntry().isEmpty());
+    }
+
+    /**
+     * @throws Exception
+     */
+    public void testGetFriendsData() throws Exception
+    {
+        AppDataServiceXW appDataService = getAppDataService();
+        update(appDataService, "XWiki.Bob", null, "color", "blue");
+
+        Mock mockQuery = mock(Query.class);
+        mockQuery.stubs().method("bindValue").will(returnValue(mockQuery.proxy()));
+        mockQuery.expects(once()).method("execute").will(returnValue(Arrays.asList("XWiki.Bob", "XWiki.Carol")));
+        this.mockQueryManager.expects(once()).method("createQuery").with(stringContains("friend.name in (:uid0)"),
+            eq(Query.HQL)).will(returnValue(mockQuery.proxy()));
+
+        DataCollection data =
+            appDataService.getPersonData(Collections.singleton(new UserId(UserId.Type.userId, "XWiki.Alice")),
+                new GroupId(GroupId.Type.friends, null), "app", Collections.<String> emptySet(), this.token).get();
+
+        assertEquals(1, data.getEntry().size());
+        assertEquals("blue", data.getEntry().get("XWiki.Bob").get("color"));
+    }
+
+    /**
+     * @throws Exception
+     */
+    public void testUpdateAndDeletePersonData() throws Exception
+    {
+        AppDataServiceXW appDataService = getAppDataService();
+        update(appDataService, "XWiki.Alice", null, "color", "red", "size", "10", "shape", "round");
+        // a field without value is deleted
+        update(appDataService, "XWiki.Alice", new HashSet<String>(Arrays.asList("color", "size")), "color", "green");
+
+        UserId alice = new UserId(UserId.Type.userId, "XWiki.Alice");
+        appDataService.deletePersonData(alice, new GroupId(GroupId.Type.self, null), "app",
+            Collections.singleton("shape"), this.token).get();
+
+        DataCollection data =
+            appDataService.getPersonData(Collections.singleton(alice), new GroupId(GroupId.Type.self, null), "app",
+                null, this.token).get();
+        assertEquals(Collections.singletonMap("color", "green"), data.getEntry().get("XWiki.Alice"));
+    }
+
+    /**
+     * The pending changes are written when the component is disposed.
+     * 
+     * @throws Exception
+     */
+    public void testDisposeWritesPendingChanges() throws Exception
+    {
+        AppDataServiceXW appDataService = getAppDataService();
+        update(appDataService, "XWiki.Alice", null, "color", "red");
+        appDataService.dispose();
+
+        UserId alice = new UserId(UserId.Type.userId, "XWiki.Alice");
+        DataCollection data =
+            getAppDataService().getPersonData(Collections.singleton(alice), new GroupId(GroupId.Type.self, null),
+                "app", null, this.token).get();
+        assertEquals(Collections.singletonMap("color", "red"), data.getEntry().get("XWiki.Alice"));
+    }
+
+    /**
+     * The application data must not be stored in a temporary directory by default.
+     * 
+     * @throws Exception
+     */
+    public void testStorageDirectoryIsRequired() throws Exception
+    {
+        Mock mockEmptyConfiguration = mock(ConfigurationSource.class);
+        mockEmptyConfiguration.stubs().method("getProperty").will(returnValue(null));
 
+        AppDataServiceXW appDataService = new AppDataServiceXW();
+        appDataService.setConfiguration((ConfigurationSource) mockEmptyConfiguration.proxy());
+        try {
+            appDataService.initialize();
+            fail("Should have thrown an InitializationException");
+        } catch (InitializationException e) {
+            // expected
+        }
     }
 }
@@ -0,0 +1,173 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.opensocial.social.spi;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import org.apache.shindig.auth.AnonymousSecurityToken;
+import org.apache.shindig.auth.SecurityToken;
+import org.apache.shindig.social.opensocial.spi.GroupId;
+import org.apache.shindig.social.opensocial.spi.UserId;
+import org.apache.shindig.social.sample.spi.JsonDbOpensocialService;
+import org.json.JSONObject;
+import org.xwiki.opensocial.social.spi.internal.AppDataStore;
+
+/**
+ * Compares the read and write throughput of the {@link AppDataStore} with the Shindig sample implementation, which
+ * keeps the application data in memory in a JSON object and never writes it.
+ * <p>
+ * The store is flushed every {@value #FLUSH_EVERY} writes, like the writer thread of the AppDataServiceXW would do
+ * under load. Run with the test classpath:
+ * <code>java org.xwiki.opensocial.social.spi.AppDataStoreBenchmark [users] [writes] [reads] [batch]</code>.
+ *
+ * @version $Id$
+ */
+public class AppDataStoreBenchmark
+{
+    private static final int FLUSH_EVERY = 1000;
+
+    private static final String APP_ID = "app";
+
+    private static final GroupId SELF = new GroupId(GroupId.Type.self, null);
+
+    private static Map<String, String> createValues(Random random)
+    {
+        Map<String, String> values = new HashMap<String, String>();
+        values.put("color", "color" + random.nextInt(10));
+        values.put("size", String.valueOf(random.nextInt(100)));
+        values.put("lastVisit", String.valueOf(System.currentTimeMillis()));
+
+        return values;
+    }
+
+    private static List<Set<String>> createBatches(int users, int reads, int batch, Random random)
+    {
+        List<Set<String>> batches = new ArrayList<Set<String>>(reads);
+        for (int i = 0; i < reads; ++i) {
+            Set<String> userIds = new LinkedHashSet<String>();
+            while (userIds.size() < batch) {
+                userIds.add("user" + random.nextInt(users));
+            }
+            batches.add(userIds);
+        }
+
+        return batches;
+    }
+
+    private static void report(String name, String operation, int count, long begin)
+    {
+        double seconds = (System.nanoTime() - begin) / 1e9;
+        System.out.println(String.format("%s: %d %s in %.2f s (%.0f/s)", name, count, operation, seconds, count
+            / seconds));
+    }
+
+    private static void runSample(int users, int writes, List<Set<String>> batches, long seed) throws Exception
+    {
+        JsonDbOpensocialService service = new JsonDbOpensocialService("sampledata/canonicaldb.json", null);
+        JSONObject data = service.getDb().getJSONObject("data");
+        for (int i = 0; i < users; ++i) {
+            data.put("user" + i, new JSONObject());
+        }
+        SecurityToken token = new AnonymousSecurityToken();
+
+        Random random = new Random(seed);
+        long begin = System.nanoTime();
+        for (int i = 0; i < writes; ++i) {
+            service.updatePersonData(new UserId(UserId.Type.userId, "user" + random.nextInt(users)), SELF, APP_ID,
+                null, createValues(random), token).get();
+        }
+        report("shindig sample", "writes", writes, begin);
+
+        begin = System.nanoTime();
+        for (Set<String> batch : batches) {
+            Set<UserId> userIds = new LinkedHashSet<UserId>();
+            for (String userId : batch) {
+                userIds.add(new UserId(UserId.Type.userId, userId));
+            }
+            service.getPersonData(userIds, SELF, APP_ID, Collections.<String> emptySet(), token).get();
+        }
+        report("shindig sample", "batched reads", batches.size(), begin);
+    }
+
+    private static void runStore(File file, int users, int writes, List<Set<String>> batches, long seed)
+        throws Exception
+    {
+        AppDataStore store = new AppDataStore(file, 1000);
+        store.open();
+        try {
+            Random random = new Random(seed);
+            Set<String> noKeys = Collections.emptySet();
+            long begin = System.nanoTime();
+            for (int i = 0; i < writes; ++i) {
+                store.update("user" + random.nextInt(users), APP_ID, createValues(random), noKeys);
+                if (i % FLUSH_EVERY == FLUSH_EVERY - 1) {
+                    store.flush();
+                }
+            }
+            store.flush();
+            report("AppDataStore", "writes", writes, begin);
+
+            begin = System.nanoTime();
+            for (Set<String> batch : batches) {
+                store.get(batch, APP_ID, noKeys);
+            }
+            report("AppDataStore", "batched reads", batches.size(), begin);
+            System.out.println(String.format("AppDataStore: data file of %d KB", store.getLength() >> 10));
+        } finally {
+            store.close();
+        }
+
+        long begin = System.nanoTime();
+        store = new AppDataStore(file, 1000);
+        store.open();
+        store.close();
+        System.out.println(String.format("AppDataStore: data file loaded in %.1f ms",
+            (System.nanoTime() - begin) / 1e6));
+    }
+
+    public static void main(String[] args) throws Exception
+    {
+        int users = args.length > 0 ? Integer.parseInt(args[0]) : 10000;
+        int writes = args.length > 1 ? Integer.parseInt(args[1]) : 200000;
+        int reads = args.length > 2 ? Integer.parseInt(args[2]) : 20000;
+        int batch = args.length > 3 ? Integer.parseInt(args[3]) : 50;
+
+        List<Set<String>> batches = createBatches(users, reads, batch, new Random(1));
+        File file = File.createTempFile("appdatabenchmark", ".log");
+        try {
+            for (int round = 0; round < 3; ++round) {
+                System.out.println("round " + round);
+                runSample(users, writes, batches, round);
+                file.delete();
+                runStore(file, users, writes, batches, round);
+            }
+        } finally {
+            file.delete();
+        }
+    }
+}
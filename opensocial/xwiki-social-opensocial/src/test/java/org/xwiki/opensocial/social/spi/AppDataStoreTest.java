@@ -0,0 +1,230 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.opensocial.social.spi;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+
+import org.xwiki.opensocial.social.spi.internal.AppDataStore;
+
+import junit.framework.TestCase;
+
+public class AppDataStoreTest extends TestCase
+{
+    private File file;
+
+    private AppDataStore store;
+
+    /**
+     * {@inheritDoc}
+     *
+     * @see junit.framework.TestCase#setUp()
+     */
+    @Override
+    protected void setUp() throws Exception
+    {
+        this.file = File.createTempFile("appdata", ".log");
+        this.file.delete();
+
+        this.store = new AppDataStore(this.file, 100);
+        this.store.open();
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * @see junit.framework.TestCase#tearDown()
+     */
+    @Override
+    protected void tearDown() throws Exception
+    {
+        this.store.close();
+        this.file.delete();
+    }
+
+    private void reopen() throws Exception
+    {
+        this.store.close();
+        this.store = new AppDataStore(this.file, 100);
+        this.store.open();
+    }
+
+    /**
+     * @throws Exception
+     */
+    public void testUpdateAndGet() throws Exception
+    {
+        this.store.update("XWiki.Alice", "app", Collections.singletonMap("color", "red"), Collections
+            .<String> emptySet());
+        this.store.update("XWiki.Alice", "app", Collections.singletonMap("note", "caf\u00e9"), Collections
+            .<String> emptySet());
+        this.store.update("XWiki.Bob", "app", Collections.singletonMap("color", "blue"), Collections
+            .<String> emptySet());
+        this.store.update("XWiki.Bob", "other", Collections.singletonMap("color", "green"), Collections
+            .<String> emptySet());
+
+        Map<String, Map<String, String>> data =
+            this.store.get(Arrays.asList("XWiki.Alice", "XWiki.Bob", "XWiki.Carol"), "app", null);
+        assertEquals(2, data.size());
+        assertEquals("red", data.get("XWiki.Alice").get("color"));
+        assertEquals("caf\u00e9", data.get("XWiki.Alice").get("note"));
+        assertEquals(Collections.singletonMap("color", "blue"), data.get("XWiki.Bob"));
+
+        data = this.store.get(Arrays.asList("XWiki.Alice"), "app", Arrays.asList("note"));
+        assertEquals(Collections.singletonMap("note", "caf\u00e9"), data.get("XWiki.Alice"));
+    }
+
+    /**
+     * @throws Exception
+     */
+    public void testWritesAreCoalesced() throws Exception
+    {
+        for (int i = 0; i < 50; ++i) {
+            this.store.update("XWiki.Alice", "app", Collections.singletonMap("count", String.valueOf(i)),
+                Collections.<String> emptySet());
+        }
+
+        assertEquals(1, this.store.getPendingCount());
+        assertEquals(0, this.file.length());
+
+        this.store.flush();
+
+        assertEquals(0, this.store.getPendingCount());
+        long length = this.file.length();
+        assertTrue(length > 0);
+
+        reopen();
+        assertEquals("49", this.store.get(Arrays.asList("XWiki.Alice"), "app", null).get("XWiki.Alice").get(
+            "count"));
+        assertEquals(length, this.file.length());
+    }
+
+    /**
+     * @throws Exception
+     */
+    public void testFlushWhenTooManyPending() throws Exception
+    {
+        for (int i = 0; i < 100; ++i) {
+            this.store.update("XWiki.User" + i, "app", Collections.singletonMap("color", "red"), Collections
+                .<String> emptySet());
+        }
+
+        assertEquals(0, this.store.getPendingCount());
+        assertTrue(this.file.length() > 0);
+    }
+
+    /**
+     * @throws Exception
+     */
+    public void testDelete() throws Exception
+    {
+        this.store.update("XWiki.Alice", "app", Collections.singletonMap("color", "red"), Collections
+            .<String> emptySet());
+        this.store.update("XWiki.Alice", "app", Collections.singletonMap("size", "10"), Collections
+            .<String> emptySet());
+        this.store.update("XWiki.Bob", "app", Collections.singletonMap("color", "blue"), Collections
+            .<String> emptySet());
+        this.store.flush();
+
+        this.store.delete("XWiki.Alice", "app", Arrays.asList("color"));
+        this.store.delete("XWiki.Bob", "app", null);
+        reopen();
+
+        Map<String, Map<String, String>> data = this.store.get(Arrays.asList("XWiki.Alice", "XWiki.Bob"), "app", null);
+        assertEquals(1, data.size());
+        assertEquals(Collections.singletonMap("size", "10"), data.get("XWiki.Alice"));
+    }
+
+    /**
+     * @throws Exception
+     */
+    public void testWithoutApplication() throws Exception
+    {
+        this.store.update("XWiki.Alice", null, Collections.singletonMap("color", "red"), Collections
+            .<String> emptySet());
+        this.store.update("XWiki.Alice", "", Collections.singletonMap("color", "blue"), Collections
+            .<String> emptySet());
+        this.store.update("XWiki.Alice", null, Collections.singletonMap("size", "10"), Collections
+            .<String> emptySet());
+        assertEquals(2, this.store.getPendingCount());
+        reopen();
+
+        Map<String, String> values = this.store.get(Arrays.asList("XWiki.Alice"), null, null).get("XWiki.Alice");
+        assertEquals(2, values.size());
+        assertEquals("red", values.get("color"));
+        assertEquals("10", values.get("size"));
+        assertEquals(Collections.singletonMap("color", "blue"), this.store.get(Arrays.asList("XWiki.Alice"), "",
+            null).get("XWiki.Alice"));
+
+        this.store.delete("XWiki.Alice", null, null);
+        reopen();
+        assertTrue(this.store.get(Arrays.asList("XWiki.Alice"), null, null).isEmpty());
+        assertEquals(1, this.store.get(Arrays.asList("XWiki.Alice"), "", null).size());
+    }
+
+    /**
+     * @throws Exception
+     */
+    public void testOpenWithIncompleteRecord() throws Exception
+    {
+        this.store.update("XWiki.Alice", "app", Collections.singletonMap("color", "red"), Collections
+            .<String> emptySet());
+        this.store.close();
+
+        long length = this.file.length();
+        RandomAccessFile raf = new RandomAccessFile(this.file, "rw");
+        raf.seek(length);
+        raf.writeInt(100);
+        raf.write(new byte[10]);
+        raf.close();
+
+        this.store = new AppDataStore(this.file, 100);
+        this.store.open();
+
+        assertEquals(length, this.file.length());
+        assertEquals("red", this.store.get(Arrays.asList("XWiki.Alice"), "app", null).get("XWiki.Alice").get(
+            "color"));
+    }
+
+    /**
+     * @throws Exception
+     */
+    public void testCompaction() throws Exception
+    {
+        StringBuilder value = new StringBuilder();
+        for (int i = 0; i < 1000; ++i) {
+            value.append('x');
+        }
+        for (int i = 0; i < 3000; ++i) {
+            this.store.update("XWiki.Alice", "app", Collections.singletonMap("value", value.toString() + i),
+                Collections.<String> emptySet());
+            this.store.flush();
+        }
+
+        assertTrue(this.file.length() < 2 * 1024 * 1024);
+
+        reopen();
+        assertEquals(value.toString() + 2999, this.store.get(Arrays.asList("XWiki.Alice"), "app", null).get(
+            "XWiki.Alice").get("value"));
+    }
+}
@@ -20,6 +20,8 @@
  */
 package org.xwiki.opensocial.social.spi;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
@@ -29,6 +31,7 @@ import java.util.concurrent.Future;
 import org.apache.shindig.auth.AnonymousSecurityToken;
 import org.apache.shindig.auth.SecurityToken;
 import org.apache.shindig.protocol.RestfulCollection;
+import org.apache.shindig.protocol.model.SortOrder;
 import org.apache.shindig.social.core.model.AddressImpl;
 import org.apache.shindig.social.core.model.ListFieldImpl;
 import org.apache.shindig.social.core.model.OrganizationImpl;
@@ -48,8 +51,11 @@ import org.xwiki.bridge.DocumentName;
 import org.xwiki.component.descriptor.DefaultComponentDescriptor;
 import org.xwiki.opensocial.social.model.NameXW;
 import org.xwiki.opensocial.social.model.PersonXW;
+import org.xwiki.opensocial.social.model.PersonXWComparator;
 import org.xwiki.opensocial.social.spi.SocialServiceComponent;
 import org.xwiki.opensocial.social.spi.internal.PersonServiceXW;
+import org.xwiki.query.Query;
+import org.xwiki.query.QueryManager;
 import org.xwiki.test.AbstractXWikiComponentTestCase;
 
 import com.google.common.collect.Lists;
@@ -59,6 +65,8 @@ public class PersonServiceXWTest extends AbstractXWikiComponentTestCase
 {
     private Mock mockDocumentAccessBridge;
 
+    private Mock mockQueryManager;
+
     /**
      * {@inheritDoc}
      * 
@@ -73,6 +81,12 @@ public class PersonServiceXWTest extends AbstractXWikiComponentTestCase
         descriptor.setRole(DocumentAccessBridge.class);
         getComponentManager().registerComponent(descriptor,
             (DocumentAccessBridge) this.mockDocumentAccessBridge.proxy());
+
+        this.mockQueryManager = mock(QueryManager.class);
+        DefaultComponentDescriptor<QueryManager> queryManagerDescriptor =
+            new DefaultComponentDescriptor<QueryManager>();
+        queryManagerDescriptor.setRole(QueryManager.class);
+        getComponentManager().registerComponent(queryManagerDescriptor, (QueryManager) this.mockQueryManager.proxy());
     }
 
     /**
@@ -232,44 +246,18 @@ public class PersonServiceXWTest extends AbstractXWikiComponentTestCase
 
         PersonServiceXW personService =
             (PersonServiceXW) getComponentManager().lookup(SocialServiceComponent.class, "PersonServiceXW");
-        // set values for Jane
-        mockDocumentAccessBridge.expects(once()).method("exists").with(new IsEqual("XWiki.Jane")).will(
-            returnValue(true));
-        mockDocumentAccessBridge.expects(once()).method("getDocumentName").with(new IsEqual("XWiki.Jane")).will(
-            returnValue(new DocumentName("wiki", "XWiki", "Jane")));
-        mockDocumentAccessBridge.expects(once()).method("getProperty").with(new IsEqual("XWiki.Jane"),
-            new IsEqual("XWiki.XWikiUsers"), new IsEqual("first_name")).will(returnValue("Jane"));
-        // set values for John
-        mockDocumentAccessBridge.expects(once()).method("exists").with(new IsEqual("XWiki.John")).will(
-            returnValue(true));
-        mockDocumentAccessBridge.expects(once()).method("getDocumentName").with(new IsEqual("XWiki.John")).will(
-            returnValue(new DocumentName("wiki", "XWiki", "John")));
-        mockDocumentAccessBridge.expects(once()).method("getProperty").with(new IsEqual("XWiki.John"),
-            new IsEqual("XWiki.XWikiUsers"), new IsEqual("first_name")).will(returnValue("John"));
-        // unset values
-        mockDocumentAccessBridge.expects(exactly(2)).method("getProperty").with(new IsAnything(),
-            new IsEqual("XWiki.XWikiUsers"), new IsEqual("last_name")).will(returnValue("Doe"));
-        mockDocumentAccessBridge.expects(exactly(2)).method("getProperty").with(new IsAnything(),
-            new IsEqual("XWiki.XWikiUsers"), new IsEqual("avatar")).will(returnValue(null));
-        mockDocumentAccessBridge.expects(exactly(2)).method("getProperty").with(new IsAnything(),
-            new IsEqual("XWiki.XWikiUsers"), new IsEqual("blog")).will(returnValue(null));
-        mockDocumentAccessBridge.expects(exactly(2)).method("getProperty").with(new IsAnything(),
-            new IsEqual("XWiki.XWikiUsers"), new IsEqual("blogfeed")).will(returnValue(null));
-        mockDocumentAccessBridge.expects(exactly(2)).method("getProperty").with(new IsAnything(),
-            new IsEqual("XWiki.XWikiUsers"), new IsEqual("city")).will(returnValue(null));
-        mockDocumentAccessBridge.expects(exactly(2)).method("getProperty").with(new IsAnything(),
-            new IsEqual("XWiki.XWikiUsers"), new IsEqual("country")).will(returnValue(null));
-        mockDocumentAccessBridge.expects(exactly(2)).method("getProperty").with(new IsAnything(),
-            new IsEqual("XWiki.XWikiUsers"), new IsEqual("comment")).will(returnValue(null));
-        mockDocumentAccessBridge.expects(exactly(2)).method("getProperty").with(new IsAnything(),
-            new IsEqual("XWiki.XWikiUsers"), new IsEqual("company")).will(returnValue(null));
-        mockDocumentAccessBridge.expects(exactly(2)).method("getProperty").with(new IsAnything(),
-            new IsEqual("XWiki.XWikiUsers"), new IsEqual("email")).will(returnValue(null));
-        mockDocumentAccessBridge.expects(exactly(2)).method("getProperty").with(new IsAnything(),
-            new IsEqual("XWiki.XWikiUsers"), new IsEqual("imaccount")).will(returnValue(null));
-        mockDocumentAccessBridge.expects(exactly(2)).method("getProperty").with(new IsAnything(),
-            new IsEqual("XWiki.XWikiUsers"), new IsEqual("imtype")).will(returnValue(null));
+        // sorted people
+        expectQuery("order by familyProp.value, secondProp.id.name, secondProp.value", rows(new Object[] {
+        "XWiki.Jane", "Jane"}, new Object[] {"XWiki.John", "John"}));
+        expectQuery("order by givenProp.value", rows());
+        expectQuery(") order by doc.fullName", rows());
+        // set values
+        expectQuery("from BaseObject as obj, StringProperty as prop", rows(new Object[] {"XWiki.Jane", "first_name",
+            "Jane"}, new Object[] {"XWiki.Jane", "last_name", "Doe"}, new Object[] {"XWiki.John", "first_name", "John"},
+            new Object[] {"XWiki.John", "last_name", "Doe"}));
+        expectQuery("from BaseObject as obj, LargeStringProperty as prop", rows());
         personService.setDocumentAccessBridge((DocumentAccessBridge) mockDocumentAccessBridge.proxy());
+        personService.setQueryManager((QueryManager) mockQueryManager.proxy());
 
         // get the actual result
         CollectionOptions options = new CollectionOptions();
@@ -287,6 +275,7 @@ public class PersonServiceXWTest extends AbstractXWikiComponentTestCase
         assertEquals(jane.getId(), actualJane.getId());
         assertNotNull(actualJane.getName());
         assertEquals(jane.getName().getGivenName(), actualJane.getName().getGivenName());
+        assertEquals("Jane", actualJane.getNickname());
         Person actualJohn = people.get(1);
         assertEquals(john.getId(), actualJohn.getId());
         assertNotNull(actualJohn.getName());
@@ -306,52 +295,19 @@ public class PersonServiceXWTest extends AbstractXWikiComponentTestCase
 
         PersonServiceXW personService =
             (PersonServiceXW) getComponentManager().lookup(SocialServiceComponent.class, "PersonServiceXW");
-        // friend properties values
-        mockDocumentAccessBridge.expects(once()).method("getProperty").with(new IsEqual("XWiki.Jane"),
-            new IsEqual("XWiki.FriendClass"), new IsEqual(0), new IsEqual("friendName")).will(returnValue("XWiki.Bob"));
-        mockDocumentAccessBridge.expects(once()).method("getProperty").with(new IsEqual("XWiki.Jane"),
-            new IsEqual("XWiki.FriendClass"), new IsEqual(1), new IsEqual("friendName")).will(
-            returnValue("XWiki.Alice"));
-        mockDocumentAccessBridge.expects(once()).method("getProperty").with(new IsEqual("XWiki.Jane"),
-            new IsEqual("XWiki.FriendClass"), new IsEqual(2), new IsEqual("friendName")).will(returnValue(null));
-        // set values for Bob
-        mockDocumentAccessBridge.expects(once()).method("exists").with(new IsEqual("XWiki.Bob"))
-            .will(returnValue(true));
-        mockDocumentAccessBridge.expects(once()).method("getDocumentName").with(new IsEqual("XWiki.Bob")).will(
-            returnValue(new DocumentName("wiki", "XWiki", "Bob")));
-        mockDocumentAccessBridge.expects(once()).method("getProperty").with(new IsEqual("XWiki.Bob"),
-            new IsEqual("XWiki.XWikiUsers"), new IsEqual("first_name")).will(returnValue("Bob"));
-        // set values for Alice
-        mockDocumentAccessBridge.expects(once()).method("exists").with(new IsEqual("XWiki.Alice")).will(
-            returnValue(true));
-        mockDocumentAccessBridge.expects(once()).method("getDocumentName").with(new IsEqual("XWiki.Alice")).will(
-            returnValue(new DocumentName("wiki", "XWiki", "Alice")));
-        mockDocumentAccessBridge.expects(once()).method("getProperty").with(new IsEqual("XWiki.Alice"),
-            new IsEqual("XWiki.XWikiUsers"), new IsEqual("first_name")).will(returnValue("Alice"));
-        // unset values
-        mockDocumentAccessBridge.expects(exactly(2)).method("getProperty").with(new IsAnything(),
-            new IsEqual("XWiki.XWikiUsers"), new IsEqual("last_name")).will(returnValue("Doe"));
-        mockDocumentAccessBridge.expects(exactly(2)).method("getProperty").with(new IsAnything(),
-            new IsEqual("XWiki.XWikiUsers"), new IsEqual("avatar")).will(returnValue(null));
-        mockDocumentAccessBridge.expects(exactly(2)).method("getProperty").with(new IsAnything(),
-            new IsEqual("XWiki.XWikiUsers"), new IsEqual("blog")).will(returnValue(null));
-        mockDocumentAccessBridge.expects(exactly(2)).method("getProperty").with(new IsAnything(),
-            new IsEqual("XWiki.XWikiUsers"), new IsEqual("blogfeed")).will(returnValue(null));
-        mockDocumentAccessBridge.expects(exactly(2)).method("getProperty").with(new IsAnything(),
-            new IsEqual("XWiki.XWikiUsers"), new IsEqual("city")).will(returnValue(null));
-        mockDocumentAccessBridge.expects(exactly(2)).method("getProperty").with(new IsAnything(),
-            new IsEqual("XWiki.XWikiUsers"), new IsEqual("country")).will(returnValue(null));
-        mockDocumentAccessBridge.expects(exactly(2)).method("getProperty").with(new IsAnything(),
-            new IsEqual("XWiki.XWikiUsers"), new IsEqual("comment")).will(returnValue(null));
-        mockDocumentAccessBridge.expects(exactly(2)).method("getProperty").with(new IsAnything(),
-            new IsEqual("XWiki.XWikiUsers"), new IsEqual("company")).will(returnValue(null));
-        mockDocumentAccessBridge.expects(exactly(2)).method("getProperty").with(new IsAnything(),
-            new IsEqual("XWiki.XWikiUsers"), new IsEqual("email")).will(returnValue(null));
-        mockDocumentAccessBridge.expects(exactly(2)).method("getProperty").with(new IsAnything(),
-            new IsEqual("XWiki.XWikiUsers"), new IsEqual("imaccount")).will(returnValue(null));
-        mockDocumentAccessBridge.expects(exactly(2)).method("getProperty").with(new IsAnything(),
-            new IsEqual("XWiki.XWikiUsers"), new IsEqual("imtype")).will(returnValue(null));
+        // sorted friends
+        expectQuery("friend.className = :friendClass and friend.name in (:uid0) and friendName.id.id = friend.id"
+            + " and friendName.id.name = :friendProperty and doc.fullName = friendName.value and familyObj.name",
+            rows());
+        expectQuery("order by givenProp.value, friend.name, friend.number", rows(new Object[] {"XWiki.Alice",
+            "Alice"}, new Object[] {"XWiki.Bob", "Bob"}));
+        expectQuery(") order by friend.name, friend.number", rows());
+        // set values
+        expectQuery("from BaseObject as obj, StringProperty as prop", rows(new Object[] {"XWiki.Bob", "first_name",
+            "Bob"}, new Object[] {"XWiki.Alice", "first_name", "Alice"}));
+        expectQuery("from BaseObject as obj, LargeStringProperty as prop", rows());
         personService.setDocumentAccessBridge((DocumentAccessBridge) mockDocumentAccessBridge.proxy());
+        personService.setQueryManager((QueryManager) mockQueryManager.proxy());
 
         // get the actual result
         CollectionOptions options = new CollectionOptions();
@@ -366,7 +322,9 @@ public class PersonServiceXWTest extends AbstractXWikiComponentTestCase
         assertEquals(2, peopleCollection.getTotalResults());
         List<Person> actual_people = peopleCollection.getEntry();
         assertEquals("XWiki.Alice", actual_people.get(0).getId());
+        assertEquals("Alice", actual_people.get(0).getName().getGivenName());
         assertEquals("XWiki.Bob", actual_people.get(1).getId());
+        assertEquals("Bob", actual_people.get(1).getName().getGivenName());
     }
 
     /**
@@ -376,61 +334,62 @@ public class PersonServiceXWTest extends AbstractXWikiComponentTestCase
      */
     public void testGetPeopleSelfSortedByName() throws Exception
     {
-        Set<UserId> userIds = buildUserIds("XWiki.John", "XWiki.Jane", "XWiki.Alice");
+        Set<UserId> userIds =
+            buildUserIds("XWiki.Zoe", "XWiki.Jane", "XWiki.Adam", "XWiki.Carl", "XWiki.Alice", "XWiki.Nobody");
         GroupId groupId = new GroupId(GroupId.Type.self, null);
         SecurityToken token = new AnonymousSecurityToken();
 
         PersonServiceXW personService =
             (PersonServiceXW) getComponentManager().lookup(SocialServiceComponent.class, "PersonServiceXW");
-        // set values for Jane
-        mockDocumentAccessBridge.expects(once()).method("exists").with(new IsEqual("XWiki.Jane")).will(
-            returnValue(true));
-        mockDocumentAccessBridge.expects(once()).method("getDocumentName").with(new IsEqual("XWiki.Jane")).will(
-            returnValue(new DocumentName("wiki", "XWiki", "Jane")));
-        mockDocumentAccessBridge.expects(once()).method("getProperty").with(new IsEqual("XWiki.Jane"),
-            new IsEqual("XWiki.XWikiUsers"), new IsEqual("first_name")).will(returnValue("Jane"));
-        // set values for John
-        mockDocumentAccessBridge.expects(once()).method("exists").with(new IsEqual("XWiki.John")).will(
-            returnValue(true));
-        mockDocumentAccessBridge.expects(once()).method("getDocumentName").with(new IsEqual("XWiki.John")).will(
-            returnValue(new DocumentName("wiki", "XWiki", "John")));
-        mockDocumentAccessBridge.expects(once()).method("getProperty").with(new IsEqual("XWiki.John"),
-            new IsEqual("XWiki.XWikiUsers"), new IsEqual("first_name")).will(returnValue("John"));
-        // set values for Alice
-        mockDocumentAccessBridge.expects(once()).method("exists").with(new IsEqual("XWiki.Alice")).will(
-            returnValue(true));
-        mockDocumentAccessBridge.expects(once()).method("getDocumentName").with(new IsEqual("XWiki.Alice")).will(
-            returnValue(new DocumentName("wiki", "XWiki", "Alice")));
-        mockDocumentAccessBridge.expects(once()).method("getProperty").with(new IsEqual("XWiki.Alice"),
-            new IsEqual("XWiki.XWikiUsers"), new IsEqual("first_name")).will(returnValue("Alice"));
-        // unset values
-        mockDocumentAccessBridge.expects(exactly(3)).method("getProperty").with(new IsAnything(),
-            new IsEqual("XWiki.XWikiUsers"), new IsEqual("last_name")).will(returnValue("Doe"));
-        mockDocumentAccessBridge.expects(exactly(3)).method("getProperty").with(new IsAnything(),
-            new IsEqual("XWiki.XWikiUsers"), new IsEqual("avatar")).will(returnValue(null));
-        mockDocumentAccessBridge.expects(exactly(3)).method("getProperty").with(new IsAnything(),
-            new IsEqual("XWiki.XWikiUsers"), new IsEqual("blog")).will(returnValue(null));
-        mockDocumentAccessBridge.expects(exactly(3)).method("getProperty").with(new IsAnything(),
-            new IsEqual("XWiki.XWikiUsers"), new IsEqual("blogfeed")).will(returnValue(null));
-        mockDocumentAccessBridge.expects(exactly(3)).method("getProperty").with(new IsAnything(),
-            new IsEqual("XWiki.XWikiUsers"), new IsEqual("city")).will(returnValue(null));
-        mockDocumentAccessBridge.expects(exactly(3)).method("getProperty").with(new IsAnything(),
-            new IsEqual("XWiki.XWikiUsers"), new IsEqual("country")).will(returnValue(null));
-        mockDocumentAccessBridge.expects(exactly(3)).method("getProperty").with(new IsAnything(),
-            new IsEqual("XWiki.XWikiUsers"), new IsEqual("comment")).will(returnValue(null));
-        mockDocumentAccessBridge.expects(exactly(3)).method("getProperty").with(new IsAnything(),
-            new IsEqual("XWiki.XWikiUsers"), new IsEqual("company")).will(returnValue(null));
-        mockDocumentAccessBridge.expects(exactly(3)).method("getProperty").with(new IsAnything(),
-            new IsEqual("XWiki.XWikiUsers"), new IsEqual("email")).will(returnValue(null));
-        mockDocumentAccessBridge.expects(exactly(3)).method("getProperty").with(new IsAnything(),
-            new IsEqual("XWiki.XWikiUsers"), new IsEqual("imaccount")).will(returnValue(null));
-        mockDocumentAccessBridge.expects(exactly(3)).method("getProperty").with(new IsAnything(),
-            new IsEqual("XWiki.XWikiUsers"), new IsEqual("imtype")).will(returnValue(null));
+        expectNameSortedPeople(false);
+        personService.setDocumentAccessBridge((DocumentAccessBridge) mockDocumentAccessBridge.proxy());
+        personService.setQueryManager((QueryManager) mockQueryManager.proxy());
+
+        // get the actual result
+        CollectionOptions options = new CollectionOptions();
+        options.setSortBy("name");
+        options.setFirst(0);
+        options.setMax(20);
+        Future<RestfulCollection<Person>> actual =
+            personService.getPeople(userIds, groupId, options, Collections.<String> emptySet(), token);
+        RestfulCollection<Person> peopleCollection = actual.get();
+
+        // assert results: by family name then by given name, missing names last, like PersonXWComparator
+        assertEquals(6, peopleCollection.getTotalResults());
+        List<Person> people = peopleCollection.getEntry();
+        assertEquals("XWiki.Carl", people.get(0).getId());
+        assertEquals("XWiki.Jane", people.get(1).getId());
+        assertEquals("XWiki.Zoe", people.get(2).getId());
+        assertEquals("XWiki.Adam", people.get(3).getId());
+        assertEquals("XWiki.Alice", people.get(4).getId());
+        assertEquals("XWiki.Nobody", people.get(5).getId());
+        List<Person> sorted = new ArrayList<Person>(people);
+        Collections.sort(sorted, new PersonXWComparator(Person.Field.NAME, SortOrder.ascending));
+        assertEquals(sorted, people);
+    }
+
+    /**
+     * Test get sorted list by name in descending order
+     * 
+     * @throws Exception
+     */
+    public void testGetPeopleSelfSortedByNameDescending() throws Exception
+    {
+        Set<UserId> userIds =
+            buildUserIds("XWiki.Zoe", "XWiki.Jane", "XWiki.Adam", "XWiki.Carl", "XWiki.Alice", "XWiki.Nobody");
+        GroupId groupId = new GroupId(GroupId.Type.self, null);
+        SecurityToken token = new AnonymousSecurityToken();
+
+        PersonServiceXW personService =
+            (PersonServiceXW) getComponentManager().lookup(SocialServiceComponent.class, "PersonServiceXW");
+        expectNameSortedPeople(true);
         personService.setDocumentAccessBridge((DocumentAccessBridge) mockDocumentAccessBridge.proxy());
+        personService.setQueryManager((QueryManager) mockQueryManager.proxy());
 
         // get the actual result
         CollectionOptions options = new CollectionOptions();
         options.setSortBy("name");
+        options.setSortOrder(SortOrder.descending);
         options.setFirst(0);
         options.setMax(20);
         Future<RestfulCollection<Person>> actual =
@@ -438,11 +397,268 @@ public class PersonServiceXWTest extends AbstractXWikiComponentTestCase
         RestfulCollection<Person> peopleCollection = actual.get();
 
         // assert results
-        assertEquals(3, peopleCollection.getTotalResults());
+        assertEquals(6, peopleCollection.getTotalResults());
+        List<Person> people = peopleCollection.getEntry();
+        assertEquals("XWiki.Nobody", people.get(0).getId());
+        assertEquals("XWiki.Alice", people.get(1).getId());
+        assertEquals("XWiki.Adam", people.get(2).getId());
+        assertEquals("XWiki.Zoe", people.get(3).getId());
+        assertEquals("XWiki.Jane", people.get(4).getId());
+        assertEquals("XWiki.Carl", people.get(5).getId());
+        List<Person> sorted = new ArrayList<Person>(people);
+        Collections.sort(sorted, new PersonXWComparator(Person.Field.NAME, SortOrder.descending));
+        assertEquals(sorted, people);
+    }
+
+    /**
+     * Test that a page sorted by name may start in the middle of the users with the same family name
+     * 
+     * @throws Exception
+     */
+    public void testGetPeopleSelfSortedByNamePage() throws Exception
+    {
+        Set<UserId> userIds =
+            buildUserIds("XWiki.Zoe", "XWiki.Jane", "XWiki.Adam", "XWiki.Carl", "XWiki.Alice", "XWiki.Nobody");
+        GroupId groupId = new GroupId(GroupId.Type.self, null);
+        SecurityToken token = new AnonymousSecurityToken();
+
+        PersonServiceXW personService =
+            (PersonServiceXW) getComponentManager().lookup(SocialServiceComponent.class, "PersonServiceXW");
+        // the page is filled by the users with a family name
+        expectQuery("order by familyProp.value, secondProp.id.name, secondProp.value", rows(new Object[] {
+        "XWiki.Zoe", "Zoe"}, new Object[] {"XWiki.Adam", "Adam"}));
+        expectQuery("from BaseObject as obj, StringProperty as prop", rows());
+        expectQuery("from BaseObject as obj, LargeStringProperty as prop", rows());
+        personService.setDocumentAccessBridge((DocumentAccessBridge) mockDocumentAccessBridge.proxy());
+        personService.setQueryManager((QueryManager) mockQueryManager.proxy());
+
+        // get the actual result
+        CollectionOptions options = new CollectionOptions();
+        options.setSortBy("name");
+        options.setFirst(2);
+        options.setMax(2);
+        Future<RestfulCollection<Person>> actual =
+            personService.getPeople(userIds, groupId, options, Collections.<String> emptySet(), token);
+        RestfulCollection<Person> peopleCollection = actual.get();
+
+        // assert results
+        assertEquals(2, peopleCollection.getTotalResults());
+        List<Person> people = peopleCollection.getEntry();
+        assertEquals("XWiki.Zoe", people.get(0).getId());
+        assertEquals("XWiki.Adam", people.get(1).getId());
+    }
+
+    /**
+     * Test that a page sorted by name starting after the users with a family name counts them instead of loading them
+     * 
+     * @throws Exception
+     */
+    public void testGetPeopleSelfSortedByNamePageAfterFamilyNames() throws Exception
+    {
+        Set<UserId> userIds =
+            buildUserIds("XWiki.Zoe", "XWiki.Jane", "XWiki.Adam", "XWiki.Carl", "XWiki.Alice", "XWiki.Nobody");
+        GroupId groupId = new GroupId(GroupId.Type.self, null);
+        SecurityToken token = new AnonymousSecurityToken();
+
+        PersonServiceXW personService =
+            (PersonServiceXW) getComponentManager().lookup(SocialServiceComponent.class, "PersonServiceXW");
+        expectQuery("order by familyProp.value, secondProp.id.name, secondProp.value", rows());
+        expectQuery("select count(*) from XWikiDocument as doc, BaseObject as familyObj", Arrays.asList(4L));
+        expectQuery("order by givenProp.value", rows(new Object[] {"XWiki.Alice", "Alice"}));
+        expectQuery(") order by doc.fullName", rows(new Object[] {"XWiki.Nobody", "Nobody"}));
+        expectQuery("from BaseObject as obj, StringProperty as prop", rows());
+        expectQuery("from BaseObject as obj, LargeStringProperty as prop", rows());
+        personService.setDocumentAccessBridge((DocumentAccessBridge) mockDocumentAccessBridge.proxy());
+        personService.setQueryManager((QueryManager) mockQueryManager.proxy());
+
+        // get the actual result
+        CollectionOptions options = new CollectionOptions();
+        options.setSortBy("name");
+        options.setFirst(4);
+        options.setMax(2);
+        Future<RestfulCollection<Person>> actual =
+            personService.getPeople(userIds, groupId, options, Collections.<String> emptySet(), token);
+        RestfulCollection<Person> peopleCollection = actual.get();
+
+        // assert results
+        assertEquals(2, peopleCollection.getTotalResults());
         List<Person> people = peopleCollection.getEntry();
         assertEquals("XWiki.Alice", people.get(0).getId());
-        assertEquals("XWiki.Jane", people.get(1).getId());
-        assertEquals("XWiki.John", people.get(2).getId());
+        assertEquals("XWiki.Nobody", people.get(1).getId());
+    }
+
+    /**
+     * Test that no people are returned when none are requested
+     * 
+     * @throws Exception
+     */
+    public void testGetPeopleSelfMaxZero() throws Exception
+    {
+        Set<UserId> userIds = buildUserIds("XWiki.Jane");
+        GroupId groupId = new GroupId(GroupId.Type.self, null);
+        SecurityToken token = new AnonymousSecurityToken();
+
+        PersonServiceXW personService =
+            (PersonServiceXW) getComponentManager().lookup(SocialServiceComponent.class, "PersonServiceXW");
+        // only checks that the user exists
+        expectQuery("order by doc.fullName", rows(new Object[] {"XWiki.Jane", "Jane"}));
+        personService.setDocumentAccessBridge((DocumentAccessBridge) mockDocumentAccessBridge.proxy());
+        personService.setQueryManager((QueryManager) mockQueryManager.proxy());
+
+        // get the actual result
+        CollectionOptions options = new CollectionOptions();
+        options.setFirst(0);
+        options.setMax(0);
+        Future<RestfulCollection<Person>> actual =
+            personService.getPeople(userIds, groupId, options, Collections.<String> emptySet(), token);
+
+        // assert results
+        assertEquals(0, actual.get().getTotalResults());
+        assertTrue(actual.get().getEntry().isEmpty());
+    }
+
+    /**
+     * Test that a page starting after the last user starts from the first one, whether the users are sorted by the
+     * query or in memory
+     * 
+     * @throws Exception
+     */
+    public void testGetPeopleSelfFirstAfterLastPerson() throws Exception
+    {
+        Set<UserId> userIds = buildUserIds("XWiki.Jane", "XWiki.John");
+        GroupId groupId = new GroupId(GroupId.Type.self, null);
+        SecurityToken token = new AnonymousSecurityToken();
+
+        PersonServiceXW personService =
+            (PersonServiceXW) getComponentManager().lookup(SocialServiceComponent.class, "PersonServiceXW");
+        Mock mockQuery = mock(Query.class);
+        mockQuery.stubs().method("bindValue").will(returnValue(mockQuery.proxy()));
+        mockQuery.expects(once()).method("setOffset").with(eq(5)).will(returnValue(mockQuery.proxy()));
+        mockQuery.expects(once()).method("setOffset").with(eq(0)).will(returnValue(mockQuery.proxy()));
+        mockQuery.stubs().method("setLimit").will(returnValue(mockQuery.proxy()));
+        mockQuery.expects(exactly(2)).method("execute").will(
+            onConsecutiveCalls(returnValue(rows()), returnValue(rows(new Object[] {"XWiki.Jane", "Jane"},
+                new Object[] {"XWiki.John", "John"}))));
+        mockQueryManager.expects(exactly(2)).method("createQuery").with(stringContains("order by doc.name"),
+            eq(Query.HQL)).will(returnValue(mockQuery.proxy()));
+        expectQuery("from BaseObject as obj, StringProperty as prop", rows());
+        expectQuery("from BaseObject as obj, LargeStringProperty as prop", rows());
+        personService.setDocumentAccessBridge((DocumentAccessBridge) mockDocumentAccessBridge.proxy());
+        personService.setQueryManager((QueryManager) mockQueryManager.proxy());
+
+        // get the actual result
+        CollectionOptions options = new CollectionOptions();
+        options.setSortBy("nickname");
+        options.setFirst(5);
+        options.setMax(20);
+        Future<RestfulCollection<Person>> actual =
+            personService.getPeople(userIds, groupId, options, Collections.<String> emptySet(), token);
+        RestfulCollection<Person> peopleCollection = actual.get();
+
+        // assert results
+        assertEquals(2, peopleCollection.getTotalResults());
+        List<Person> people = peopleCollection.getEntry();
+        assertEquals("XWiki.Jane", people.get(0).getId());
+        assertEquals("XWiki.John", people.get(1).getId());
+    }
+
+    /**
+     * Test that only the properties of the requested fields are loaded, by batches.
+     * 
+     * @throws Exception
+     */
+    public void testGetPeopleFriendsRequestedFieldsByBatch() throws Exception
+    {
+        Set<UserId> userIds = buildUserIds("XWiki.Jane");
+        GroupId groupId = new GroupId(GroupId.Type.friends, null);
+        SecurityToken token = new AnonymousSecurityToken();
+
+        List<Object[]> friends = new ArrayList<Object[]>();
+        for (int i = 0; i < 250; ++i) {
+            friends.add(new Object[] {"XWiki.Friend" + i, "Friend" + i});
+        }
+
+        PersonServiceXW personService =
+            (PersonServiceXW) getComponentManager().lookup(SocialServiceComponent.class, "PersonServiceXW");
+        // friends in the order they were added
+        expectQuery("order by friend.name, friend.number", friends);
+        // only the name and email properties, no large string property
+        Mock mockQuery = mock(Query.class);
+        mockQuery.stubs().method("bindValue").will(returnValue(mockQuery.proxy()));
+        mockQuery.expects(exactly(3)).method("setOffset").with(eq(0)).will(returnValue(mockQuery.proxy()));
+        mockQuery.expects(exactly(3)).method("setLimit").with(eq(0)).will(returnValue(mockQuery.proxy()));
+        mockQuery.expects(exactly(3)).method("execute").will(
+            returnValue(rows(new Object[] {"XWiki.Friend42", "email", "friend42@xwiki.org"})));
+        mockQueryManager.expects(exactly(3)).method("createQuery").with(
+            stringContains("from BaseObject as obj, StringProperty as prop where obj.className = :userClass"
+                + " and obj.name in (:uid0, "), eq(Query.HQL)).will(returnValue(mockQuery.proxy()));
+        mockQuery.expects(exactly(3)).method("bindValue").with(eq("property0"), eq("email")).will(
+            returnValue(mockQuery.proxy()));
+        mockQuery.expects(exactly(3)).method("bindValue").with(eq("property1"), eq("first_name")).will(
+            returnValue(mockQuery.proxy()));
+        mockQuery.expects(exactly(3)).method("bindValue").with(eq("property2"), eq("last_name")).will(
+            returnValue(mockQuery.proxy()));
+        personService.setDocumentAccessBridge((DocumentAccessBridge) mockDocumentAccessBridge.proxy());
+        personService.setQueryManager((QueryManager) mockQueryManager.proxy());
+
+        // get the actual result
+        CollectionOptions options = new CollectionOptions();
+        options.setFirst(0);
+        options.setMax(-1);
+        Future<RestfulCollection<Person>> actual =
+            personService.getPeople(userIds, groupId, options, Sets.newHashSet("id", "emails"), token);
+        RestfulCollection<Person> peopleCollection = actual.get();
+
+        // assert results
+        assertEquals(250, peopleCollection.getTotalResults());
+        List<Person> people = peopleCollection.getEntry();
+        assertEquals("XWiki.Friend0", people.get(0).getId());
+        assertEquals("XWiki.Friend249", people.get(249).getId());
+        assertEquals("friend42@xwiki.org", people.get(42).getEmails().get(0).getValue());
+        assertNull(people.get(43).getEmails());
+    }
+
+    private void expectQuery(String statement, List< ? > rows)
+    {
+        Mock mockQuery = mock(Query.class);
+        mockQuery.stubs().method("bindValue").will(returnValue(mockQuery.proxy()));
+        mockQuery.stubs().method("setOffset").will(returnValue(mockQuery.proxy()));
+        mockQuery.stubs().method("setLimit").will(returnValue(mockQuery.proxy()));
+        mockQuery.expects(once()).method("execute").will(returnValue(rows));
+
+        mockQueryManager.expects(once()).method("createQuery").with(stringContains(statement), eq(Query.HQL)).will(
+            returnValue(mockQuery.proxy()));
+    }
+
+    /**
+     * Expect the queries selecting Zoe Doe, Jane Doe, Adam Doe who has no given name, Carl Brown who has no given
+     * name, Alice who has no family name and Nobody who has no name, and loading their names.
+     */
+    private void expectNameSortedPeople(boolean descending)
+    {
+        Object[] zoe = new Object[] {"XWiki.Zoe", "Zoe"};
+        Object[] jane = new Object[] {"XWiki.Jane", "Jane"};
+        Object[] adam = new Object[] {"XWiki.Adam", "Adam"};
+        Object[] carl = new Object[] {"XWiki.Carl", "Carl"};
+        if (descending) {
+            expectQuery("order by familyProp.value desc, secondProp.id.name desc, secondProp.value desc", rows(adam,
+                zoe, jane, carl));
+        } else {
+            expectQuery("order by familyProp.value, secondProp.id.name, secondProp.value", rows(carl, jane, zoe,
+                adam));
+        }
+        expectQuery("order by givenProp.value", rows(new Object[] {"XWiki.Alice", "Alice"}));
+        expectQuery(") order by doc.fullName", rows(new Object[] {"XWiki.Nobody", "Nobody"}));
+        expectQuery("from BaseObject as obj, StringProperty as prop", rows(new Object[] {"XWiki.Zoe", "first_name",
+            "Zoe"}, new Object[] {"XWiki.Zoe", "last_name", "Doe"}, new Object[] {"XWiki.Jane", "first_name", "Jane"},
+            new Object[] {"XWiki.Jane", "last_name", "Doe"}, new Object[] {"XWiki.Adam", "last_name", "Doe"},
+            new Object[] {"XWiki.Carl", "last_name", "Brown"}, new Object[] {"XWiki.Alice", "first_name", "Alice"}));
+        expectQuery("from BaseObject as obj, LargeStringProperty as prop", rows());
+    }
+
+    private static List<Object[]> rows(Object[]... rows)
+    {
+        return Arrays.asList(rows);
     }
 
     /*
@@ -104,6 +104,8 @@ public class PackageDoc extends Doc implements Comparable {
                 subPackages[i] = new PackageDoc(rootPackage, this.getPackageName(), null, spaceName, false, context);
             }
         }
+        if (context!=null)
+            prefetchPages(templates, context);
         List tlist = new ArrayList();
         for (int i=0;i < templates.size();i++) {
             TemplateDoc tdoc;
@@ -252,6 +254,21 @@ public class PackageDoc extends Doc implements Comparable {
         }
     }
 
+    /**
+     * Downloads the pages of the package at once instead of one by one when each template is read
+     */
+    private void prefetchPages(List pageNames, XWikiContext context) {
+        RemotePageCache cache = (RemotePageCache) context.get("velocidoc_pagecache");
+        if ((cache==null)||pageNames.isEmpty())
+            return;
+        try {
+            cache.prefetch(pageNames);
+        } catch (Exception e) {
+            System.err.println("Error fetching the pages of " + packageName + ": " + e.getMessage());
+            e.printStackTrace();
+        }
+    }
+
     private Collection getPageNames(String spaceName, XWikiContext context) {
         try {
             XWikiXmlRpcClient rpc  = (XWikiXmlRpcClient) context.get("velocidoc_xmlrpc");
@@ -0,0 +1,377 @@
+package net.sourceforge.velocidoc;
+
+import org.xwiki.xmlrpc.XWikiXmlRpcClient;
+import org.xwiki.xmlrpc.model.XWikiPage;
+import org.xwiki.xmlrpc.model.XWikiPageHistorySummary;
+
+import java.io.*;
+import java.security.MessageDigest;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Fetches the content of wiki pages over XML-RPC and keeps it in a cache directory keyed by page version,
+ * so a run only downloads the pages which changed since the previous one.
+ * The pages which changed are found with a single getModifiedPagesHistory query since the newest modification
+ * seen by the previous run, the pages are then downloaded in batches by several connections at once.
+ * The XML-RPC client serializes its calls, this is why every thread has its own logged in client.
+ *
+ * @version 0.1 alpha
+ */
+public class RemotePageCache {
+    /**
+     * Name of the file of the cache directory listing the cached pages
+     */
+    private static final String INDEX_FILE = "index.properties";
+
+    private static final String PAGE_PREFIX = "page.";
+
+    private static final String LAST_MODIFIED = "lastModified";
+
+    private static final String ENCODING = "UTF-8";
+
+    /**
+     * Number of history entries asked for per getModifiedPagesHistory call
+     */
+    private static final int HISTORY_PAGE_SIZE = 500;
+
+    private String xwikiURL;
+    private String xwikiUser;
+    private String xwikiPass;
+
+    /**
+     * Where the pages are kept between runs, or null to keep them in memory for this run only
+     */
+    private File cacheDir;
+
+    private int threads;
+    private int batchSize;
+
+    private ExecutorService executor;
+
+    /**
+     * Logged in clients which are not used by a batch at the moment
+     */
+    private BlockingQueue clients = new LinkedBlockingQueue();
+    private List allClients = new ArrayList();
+
+    /**
+     * Version of every cached page by page id
+     */
+    private Map versions = new HashMap();
+
+    /**
+     * Content of the pages fetched during this run when there is no cache directory
+     */
+    private Map contents = new HashMap();
+
+    /**
+     * Modification date of the newest change known when the cache was opened, null if unknown
+     */
+    private Date lastModified;
+
+    private int downloadCount = 0;
+
+    /**
+     * @param xwikiURL the XML-RPC URL of the wiki
+     * @param xwikiUser the user to log in with
+     * @param xwikiPass the password of the user
+     * @param cacheDir where to keep the pages between runs, null to only keep them in memory
+     * @param threads number of connections fetching pages at once
+     * @param batchSize number of pages fetched one after the other by a connection
+     */
+    public RemotePageCache(String xwikiURL, String xwikiUser, String xwikiPass, File cacheDir, int threads, int batchSize) {
+        this.xwikiURL = xwikiURL;
+        this.xwikiUser = xwikiUser;
+        this.xwikiPass = xwikiPass;
+        this.cacheDir = cacheDir;
+        this.threads = Math.max(1, threads);
+        this.batchSize = Math.max(1, batchSize);
+    }
+
+    /**
+     * Loads the index of the cache and asks the wiki which pages changed since the previous run
+     *
+     * @exception Exception Upon any type of error
+     */
+    public void open() throws Exception {
+        Date since = null;
+        Iterator it;
+        if (cacheDir!=null) {
+            cacheDir.mkdirs();
+            File indexFile = new File(cacheDir, INDEX_FILE);
+            if (indexFile.exists()) {
+                Properties index = new Properties();
+                InputStream is = new FileInputStream(indexFile);
+                try {
+                    index.load(is);
+                } finally {
+                    is.close();
+                }
+                it = index.entrySet().iterator();
+                while (it.hasNext()) {
+                    Map.Entry entry = (Map.Entry) it.next();
+                    String key = (String) entry.getKey();
+                    if (key.startsWith(PAGE_PREFIX))
+                        versions.put(key.substring(PAGE_PREFIX.length()), entry.getValue());
+                }
+                if (index.getProperty(LAST_MODIFIED)!=null)
+                    since = new Date(Long.parseLong(index.getProperty(LAST_MODIFIED)));
+            }
+        }
+
+        executor = Executors.newFixedThreadPool(threads);
+        XWikiXmlRpcClient rpc = borrowClient();
+        try {
+            if (since==null) {
+                // Nothing can be trusted without knowing when the cache was last synchronized
+                versions.clear();
+                List latest = rpc.getModifiedPagesHistory(new Integer(1), new Integer(0), Boolean.TRUE);
+                if (!latest.isEmpty())
+                    lastModified = ((XWikiPageHistorySummary) latest.get(0)).getModified();
+            } else {
+                lastModified = since;
+                Map changedVersions = new HashMap();
+                // The wiki dates only have seconds and the wiki only lists the changes after the given date, so a
+                // page saved in the same second as the newest change seen by the previous run would be missed.
+                // The changes are asked from the second before and kept from that change on, the changes already
+                // seen are then recognized by their version.
+                Date from = new Date(since.getTime() - 1000);
+                for (int start = 0; ; start += HISTORY_PAGE_SIZE) {
+                    List history = rpc.getModifiedPagesHistory(from, new Integer(HISTORY_PAGE_SIZE), new Integer(start), Boolean.FALSE);
+                    for (int i=0;i<history.size();i++) {
+                        XWikiPageHistorySummary change = (XWikiPageHistorySummary) history.get(i);
+                        if ((change.getModified()!=null)&&change.getModified().before(since))
+                            continue;
+                        String version = getVersion(change.getVersion(), change.getMinorVersion());
+                        String previous = (String) changedVersions.get(change.getBasePageId());
+                        if ((previous==null)||(compareVersions(version, previous)>0))
+                            changedVersions.put(change.getBasePageId(), version);
+                        if ((change.getModified()!=null)&&change.getModified().after(lastModified))
+                            lastModified = change.getModified();
+                    }
+                    if (history.size() < HISTORY_PAGE_SIZE)
+                        break;
+                }
+                // The changed pages are forgotten right away: the index saved by close() comes with the new
+                // lastModified, so a page which is not fetched during this run must not be listed in it
+                int changed = 0;
+                it = changedVersions.entrySet().iterator();
+                while (it.hasNext()) {
+                    Map.Entry entry = (Map.Entry) it.next();
+                    String cached = (String) versions.get(entry.getKey());
+                    if ((cached!=null)&&(compareVersions((String) entry.getValue(), cached)>0)) {
+                        versions.remove(entry.getKey());
+                        getContentFile((String) entry.getKey(), cached).delete();
+                        changed++;
+                    }
+                }
+                System.out.println(changed + " cached pages changed since " + since);
+            }
+        } finally {
+            clients.add(rpc);
+        }
+    }
+
+    /**
+     * Makes sure the given pages are in the cache, downloading the missing ones in concurrent batches
+     *
+     * @param pageIds the ids of the pages
+     * @exception Exception Upon any type of error
+     */
+    public void prefetch(Collection pageIds) throws Exception {
+        List missing = new ArrayList();
+        Iterator it = pageIds.iterator();
+        while (it.hasNext()) {
+            String pageId = (String) it.next();
+            if (needsFetch(pageId))
+                missing.add(pageId);
+        }
+        if (missing.isEmpty())
+            return;
+
+        System.out.println("Fetching " + missing.size() + " of " + pageIds.size() + " pages");
+        List batches = new ArrayList();
+        for (int i=0;i<missing.size();i+=batchSize) {
+            final List batch = missing.subList(i, Math.min(i + batchSize, missing.size()));
+            batches.add(executor.submit(new Callable() {
+                public Object call() throws Exception {
+                    fetch(batch);
+                    return null;
+                }
+            }));
+        }
+        for (int i=0;i<batches.size();i++) {
+            try {
+                ((Future) batches.get(i)).get();
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof Exception)
+                    throw (Exception) e.getCause();
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * Returns the content of a page, from the cache if it did not change since it was cached
+     *
+     * @param pageId the id of the page
+     * @return the content of the page
+     * @exception Exception Upon any type of error
+     */
+    public String getContent(String pageId) throws Exception {
+        if (needsFetch(pageId))
+            prefetch(Collections.singletonList(pageId));
+        if (cacheDir==null) {
+            synchronized (this) {
+                return (String) contents.get(pageId);
+            }
+        }
+        Reader reader = new InputStreamReader(new FileInputStream(getContentFile(pageId, getCachedVersion(pageId))), ENCODING);
+        try {
+            StringBuffer content = new StringBuffer();
+            char[] buffer = new char[8192];
+            int read;
+            while ((read = reader.read(buffer)) != -1) {
+                content.append(buffer, 0, read);
+            }
+            return content.toString();
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * Saves the index of the cache and logs out
+     *
+     * @exception Exception Upon any type of error
+     */
+    public void close() throws Exception {
+        try {
+            if (cacheDir!=null) {
+                Properties index = new Properties();
+                synchronized (this) {
+                    Iterator it = versions.entrySet().iterator();
+                    while (it.hasNext()) {
+                        Map.Entry entry = (Map.Entry) it.next();
+                        index.setProperty(PAGE_PREFIX + entry.getKey(), (String) entry.getValue());
+                    }
+                }
+                if (lastModified!=null)
+                    index.setProperty(LAST_MODIFIED, String.valueOf(lastModified.getTime()));
+                OutputStream os = new FileOutputStream(new File(cacheDir, INDEX_FILE));
+                try {
+                    index.store(os, "Velocidoc page cache");
+                } finally {
+                    os.close();
+                }
+            }
+        } finally {
+            if (executor!=null)
+                executor.shutdownNow();
+            for (int i=0;i<allClients.size();i++) {
+                try {
+                    ((XWikiXmlRpcClient) allClients.get(i)).logout();
+                } catch (Exception e) {
+                    // the session expires anyway
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the number of pages downloaded since the cache was opened
+     */
+    public synchronized int getDownloadCount() {
+        return downloadCount;
+    }
+
+    private synchronized String getCachedVersion(String pageId) {
+        return (String) versions.get(pageId);
+    }
+
+    private boolean needsFetch(String pageId) throws Exception {
+        if (!isCached(pageId))
+            return true;
+        // The content file may have been removed from the cache directory
+        return (cacheDir!=null)&&!getContentFile(pageId, getCachedVersion(pageId)).exists();
+    }
+
+    private synchronized boolean isCached(String pageId) {
+        return versions.containsKey(pageId);
+    }
+
+    private void fetch(List pageIds) throws Exception {
+        XWikiXmlRpcClient rpc = borrowClient();
+        try {
+            for (int i=0;i<pageIds.size();i++) {
+                String pageId = (String) pageIds.get(i);
+                XWikiPage page = rpc.getPage(pageId);
+                String version = getVersion(page.getVersion(), page.getMinorVersion());
+                String content = (page.getContent()==null) ? "" : page.getContent();
+                if (cacheDir!=null) {
+                    Writer writer = new OutputStreamWriter(new FileOutputStream(getContentFile(pageId, version)), ENCODING);
+                    try {
+                        writer.write(content);
+                    } finally {
+                        writer.close();
+                    }
+                }
+                String previous;
+                synchronized (this) {
+                    previous = (String) versions.put(pageId, version);
+                    if (cacheDir==null)
+                        contents.put(pageId, content);
+                    downloadCount++;
+                }
+                if ((cacheDir!=null)&&(previous!=null)&&!previous.equals(version))
+                    getContentFile(pageId, previous).delete();
+            }
+        } finally {
+            clients.add(rpc);
+        }
+    }
+
+    /**
+     * Takes an idle client, or logs in a new one if every thread does not have one yet
+     */
+    private XWikiXmlRpcClient borrowClient() throws Exception {
+        XWikiXmlRpcClient rpc = (XWikiXmlRpcClient) clients.poll();
+        if (rpc!=null)
+            return rpc;
+        synchronized (allClients) {
+            if (allClients.size() < threads) {
+                rpc = new XWikiXmlRpcClient(xwikiURL);
+                rpc.login(xwikiUser, xwikiPass);
+                allClients.add(rpc);
+                return rpc;
+            }
+        }
+        return (XWikiXmlRpcClient) clients.take();
+    }
+
+    private File getContentFile(String pageId, String version) throws Exception {
+        // Page ids are hashed as they may only differ by case or contain characters not allowed in file names
+        MessageDigest digest = MessageDigest.getInstance("SHA-1");
+        byte[] hash = digest.digest(pageId.getBytes(ENCODING));
+        StringBuffer name = new StringBuffer();
+        for (int i=0;i<hash.length;i++) {
+            name.append(Character.forDigit((hash[i] >> 4) & 0xf, 16)).append(Character.forDigit(hash[i] & 0xf, 16));
+        }
+        name.append('-').append(version).append(".txt");
+        return new File(cacheDir, name.toString());
+    }
+
+    private static String getVersion(int version, int minorVersion) {
+        return version + "." + minorVersion;
+    }
+
+    private static int compareVersions(String v1, String v2) {
+        int dot1 = v1.indexOf('.');
+        int dot2 = v2.indexOf('.');
+        int major = Integer.parseInt(v1.substring(0, dot1)) - Integer.parseInt(v2.substring(0, dot2));
+        if (major!=0)
+            return major;
+        return Integer.parseInt(v1.substring(dot1 + 1)) - Integer.parseInt(v2.substring(dot2 + 1));
+    }
+}
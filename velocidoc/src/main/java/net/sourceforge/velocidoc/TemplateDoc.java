@@ -115,6 +115,16 @@ public class TemplateDoc extends Doc implements Comparable {
     }
 
     private InputStream getContentInputStream(String pageName, XWikiContext context) throws IOException, XWikiException {
+        RemotePageCache cache = (RemotePageCache) context.get("velocidoc_pagecache");
+        if (cache!=null) {
+            try {
+                return new ByteArrayInputStream(cache.getContent(pageName).getBytes());
+            } catch (Exception e) {
+                System.err.println("Cannot read " + pageName);
+                e.printStackTrace();
+                return null;
+            }
+        }
         XWikiXmlRpcClient rpc  = (XWikiXmlRpcClient) context.get("velocidoc_xmlrpc");
         if (rpc!=null) {
             try {
@@ -1,7 +1,6 @@
 package net.sourceforge.velocidoc;
 
 import org.apache.velocity.*;
-import org.apache.velocity.texen.Generator;
 
 import org.apache.velocity.app.*;
 import org.apache.commons.lang.StringUtils;
@@ -42,6 +41,10 @@ public class Velocidoc {
     private List spaceList;
     private XWikiContext context;
     private boolean debug = false;
+    private int threads = 0;
+    private String cacheDir = null;
+    private int fetchThreads = 4;
+    private int fetchBatchSize = 20;
 
     /**
      * default constructor, does nothing
@@ -79,6 +82,22 @@ public class Velocidoc {
      * @exception Exception Upon any type of error
      */
     public File generate() throws Exception {
+        RootDoc rootDoc = createRootDoc();
+
+        File outputDirectory;
+        if ((this.outputDir==null)||isZip()) {
+            outputDirectory = getTempDir();
+        } else {
+            outputDirectory = new File(this.outputDir);
+        }
+        return generate(rootDoc, outputDirectory);
+    }
+
+    /**
+     * Reads the templates from the source directory or from the wiki
+     * @exception Exception Upon any type of error
+     */
+    private RootDoc createRootDoc() throws Exception {
         File sourceDirectory = null;
         if (sourceDir==null) {
             if (context==null)
@@ -88,21 +107,27 @@ public class Velocidoc {
                 XWikiXmlRpcClient rpc  = new XWikiXmlRpcClient(xwikiURL);
                 rpc.login(xwikiUser, xwikiPass);
                 context.put("velocidoc_xmlrpc", rpc);
+                // the page contents are fetched in batches and cached between runs
+                RemotePageCache cache = new RemotePageCache(xwikiURL, xwikiUser, xwikiPass,
+                        (cacheDir==null) ? null : new File(cacheDir), fetchThreads, fetchBatchSize);
+                cache.open();
+                context.put("velocidoc_pagecache", cache);
             }
             if (getSpaceList()!=null)
                context.put("spaces", getSpaceList());
         } else {
             sourceDirectory = new File(this.sourceDir);
         }
-        RootDoc rootDoc = new RootDoc(sourceDirectory, this.defaultName, context);
-
-        File outputDirectory;
-        if ((this.outputDir==null)||isZip()) {
-            outputDirectory = getTempDir();
-        } else {
-            outputDirectory = new File(this.outputDir);
+        RemotePageCache cache = (context==null) ? null : (RemotePageCache) context.get("velocidoc_pagecache");
+        try {
+            return new RootDoc(sourceDirectory, this.defaultName, context);
+        } finally {
+            if (cache!=null) {
+                context.remove("velocidoc_pagecache");
+                System.out.println("Downloaded " + cache.getDownloadCount() + " pages");
+                cache.close();
+            }
         }
-        return generate(rootDoc, outputDirectory);
     }
 
 
@@ -112,56 +137,43 @@ public class Velocidoc {
      * @exception Exception Upon any type of error
      */
     public void generateZipFile() throws Exception {
-        byte[] zipdata = generateZip();
-
         System.out.println("Saving zip to file: " + outputDir);
         File outputFile = new File(outputDir);
-        FileOutputStream fos = new FileOutputStream(outputFile);
-        fos.write(zipdata);
-        fos.close();
+        OutputStream os = new BufferedOutputStream(new FileOutputStream(outputFile));
+        try {
+            generateZip(os);
+        } finally {
+            os.close();
+        }
     }
+
     /**
      * Generates the documentation with a File System Root Doc to a ZIP file
+     * The whole archive is held in memory, use {@link #generateZip(OutputStream)} for large documentations
      *
      * @exception Exception Upon any type of error
      */
     public byte[] generateZip() throws Exception {
-        File outputDirectory = generate();
-
-        System.out.println("Generating zip from directory: " + outputDirectory.getName());
-        // And now make a zip
         ByteArrayOutputStream baos = new ByteArrayOutputStream();
-        ZipOutputStream zos = new ZipOutputStream(baos);
-        addDirectory(zos, outputDirectory);
-        zos.close();
+        generateZip(baos);
         return baos.toByteArray();
     }
 
-    private void addDirectory(ZipOutputStream zos, File outputDirectory) throws Exception {
-        // Create a buffer for reading the files
-        byte[] buf = new byte[4096];
-        // List the files in the directory
-        File[] fileList = outputDirectory.listFiles();
-
-        if (fileList!=null) {
-            for (int i=0;i<fileList.length;i++) {
-                File fileItem = fileList[i];
-                FileInputStream in = new FileInputStream(fileItem);
-
-                // Add ZIP entry to output stream.
-                zos.putNextEntry(new ZipEntry(fileItem.getName()));
-
-                // Transfer bytes from the file to the ZIP file
-                int len;
-                while ((len = in.read(buf)) > 0) {
-                    zos.write(buf, 0, len);
-                }
+    /**
+     * Generates the documentation to a ZIP stream.
+     * Each page is written to the stream as soon as it is rendered.
+     * The stream is not closed.
+     *
+     * @param out where to write the ZIP to
+     * @exception Exception Upon any type of error
+     */
+    public void generateZip(OutputStream out) throws Exception {
+        RootDoc rootDoc = createRootDoc();
 
-                // Complete the entry
-                zos.closeEntry();
-                in.close();
-            }
-        }
+        System.out.println("Generating zip");
+        ZipOutputStream zos = new ZipOutputStream(out);
+        generate(rootDoc, null, zos);
+        zos.finish();
     }
 
     /**
@@ -182,7 +194,18 @@ public class Velocidoc {
      * @param outputDirectory Where to output the HTML to
      **/ 
     public File generate(RootDoc rootDoc, File outputDirectory) throws Exception {
-        Generator gen = null;
+        return generate(rootDoc, outputDirectory, null);
+    }
+
+    /**
+     * Generates the documentation
+     *
+     * @param rootDoc rootDoc to start generation with
+     * @param outputDirectory Where to output the HTML to, not used when writing to a zip
+     * @param zip Where to output the HTML to, or null to write to the output directory
+     **/
+    private File generate(RootDoc rootDoc, File outputDirectory, ZipOutputStream zip) throws Exception {
+        VelocidocGenerator gen = null;
         try {
             Properties p = new Properties();
             p.setProperty("resource.loader", "class");
@@ -190,9 +213,10 @@ public class Velocidoc {
             p.setProperty("class.resource.loader.class","org.apache.velocity.runtime.resource.loader.ClasspathResourceLoader");
             p.setProperty("velocimacro.permissions.allowInline","true");
             Velocity.init(p);
-            gen = Generator.getInstance();
+            gen = new VelocidocGenerator(zip, threads);
 
-            gen.setOutputPath(outputDirectory.getAbsolutePath());
+            if (outputDirectory!=null)
+                gen.setOutputPath(outputDirectory.getAbsolutePath());
             //log.debug("outputDir:" + outputDirectory.getAbsolutePath());
             gen.setTemplatePath("/");
             gen.setVelocityEngine(new VelocityEngine(p));
@@ -201,6 +225,7 @@ public class Velocidoc {
             vcontext.put("rootDoc", rootDoc);
             System.out.println("Control file: " + controlFile);
             String s = gen.parse(controlFile, vcontext);
+            gen.finish();
             System.out.println(s);
             return outputDirectory;
         } finally {
@@ -233,6 +258,12 @@ public class Velocidoc {
                 compiler.setSpaceList(args[i+1]);
             } else if (a.equals("-z")) {
                 compiler.setZip(true);
+            } else if (a.equals("-t")) {
+                compiler.setThreads(Integer.parseInt(args[i+1]));
+            } else if (a.equals("-cache")) {
+                compiler.setCacheDir(args[i+1]);
+            } else if (a.equals("-ft")) {
+                compiler.setFetchThreads(Integer.parseInt(args[i+1]));
             } else if (a.equals("-h")) {
                 printUsage();
                 System.exit(0);
@@ -300,6 +331,9 @@ public class Velocidoc {
         StringBuffer sb = new StringBuffer();
         sb.append("\n\nUsage:");
         sb.append("\n  Velocidoc -src <sourcedirorurl> -dst <destdirorfile> -z -user <xwikiuser> -pass <xwikipass>");
+        sb.append("\n  -t <threads> renders the pages in parallel");
+        sb.append("\n  -cache <dir> keeps the wiki pages between runs, only the changed ones are downloaded");
+        sb.append("\n  -ft <threads> number of connections fetching the wiki pages, 4 by default");
         System.err.println(sb);
     }
     /**
@@ -350,6 +384,50 @@ public class Velocidoc {
         return this.zip;
     }
 
+    /**
+     * @param threads the number of threads rendering the pages, 0 to render them in the calling thread
+     */
+    public void setThreads(int threads) {
+        this.threads = threads;
+    }
+
+    public int getThreads() {
+        return this.threads;
+    }
+
+    /**
+     * @param cacheDir where to keep the wiki pages between runs, null to download all of them every time
+     */
+    public void setCacheDir(String cacheDir) {
+        this.cacheDir = cacheDir;
+    }
+
+    public String getCacheDir() {
+        return this.cacheDir;
+    }
+
+    /**
+     * @param fetchThreads the number of connections fetching the wiki pages at once
+     */
+    public void setFetchThreads(int fetchThreads) {
+        this.fetchThreads = fetchThreads;
+    }
+
+    public int getFetchThreads() {
+        return this.fetchThreads;
+    }
+
+    /**
+     * @param fetchBatchSize the number of wiki pages fetched one after the other by a connection
+     */
+    public void setFetchBatchSize(int fetchBatchSize) {
+        this.fetchBatchSize = fetchBatchSize;
+    }
+
+    public int getFetchBatchSize() {
+        return this.fetchBatchSize;
+    }
+
     public String getXwikiUser() {
         return xwikiUser;
     }
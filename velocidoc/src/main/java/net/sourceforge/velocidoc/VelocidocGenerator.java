@@ -0,0 +1,236 @@
+package net.sourceforge.velocidoc;
+
+import org.apache.velocity.Template;
+import org.apache.velocity.VelocityContext;
+import org.apache.velocity.context.AbstractContext;
+import org.apache.velocity.context.Context;
+import org.apache.velocity.texen.Generator;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Texen generator used by Velocidoc.
+ * When a zip stream is given, every page is written as an entry of the zip as soon as it is rendered
+ * instead of being written to the output directory.
+ * When an executor is given, the pages are rendered in parallel and written in the order the control
+ * template asked for them, so the output is the same as with a single thread.
+ *
+ * @version 0.1 alpha
+ */
+public class VelocidocGenerator extends Generator {
+    /**
+     * Number of rendered pages per thread that may wait to be written
+     */
+    private static final int PAGES_IN_FLIGHT_PER_THREAD = 4;
+
+    /**
+     * A page which is being rendered by the executor
+     */
+    private static class PendingPage {
+        String outputFile;
+        Future content;
+
+        PendingPage(String outputFile, Future content) {
+            this.outputFile = outputFile;
+            this.content = content;
+        }
+    }
+
+    /**
+     * The zip to write the pages to, or null to write them to the output directory
+     */
+    private ZipOutputStream zip;
+
+    /**
+     * The executor rendering the pages, or null to render them in the calling thread
+     */
+    private ExecutorService executor;
+
+    private int maxPagesInFlight;
+
+    /**
+     * The context of the control template, captured because the one of Generator is private
+     */
+    private Context controlContext;
+
+    private LinkedList pendingPages = new LinkedList();
+
+    /**
+     * The pages which were already written
+     */
+    private Set writtenPages = new HashSet();
+
+    /**
+     * @param zip the zip to write the pages to, or null to write them to the output directory
+     * @param threads the number of threads rendering the pages, 0 or less to render them in the calling thread
+     */
+    public VelocidocGenerator(ZipOutputStream zip, int threads) {
+        super(new Properties());
+        setDefaultProps();
+        this.zip = zip;
+        if (threads > 0) {
+            this.executor = Executors.newFixedThreadPool(threads);
+            this.maxPagesInFlight = threads * PAGES_IN_FLIGHT_PER_THREAD;
+        }
+    }
+
+    /**
+     * @see Generator#parse(String, Context)
+     */
+    public String parse(String controlTemplate, Context controlContext) throws Exception {
+        this.controlContext = controlContext;
+        return super.parse(controlTemplate, controlContext);
+    }
+
+    /**
+     * @see Generator#fillContextDefaults(Context)
+     */
+    protected void fillContextDefaults(Context context) {
+        super.fillContextDefaults(context);
+        // Generator puts its singleton in the context, the pages must be parsed by this instance
+        context.put("generator", this);
+    }
+
+    /**
+     * @see Generator#parse(String, String, String, String, String, Object)
+     */
+    public String parse(String inputTemplate, String inputEncoding, String outputFile, String outputEncoding,
+                        String objectID, Object object) throws Exception {
+        if ((outputFile == null) || outputFile.equals("") || ((zip == null) && (executor == null))) {
+            return super.parse(inputTemplate, inputEncoding, outputFile, outputEncoding, objectID, object);
+        }
+
+        final Template template = getTemplate(inputTemplate, (inputEncoding != null) ? inputEncoding : this.inputEncoding);
+        final String encoding = (outputEncoding != null) ? outputEncoding : this.outputEncoding;
+        // The page gets a copy of the control context as it is now: the control template goes on changing it,
+        // its #foreach variables included, while the page is rendered by another thread
+        final VelocityContext pageContext = new VelocityContext();
+        copyContext(controlContext, pageContext);
+        if ((objectID != null) && (object != null)) {
+            // As Generator does, the control template sees the object as well
+            controlContext.put(objectID, object);
+            pageContext.put(objectID, object);
+        }
+
+        if (executor == null) {
+            // Render straight into the zip entry
+            if (startPage(outputFile)) {
+                Writer writer = getWriter(new FilterOutputStream(zip) {
+                    public void write(byte[] b, int off, int len) throws IOException {
+                        out.write(b, off, len);
+                    }
+
+                    public void close() throws IOException {
+                        // Only the entry is closed
+                        flush();
+                    }
+                }, encoding);
+                template.merge(pageContext, writer);
+                writer.close();
+                zip.closeEntry();
+            }
+        } else {
+            pendingPages.add(new PendingPage(outputFile, executor.submit(new Callable() {
+                public Object call() throws Exception {
+                    ByteArrayOutputStream content = new ByteArrayOutputStream();
+                    Writer writer = getWriter(content, encoding);
+                    template.merge(pageContext, writer);
+                    writer.close();
+                    return content.toByteArray();
+                }
+            })));
+            while (pendingPages.size() > maxPagesInFlight) {
+                writeNextPendingPage();
+            }
+        }
+        return "";
+    }
+
+    /**
+     * Copies the values of a context, those of the contexts it is chained to included, to another context
+     */
+    private static void copyContext(Context from, Context to) {
+        if (from instanceof AbstractContext) {
+            Context chained = ((AbstractContext) from).getChainedContext();
+            if (chained != null) {
+                copyContext(chained, to);
+            }
+        }
+        Object[] keys = from.getKeys();
+        for (int i = 0; i < keys.length; i++) {
+            to.put((String) keys[i], from.get((String) keys[i]));
+        }
+    }
+
+    private Writer getWriter(OutputStream out, String encoding) throws UnsupportedEncodingException {
+        // Same encodings as Generator#getWriter
+        if ((encoding == null) || (encoding.length() == 0) || encoding.equals("8859-1") || encoding.equals("8859_1")) {
+            return new BufferedWriter(new OutputStreamWriter(out));
+        }
+        return new BufferedWriter(new OutputStreamWriter(out, encoding));
+    }
+
+    /**
+     * Starts a zip entry for a page
+     *
+     * @return false if a page with the same name was already written, zip entries can't be appended to
+     */
+    private boolean startPage(String outputFile) throws IOException {
+        if (!writtenPages.add(outputFile)) {
+            System.err.println("Skipping duplicate page: " + outputFile);
+            return false;
+        }
+        zip.putNextEntry(new ZipEntry(outputFile));
+        return true;
+    }
+
+    private void writeNextPendingPage() throws Exception {
+        PendingPage page = (PendingPage) pendingPages.removeFirst();
+        byte[] content;
+        try {
+            content = (byte[]) page.content.get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof Exception)
+                throw (Exception) e.getCause();
+            throw e;
+        }
+        if (zip != null) {
+            if (startPage(page.outputFile)) {
+                zip.write(content);
+                zip.closeEntry();
+            }
+        } else {
+            // Like the writers of Generator, a page which is generated twice is appended to
+            File file = new File(getOutputPath(), page.outputFile);
+            FileOutputStream fos = new FileOutputStream(file, !writtenPages.add(page.outputFile));
+            try {
+                fos.write(content);
+            } finally {
+                fos.close();
+            }
+        }
+    }
+
+    /**
+     * Writes the pages which are still being rendered, to be called once the control template is parsed
+     */
+    public void finish() throws Exception {
+        while (!pendingPages.isEmpty()) {
+            writeNextPendingPage();
+        }
+    }
+
+    /**
+     * @see Generator#shutdown()
+     */
+    public void shutdown() {
+        if (executor != null) {
+            executor.shutdownNow();
+        }
+        super.shutdown();
+    }
+}
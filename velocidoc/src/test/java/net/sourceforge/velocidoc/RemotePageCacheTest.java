@@ -0,0 +1,234 @@
+package net.sourceforge.velocidoc;
+
+import org.apache.xmlrpc.server.PropertyHandlerMapping;
+import org.apache.xmlrpc.webserver.WebServer;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.*;
+
+/**
+ * Runs the page cache against an in-process stand-in of the XWiki XML-RPC API.
+ */
+public class RemotePageCacheTest {
+    private static final int PAGES = 50;
+
+    /**
+     * The wiki served by the stand-in, shared as the XML-RPC server creates a handler per request
+     */
+    static class Wiki {
+        Map contents = new TreeMap();
+        Map versions = new HashMap();
+        Map modified = new HashMap();
+        int pageRequests = 0;
+        int logins = 0;
+        long now = 1199145600000L;
+
+        synchronized void store(String pageId, String content) {
+            // one minute apart, XML-RPC dates only have seconds
+            now += 60000;
+            storeInSameSecond(pageId, content);
+        }
+
+        /**
+         * Stores a page in the same second as the previous one, the wiki dates only have seconds
+         */
+        synchronized void storeInSameSecond(String pageId, String content) {
+            Integer version = (Integer) versions.get(pageId);
+            versions.put(pageId, new Integer((version==null) ? 1 : version.intValue() + 1));
+            contents.put(pageId, content);
+            modified.put(pageId, new Date(now));
+        }
+    }
+
+    static Wiki wiki;
+
+    /**
+     * The stand-in for the confluence1 handler of XWiki, only the methods used by the cache
+     */
+    public static class StandIn {
+        public String login(String user, String pass) {
+            synchronized (wiki) {
+                wiki.logins++;
+            }
+            return "token-" + user;
+        }
+
+        public boolean logout(String token) {
+            return true;
+        }
+
+        public Map getPage(String token, String pageId) {
+            synchronized (wiki) {
+                wiki.pageRequests++;
+                Map page = new HashMap();
+                page.put("id", pageId);
+                page.put("space", pageId.substring(0, pageId.indexOf('.')));
+                page.put("title", pageId.substring(pageId.indexOf('.') + 1));
+                page.put("content", wiki.contents.get(pageId));
+                page.put("version", wiki.versions.get(pageId));
+                page.put("minorVersion", new Integer(1));
+                page.put("modified", wiki.modified.get(pageId));
+                return page;
+            }
+        }
+
+        public Object[] getModifiedPagesHistory(String token, Date date, int numberOfResults, int start, boolean fromLatest) {
+            synchronized (wiki) {
+                List changes = new ArrayList();
+                Iterator it = wiki.modified.entrySet().iterator();
+                while (it.hasNext()) {
+                    Map.Entry entry = (Map.Entry) it.next();
+                    if (((Date) entry.getValue()).after(date)) {
+                        Map change = new HashMap();
+                        change.put("id", entry.getKey() + "?minorVersion=1&version=" + wiki.versions.get(entry.getKey()));
+                        change.put("version", wiki.versions.get(entry.getKey()));
+                        change.put("minorVersion", new Integer(1));
+                        change.put("modified", entry.getValue());
+                        change.put("modifier", "XWiki.Admin");
+                        changes.add(change);
+                    }
+                }
+                Collections.sort(changes, new Comparator() {
+                    public int compare(Object o1, Object o2) {
+                        return ((Date) ((Map) o1).get("modified")).compareTo((Date) ((Map) o2).get("modified"));
+                    }
+                });
+                if (fromLatest)
+                    Collections.reverse(changes);
+                int end = Math.min(changes.size(), start + numberOfResults);
+                return (start < end) ? changes.subList(start, end).toArray() : new Object[0];
+            }
+        }
+    }
+
+    private WebServer server;
+    private String url;
+    private File cacheDir;
+
+    @Before
+    public void setUp() throws Exception {
+        wiki = new Wiki();
+        for (int i=0;i<PAGES;i++) {
+            wiki.store("Macros.Page" + i, "#macro(page" + i + ")version 1#end");
+        }
+        server = new WebServer(0);
+        PropertyHandlerMapping mapping = new PropertyHandlerMapping();
+        mapping.addHandler("confluence1", StandIn.class);
+        server.getXmlRpcServer().setHandlerMapping(mapping);
+        server.start();
+        url = "http://localhost:" + server.getPort() + "/xmlrpc";
+        cacheDir = File.createTempFile("velocidoc", "cache");
+        cacheDir.delete();
+    }
+
+    @After
+    public void tearDown() {
+        server.shutdown();
+        File[] files = cacheDir.listFiles();
+        for (int i=0;(files!=null)&&(i<files.length);i++) {
+            files[i].delete();
+        }
+        cacheDir.delete();
+    }
+
+    private RemotePageCache open(File dir) throws Exception {
+        RemotePageCache cache = new RemotePageCache(url, "Admin", "admin", dir, 4, 5);
+        cache.open();
+        return cache;
+    }
+
+    @Test
+    public void testOnlyChangedPagesAreDownloadedAgain() throws Exception {
+        RemotePageCache cache = open(cacheDir);
+        cache.prefetch(new ArrayList(wiki.contents.keySet()));
+        Assert.assertEquals(PAGES, cache.getDownloadCount());
+        Assert.assertEquals("#macro(page7)version 1#end", cache.getContent("Macros.Page7"));
+        cache.close();
+
+        wiki.store("Macros.Page7", "#macro(page7)version 2#end");
+        wiki.store("Macros.Page42", "#macro(page42)version 2#end");
+        wiki.pageRequests = 0;
+
+        cache = open(cacheDir);
+        cache.prefetch(new ArrayList(wiki.contents.keySet()));
+        Assert.assertEquals(2, cache.getDownloadCount());
+        Assert.assertEquals(2, wiki.pageRequests);
+        Assert.assertEquals("#macro(page7)version 2#end", cache.getContent("Macros.Page7"));
+        Assert.assertEquals("#macro(page42)version 2#end", cache.getContent("Macros.Page42"));
+        Assert.assertEquals("#macro(page8)version 1#end", cache.getContent("Macros.Page8"));
+        cache.close();
+
+        // the previous versions were replaced
+        Assert.assertEquals(PAGES + 1, cacheDir.listFiles().length);
+
+        cache = open(cacheDir);
+        cache.prefetch(new ArrayList(wiki.contents.keySet()));
+        Assert.assertEquals(0, cache.getDownloadCount());
+        cache.close();
+    }
+
+    @Test
+    public void testChangedPageNotFetchedIsFetchedByTheNextRun() throws Exception {
+        RemotePageCache cache = open(cacheDir);
+        cache.prefetch(new ArrayList(wiki.contents.keySet()));
+        cache.close();
+
+        wiki.store("Macros.Page7", "#macro(page7)version 2#end");
+
+        // this run does not need the changed page
+        cache = open(cacheDir);
+        Assert.assertEquals("#macro(page8)version 1#end", cache.getContent("Macros.Page8"));
+        Assert.assertEquals(0, cache.getDownloadCount());
+        cache.close();
+
+        // nothing changed since, the page is still known to be outdated
+        cache = open(cacheDir);
+        Assert.assertEquals("#macro(page7)version 2#end", cache.getContent("Macros.Page7"));
+        Assert.assertEquals(1, cache.getDownloadCount());
+        cache.close();
+        Assert.assertEquals(PAGES + 1, cacheDir.listFiles().length);
+    }
+
+    @Test
+    public void testPageSavedInTheSameSecondAsTheLastSyncIsDownloaded() throws Exception {
+        RemotePageCache cache = open(cacheDir);
+        cache.prefetch(new ArrayList(wiki.contents.keySet()));
+        cache.close();
+
+        // saved after the previous run, but in the same second as the newest change it saw
+        wiki.storeInSameSecond("Macros.Page7", "#macro(page7)version 2#end");
+
+        cache = open(cacheDir);
+        cache.prefetch(new ArrayList(wiki.contents.keySet()));
+        // the newest change seen by the previous run is listed again but it is recognized by its version
+        Assert.assertEquals(1, cache.getDownloadCount());
+        Assert.assertEquals("#macro(page7)version 2#end", cache.getContent("Macros.Page7"));
+        cache.close();
+
+        cache = open(cacheDir);
+        cache.prefetch(new ArrayList(wiki.contents.keySet()));
+        Assert.assertEquals(0, cache.getDownloadCount());
+        cache.close();
+    }
+
+    @Test
+    public void testWithoutCacheDirectory() throws Exception {
+        RemotePageCache cache = open(null);
+        cache.prefetch(new ArrayList(wiki.contents.keySet()));
+        Assert.assertEquals(PAGES, wiki.pageRequests);
+        for (int i=0;i<PAGES;i++) {
+            Assert.assertEquals("#macro(page" + i + ")version 1#end", cache.getContent("Macros.Page" + i));
+        }
+        // a page which was not prefetched is fetched on its own
+        wiki.store("Macros.New", "#macro(new)#end");
+        Assert.assertEquals("#macro(new)#end", cache.getContent("Macros.New"));
+        Assert.assertEquals(PAGES + 1, cache.getDownloadCount());
+        // one connection per thread at most
+        Assert.assertTrue(wiki.logins <= 4);
+        cache.close();
+    }
+}
@@ -0,0 +1,165 @@
+package net.sourceforge.velocidoc;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.*;
+import java.util.*;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+/**
+ * Checks that the pages rendered in parallel and those written to a zip are the same as those rendered one after
+ * the other in the output directory, from the sample templates of the test directory.
+ */
+public class VelocidocGeneratorTest {
+    private static final String SOURCE_DIR = "test";
+
+    private List outputDirs = new ArrayList();
+
+    @Before
+    public void setUp() {
+        Assert.assertTrue("missing sample templates", new File(SOURCE_DIR).isDirectory());
+    }
+
+    @After
+    public void tearDown() {
+        for (int i=0;i<outputDirs.size();i++) {
+            delete((File) outputDirs.get(i));
+        }
+    }
+
+    private Velocidoc createVelocidoc(int threads) {
+        Velocidoc velocidoc = new Velocidoc();
+        velocidoc.setSourceDir(SOURCE_DIR);
+        velocidoc.setThreads(threads);
+        return velocidoc;
+    }
+
+    private Map generateDirectory(int threads) throws Exception {
+        File outputDir = File.createTempFile("velocidoc", "out");
+        outputDir.delete();
+        outputDir.mkdirs();
+        outputDirs.add(outputDir);
+
+        Velocidoc velocidoc = createVelocidoc(threads);
+        velocidoc.setOutputDir(outputDir.getAbsolutePath());
+        velocidoc.generate();
+
+        Map pages = new TreeMap();
+        File[] files = outputDir.listFiles();
+        for (int i=0;i<files.length;i++) {
+            pages.put(files[i].getName(), read(new FileInputStream(files[i])));
+        }
+        return pages;
+    }
+
+    private Map generateZip(int threads) throws Exception {
+        ByteArrayOutputStream zip = new ByteArrayOutputStream();
+        createVelocidoc(threads).generateZip(zip);
+
+        Map pages = new TreeMap();
+        ZipInputStream zis = new ZipInputStream(new ByteArrayInputStream(zip.toByteArray()));
+        ZipEntry entry;
+        while ((entry = zis.getNextEntry()) != null) {
+            Assert.assertNull("duplicate entry " + entry.getName(), pages.put(entry.getName(), read(zis)));
+        }
+        return pages;
+    }
+
+    private static byte[] read(InputStream is) throws IOException {
+        ByteArrayOutputStream content = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int read;
+        while ((read = is.read(buffer)) != -1) {
+            content.write(buffer, 0, read);
+        }
+        if (!(is instanceof ZipInputStream))
+            is.close();
+        return content.toByteArray();
+    }
+
+    private static void delete(File file) {
+        File[] files = file.listFiles();
+        for (int i=0;(files!=null)&&(i<files.length);i++) {
+            delete(files[i]);
+        }
+        file.delete();
+    }
+
+    private static boolean startsWith(byte[] content, byte[] prefix) {
+        if (content.length < prefix.length)
+            return false;
+        for (int i=0;i<prefix.length;i++) {
+            if (content[i] != prefix[i])
+                return false;
+        }
+        return true;
+    }
+
+    private static void assertSamePages(String output, Map expected, Map actual) {
+        Assert.assertEquals(output, expected.keySet(), actual.keySet());
+        Iterator it = expected.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry entry = (Map.Entry) it.next();
+            Assert.assertTrue(output + ": " + entry.getKey(),
+                    Arrays.equals((byte[]) entry.getValue(), (byte[]) actual.get(entry.getKey())));
+        }
+    }
+
+    @Test
+    public void testOutputsMatchSequentialOutput() throws Exception {
+        Map sequential = generateDirectory(0);
+        Assert.assertTrue(sequential.containsKey("index.html"));
+        Assert.assertTrue(sequential.size() > 10);
+        assertSamePages("parallel", sequential, generateDirectory(4));
+
+        Map zip = generateZip(0);
+        assertSamePages("parallel zip", zip, generateZip(4));
+
+        // test7 holds templates named as others: a page generated twice is appended to in a directory, the zip
+        // only keeps the first one
+        Assert.assertEquals(sequential.keySet(), zip.keySet());
+        int duplicates = 0;
+        Iterator it = sequential.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry entry = (Map.Entry) it.next();
+            byte[] page = (byte[]) entry.getValue();
+            byte[] zipPage = (byte[]) zip.get(entry.getKey());
+            if (page.length != zipPage.length) {
+                Assert.assertTrue("zip: " + entry.getKey(), startsWith(page, zipPage));
+                duplicates++;
+            } else {
+                Assert.assertTrue("zip: " + entry.getKey(), Arrays.equals(page, zipPage));
+            }
+        }
+        Assert.assertTrue(duplicates < sequential.size() / 2);
+    }
+
+    @Test
+    public void testPagesSeeTheControlContextAsWhenAskedFor() throws Exception {
+        // the control template changes the values the pages use right after asking for them
+        Velocidoc velocidoc = createVelocidoc(8);
+        velocidoc.setControlFile("net/sourceforge/velocidoc/test/control.vm");
+        ByteArrayOutputStream zip = new ByteArrayOutputStream();
+        velocidoc.generateZip(zip);
+
+        ZipInputStream zis = new ZipInputStream(new ByteArrayInputStream(zip.toByteArray()));
+        int pages = 0;
+        ZipEntry entry;
+        while ((entry = zis.getNextEntry()) != null) {
+            if (entry.getName().equals("last.html")) {
+                // asked for after the loop, with the object of the last page still in the control context
+                Assert.assertEquals("last page 40", new String(read(zis), "ISO-8859-1").trim());
+                continue;
+            }
+            pages++;
+            String number = entry.getName().substring("page-".length(), entry.getName().indexOf('.'));
+            Assert.assertEquals("page " + number + ": value " + number + ", loop " + number,
+                    new String(read(zis), "ISO-8859-1").trim());
+        }
+        Assert.assertEquals(40, pages);
+    }
+}
@@ -0,0 +1,251 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ *
+ */
+package org.xwiki.xdomviz;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayDeque;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+
+import org.xwiki.rendering.block.Block;
+import org.xwiki.rendering.block.FormatBlock;
+import org.xwiki.rendering.block.SpaceBlock;
+import org.xwiki.rendering.block.SpecialSymbolBlock;
+import org.xwiki.rendering.block.WordBlock;
+
+/**
+ * <p>
+ * Writes the GraphViz source code of an XDOM while visiting it, without building an intermediate tree or buffering
+ * the output.
+ * </p>
+ * <p>
+ * A single block can be the child of multiple parents (this happens often with SpaceBlocks), so the graph nodes are
+ * indexed by block identity: a block reachable through several parents is a single node with several incoming edges,
+ * and its children are only visited once. The index is an {@link IdentityHashMap} because two distinct blocks may be
+ * equal, they must still be two nodes.
+ * </p>
+ */
+class GraphVizWriter
+{
+    /**
+     * A node of the graph waiting to be visited.
+     */
+    private static class PendingNode
+    {
+        private final Block block;
+
+        private final int id;
+
+        public PendingNode(Block block, int id)
+        {
+            this.block = block;
+            this.id = id;
+        }
+    }
+
+    /**
+     * Where the GraphViz source code is written.
+     */
+    private final Writer output;
+
+    /**
+     * If true, a block which occurs several times in the children of a same parent gets a node for each occurrence,
+     * see the README.
+     */
+    private final boolean normalize;
+
+    /**
+     * Subtrees with more blocks than this are collapsed into a single summary node, 0 to never collapse.
+     */
+    private final int collapseThreshold;
+
+    /**
+     * The GraphViz ids of the nodes already written, by block.
+     */
+    private final Map<Block, Integer> blockToIdMap = new IdentityHashMap<Block, Integer>();
+
+    /**
+     * The number of blocks in the subtree of each block, only computed when collapsing.
+     */
+    private final Map<Block, Integer> subtreeSizes = new IdentityHashMap<Block, Integer>();
+
+    /**
+     * Nodes written but whose children have not been written yet, in breadth first order.
+     */
+    private final Queue<PendingNode> nodesQueue = new ArrayDeque<PendingNode>();
+
+    /**
+     * The next id to assign.
+     */
+    private int nextId;
+
+    /**
+     * @param output Where to write the GraphViz source code.
+     * @param normalize True to write a node for each occurrence of a block in the children of a parent.
+     * @param collapseThreshold Subtrees with more blocks than this are collapsed into a single node, 0 to never
+     *            collapse.
+     */
+    public GraphVizWriter(Writer output, boolean normalize, int collapseThreshold)
+    {
+        this.output = output;
+        this.normalize = normalize;
+        this.collapseThreshold = collapseThreshold;
+    }
+
+    /**
+     * <p>
+     * Writes the graph of the tree starting at the given block. The root is never collapsed.
+     * </p>
+     *
+     * @param root The root of the tree.
+     * @throws IOException If the output cannot be written.
+     */
+    public void write(Block root) throws IOException
+    {
+        output.write("digraph XDOM {\n");
+
+        // Breadth first visit of the XDOM, ids are assigned when a node is found for the first time.
+        int rootId = writeNode(root, false);
+        blockToIdMap.put(root, rootId);
+        nodesQueue.add(new PendingNode(root, rootId));
+        while (!nodesQueue.isEmpty()) {
+            PendingNode node = nodesQueue.poll();
+
+            List<Block> children = node.block.getChildren();
+            Map<Block, Integer> occurrences = normalize ? countOccurrences(children) : null;
+            for (Block child : children) {
+                Integer childId;
+                if (normalize && occurrences.get(child) > 1) {
+                    // Each occurrence is a node of its own.
+                    childId = visit(child);
+                } else {
+                    childId = blockToIdMap.get(child);
+                    if (childId == null) {
+                        childId = visit(child);
+                        blockToIdMap.put(child, childId);
+                    }
+                }
+
+                // Render the edge.
+                output.write(node.id + " -> " + childId + ";\n");
+            }
+        }
+
+        output.write("}\n");
+        output.flush();
+    }
+
+    /**
+     * Writes a new node for a block and queues it for its children to be visited, unless it is collapsed.
+     *
+     * @return The id of the node.
+     */
+    private int visit(Block block) throws IOException
+    {
+        boolean collapsed = collapseThreshold > 0 && getSubtreeSize(block) > collapseThreshold;
+        int id = writeNode(block, collapsed);
+        if (!collapsed) {
+            nodesQueue.add(new PendingNode(block, id));
+        }
+
+        return id;
+    }
+
+    /**
+     * Writes the label assignment of a new node.
+     *
+     * @return The id of the node.
+     */
+    private int writeNode(Block block, boolean collapsed) throws IOException
+    {
+        int id = nextId++;
+        if (collapsed) {
+            output.write(String.format("%d [label = \"%s\\n(%d blocks)\", shape = box, style = dashed];\n", id,
+                escape(getLabel(block)), getSubtreeSize(block)));
+        } else {
+            output.write(id + " [label = \"" + escape(getLabel(block)) + "\"];\n");
+        }
+
+        return id;
+    }
+
+    /**
+     * @return How many times each block occurs in the list.
+     */
+    private static Map<Block, Integer> countOccurrences(List<Block> blocks)
+    {
+        Map<Block, Integer> occurrences = new IdentityHashMap<Block, Integer>();
+        for (Block block : blocks) {
+            Integer count = occurrences.get(block);
+            occurrences.put(block, count == null ? 1 : count + 1);
+        }
+
+        return occurrences;
+    }
+
+    /**
+     * @return The number of blocks in the subtree of the block, a block which occurs several times is counted each
+     *         time.
+     */
+    private int getSubtreeSize(Block block)
+    {
+        Integer size = subtreeSizes.get(block);
+        if (size == null) {
+            int count = 1;
+            for (Block child : block.getChildren()) {
+                count += getSubtreeSize(child);
+            }
+            size = count;
+            subtreeSizes.put(block, size);
+        }
+
+        return size;
+    }
+
+    /**
+     * @return The label of the node of a block.
+     */
+    private static String getLabel(Block block)
+    {
+        if (block instanceof FormatBlock) {
+            return String.format("Format: %s", ((FormatBlock) block).getFormat().toString());
+        } else if (block instanceof WordBlock) {
+            return ((WordBlock) block).getWord();
+        } else if (block instanceof SpecialSymbolBlock) {
+            return String.valueOf(((SpecialSymbolBlock) block).getSymbol());
+        } else if (block instanceof SpaceBlock) {
+            return " ";
+        }
+
+        return block.getClass().getSimpleName();
+    }
+
+    /**
+     * @return The text escaped to be put in a GraphViz quoted string.
+     */
+    private static String escape(String text)
+    {
+        return text.replace("\\", "\\\\").replace("\"", "\\\"");
+    }
+}
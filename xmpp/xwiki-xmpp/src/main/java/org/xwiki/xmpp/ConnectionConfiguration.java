@@ -40,6 +40,10 @@ public class ConnectionConfiguration
 
     private String resource;
 
+    private int maxQueuedMessages = 1000;
+
+    private int maxMessagesPerSecond = 10;
+
     /**
      * Returns the server name of the target server.
      * 
@@ -161,4 +165,45 @@ public class ConnectionConfiguration
         this.resource = resource;
     }
 
+    /**
+     * Returns the maximum number of messages waiting to be sent on the connection. Messages sent while the queue is
+     * full are dropped.
+     * 
+     * @return the maximum number of messages waiting to be sent.
+     */
+    public int getMaxQueuedMessages()
+    {
+        return maxQueuedMessages;
+    }
+
+    /**
+     * Sets the maximum number of messages waiting to be sent on the connection.
+     * 
+     * @param maxQueuedMessages the maximum number of messages waiting to be sent.
+     */
+    public void setMaxQueuedMessages(int maxQueuedMessages)
+    {
+        this.maxQueuedMessages = maxQueuedMessages;
+    }
+
+    /**
+     * Returns the maximum number of messages sent to the server per second, so that the server does not throttle or
+     * disconnect the connection.
+     * 
+     * @return the maximum number of messages sent per second.
+     */
+    public int getMaxMessagesPerSecond()
+    {
+        return maxMessagesPerSecond;
+    }
+
+    /**
+     * Sets the maximum number of messages sent to the server per second.
+     * 
+     * @param maxMessagesPerSecond the maximum number of messages sent per second.
+     */
+    public void setMaxMessagesPerSecond(int maxMessagesPerSecond)
+    {
+        this.maxMessagesPerSecond = maxMessagesPerSecond;
+    }
 }
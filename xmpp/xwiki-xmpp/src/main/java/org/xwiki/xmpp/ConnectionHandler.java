@@ -21,43 +21,36 @@
 package org.xwiki.xmpp;
 
 /**
- * Handles the connections in a different threads. <tt>ConnectionHandler</tt> uses configuration to connect to remote
- * server with {@link org.xwiki.xmpp.ConnectionConfiguration configuration options}.
+ * Receives the events of a connection managed by the {@link XmppManager}. The methods are called one at a time, in the
+ * order of the events, by a thread dedicated to the callbacks and not by the threads of the connections, so a slow
+ * handler delays the other handlers but not the connections.
  * 
  * @author tharindu
  */
-public class ConnectionHandler extends Thread
+public interface ConnectionHandler
 {
-    private ConnectionConfiguration config;
-
     /**
-     * Initializes the connection handler thread with given configurations
+     * Called when the connection is established and logged in, including after a reconnection.
      * 
-     * @param config the configuration used to connect and login to server
+     * @param config the configuration of the connection
      */
-    public ConnectionHandler(ConnectionConfiguration config)
-    {
-        this.config = config;
-    }
-
-    public void connect()
-    {
-        // TODO: implement using smack api
-    }
-
-    public void login()
-    {
-        // TODO: implement using smack api
-    }
+    void connected(ConnectionConfiguration config);
 
-    public void disconnect()
-    {
-        // TODO: implement using smack api
-    }
-
-    public void run()
-    {
-
-    }
+    /**
+     * Called when the connection is closed, either because of an error, in which case it is established again, or
+     * because it was asked with {@link XmppManager#disconnect(ConnectionConfiguration)}.
+     * 
+     * @param config the configuration of the connection
+     * @param cause the error which closed the connection, null if it was closed on purpose
+     */
+    void disconnected(ConnectionConfiguration config, Exception cause);
 
+    /**
+     * Called when a message is received on the connection.
+     * 
+     * @param config the configuration of the connection
+     * @param from the address of the sender
+     * @param body the body of the message
+     */
+    void messageReceived(ConnectionConfiguration config, String from, String body);
 }
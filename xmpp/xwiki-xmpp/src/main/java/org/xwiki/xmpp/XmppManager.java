@@ -23,18 +23,45 @@ package org.xwiki.xmpp;
 import org.xwiki.component.annotation.ComponentRole;
 
 /**
- * This component manages xmpp connections.
+ * This component manages xmpp connections. There is one connection per user, service and resource, established and
+ * re-established in the background, so none of the methods waits for the network.
  * 
  * @version $Id$
  */
 @ComponentRole
 public interface XmppManager
 {
-    // TODO: needs to decide interface methods to use
     /**
-     * Says hello by returning a greeting to the caller.
+     * Starts managing a connection. The connection is established in the background and established again whenever it
+     * is lost, until {@link #disconnect(ConnectionConfiguration)} is called. Nothing is done if the connection is
+     * already managed.
      * 
-     * @return A greeting.
+     * @param config the configuration used to connect and login to server
+     * @param handler the handler notified of the events of the connection, null if none
      */
-    public String sayHello();
+    void connect(ConnectionConfiguration config, ConnectionHandler handler);
+
+    /**
+     * Closes a connection and stops managing it. The messages not sent yet are dropped.
+     * 
+     * @param config the configuration of the connection
+     */
+    void disconnect(ConnectionConfiguration config);
+
+    /**
+     * @param config the configuration of the connection
+     * @return whether the connection is currently established and logged in
+     */
+    boolean isConnected(ConnectionConfiguration config);
+
+    /**
+     * Queues a chat message, to be sent as soon as the connection is established and the rate limit of the connection
+     * allows it. Messages queued for the same recipient meanwhile are sent together.
+     * 
+     * @param config the configuration of the connection to send the message with
+     * @param to the address of the recipient
+     * @param body the body of the message
+     * @return false if the message was dropped because the connection is not managed or its queue is full
+     */
+    boolean sendMessage(ConnectionConfiguration config, String to, String body);
 }
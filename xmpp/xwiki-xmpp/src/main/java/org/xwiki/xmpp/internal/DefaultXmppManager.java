@@ -20,36 +20,127 @@
  */
 package org.xwiki.xmpp.internal;
 
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
 import org.xwiki.component.annotation.Component;
 import org.xwiki.component.logging.AbstractLogEnabled;
 import org.xwiki.component.phase.Initializable;
 import org.xwiki.component.phase.InitializationException;
+import org.xwiki.xmpp.ConnectionConfiguration;
+import org.xwiki.xmpp.ConnectionHandler;
 import org.xwiki.xmpp.XmppManager;
 
 /**
- * Concrete implementation of a <tt>XmppManager</tt> component. The component is configured via the Plexus container.
+ * Concrete implementation of a <tt>XmppManager</tt> component. Each connection has its own thread, see
+ * {@link ManagedConnection}, and the connection handlers are called by a single thread shared by all the connections.
  * 
  * @version $Id$
  */
 @Component
 public class DefaultXmppManager extends AbstractLogEnabled implements XmppManager, Initializable
 {
-    // TODO: needs to implement xmpp manger
-    /** The greeting that was specified in the configuration. */
-    private String greeting;
+    /**
+     * The managed connections, by user, service and resource.
+     */
+    private final Map<String, ManagedConnection> connections = new ConcurrentHashMap<String, ManagedConnection>();
 
     /**
-     * Says hello by returning a greeting to the caller.
+     * The executor calling the connection handlers.
+     */
+    private ExecutorService callbackExecutor;
+
+    /**
+     * {@inheritDoc}
      * 
-     * @return A greeting.
+     * @see Initializable#initialize()
      */
-    public String sayHello()
+    public void initialize() throws InitializationException
     {
-        return greeting;
+        this.callbackExecutor = Executors.newSingleThreadExecutor(new ThreadFactory()
+        {
+            public Thread newThread(Runnable runnable)
+            {
+                Thread thread = new Thread(runnable, "XMPP connection handlers");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
     }
 
-    public void initialize() throws InitializationException
+    /**
+     * {@inheritDoc}
+     * 
+     * @see XmppManager#connect(ConnectionConfiguration, ConnectionHandler)
+     */
+    public void connect(ConnectionConfiguration config, ConnectionHandler handler)
+    {
+        String key = getKey(config);
+        synchronized (this.connections) {
+            if (!this.connections.containsKey(key)) {
+                ManagedConnection connection = new ManagedConnection(config, handler, this.callbackExecutor,
+                    getLogger());
+                this.connections.put(key, connection);
+                connection.start();
+            }
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     * 
+     * @see XmppManager#disconnect(ConnectionConfiguration)
+     */
+    public void disconnect(ConnectionConfiguration config)
+    {
+        ManagedConnection connection;
+        synchronized (this.connections) {
+            connection = this.connections.remove(getKey(config));
+        }
+        if (connection != null) {
+            connection.close();
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     * 
+     * @see XmppManager#isConnected(ConnectionConfiguration)
+     */
+    public boolean isConnected(ConnectionConfiguration config)
+    {
+        ManagedConnection connection = this.connections.get(getKey(config));
+        return connection != null && connection.isConnected();
+    }
+
+    /**
+     * {@inheritDoc}
+     * 
+     * @see XmppManager#sendMessage(ConnectionConfiguration, String, String)
+     */
+    public boolean sendMessage(ConnectionConfiguration config, String to, String body)
+    {
+        ManagedConnection connection = this.connections.get(getKey(config));
+        if (connection == null) {
+            getLogger().warn("No XMPP connection for " + getKey(config) + ", dropping message to " + to);
+            return false;
+        }
+        if (!connection.send(to, body)) {
+            getLogger().warn("Outbound queue of " + getKey(config) + " is full, dropping message to " + to);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * @param config the configuration of a connection
+     * @return the key of the connection, the address of the user it logs in
+     */
+    private String getKey(ConnectionConfiguration config)
     {
-        // TODO: initialize component
+        return config.getUsername() + "@" + config.getServiceName() + "/" + config.getResource();
     }
 }
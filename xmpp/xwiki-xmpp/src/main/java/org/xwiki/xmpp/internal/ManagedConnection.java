@@ -0,0 +1,477 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ *
+ */
+package org.xwiki.xmpp.internal;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+import org.jivesoftware.smack.ConnectionListener;
+import org.jivesoftware.smack.PacketListener;
+import org.jivesoftware.smack.XMPPConnection;
+import org.jivesoftware.smack.XMPPException;
+import org.jivesoftware.smack.filter.PacketTypeFilter;
+import org.jivesoftware.smack.packet.Message;
+import org.jivesoftware.smack.packet.Packet;
+import org.xwiki.component.logging.Logger;
+import org.xwiki.xmpp.ConnectionConfiguration;
+import org.xwiki.xmpp.ConnectionHandler;
+
+/**
+ * A connection managed by the {@link DefaultXmppManager}. A thread of its own establishes the connection, establishes
+ * it again when it is lost, and sends the queued messages, so the threads queuing messages never wait for the network.
+ * The queued messages are sent in batches, the messages of a batch to the same recipient being sent as one message,
+ * and no faster than the rate allowed by the configuration. The messages of a batch not sent yet when the connection
+ * is lost are sent once it is established again. Messages are sent at most once: a message written just before the
+ * connection is lost can be lost with it.
+ *
+ * @version $Id$
+ */
+public class ManagedConnection implements Runnable
+{
+    /**
+     * The maximum number of queued messages sent in one batch.
+     */
+    private static final int BATCH_SIZE = 20;
+
+    /**
+     * The default XMPP client port.
+     */
+    private static final int DEFAULT_PORT = 5222;
+
+    /**
+     * How long the connection thread waits for messages before checking the connection, in milliseconds.
+     */
+    private static final long POLL_TIMEOUT = 1000;
+
+    /**
+     * The delay before the first attempt to establish a lost connection again, in milliseconds. The delay doubles
+     * after each failed attempt.
+     */
+    private static final long MIN_RECONNECTION_DELAY = 1000;
+
+    /**
+     * The maximum delay between two attempts to establish a lost connection again, in milliseconds.
+     */
+    private static final long MAX_RECONNECTION_DELAY = 60000;
+
+    /**
+     * A message waiting to be sent.
+     */
+    private static class OutboundMessage
+    {
+        /**
+         * The address of the recipient.
+         */
+        private final String to;
+
+        /**
+         * The body of the message.
+         */
+        private final String body;
+
+        /**
+         * @param to the address of the recipient
+         * @param body the body of the message
+         */
+        OutboundMessage(String to, String body)
+        {
+            this.to = to;
+            this.body = body;
+        }
+    }
+
+    /**
+     * The configuration of the connection.
+     */
+    private final ConnectionConfiguration config;
+
+    /**
+     * The handler notified of the events of the connection, null if none.
+     */
+    private final ConnectionHandler handler;
+
+    /**
+     * The executor running the calls to the handler.
+     */
+    private final Executor callbackExecutor;
+
+    /**
+     * The logger of the manager.
+     */
+    private final Logger logger;
+
+    /**
+     * The messages waiting to be sent.
+     */
+    private final BlockingQueue<OutboundMessage> queue;
+
+    /**
+     * The thread establishing the connection and sending the messages.
+     */
+    private final Thread thread;
+
+    /**
+     * The minimum time between two messages sent to the server, in milliseconds.
+     */
+    private final long sendInterval;
+
+    /**
+     * The time before which the next message cannot be sent.
+     */
+    private long nextSendTime;
+
+    /**
+     * The current connection, null until it is first established.
+     */
+    private volatile XMPPConnection connection;
+
+    /**
+     * Whether the connection was asked to be closed.
+     */
+    private volatile boolean closed;
+
+    /**
+     * @param config the configuration of the connection
+     * @param handler the handler notified of the events of the connection, null if none
+     * @param callbackExecutor the executor running the calls to the handler
+     * @param logger the logger of the manager
+     */
+    public ManagedConnection(ConnectionConfiguration config, ConnectionHandler handler, Executor callbackExecutor,
+        Logger logger)
+    {
+        this.config = config;
+        this.handler = handler;
+        this.callbackExecutor = callbackExecutor;
+        this.logger = logger;
+        this.queue = new ArrayBlockingQueue<OutboundMessage>(config.getMaxQueuedMessages());
+        this.sendInterval = 1000L / Math.max(1, config.getMaxMessagesPerSecond());
+        this.thread = new Thread(this, "XMPP connection " + config.getUsername() + "@" + config.getServiceName());
+        this.thread.setDaemon(true);
+    }
+
+    /**
+     * Starts establishing the connection.
+     */
+    public void start()
+    {
+        this.thread.start();
+    }
+
+    /**
+     * Closes the connection. The messages not sent yet are dropped.
+     */
+    public void close()
+    {
+        this.closed = true;
+        this.thread.interrupt();
+    }
+
+    /**
+     * @return whether the connection is established and logged in
+     */
+    public boolean isConnected()
+    {
+        XMPPConnection current = this.connection;
+        return current != null && current.isConnected() && current.isAuthenticated();
+    }
+
+    /**
+     * Queues a message, without waiting.
+     *
+     * @param to the address of the recipient
+     * @param body the body of the message
+     * @return false if the queue is full or the connection closed
+     */
+    public boolean send(String to, String body)
+    {
+        return !this.closed && this.queue.offer(new OutboundMessage(to, body));
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * @see Runnable#run()
+     */
+    public void run()
+    {
+        // the messages of the batch not sent yet, kept until the connection is established if it was lost
+        List<OutboundMessage> batch = new ArrayList<OutboundMessage>();
+        long reconnectionDelay = MIN_RECONNECTION_DELAY;
+        try {
+            while (!this.closed) {
+                if (!isConnected()) {
+                    Exception failure = null;
+                    try {
+                        connect();
+                        reconnectionDelay = MIN_RECONNECTION_DELAY;
+                    } catch (XMPPException e) {
+                        failure = e;
+                    } catch (RuntimeException e) {
+                        // Smack fails with runtime exceptions too, the thread must not die of them
+                        failure = e;
+                    }
+                    if (failure != null) {
+                        this.logger.warn("Failed to connect to XMPP server " + this.config.getServiceName()
+                            + ", retrying in " + reconnectionDelay + " ms", failure);
+                        Thread.sleep(reconnectionDelay);
+                        reconnectionDelay = Math.min(reconnectionDelay * 2, MAX_RECONNECTION_DELAY);
+                        continue;
+                    }
+                }
+
+                if (batch.isEmpty()) {
+                    OutboundMessage first = this.queue.poll(POLL_TIMEOUT, TimeUnit.MILLISECONDS);
+                    if (first == null) {
+                        continue;
+                    }
+                    batch.add(first);
+                    this.queue.drainTo(batch, BATCH_SIZE - 1);
+                }
+                sendBatch(batch);
+            }
+        } catch (InterruptedException e) {
+            // closed
+        } finally {
+            disconnect();
+        }
+    }
+
+    /**
+     * Establishes the connection and logs in.
+     *
+     * @throws XMPPException if the connection cannot be established or the login fails
+     */
+    private void connect() throws XMPPException
+    {
+        String host = this.config.getHost() != null ? this.config.getHost() : this.config.getServiceName();
+        int port = this.config.getPort() > 0 ? this.config.getPort() : DEFAULT_PORT;
+        org.jivesoftware.smack.ConnectionConfiguration smackConfig =
+            new org.jivesoftware.smack.ConnectionConfiguration(host, port, this.config.getServiceName());
+        // lost connections are established again here, along with the messages queued meanwhile
+        smackConfig.setReconnectionAllowed(false);
+        smackConfig.setRosterLoadedAtLogin(false);
+
+        XMPPConnection newConnection = new XMPPConnection(smackConfig);
+        newConnection.connect();
+        try {
+            newConnection.login(this.config.getUsername(), this.config.getPassword(), this.config.getResource());
+        } catch (XMPPException e) {
+            newConnection.disconnect();
+            throw e;
+        }
+
+        newConnection.addConnectionListener(new ConnectionListener()
+        {
+            public void connectionClosedOnError(Exception cause)
+            {
+                logger.warn("Lost connection to XMPP server " + config.getServiceName(), cause);
+                fireDisconnected(cause);
+            }
+
+            public void connectionClosed()
+            {
+                // closed on purpose, see disconnect()
+            }
+
+            public void reconnectingIn(int seconds)
+            {
+                // reconnections are not allowed
+            }
+
+            public void reconnectionSuccessful()
+            {
+                // reconnections are not allowed
+            }
+
+            public void reconnectionFailed(Exception cause)
+            {
+                // reconnections are not allowed
+            }
+        });
+        newConnection.addPacketListener(new PacketListener()
+        {
+            public void processPacket(Packet packet)
+            {
+                Message message = (Message) packet;
+                if (message.getBody() != null) {
+                    fireMessageReceived(message.getFrom(), message.getBody());
+                }
+            }
+        }, new PacketTypeFilter(Message.class));
+
+        this.connection = newConnection;
+        this.logger.debug("Connected to XMPP server " + this.config.getServiceName());
+        fireConnected();
+    }
+
+    /**
+     * Closes the current connection, if established.
+     */
+    private void disconnect()
+    {
+        XMPPConnection current = this.connection;
+        if (current != null && current.isConnected()) {
+            current.disconnect();
+            fireDisconnected(null);
+        }
+    }
+
+    /**
+     * Sends a batch of messages, one message per recipient, waiting between the messages as required by the rate
+     * limit. The messages sent are removed from the batch. When the connection is lost, the messages not sent yet are
+     * left in the batch, to be sent once the connection is established again.
+     *
+     * @param batch the messages to send, in the order they were queued
+     * @throws InterruptedException if the connection is closed while waiting
+     */
+    private void sendBatch(List<OutboundMessage> batch) throws InterruptedException
+    {
+        Map<String, StringBuilder> bodies = new LinkedHashMap<String, StringBuilder>();
+        for (OutboundMessage message : batch) {
+            StringBuilder body = bodies.get(message.to);
+            if (body == null) {
+                bodies.put(message.to, new StringBuilder(message.body));
+            } else {
+                body.append('\n').append(message.body);
+            }
+        }
+
+        for (Map.Entry<String, StringBuilder> entry : bodies.entrySet()) {
+            long wait = this.nextSendTime - System.currentTimeMillis();
+            if (wait > 0) {
+                Thread.sleep(wait);
+            }
+            if (!isConnected()) {
+                // lost while waiting
+                return;
+            }
+            Message message = new Message(entry.getKey(), Message.Type.chat);
+            message.setBody(entry.getValue().toString());
+            try {
+                this.connection.sendPacket(message);
+            } catch (RuntimeException e) {
+                // Smack throws IllegalStateException when the connection was lost meanwhile
+                if (!isConnected()) {
+                    this.logger.warn("Lost connection to XMPP server " + this.config.getServiceName()
+                        + " while sending messages, sending them again once connected", e);
+                    return;
+                }
+                // not a connection failure, sending the message again would fail again
+                this.logger.error("Failed to send message to " + entry.getKey(), e);
+            }
+            this.nextSendTime = System.currentTimeMillis() + this.sendInterval;
+            removeMessages(batch, entry.getKey());
+        }
+    }
+
+    /**
+     * @param batch the messages of a batch
+     * @param to the recipient whose messages are removed from the batch
+     */
+    private void removeMessages(List<OutboundMessage> batch, String to)
+    {
+        for (Iterator<OutboundMessage> it = batch.iterator(); it.hasNext();) {
+            if (it.next().to.equals(to)) {
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * Notifies the handler that the connection is established.
+     */
+    private void fireConnected()
+    {
+        if (this.handler != null) {
+            callback(new Runnable()
+            {
+                public void run()
+                {
+                    handler.connected(config);
+                }
+            });
+        }
+    }
+
+    /**
+     * Notifies the handler that the connection is closed.
+     *
+     * @param cause the error which closed the connection, null if it was closed on purpose
+     */
+    private void fireDisconnected(final Exception cause)
+    {
+        if (this.handler != null) {
+            callback(new Runnable()
+            {
+                public void run()
+                {
+                    handler.disconnected(config, cause);
+                }
+            });
+        }
+    }
+
+    /**
+     * Notifies the handler that a message is received.
+     *
+     * @param from the address of the sender
+     * @param body the body of the message
+     */
+    private void fireMessageReceived(final String from, final String body)
+    {
+        if (this.handler != null) {
+            callback(new Runnable()
+            {
+                public void run()
+                {
+                    handler.messageReceived(config, from, body);
+                }
+            });
+        }
+    }
+
+    /**
+     * Runs a call to the handler on the callback executor, logging its failures.
+     *
+     * @param call the call to the handler
+     */
+    private void callback(final Runnable call)
+    {
+        this.callbackExecutor.execute(new Runnable()
+        {
+            public void run()
+            {
+                try {
+                    call.run();
+                } catch (RuntimeException e) {
+                    logger.error("Connection handler of " + config.getUsername() + " failed", e);
+                }
+            }
+        });
+    }
+}
@@ -20,20 +20,232 @@
  */
 package org.xwiki.xmpp;
 
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.ServerSocket;
+import java.util.ArrayList;
+import java.util.List;
+
 import junit.framework.TestCase;
 
+import org.xwiki.component.logging.Logger;
+import org.xwiki.xmpp.XmppServerStandIn.ReceivedMessage;
+import org.xwiki.xmpp.internal.DefaultXmppManager;
+
 /**
- * Tests for the {@link XmppManager} component.
+ * Tests for the {@link XmppManager} component, against an {@link XmppServerStandIn}.
  * 
  * @version $Id$
  */
 public class XmppManagerTest extends TestCase
 {
-    /**
-     * Empty test so that the tests do not fail.
-     */
-    public void testMessage()
+    private static final long TIMEOUT = 10000;
+
+    private XmppServerStandIn server;
+
+    private DefaultXmppManager manager;
+
+    private ConnectionConfiguration config;
+
+    private final List<String> events = new ArrayList<String>();
+
+    private final ConnectionHandler handler = new ConnectionHandler()
+    {
+        public void connected(ConnectionConfiguration config)
+        {
+            addEvent("connected");
+        }
+
+        public void disconnected(ConnectionConfiguration config, Exception cause)
+        {
+            addEvent(cause == null ? "disconnected" : "lost");
+        }
+
+        public void messageReceived(ConnectionConfiguration config, String from, String body)
+        {
+            addEvent("received " + from + " " + body);
+        }
+    };
+
+    @Override
+    protected void setUp() throws Exception
     {
+        this.server = new XmppServerStandIn();
+
+        this.manager = new DefaultXmppManager();
+        this.manager.enableLogging((Logger) Proxy.newProxyInstance(getClass().getClassLoader(),
+            new Class[] {Logger.class}, new InvocationHandler()
+            {
+                public Object invoke(Object proxy, Method method, Object[] args)
+                {
+                    return method.getReturnType() == boolean.class ? Boolean.FALSE : null;
+                }
+            }));
+        this.manager.initialize();
 
+        this.config = new ConnectionConfiguration();
+        this.config.setServiceName(XmppServerStandIn.SERVICE_NAME);
+        this.config.setHost("127.0.0.1");
+        this.config.setPort(this.server.getPort());
+        this.config.setUsername("wiki");
+        this.config.setPassword("secret");
+        this.config.setResource("notifications");
+    }
+
+    @Override
+    protected void tearDown() throws Exception
+    {
+        this.manager.disconnect(this.config);
+        this.server.close();
+    }
+
+    public void testSendMessagesBatchedByRecipient() throws Exception
+    {
+        this.manager.connect(this.config, this.handler);
+        // queued while connecting, so sent in one batch
+        assertTrue(this.manager.sendMessage(this.config, "alice@localhost", "Page A changed"));
+        assertTrue(this.manager.sendMessage(this.config, "bob@localhost", "Page A changed"));
+        assertTrue(this.manager.sendMessage(this.config, "alice@localhost", "Page B changed"));
+
+        waitForMessages(2);
+        List<ReceivedMessage> messages = this.server.getMessages();
+        assertEquals("alice@localhost", messages.get(0).to);
+        assertEquals("Page A changed\nPage B changed", messages.get(0).body);
+        assertEquals("bob@localhost", messages.get(1).to);
+        assertEquals("Page A changed", messages.get(1).body);
+        assertTrue(this.manager.isConnected(this.config));
+        assertEquals("connected", getEvent(0));
+    }
+
+    public void testRateLimit() throws Exception
+    {
+        this.config.setMaxMessagesPerSecond(5);
+        this.manager.connect(this.config, this.handler);
+        for (int i = 0; i < 6; i++) {
+            this.manager.sendMessage(this.config, "user" + i + "@localhost", "Hello");
+        }
+
+        waitForMessages(6);
+        List<ReceivedMessage> messages = this.server.getMessages();
+        // 5 intervals of 200 ms between the 6 messages
+        assertTrue(messages.get(5).time - messages.get(0).time >= 900);
+    }
+
+    public void testSendMessageDoesNotWaitForTheServer() throws Exception
+    {
+        ServerSocket unused = new ServerSocket(0);
+        this.config.setPort(unused.getLocalPort());
+        unused.close();
+        this.config.setMaxQueuedMessages(2);
+        this.manager.connect(this.config, this.handler);
+
+        long start = System.currentTimeMillis();
+        assertTrue(this.manager.sendMessage(this.config, "alice@localhost", "1"));
+        assertTrue(this.manager.sendMessage(this.config, "alice@localhost", "2"));
+        assertFalse(this.manager.sendMessage(this.config, "alice@localhost", "3"));
+        assertTrue(System.currentTimeMillis() - start < 1000);
+        assertFalse(this.manager.isConnected(this.config));
+    }
+
+    public void testSendMessageWithoutConnection()
+    {
+        assertFalse(this.manager.sendMessage(this.config, "alice@localhost", "Hello"));
+    }
+
+    public void testReconnectsAfterConnectionLoss() throws Exception
+    {
+        this.manager.connect(this.config, this.handler);
+        waitForEvents(1);
+
+        this.server.dropConnections();
+        waitForEvents(2);
+        assertEquals("lost", getEvent(1));
+
+        this.manager.sendMessage(this.config, "alice@localhost", "Still there?");
+        waitForMessages(1);
+        assertEquals("Still there?", this.server.getMessages().get(0).body);
+        assertEquals(2, this.server.getLogins());
+        assertEquals("connected", getEvent(2));
+    }
+
+    public void testConnectionLostDuringRateLimitedBatch() throws Exception
+    {
+        this.config.setMaxMessagesPerSecond(2);
+        this.manager.connect(this.config, this.handler);
+        waitForEvents(1);
+        for (int i = 0; i < 4; i++) {
+            this.manager.sendMessage(this.config, "user" + i + "@localhost", "Hello " + i);
+        }
+
+        // lost while waiting to send the second message of the batch
+        waitForMessages(1);
+        this.server.dropConnections();
+        waitForEvents(3);
+        assertEquals("lost", getEvent(1));
+        assertEquals("connected", getEvent(2));
+
+        waitForMessages(4);
+        List<ReceivedMessage> messages = this.server.getMessages();
+        for (int i = 0; i < 4; i++) {
+            assertEquals("user" + i + "@localhost", messages.get(i).to);
+            assertEquals("Hello " + i, messages.get(i).body);
+        }
+        assertEquals(2, this.server.getLogins());
+
+        // the connection thread is still sending
+        this.manager.sendMessage(this.config, "alice@localhost", "Still there?");
+        waitForMessages(5);
+    }
+
+    public void testMessageReceived() throws Exception
+    {
+        this.manager.connect(this.config, this.handler);
+        waitForEvents(1);
+
+        this.server.push("alice@localhost", "Hi wiki");
+        waitForEvents(2);
+        assertEquals("received alice@localhost Hi wiki", getEvent(1));
+    }
+
+    public void testDisconnect() throws Exception
+    {
+        this.manager.connect(this.config, this.handler);
+        waitForEvents(1);
+
+        this.manager.disconnect(this.config);
+        waitForEvents(2);
+        assertEquals("disconnected", getEvent(1));
+        assertFalse(this.manager.isConnected(this.config));
+        assertFalse(this.manager.sendMessage(this.config, "alice@localhost", "Hello"));
+    }
+
+    private synchronized void addEvent(String event)
+    {
+        this.events.add(event);
+        notifyAll();
+    }
+
+    private synchronized String getEvent(int index)
+    {
+        return this.events.get(index);
+    }
+
+    private synchronized void waitForEvents(int count) throws InterruptedException
+    {
+        long end = System.currentTimeMillis() + TIMEOUT;
+        while (this.events.size() < count && System.currentTimeMillis() < end) {
+            wait(100);
+        }
+        assertTrue("Expected " + count + " events, got " + this.events, this.events.size() >= count);
+    }
+
+    private void waitForMessages(int count) throws InterruptedException
+    {
+        long end = System.currentTimeMillis() + TIMEOUT;
+        while (this.server.getMessages().size() < count && System.currentTimeMillis() < end) {
+            Thread.sleep(50);
+        }
+        assertEquals(count, this.server.getMessages().size());
     }
 }
@@ -0,0 +1,230 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ *
+ */
+package org.xwiki.xmpp;
+
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.xmlpull.mxp1.MXParser;
+import org.xmlpull.v1.XmlPullParser;
+
+/**
+ * Minimal in-process XMPP server for the tests: it accepts any non-SASL login, answers the other IQs with an empty
+ * result, and records the chat messages it receives.
+ *
+ * @version $Id$
+ */
+public class XmppServerStandIn implements Runnable
+{
+    /**
+     * A chat message received by the server.
+     */
+    public static class ReceivedMessage
+    {
+        public final String to;
+
+        public final String body;
+
+        public final long time;
+
+        ReceivedMessage(String to, String body)
+        {
+            this.to = to;
+            this.body = body;
+            this.time = System.currentTimeMillis();
+        }
+    }
+
+    public static final String SERVICE_NAME = "localhost";
+
+    private final ServerSocket serverSocket;
+
+    private final List<Socket> clients = new ArrayList<Socket>();
+
+    private final List<Writer> writers = new ArrayList<Writer>();
+
+    private final List<ReceivedMessage> messages = new ArrayList<ReceivedMessage>();
+
+    private int logins;
+
+    public XmppServerStandIn() throws IOException
+    {
+        this.serverSocket = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+        Thread thread = new Thread(this, "XMPP server stand-in");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public int getPort()
+    {
+        return this.serverSocket.getLocalPort();
+    }
+
+    public synchronized int getLogins()
+    {
+        return this.logins;
+    }
+
+    public synchronized List<ReceivedMessage> getMessages()
+    {
+        return new ArrayList<ReceivedMessage>(this.messages);
+    }
+
+    /**
+     * Sends a chat message to all the connected clients.
+     */
+    public synchronized void push(String from, String body) throws IOException
+    {
+        for (Writer out : this.writers) {
+            out.write("<message type='chat' from='" + from + "'><body>" + body + "</body></message>");
+            out.flush();
+        }
+    }
+
+    /**
+     * Closes the sockets of all the connected clients, as a network failure would.
+     */
+    public synchronized void dropConnections() throws IOException
+    {
+        for (Socket client : this.clients) {
+            client.close();
+        }
+        this.clients.clear();
+        this.writers.clear();
+    }
+
+    public void close() throws IOException
+    {
+        this.serverSocket.close();
+        dropConnections();
+    }
+
+    public void run()
+    {
+        while (!this.serverSocket.isClosed()) {
+            try {
+                final Socket client = this.serverSocket.accept();
+                Thread thread = new Thread("XMPP server stand-in client")
+                {
+                    public void run()
+                    {
+                        try {
+                            serve(client);
+                        } catch (Exception e) {
+                            // client gone
+                        }
+                    }
+                };
+                thread.setDaemon(true);
+                thread.start();
+            } catch (IOException e) {
+                // closed
+            }
+        }
+    }
+
+    private void serve(Socket client) throws Exception
+    {
+        Writer out = new OutputStreamWriter(client.getOutputStream(), "UTF-8");
+        synchronized (this) {
+            this.clients.add(client);
+            this.writers.add(out);
+        }
+
+        XmlPullParser parser = new MXParser();
+        parser.setFeature(XmlPullParser.FEATURE_PROCESS_NAMESPACES, true);
+        parser.setInput(new InputStreamReader(client.getInputStream(), "UTF-8"));
+        for (int event = parser.getEventType(); event != XmlPullParser.END_DOCUMENT; event = parser.next()) {
+            if (event == XmlPullParser.START_TAG) {
+                String name = parser.getName();
+                if ("stream".equals(name)) {
+                    write(out, "<?xml version='1.0'?><stream:stream xmlns='jabber:client'"
+                        + " xmlns:stream='http://etherx.jabber.org/streams' id='standin' from='" + SERVICE_NAME
+                        + "' version='1.0'><stream:features></stream:features>");
+                } else if ("iq".equals(name)) {
+                    serveIq(parser, out);
+                } else if ("message".equals(name)) {
+                    String to = parser.getAttributeValue(null, "to");
+                    String body = readBody(parser, "message");
+                    synchronized (this) {
+                        this.messages.add(new ReceivedMessage(to, body));
+                    }
+                }
+            } else if (event == XmlPullParser.END_TAG && "stream".equals(parser.getName())) {
+                write(out, "</stream:stream>");
+                break;
+            }
+        }
+        client.close();
+    }
+
+    private void serveIq(XmlPullParser parser, Writer out) throws Exception
+    {
+        String id = parser.getAttributeValue(null, "id");
+        String type = parser.getAttributeValue(null, "type");
+        String namespace = null;
+        for (int event = parser.next(); event != XmlPullParser.END_TAG || !"iq".equals(parser.getName()); event =
+            parser.next()) {
+            if (event == XmlPullParser.START_TAG && namespace == null) {
+                namespace = parser.getNamespace();
+            }
+        }
+
+        if ("jabber:iq:auth".equals(namespace) && "get".equals(type)) {
+            write(out, "<iq type='result' id='" + id + "'><query xmlns='jabber:iq:auth'>"
+                + "<username/><password/><resource/></query></iq>");
+        } else {
+            if ("jabber:iq:auth".equals(namespace)) {
+                synchronized (this) {
+                    this.logins++;
+                }
+            }
+            write(out, "<iq type='result' id='" + id + "'/>");
+        }
+    }
+
+    private String readBody(XmlPullParser parser, String element) throws Exception
+    {
+        String body = null;
+        for (int event = parser.next(); event != XmlPullParser.END_TAG || !element.equals(parser.getName()); event =
+            parser.next()) {
+            if (event == XmlPullParser.START_TAG && "body".equals(parser.getName())) {
+                body = parser.nextText();
+            }
+        }
+        return body;
+    }
+
+    private void write(Writer out, String xml) throws IOException
+    {
+        synchronized (this) {
+            out.write(xml);
+            out.flush();
+        }
+    }
+}
@@ -36,6 +36,10 @@ public class Calendar extends XWikiGWTDefaultApp implements EntryPoint {
 	public static String getSpace() {
 		return space;
 	}
+	
+	public static void setSpace(String space) {
+		Calendar.space = space;
+	}
 
 	public static XCalendar getDateManager() {
 		return dateManager;
@@ -60,6 +64,13 @@ public class Calendar extends XWikiGWTDefaultApp implements EntryPoint {
 	public Calendar(){
 	}
 
+	/**
+	 * @return the URL of the {@link XConfig#CREATE_EVENT_PAGE} page, relative to the calendar page by default
+	 */
+	public String getCreateEventURL() {
+		return getParam(XConfig.CalendarCreateEventURLParam, "../CalendarCode/CreateEvent?xpage=plain");
+	}
+
 	public void onModuleLoad() {
 		instance = this;
 		space = getParam(XConfig.CalendarSpaceParam, "Calendar");
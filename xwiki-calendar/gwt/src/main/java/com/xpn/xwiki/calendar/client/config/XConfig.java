@@ -16,6 +16,7 @@ public class XConfig {
 	
 	public static final String EVENT_CLASS_NAME = "XWiki.CalendarEvent";
 	public static final String EVENT_CLASS_SHEET = "XWiki.XCalendarEventSheet";
+	public static final String CREATE_EVENT_PAGE = "CalendarCode.CreateEvent";
 	
 	public static final String EVENT_FILED_TITLE = "title";
 	public static final String EVENT_FILED_DESCRIPTION = "description";
@@ -49,6 +50,7 @@ public class XConfig {
 	
 	public static final String CalendarSpaceParam = "calendarspace";
 	public static final String CalendarRessourceParam = "resourcepath";
+	public static final String CalendarCreateEventURLParam = "createeventurl";
 	
 	public static final String CalendarViewLabels[] = {"Jour", "Semaine", "Mois", "Mon planning"};
 	public static final String CalendarViewIDs[] = {"day", "week", "month", "myplanning"};
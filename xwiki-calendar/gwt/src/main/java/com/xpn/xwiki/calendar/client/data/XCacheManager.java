@@ -1,8 +1,11 @@
 package com.xpn.xwiki.calendar.client.data;
 
 import java.util.ArrayList;
-import java.util.Date;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 import com.google.gwt.user.client.Window;
 import com.google.gwt.user.client.rpc.AsyncCallback;
@@ -13,15 +16,40 @@ public class XCacheManager {
 	private static long from = 0;
 	private static long to   = 0;
 	private static boolean loaded = false;
+	/** The cached events, sorted by start time so that the events of a range are found with a binary search. */
 	private static List eventList = new ArrayList();
+	/** The cached events by name, to update or remove an event without scanning the list. */
+	private static Map eventMap = new HashMap();
 	private static XDataManager dataManager;
+	/** The time of the last load or synchronization of the cached events. */
+	private static long lastSync = 0;
+	/** The event whose page was saved last when the cache was loaded or synchronized, null if there is none. */
+	private static XEvent lastChanged = null;
+	
+	/** The minimum time between two synchronizations of the cached events with the server, in milliseconds. */
+	private static final long SYNC_INTERVAL = 30000;
+	
+	private static final Comparator START_TIME_COMPARATOR = new Comparator(){
+		public int compare(Object o1, Object o2) {
+			long t1 = ((XEvent) o1).getStartTime();
+			long t2 = ((XEvent) o2).getStartTime();
+			return t1 < t2 ? -1 : (t1 == t2 ? 0 : 1);
+		}
+	};
 	
 	public static List getEventList() {
 		return eventList;
 	}
 
 	public static void setEventList(List eventList) {
-		XCacheManager.eventList = eventList;
+		List events = new ArrayList(eventList);
+		Collections.sort(events, START_TIME_COMPARATOR);
+		eventMap.clear();
+		for(int i = 0; i < events.size(); i++){
+			XEvent ev = (XEvent) events.get(i);
+			eventMap.put(ev.getName(), ev);
+		}
+		XCacheManager.eventList = events;
 	}
 	
 	public XCacheManager(){
@@ -31,60 +59,194 @@ public class XCacheManager {
 		dataManager = dtm;
 	}
 	
+	/**
+	 * Returns the events starting in the passed range. When the range is not cached yet, the events of the
+	 * previous and next ranges of the same length are loaded with it, so that moving to the neighbour day, week
+	 * or month is answered from the cache. Otherwise, only the events changed since the last synchronization are
+	 * asked to the server, at most every {@link #SYNC_INTERVAL} milliseconds.
+	 */
 	public void LoadEvents(final long from, final long to, final AsyncCallback cb){
 		
 		if( loaded == false || this.from > from || this.to < to ){
-			this.from = from; 
-			this.to = to;		
-			dataManager.getUserEvents(Calendar.getUser(), from, to, new AsyncCallback(){
+			final long span = to - from;
+			reload(from - span, to + span, new AsyncCallback(){
 
 				public void onFailure(Throwable arg0) {
 					Window.alert("failed to load events from cache!");
 				}
 				public void onSuccess(Object arg0) {
-					eventList = (List) arg0;
-					List events = new ArrayList();
-					setupInternalData(from, to, true);
-					
-					for(int i = 0; i < eventList.size(); i++){
-						XEvent ev = (XEvent) eventList.get(i);
-						events.add(ev);
-					}	
-					cb.onSuccess(eventList);
+					cb.onSuccess(getEvents(from, to));
+				}
+			});
+		}else if( System.currentTimeMillis() - lastSync > SYNC_INTERVAL ){
+			synchronize(new AsyncCallback(){
+
+				public void onFailure(Throwable arg0) {
+					// show what we have, the next synchronization will try again
+					cb.onSuccess(getEvents(from, to));
+				}
+				public void onSuccess(Object arg0) {
+					cb.onSuccess(getEvents(from, to));
 				}
 			});
 		}else{
-			List events = new ArrayList();
-			for(int i = 0; i < eventList.size(); i++){
-				XEvent ev = (XEvent)eventList.get(i);
-				long evTime = Date.parse(ev.getStartDate());
-				if( evTime >= from && evTime <= to ){
-					events.add(ev);
+			cb.onSuccess(getEvents(from, to));
+		}
+	}
+	
+	/**
+	 * Replaces the cached events by those starting in the passed range.
+	 */
+	private void reload(final long from, final long to, final AsyncCallback cb){
+		final long syncTime = System.currentTimeMillis();
+		dataManager.getUserEvents(Calendar.getUser(), from, to, new AsyncCallback(){
+
+			public void onFailure(Throwable arg0) {
+				cb.onFailure(arg0);
+			}
+			public void onSuccess(Object arg0) {
+				setEventList((List) arg0);
+				setupInternalData(from, to, true);
+				// the events saved after the load are saved after the newest loaded one
+				lastChanged = getLastChanged((List) arg0);
+				lastSync = syncTime;
+				cb.onSuccess(arg0);
+			}
+		});
+	}
+	
+	/**
+	 * Updates the cache with the events whose page was saved since the newest event seen by the last load or
+	 * synchronization. The save dates are compared by the server, so neither the clock nor the time zone of the
+	 * browser matter. When that event was saved again or deleted since, the events saved in between can't be
+	 * found any more and the cached range is loaded again, as it is when no event was seen yet. Events deleted by
+	 * other clients are only removed from the cache when it is loaded again.
+	 */
+	public void synchronize(final AsyncCallback cb){
+		if( lastChanged == null ){
+			reload(from, to, cb);
+			return;
+		}
+		final long syncTime = System.currentTimeMillis();
+		final XEvent since = lastChanged;
+		dataManager.getUserEventsChangedSince(Calendar.getUser(), since.getName(), new AsyncCallback(){
+
+			public void onFailure(Throwable arg0) {
+				cb.onFailure(arg0);
+			}
+			public void onSuccess(Object arg0) {
+				List events = (List) arg0;
+				boolean unchanged = false;
+				for(int i = 0; i < events.size() && !unchanged; i++){
+					XEvent ev = (XEvent) events.get(i);
+					unchanged = ev.getName().equals(since.getName()) && ev.getLastModified() == since.getLastModified();
+				}
+				if( !unchanged ){
+					reload(from, to, cb);
+					return;
+				}
+				for(int i = 0; i < events.size(); i++){
+					XEvent ev = (XEvent) events.get(i);
+					if( ev.getStartTime() >= from && ev.getStartTime() <= to ){
+						addEvent(ev);
+					}else{
+						// the event was moved out of the cached range
+						removeEvent(ev);
+					}
 				}
+				lastChanged = getLastChanged(events);
+				lastSync = syncTime;
+				cb.onSuccess(events);
+			}
+		});
+	}
+	
+	/**
+	 * @return the event whose page was saved last, null if there is no event
+	 */
+	private static XEvent getLastChanged(List events){
+		XEvent last = null;
+		for(int i = 0; i < events.size(); i++){
+			XEvent ev = (XEvent) events.get(i);
+			if( last == null || ev.getLastModified() > last.getLastModified() ){
+				last = ev;
 			}
-			cb.onSuccess(events);			
 		}
+		return last;
 	}
 	
+	/**
+	 * @param from the start of the range, in milliseconds
+	 * @param to the end of the range, in milliseconds
+	 * @return the cached events starting in the range, ordered by start time
+	 */
+	public List getEvents(long from, long to){
+		List events = new ArrayList();
+		for(int i = indexOf(from, false); i < eventList.size(); i++){
+			XEvent ev = (XEvent) eventList.get(i);
+			if( ev.getStartTime() > to ){
+				break;
+			}
+			events.add(ev);
+		}
+		return events;
+	}
+	
+	/**
+	 * Adds an event to the cache, replacing the cached event with the same name if any.
+	 */
 	public void addEvent(XEvent event){
 		if( event != null ){
-			eventList.add(event);
+			removeEvent(event);
+			eventList.add(indexOf(event.getStartTime(), true), event);
+			eventMap.put(event.getName(), event);
 		}
 	}
 	
 	public void removeEvent(XEvent event){
-		for(int i = 0; i < eventList.size(); i++){
-			XEvent ev = (XEvent) eventList.get(i);
-			if( ev.getName() == event.getName()){
+		XEvent ev = (XEvent) eventMap.remove(event.getName());
+		if( ev == null ){
+			return;
+		}
+		for(int i = indexOf(ev.getStartTime(), false); i < eventList.size(); i++){
+			if( eventList.get(i) == ev ){
 				eventList.remove(i);
+				return;
+			}
+			if( ((XEvent) eventList.get(i)).getStartTime() > ev.getStartTime() ){
 				break;
 			}
 		}
+		// the start date of the cached event was changed after it was added
+		eventList.remove(ev);
+	}
+	
+	/**
+	 * Binary search of the sorted event list.
+	 * 
+	 * @param time the start time to look for
+	 * @param after whether to skip the events starting at this time
+	 * @return the index of the first event starting at or after the time, or after the time
+	 */
+	private int indexOf(long time, boolean after){
+		int low = 0;
+		int high = eventList.size();
+		while( low < high ){
+			int middle = (low + high) >>> 1;
+			long evTime = ((XEvent) eventList.get(middle)).getStartTime();
+			if( evTime < time || (after && evTime == time) ){
+				low = middle + 1;
+			}else{
+				high = middle;
+			}
+		}
+		return low;
 	}
 	
 	public void flush(){
 		loaded = false;
 		eventList.clear();
+		eventMap.clear();
 	}
 	
 	public void setupInternalData(long from, long to, boolean loaded){
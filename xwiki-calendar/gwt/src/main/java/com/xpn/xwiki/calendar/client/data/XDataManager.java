@@ -6,6 +6,12 @@ import java.util.List;
 
 import org.gwtwidgets.client.util.SimpleDateFormat;
 
+import com.google.gwt.http.client.Request;
+import com.google.gwt.http.client.RequestBuilder;
+import com.google.gwt.http.client.RequestCallback;
+import com.google.gwt.http.client.RequestException;
+import com.google.gwt.http.client.Response;
+import com.google.gwt.http.client.URL;
 import com.google.gwt.user.client.rpc.AsyncCallback;
 import com.xpn.xwiki.calendar.client.*;
 import com.xpn.xwiki.calendar.client.config.*;
@@ -39,68 +45,61 @@ public class XDataManager {
 		return pageName;
 	}
 	
+	/**
+	 * Creates the page of a new event in a single request to the {@link XConfig#CREATE_EVENT_PAGE} page. The event name,
+	 * built by {@link #encodeEventPageName(XEvent, long, long)}, only holds the title and the dates of the event, so the
+	 * server makes it unique in the calendar space before saving the page with the event object and the event sheet:
+	 * otherwise an identical event, of another user for instance, would be overwritten.
+	 */
 	public void createEvent(final XEvent event, final AsyncCallback cb)
 	{	
 		if( event == null) {
 			cb.onFailure(null);
 			return;
 		}
-		final XWikiServiceAsync xService = calendarManager.getXWikiServiceInstance();
-		final String eventName = event.getName();
+		String params = "space=" + URL.encodeComponent(Calendar.getSpace())
+			+ "&name=" + URL.encodeComponent(event.getName())
+			+ getEventParameter(XConfig.EVENT_FILED_TITLE, event.getObject())
+			+ getEventParameter(XConfig.EVENT_FILED_DESCRIPTION, event.getDescription())
+			+ getEventParameter(XConfig.EVENT_FILED_STARTDATE, event.getStartDate())
+			+ getEventParameter(XConfig.EVENT_FILED_ENDDATE, event.getEndDate())
+			+ getEventParameter(XConfig.EVENT_FILED_LOCATION, event.getLocation())
+			+ getEventParameter(XConfig.EVENT_FILED_URL, event.getURL())
+			+ getEventParameter(XConfig.EVENT_FILED_CATEGORY, event.getCategory())
+			+ getEventParameter(XConfig.EVENT_FILED_AUTHOR, event.getAuthor())
+			+ getEventParameter(XConfig.EVENT_FILED_AGENDA, event.getAgenda());
 		
-		xService.getUniquePageName(Calendar.getSpace(), 
-								   eventName, 
-								   new XWikiAsyncCallback(calendarManager) {
-			
-			public void onFailure(Throwable caught){
-				super.onFailure(caught);
-			}
-			
-			public void onSuccess(Object result){
-				super.onSuccess(result);
-				final String pageName = Calendar.getSpace() + "." + result.toString();
-				
-				String defaultContent = "#includeForm('"+XConfig.EVENT_CLASS_SHEET+"')";
-				xService.saveDocumentContent(pageName, defaultContent, new AsyncCallback(){
-					public void onFailure(Throwable caught){
-						cb.onFailure(caught);
+		RequestBuilder builder = new RequestBuilder(RequestBuilder.POST, calendarManager.getCreateEventURL());
+		builder.setHeader("Content-Type", "application/x-www-form-urlencoded");
+		try {
+			builder.sendRequest(params, new RequestCallback() {
+				public void onResponseReceived(Request request, Response response) {
+					String pageName = response.getText().trim();
+					if (response.getStatusCode() != 200 || pageName.length() == 0) {
+						cb.onFailure(getAccessDeniedException("Event Insertion Error!", "Save document failure"));
+						return;
 					}
-					
-					public void onSuccess(Object result){
-						if (!((Boolean)result).booleanValue()) {
-							cb.onFailure(getAccessDeniedException("Event Insertion Error!", "Save document failure"));
-						}
-						else
-						{
-							event.setName(pageName);
-							XObject o =event.toxo();
-							
-							xService.saveObject(o, new AsyncCallback() {
-								
-								public void onFailure(Throwable caught){
-									//call the user on failure method
-									cb.onFailure(caught);	
-								}
-								
-								public void onSuccess(Object result){
-									if(!((Boolean)result).booleanValue())
-									{
-										cb.onFailure(getAccessDeniedException("Event Insertion Error!", "Save object failure"));
-									}
-									else
-									{
-										cb.onSuccess(pageName);		
-									}
-								}
-							});
-						}
-					}		
-				});	
-			}			
-		});
+					event.setName(pageName);
+					cb.onSuccess(pageName);
+				}
+				
+				public void onError(Request request, Throwable exception) {
+					cb.onFailure(exception);
+				}
+			});
+		}
+		catch (RequestException e) {
+			cb.onFailure(e);
+		}
 	}
-
 	
+	/**
+	 * @return the request parameter setting a property of the event object, as read by updateObjectFromRequest
+	 */
+	private String getEventParameter(String property, String value) {
+		return "&" + XConfig.EVENT_CLASS_NAME + "_0_" + property + "=" + URL.encodeComponent(value == null ? "" : value);
+	}
+
 	public void updateEvent(final XEvent event, final AsyncCallback cb){
 		
 		final XWikiServiceAsync xService = calendarManager.getXWikiServiceInstance();
@@ -208,7 +207,29 @@ public class XDataManager {
 						"' and dtp.id.id = obj.id and dtp.name = '"+ XConfig.EVENT_FILED_STARTDATE +"' and dtp.value >= '"+sdf.format(new Date(start)) + 
 						"' and dtp.value <= '" + sdf.format(new Date(end)) +"' and username.id.id = obj.id and" +
 						" username.name = '"+XConfig.EVENT_FILED_AUTHOR + "' and username.value = '"+username+"' order by dtp.value";
-				
+		getEvents(hsql, cb);
+	}
+	
+	/**
+	 * Gets the events whose page was saved since a page seen by the previous synchronization. The save dates are
+	 * only compared on the server, with a subquery on the date of that page: a date formatted by the browser would be
+	 * in the time zone and with the clock of the browser, not those the server uses to store the save dates.
+	 * 
+	 * @param username a valid XWiki username
+	 * @param lastChanged the full name of the event page saved last, as seen by the previous synchronization
+	 * @param cb an asynch callback object, receiving the events of the user whose page was saved at the same time
+	 * as the passed page or after it, whatever their dates, the passed page included if it still exists
+	 */
+	public void getUserEventsChangedSince(final String username, final String lastChanged, final AsyncCallback cb){
+		String hsql = ", BaseObject as obj, StringProperty as username where doc.fullName=obj.name and obj.className = '" + 
+						XConfig.EVENT_CLASS_NAME + 	"' and doc.name <> '" + XConfig.EVENT_CLASS_SHEET + 
+						"' and doc.date >= (select lastDoc.date from XWikiDocument as lastDoc where lastDoc.fullName = '" +
+						lastChanged.replaceAll("'", "''") + "') and username.id.id = obj.id and" +
+						" username.name = '"+XConfig.EVENT_FILED_AUTHOR + "' and username.value = '"+username+"'";
+		getEvents(hsql, cb);
+	}
+	
+	private void getEvents(String hsql, final AsyncCallback cb){
 		calendarManager.getXWikiServiceInstance().getDocuments(hsql, 0, 0, true, false, false, 
 				new XWikiAsyncCallback(calendarManager){
 			
@@ -227,6 +248,7 @@ public class XDataManager {
 				for(int i = 0; i < evDocs.size(); i++){
 					Document doc = (Document)evDocs.get(i);
 					XEvent evObj = new XEvent(doc.getObject(XConfig.EVENT_CLASS_NAME));
+					evObj.setLastModified(doc.getDate());
 					events.add(evObj);
 				}
 				
@@ -1,6 +1,7 @@
 package com.xpn.xwiki.calendar.client.data;
 
 
+import java.util.Date;
 
 import org.gwtwidgets.client.util.SimpleDateFormat;
 
@@ -41,6 +42,21 @@ public class  XEvent
     
     private Object ref = "";   
     
+    /**
+     * The start and end dates parsed to milliseconds, cached since parsing the date strings is slow and the views
+     * need the timestamps of every event each time they are rendered.
+     */
+    private long startTime = UNPARSED;
+    
+    private long endTime = UNPARSED;
+    
+    private static final long UNPARSED = Long.MIN_VALUE;
+    
+    /**
+     * The time the page of the event was last saved, as returned by the server, 0 when unknown.
+     */
+    private long lastModified = 0;
+    
     public Object getRef() {
 		return ref;
 	}
@@ -69,6 +85,7 @@ public class  XEvent
         author = String.valueOf(event.getProperty(XConfig.EVENT_FILED_AUTHOR));
         agenda = String.valueOf(event.getProperty(XConfig.EVENT_FILED_AGENDA));
         number = event.getNumber();
+        lastModified = eventDoc.getDate();
     }
     
     public XEvent(XObject event){
@@ -173,10 +190,32 @@ public class  XEvent
 
 	public void setStartDate(String startDate) {
 		this.startDate = startDate;
+		this.startTime = UNPARSED;
 	}
 
 	public void setEndDate(String endDate) {
 		this.endDate = endDate;
+		this.endTime = UNPARSED;
+	}
+
+	/**
+	 * @return the start date of the event, in milliseconds
+	 */
+	public long getStartTime() {
+		if( startTime == UNPARSED ){
+			startTime = Date.parse(startDate);
+		}
+		return startTime;
+	}
+
+	/**
+	 * @return the end date of the event, in milliseconds
+	 */
+	public long getEndTime() {
+		if( endTime == UNPARSED ){
+			endTime = Date.parse(endDate);
+		}
+		return endTime;
 	}
 
 	public void setLocation(String location) {
@@ -206,4 +245,15 @@ public class  XEvent
 	public void setAgenda(String agenda) {
 		this.agenda = agenda;
 	}
-}
+
+	/**
+	 * @return the time the page of the event was last saved on the server, in milliseconds, 0 when unknown
+	 */
+	public long getLastModified() {
+		return lastModified;
+	}
+
+	public void setLastModified(long lastModified) {
+		this.lastModified = lastModified;
+	}
+}
\ No newline at end of file
@@ -213,7 +213,7 @@ public class CalendarWidget extends Composite implements TabListener, TableListe
 		SimpleDateFormat fmt = new SimpleDateFormat(XConfig.CalendarTimeFormat);
 		while( i < events.size()){
 			XEvent event = (XEvent) events.get(i);
-			Date evDate = new Date(Date.parse(event.getStartDate()));
+			Date evDate = new Date(event.getStartTime());
 			//Window.alert("date parssed "+ event.getStartDate());
 			
 			if( oldEvDate.getYear() != evDate.getYear() ||
@@ -250,7 +250,7 @@ public class CalendarWidget extends Composite implements TabListener, TableListe
 			//xc.setHours(XConfig.CalendarStartHours);
 			timeRange = 0x36EE80;
 			calTime = xc.getDate().getTime();
-			evTime = Date.parse(event.getStartDate());
+			evTime = event.getStartTime();
 			i = (int) Math.ceil((evTime - calTime) / timeRange);
 			j = 1;
 			break;
@@ -259,7 +259,7 @@ public class CalendarWidget extends Composite implements TabListener, TableListe
 			xc.resetFromWeekStart();
 			//xc.setHours(XConfig.CalendarStartHours);
 			calTime = xc.getDate().getTime();
-			evTime = Date.parse(event.getStartDate());
+			evTime = event.getStartTime();
 			index = (evTime - calTime) / timeRange;
 			j = (int) Math.ceil(((evTime - calTime) / timeRange)) + 1;
 			i = (int) Math.ceil((evTime - calTime) % timeRange) / 0x36EE80;
@@ -268,7 +268,7 @@ public class CalendarWidget extends Composite implements TabListener, TableListe
 			timeRange = 0x5265C00;
 			xc.resetFromMonthStart();
 			calTime = xc.getDate().getTime();
-			evTime = Date.parse(event.getStartDate());
+			evTime = event.getStartTime();
 			index = (evTime - calTime) / timeRange;
 			i = (int) index / 7;
 			j = (int)(index % 7);
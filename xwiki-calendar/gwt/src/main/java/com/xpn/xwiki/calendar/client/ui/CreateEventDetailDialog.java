@@ -248,8 +248,8 @@ public class CreateEventDetailDialog extends DialogBox {
 		this.tbLocation.setText(event.getLocation());
 		
 		SimpleDateFormat fmt = new SimpleDateFormat(XConfig.CalendarTimeSimpleFormat);
-		long t1 = Date.parse(event.getStartDate());
-		long t2 = Date.parse(event.getEndDate());
+		long t1 = event.getStartTime();
+		long t2 = event.getEndTime();
 		this.tbStartDate.setText(fmt.format(new Date(t1)));
 		this.tbEndDate.setText(fmt.format(new Date(t2)));
 
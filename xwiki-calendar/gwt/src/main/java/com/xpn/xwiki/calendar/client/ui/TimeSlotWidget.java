@@ -94,7 +94,7 @@ public class TimeSlotWidget extends Composite implements ClickListener {
 			XEvent ev = (XEvent) entrys.get(i);
 			HTML entry;
 			if( withHead ){
-				Date   dt = new Date(Date.parse(ev.getStartDate()));
+				Date   dt = new Date(ev.getStartTime());
 				SimpleDateFormat fmt = new SimpleDateFormat("HH:mm");
 				entry = new HTML( fmt.format(dt) + " - " + ev.getObject().substring(0, 12));
 			}
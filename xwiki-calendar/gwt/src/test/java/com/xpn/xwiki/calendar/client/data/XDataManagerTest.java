@@ -0,0 +1,108 @@
+package com.xpn.xwiki.calendar.client.data;
+
+import com.google.gwt.junit.client.GWTTestCase;
+import com.google.gwt.user.client.rpc.AsyncCallback;
+import com.xpn.xwiki.calendar.client.Calendar;
+import com.xpn.xwiki.calendar.client.config.XConfig;
+import com.xpn.xwiki.gwt.api.client.XWikiServiceAsync;
+
+/**
+ * Runs the event pages against a wiki started on the calendar test space.
+ */
+public class XDataManagerTest extends GWTTestCase {
+    protected Calendar calendar;
+    protected XDataManager datamgr;
+    protected String firstPageName;
+    protected String secondPageName;
+
+    public String getModuleName() {
+        return "com.xpn.xwiki.calendar.Calendar";
+    }
+
+    protected void gwtSetUp() throws Exception {
+        super.setUp();
+        calendar = new Calendar();
+        Calendar.setSpace("CalendarTest");
+        datamgr = new XDataManager(calendar);
+    }
+
+    protected void gwtTearDown() throws Exception {
+        super.tearDown();
+    }
+
+    public void loginAndCleanup(final boolean loggedIn) {
+        XWikiServiceAsync svc = calendar.getXWikiServiceInstance();
+        if (!loggedIn) {
+            svc.login("Admin", "admin", true, new AsyncCallback() {
+                public void onFailure(Throwable throwable) {
+                    assertTrue("Error logging in", false);
+                }
+                public void onSuccess(Object object) {
+                    loginAndCleanup(true);
+                }
+            });
+        } else {
+            svc.deleteDocuments(", BaseObject as obj where doc.fullName=obj.name and obj.className = '" + XConfig.EVENT_CLASS_NAME + "' and doc.web='" + Calendar.getSpace() + "'", new AsyncCallback() {
+                public void onFailure(Throwable throwable) {
+                    assertTrue("Error deleting", false);
+                }
+                public void onSuccess(Object object) {
+                    createEvent(0);
+                }
+            });
+        }
+        delayTestFinish(20000);
+    }
+
+    private XEvent newEvent() {
+        XEvent ev = new XEvent();
+        ev.setObject("Team meeting");
+        ev.setAuthor("XWiki.Admin");
+        ev.setStartDate("01/09/2008 10:00:00");
+        ev.setEndDate("01/09/2008 11:00:00");
+        ev.setName(datamgr.encodeEventPageName(ev, ev.getStartTime(), ev.getEndTime()));
+        return ev;
+    }
+
+    public void testCreateIdenticalEvents() {
+        loginAndCleanup(false);
+    }
+
+    private void createEvent(final int count) {
+        datamgr.createEvent(newEvent(), new AsyncCallback() {
+            public void onFailure(Throwable throwable) {
+                assertTrue("Exception creating event", false);
+            }
+
+            public void onSuccess(Object object) {
+                String pageName = (String) object;
+                if (count == 0) {
+                    firstPageName = pageName;
+                    createEvent(1);
+                } else {
+                    secondPageName = pageName;
+                    assertFalse("The second event overwrote the first one", firstPageName.equals(secondPageName));
+                    checkEvent(firstPageName, true);
+                }
+            }
+        });
+    }
+
+    private void checkEvent(final String pageName, final boolean first) {
+        datamgr.getEvent(pageName, new AsyncCallback() {
+            public void onFailure(Throwable throwable) {
+                assertTrue("Error retrieving event " + pageName, false);
+            }
+
+            public void onSuccess(Object object) {
+                XEvent ev = (XEvent) object;
+                assertEquals("Event page name is incorrect", pageName, ev.getName());
+                assertEquals("Event title is incorrect", "Team meeting", ev.getObject());
+                if (first)
+                    checkEvent(secondPageName, false);
+                else
+                    finishTest();
+            }
+        });
+    }
+}
@@ -16,20 +16,43 @@ import org.xwiki.component.phase.LogEnabled;
 import org.xwiki.component.util.ReflectionUtils;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Component Manager which can be used concurrently. Looking up a singleton which is already initialized doesn't take
+ * any lock. Singletons are created, and components registered, unregistered and released, while holding a single
+ * lock, so that a singleton is only created once and that a component looking up its dependencies while it's created
+ * can't deadlock with another thread creating them.
+ */
 public abstract class AbstractComponentManager implements ComponentManager
 {
     private ComponentEventManager eventManager;
 
-    private Map<RoleHint< ? >, ComponentDescriptor< ? >> descriptors =
-        new HashMap<RoleHint< ? >, ComponentDescriptor< ? >>();
+    private ConcurrentMap<RoleHint< ? >, ComponentDescriptor< ? >> descriptors =
+        new ConcurrentHashMap<RoleHint< ? >, ComponentDescriptor< ? >>();
+
+    /**
+     * The descriptors by role class name. It's possible Class reference are not the same when it's coming from
+     * different ClassLoader so roles are compared by class name.
+     */
+    private ConcurrentMap<String, ConcurrentMap<RoleHint< ? >, ComponentDescriptor< ? >>> descriptorsByRole =
+        new ConcurrentHashMap<String, ConcurrentMap<RoleHint< ? >, ComponentDescriptor< ? >>>();
+
+    /**
+     * Held while a singleton is created and while the components are registered, unregistered or released.
+     */
+    private final Object creationLock = new Object();
 
     private ComponentManager parent;
 
-    // Delegate storage of components to classes extending this one.
+    // Delegate storage of components to classes extending this one. Since lookups don't hold any lock these methods
+    // can be called concurrently and must be thread safe, the components are only changed while holding the creation
+    // lock though.
     protected abstract <T> boolean hasComponent(RoleHint<T> roleHint);
     protected abstract <T> T getComponent(RoleHint<T> roleHint) throws ComponentLookupException;
     protected abstract <T> void registerComponent(RoleHint<T> roleHint, Object instance);
@@ -87,18 +110,12 @@ public abstract class AbstractComponentManager implements ComponentManager
     public <T> List<T> lookupList(Class<T> role) throws ComponentLookupException
     {
         List<T> objects = new ArrayList<T>();
-        synchronized (this) {
-            for (RoleHint< ? > roleHint : this.descriptors.keySet()) {
-                // It's possible Class reference are not the same when it's coming form different ClassLoader so we
-                // compare class names
-                if (roleHint.getRole().getName().equals(role.getName())) {
-                    objects.add(initialize((RoleHint<T>) roleHint));
-                }
-            }
-            // Add parent's list of components
-            if (getParent() != null) {
-                objects.addAll(getParent().lookupList(role));
-            }
+        for (RoleHint< ? > roleHint : getDescriptors(role).keySet()) {
+            objects.add(initialize((RoleHint<T>) roleHint));
+        }
+        // Add parent's list of components
+        if (getParent() != null) {
+            objects.addAll(getParent().lookupList(role));
         }
         return objects;
     }
@@ -112,21 +129,15 @@ public abstract class AbstractComponentManager implements ComponentManager
     public <T> Map<String, T> lookupMap(Class<T> role) throws ComponentLookupException
     {
         Map<String, T> objects = new HashMap<String, T>();
-        synchronized (this) {
-            for (RoleHint< ? > roleHint : this.descriptors.keySet()) {
-                // It's possible Class reference are not the same when it coming for different ClassLoader so we
-                // compare class names
-                if (roleHint.getRole().getName().equals(role.getName())) {
-                    objects.put(roleHint.getHint(), initialize((RoleHint<T>) roleHint));
-                }
-            }
-            // Add parent's list of components
-            if (getParent() != null) {
-                // If the hint already exists in the children Component Manager then don't add the one from the parent.
-                for (Map.Entry<String, T> entry : getParent().lookupMap(role).entrySet()) {
-                    if (!objects.containsKey(entry.getKey())) {
-                        objects.put(entry.getKey(), entry.getValue());
-                    }
+        for (RoleHint< ? > roleHint : getDescriptors(role).keySet()) {
+            objects.put(roleHint.getHint(), initialize((RoleHint<T>) roleHint));
+        }
+        // Add parent's list of components
+        if (getParent() != null) {
+            // If the hint already exists in the children Component Manager then don't add the one from the parent.
+            for (Map.Entry<String, T> entry : getParent().lookupMap(role).entrySet()) {
+                if (!objects.containsKey(entry.getKey())) {
+                    objects.put(entry.getKey(), entry.getValue());
                 }
             }
         }
@@ -151,10 +162,21 @@ public abstract class AbstractComponentManager implements ComponentManager
      */
     public <T> void registerComponent(ComponentDescriptor<T> componentDescriptor, T componentInstance)
     {
-        synchronized (this) {
-            RoleHint<T> roleHint = new RoleHint<T>(componentDescriptor.getRole(), componentDescriptor.getRoleHint());
+        RoleHint<T> roleHint = new RoleHint<T>(componentDescriptor.getRole(), componentDescriptor.getRoleHint());
 
+        synchronized (this.creationLock) {
             this.descriptors.put(roleHint, componentDescriptor);
+            ConcurrentMap<RoleHint< ? >, ComponentDescriptor< ? >> roleDescriptors =
+                this.descriptorsByRole.get(roleHint.getRole().getName());
+            if (roleDescriptors == null) {
+                roleDescriptors = new ConcurrentHashMap<RoleHint< ? >, ComponentDescriptor< ? >>();
+                ConcurrentMap<RoleHint< ? >, ComponentDescriptor< ? >> existing =
+                    this.descriptorsByRole.putIfAbsent(roleHint.getRole().getName(), roleDescriptors);
+                if (existing != null) {
+                    roleDescriptors = existing;
+                }
+            }
+            roleDescriptors.put(roleHint, componentDescriptor);
 
             if (componentInstance != null) {
                 // Set initial instance of the component
@@ -180,14 +202,13 @@ public abstract class AbstractComponentManager implements ComponentManager
     public void unregisterComponent(Class< ? > role, String roleHint)
     {
         ComponentDescriptor< ? > descriptor;
+        RoleHint< ? > roleHintKey = new RoleHint(role, roleHint);
 
-        synchronized (this) {
-            RoleHint< ? > roleHintKey = new RoleHint(role, roleHint);
-
-            descriptor = this.descriptors.get(roleHintKey);
+        synchronized (this.creationLock) {
+            descriptor = this.descriptors.remove(roleHintKey);
 
             if (descriptor != null) {
-                this.descriptors.remove(roleHintKey);
+                getDescriptors(role).remove(roleHintKey);
                 removeComponent(roleHintKey);
             }
         }
@@ -206,9 +227,7 @@ public abstract class AbstractComponentManager implements ComponentManager
     @SuppressWarnings("unchecked")
     public <T> ComponentDescriptor<T> getComponentDescriptor(Class<T> role, String roleHint)
     {
-        synchronized (this) {
-            return (ComponentDescriptor<T>) this.descriptors.get(new RoleHint<T>(role, roleHint));
-        }
+        return (ComponentDescriptor<T>) this.descriptors.get(new RoleHint<T>(role, roleHint));
     }
 
     /**
@@ -219,17 +238,11 @@ public abstract class AbstractComponentManager implements ComponentManager
     @SuppressWarnings("unchecked")
     public <T> List<ComponentDescriptor<T>> getComponentDescriptorList(Class<T> role)
     {
-        synchronized (this) {
-            List<ComponentDescriptor<T>> results = new ArrayList<ComponentDescriptor<T>>();
-            for (Map.Entry<RoleHint< ? >, ComponentDescriptor< ? >> entry : this.descriptors.entrySet()) {
-                // It's possible Class reference are not the same when it coming for different ClassLoader so we
-                // compare class names
-                if (entry.getKey().getRole().getName().equals(role.getName())) {
-                    results.add((ComponentDescriptor<T>) entry.getValue());
-                }
-            }
-            return results;
+        List<ComponentDescriptor<T>> results = new ArrayList<ComponentDescriptor<T>>();
+        for (ComponentDescriptor< ? > descriptor : getDescriptors(role).values()) {
+            results.add((ComponentDescriptor<T>) descriptor);
         }
+        return results;
     }
 
     /**
@@ -239,7 +252,8 @@ public abstract class AbstractComponentManager implements ComponentManager
      */
     public <T> void release(T component) throws ComponentLifecycleException
     {
-        synchronized (this) {
+        // The components don't change while they're iterated
+        synchronized (this.creationLock) {
             RoleHint< ? > key = null;
             for (Map.Entry<RoleHint< ? >, Object> entry : getComponents().entrySet()) {
                 if (entry.getValue() == component) {
@@ -295,35 +309,55 @@ public abstract class AbstractComponentManager implements ComponentManager
         this.parent = parentComponentManager;
     }
 
+    /**
+     * @return the descriptors of the components implementing the role, the map is empty if there are none
+     */
+    private Map<RoleHint< ? >, ComponentDescriptor< ? >> getDescriptors(Class< ? > role)
+    {
+        Map<RoleHint< ? >, ComponentDescriptor< ? >> roleDescriptors = this.descriptorsByRole.get(role.getName());
+        if (roleDescriptors == null) {
+            return Collections.emptyMap();
+        }
+        return roleDescriptors;
+    }
+
     @SuppressWarnings("unchecked")
     private <T> T initialize(RoleHint<T> roleHint) throws ComponentLookupException
     {
-        T instance;
-        synchronized (this) {
-            // If the instance exists return it
+        // If the instance exists return it
+        T instance = getComponent(roleHint);
+        if (instance != null) {
+            return instance;
+        }
+
+        ComponentDescriptor<T> descriptor = (ComponentDescriptor<T>) this.descriptors.get(roleHint);
+        if (descriptor == null) {
+            // Look for the component in the parent Component Manager (if there's a parent)
+            ComponentManager parent = getParent();
+            if (parent != null) {
+                return getParent().lookup(roleHint.getRole(), roleHint.getHint());
+            } else {
+                throw new ComponentLookupException("Can't find descriptor for the component [" + roleHint + "]");
+            }
+        }
+
+        // Components which aren't singletons are created on each lookup, there's nothing to guard
+        if (descriptor.getInstantiationStrategy() != ComponentInstantiationStrategy.SINGLETON) {
+            return createInstance(roleHint, descriptor);
+        }
+
+        // The lock is reentrant, the dependencies of the singleton are looked up while holding it
+        synchronized (this.creationLock) {
+            // Another thread may have initialized it, or replaced or unregistered the descriptor, while we waited
             instance = getComponent(roleHint);
             if (instance == null) {
-                // If there's a component descriptor, create the instance
-                ComponentDescriptor<T> descriptor = (ComponentDescriptor<T>) this.descriptors.get(roleHint);
-                if (descriptor != null) {
-                    try {
-                        instance = createInstance(descriptor);
-                        if (instance == null) {
-                            throw new ComponentLookupException("Failed to lookup component [" + roleHint + "]");
-                        } else if (this.descriptors.get(roleHint).getInstantiationStrategy() == ComponentInstantiationStrategy.SINGLETON) {
-                            registerComponent(roleHint, instance);
-                        }
-                    } catch (Exception e) {
-                        throw new ComponentLookupException("Failed to lookup component [" + roleHint + "]", e);
-                    }
-                } else {
-                    // Look for the component in the parent Component Manager (if there's a parent)
-                    ComponentManager parent = getParent();
-                    if (parent != null) {
-                        instance = getParent().lookup(roleHint.getRole(), roleHint.getHint());
-                    } else {
-                        throw new ComponentLookupException("Can't find descriptor for the component [" + roleHint + "]");
-                    }
+                descriptor = (ComponentDescriptor<T>) this.descriptors.get(roleHint);
+                if (descriptor == null) {
+                    throw new ComponentLookupException("Can't find descriptor for the component [" + roleHint + "]");
+                }
+                instance = createInstance(roleHint, descriptor);
+                if (descriptor.getInstantiationStrategy() == ComponentInstantiationStrategy.SINGLETON) {
+                    registerComponent(roleHint, instance);
                 }
             }
         }
@@ -331,6 +365,21 @@ public abstract class AbstractComponentManager implements ComponentManager
         return instance;
     }
 
+    private <T> T createInstance(RoleHint<T> roleHint, ComponentDescriptor<T> descriptor)
+        throws ComponentLookupException
+    {
+        T instance;
+        try {
+            instance = createInstance(descriptor);
+        } catch (Exception e) {
+            throw new ComponentLookupException("Failed to lookup component [" + roleHint + "]", e);
+        }
+        if (instance == null) {
+            throw new ComponentLookupException("Failed to lookup component [" + roleHint + "]");
+        }
+        return instance;
+    }
+
     private <T> T createInstance(ComponentDescriptor<T> descriptor) throws Exception
     {
         T instance = descriptor.getImplementation().newInstance();
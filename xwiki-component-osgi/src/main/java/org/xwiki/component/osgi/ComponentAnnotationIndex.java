@@ -0,0 +1,312 @@
+package org.xwiki.component.osgi;
+
+import org.osgi.framework.Bundle;
+import org.xwiki.component.descriptor.ComponentDependency;
+import org.xwiki.component.descriptor.ComponentDescriptor;
+import org.xwiki.component.descriptor.ComponentInstantiationStrategy;
+import org.xwiki.component.descriptor.DefaultComponentDependency;
+import org.xwiki.component.descriptor.DefaultComponentDescriptor;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.URL;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+import java.util.zip.ZipFile;
+
+/**
+ * Remembers the component descriptors found by the {@link org.xwiki.component.annotation.ComponentAnnotationLoader}
+ * in each bundle, by checksum of the bundle, so that the classes of a bundle which didn't change since the previous
+ * start don't need to be loaded and scanned for annotations again.
+ * <p>
+ * Format of the index file, one line per bundle followed by one line per component descriptor and one line per
+ * dependency of the descriptor:
+ * <pre>
+ * bundle[tab]sha-1
+ * component[tab]role[tab]hint[tab]implementation[tab]instantiation strategy
+ * dependency[tab]field name[tab]role[tab]hint[tab]mapping type
+ * </pre>
+ */
+public class ComponentAnnotationIndex
+{
+    private static final String ENCODING = "UTF-8";
+
+    private static final String TAB = "\t";
+
+    private static final String BUNDLE = "bundle";
+
+    private static final String COMPONENT = "component";
+
+    private static final String DEPENDENCY = "dependency";
+
+    /** Written for values which are null since an empty string is a valid hint. */
+    private static final String NULL = "\u0000";
+
+    /** What is recorded about a dependency, classes are kept by name since they can only be loaded by the bundle. */
+    private static class DependencyEntry
+    {
+        private String name;
+
+        private String role;
+
+        private String hint;
+
+        private String mappingType;
+    }
+
+    /** What is recorded about a component descriptor. */
+    private static class DescriptorEntry
+    {
+        private String role;
+
+        private String hint;
+
+        private String implementation;
+
+        private String instantiationStrategy;
+
+        private final List<DependencyEntry> dependencies = new ArrayList<DependencyEntry>();
+    }
+
+    private final File indexFile;
+
+    /** The recorded descriptors by bundle checksum, only bundles seen since the index was loaded are saved. */
+    private final Map<String, List<DescriptorEntry>> loaded = new ConcurrentHashMap<String, List<DescriptorEntry>>();
+
+    private final Map<String, List<DescriptorEntry>> seen = new ConcurrentHashMap<String, List<DescriptorEntry>>();
+
+    /**
+     * @param indexFile the file to load the index from and save it to, it need not exist
+     */
+    public ComponentAnnotationIndex(File indexFile) throws IOException
+    {
+        this.indexFile = indexFile;
+        if (indexFile.exists()) {
+            load();
+        }
+    }
+
+    private void load() throws IOException
+    {
+        BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(this.indexFile), ENCODING));
+        try {
+            List<DescriptorEntry> bundle = null;
+            DescriptorEntry descriptor = null;
+            String line;
+            while ((line = in.readLine()) != null) {
+                String[] fields = line.split(TAB, -1);
+                if (BUNDLE.equals(fields[0]) && fields.length == 2) {
+                    bundle = new ArrayList<DescriptorEntry>();
+                    descriptor = null;
+                    this.loaded.put(fields[1], bundle);
+                } else if (COMPONENT.equals(fields[0]) && fields.length == 5 && bundle != null) {
+                    descriptor = new DescriptorEntry();
+                    descriptor.role = fields[1];
+                    descriptor.hint = decode(fields[2]);
+                    descriptor.implementation = fields[3];
+                    descriptor.instantiationStrategy = decode(fields[4]);
+                    bundle.add(descriptor);
+                } else if (DEPENDENCY.equals(fields[0]) && fields.length == 5 && descriptor != null) {
+                    DependencyEntry dependency = new DependencyEntry();
+                    dependency.name = fields[1];
+                    dependency.role = fields[2];
+                    dependency.hint = decode(fields[3]);
+                    dependency.mappingType = decode(fields[4]);
+                    descriptor.dependencies.add(dependency);
+                }
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Write the descriptors of the bundles seen since the index was loaded, the others are forgotten.
+     */
+    public void save() throws IOException
+    {
+        if (this.indexFile.getAbsoluteFile().getParentFile() != null) {
+            this.indexFile.getAbsoluteFile().getParentFile().mkdirs();
+        }
+        Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(this.indexFile), ENCODING));
+        try {
+            for (Map.Entry<String, List<DescriptorEntry>> bundle : this.seen.entrySet()) {
+                out.write(BUNDLE + TAB + bundle.getKey() + "\n");
+                for (DescriptorEntry descriptor : bundle.getValue()) {
+                    out.write(COMPONENT + TAB + descriptor.role + TAB + encode(descriptor.hint) + TAB
+                        + descriptor.implementation + TAB + encode(descriptor.instantiationStrategy) + "\n");
+                    for (DependencyEntry dependency : descriptor.dependencies) {
+                        out.write(DEPENDENCY + TAB + dependency.name + TAB + dependency.role + TAB
+                            + encode(dependency.hint) + TAB + encode(dependency.mappingType) + "\n");
+                    }
+                }
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * @param checksum the checksum of the bundle
+     * @param bundle the bundle to load the classes of the descriptors from
+     * @return the descriptors recorded for the bundle or null if the bundle isn't in the index or if a class can't be
+     *         loaded anymore
+     */
+    @SuppressWarnings("unchecked")
+    public List<ComponentDescriptor< ? >> getDescriptors(String checksum, Bundle bundle)
+    {
+        List<DescriptorEntry> entries = this.loaded.get(checksum);
+        if (entries == null) {
+            return null;
+        }
+
+        List<ComponentDescriptor< ? >> descriptors = new ArrayList<ComponentDescriptor< ? >>(entries.size());
+        try {
+            for (DescriptorEntry entry : entries) {
+                DefaultComponentDescriptor descriptor = new DefaultComponentDescriptor();
+                descriptor.setRole(bundle.loadClass(entry.role));
+                descriptor.setRoleHint(entry.hint);
+                descriptor.setImplementation(bundle.loadClass(entry.implementation));
+                if (entry.instantiationStrategy != null) {
+                    descriptor.setInstantiationStrategy(
+                        ComponentInstantiationStrategy.valueOf(entry.instantiationStrategy));
+                }
+                for (DependencyEntry dependencyEntry : entry.dependencies) {
+                    DefaultComponentDependency dependency = new DefaultComponentDependency();
+                    dependency.setName(dependencyEntry.name);
+                    dependency.setRole(bundle.loadClass(dependencyEntry.role));
+                    dependency.setRoleHint(dependencyEntry.hint);
+                    if (dependencyEntry.mappingType != null) {
+                        dependency.setMappingType(bundle.loadClass(dependencyEntry.mappingType));
+                    }
+                    descriptor.addComponentDependency(dependency);
+                }
+                descriptors.add(descriptor);
+            }
+        } catch (Exception e) {
+            // The bundle content didn't change but what it imports did, scan it again.
+            return null;
+        }
+
+        this.seen.put(checksum, entries);
+        return descriptors;
+    }
+
+    /**
+     * Record the descriptors found in a bundle.
+     *
+     * @param checksum the checksum of the bundle
+     * @param descriptors the descriptors registered for the bundle, in registration order
+     */
+    public void putDescriptors(String checksum, List<ComponentDescriptor< ? >> descriptors)
+    {
+        List<DescriptorEntry> entries = new ArrayList<DescriptorEntry>(descriptors.size());
+        for (ComponentDescriptor< ? > descriptor : descriptors) {
+            DescriptorEntry entry = new DescriptorEntry();
+            entry.role = descriptor.getRole().getName();
+            entry.hint = descriptor.getRoleHint();
+            entry.implementation = descriptor.getImplementation().getName();
+            entry.instantiationStrategy =
+                descriptor.getInstantiationStrategy() == null ? null : descriptor.getInstantiationStrategy().name();
+            for (ComponentDependency< ? > dependency : descriptor.getComponentDependencies()) {
+                DependencyEntry dependencyEntry = new DependencyEntry();
+                dependencyEntry.name = dependency.getName();
+                dependencyEntry.role = dependency.getRole().getName();
+                dependencyEntry.hint = dependency.getRoleHint();
+                dependencyEntry.mappingType =
+                    dependency.getMappingType() == null ? null : dependency.getMappingType().getName();
+                entry.dependencies.add(dependencyEntry);
+            }
+            entries.add(entry);
+        }
+        this.seen.put(checksum, entries);
+    }
+
+    /**
+     * @return the SHA-1 of the content the bundle was installed from, in hexadecimal, or null if the bundle has no
+     *         such content, like the system bundle. For a jar file only the names, sizes and CRCs of the entries are
+     *         hashed, this identifies the content as well without reading all of it.
+     */
+    public static String getChecksum(Bundle bundle)
+    {
+        try {
+            URL location = new URL(bundle.getLocation());
+            MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            File file = "file".equals(location.getProtocol()) ? new File(location.toURI()) : null;
+            if (file != null && file.isDirectory()) {
+                return null;
+            } else if (file == null || !digestEntries(file, digest)) {
+                digestContent(location, digest);
+            }
+
+            StringBuilder hex = new StringBuilder();
+            for (byte b : digest.digest()) {
+                hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+            }
+            return hex.toString();
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    /**
+     * @return false if the file isn't a zip file
+     */
+    private static boolean digestEntries(File file, MessageDigest digest) throws IOException
+    {
+        ZipFile zip;
+        try {
+            zip = new ZipFile(file);
+        } catch (ZipException e) {
+            return false;
+        }
+        try {
+            for (Enumeration< ? extends ZipEntry> entries = zip.entries(); entries.hasMoreElements();) {
+                ZipEntry entry = entries.nextElement();
+                digest.update((entry.getName() + TAB + entry.getSize() + TAB + entry.getCrc() + "\n")
+                    .getBytes(ENCODING));
+            }
+        } finally {
+            zip.close();
+        }
+        return true;
+    }
+
+    private static void digestContent(URL location, MessageDigest digest) throws IOException
+    {
+        InputStream in = location.openStream();
+        try {
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                digest.update(buffer, 0, read);
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    private static String encode(String value)
+    {
+        return value == null ? NULL : value;
+    }
+
+    private static String decode(String value)
+    {
+        return NULL.equals(value) ? null : value;
+    }
+}
@@ -7,16 +7,28 @@ import org.osgi.framework.BundleContext;
 import org.osgi.framework.BundleException;
 import org.osgi.framework.launch.Framework;
 import org.osgi.framework.launch.FrameworkFactory;
+import org.osgi.framework.ServiceReference;
+import org.osgi.service.packageadmin.PackageAdmin;
 import org.xwiki.component.annotation.ComponentAnnotationLoader;
+import org.xwiki.component.descriptor.ComponentDescriptor;
 import org.xwiki.component.logging.CommonsLoggingLogger;
 import org.xwiki.component.manager.ComponentManager;
 
 import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
 import java.io.InputStreamReader;
 import java.net.URL;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 public class OsgiBootstrap implements BundleActivator
 {
@@ -24,11 +36,40 @@ public class OsgiBootstrap implements BundleActivator
 
     private ModuleRepository moduleRepository;
 
+    /**
+     * Number of threads installing and scanning the bundles, 1 to do everything in the calling thread.
+     */
+    private int parallelism = 1;
+
+    /**
+     * Where to remember the components found in each bundle between two starts, null to always scan the bundles.
+     */
+    private File annotationIndexFile;
+
     public OsgiBootstrap(ModuleRepository moduleRepository)
     {
         this.moduleRepository = moduleRepository;
     }
 
+    /**
+     * @param parallelism the number of threads installing the modules and looking for component annotations in
+     *            them, 1 (the default) to do everything in the calling thread
+     */
+    public void setParallelism(int parallelism)
+    {
+        this.parallelism = Math.max(1, parallelism);
+    }
+
+    /**
+     * @param annotationIndexFile the file where the components found in each module are remembered, so that the
+     *            classes of the modules which didn't change since the previous start aren't scanned again, null (the
+     *            default) to always scan them
+     */
+    public void setAnnotationIndex(File annotationIndexFile)
+    {
+        this.annotationIndexFile = annotationIndexFile;
+    }
+
     /**
      * Start the OSGi system, load all component annotations and register them as components against the OSGi
      * runtime.
@@ -49,23 +90,149 @@ public class OsgiBootstrap implements BundleActivator
             throw new RuntimeException("Failed to initialize OSGi framework", e);
         }
 
-        // Step 2: Start XWiki Modules
-        for (URL moduleURL : this.moduleRepository.getModuleURLs()) {
+        ExecutorService executor = this.parallelism > 1 ? Executors.newFixedThreadPool(this.parallelism) : null;
+        try {
+            // Step 2: Start XWiki Modules
+            installModules(executor);
+
+            // Step 3: For each XWiki Module, look for component annotations and register components accordingly
+            registerComponents(executor);
+        } finally {
+            if (executor != null) {
+                executor.shutdownNow();
+            }
+        }
+    }
+
+    private void installModules(ExecutorService executor)
+    {
+        List<Callable<Bundle>> installs = new ArrayList<Callable<Bundle>>();
+        for (final URL moduleURL : this.moduleRepository.getModuleURLs()) {
+            installs.add(new Callable<Bundle>()
+            {
+                public Bundle call()
+                {
+                    try {
+                        // InstallBundle will install the module if it's not already installed. If it's already
+                        // installed nothing will happen.
+                        return getBundleContext().installBundle(moduleURL.toExternalForm());
+                    } catch (BundleException e) {
+                        throw new RuntimeException("Failed to install bundle [" + moduleURL + "]", e);
+                    }
+                }
+            });
+        }
+        invokeAll(executor, installs);
+
+        if (executor != null) {
+            // The framework resolves one bundle at a time whatever the number of threads asking, resolve all the
+            // installed bundles in a single pass instead of letting each class loading trigger a resolution.
+            ServiceReference reference = getBundleContext().getServiceReference(PackageAdmin.class.getName());
+            if (reference != null) {
+                try {
+                    ((PackageAdmin) getBundleContext().getService(reference)).resolveBundles(null);
+                } finally {
+                    getBundleContext().ungetService(reference);
+                }
+            }
+        }
+    }
+
+    private void registerComponents(ExecutorService executor)
+    {
+        final ComponentAnnotationIndex index;
+        try {
+            index = this.annotationIndexFile != null ? new ComponentAnnotationIndex(this.annotationIndexFile) : null;
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to read component annotation index [" + this.annotationIndexFile
+                + "]", e);
+        }
+
+        List<Callable<Bundle>> scans = new ArrayList<Callable<Bundle>>();
+        for (final Bundle bundle : getBundleContext().getBundles()) {
+            scans.add(new Callable<Bundle>()
+            {
+                public Bundle call() throws Exception
+                {
+                    registerBundleComponents(bundle, index);
+                    return bundle;
+                }
+            });
+        }
+        invokeAll(executor, scans);
+
+        if (index != null) {
             try {
-                // InstallBundle will install the module if it's not already installed. If it's already installed
-                // nothing will happen.
-                getBundleContext().installBundle(moduleURL.toExternalForm());
-            } catch (BundleException e) {
-                throw new RuntimeException("Failed to install bundle [" + moduleURL + "]", e);
+                index.save();
+            } catch (IOException e) {
+                // Only the next start is slower
+                new CommonsLoggingLogger(getClass()).warn("Failed to save component annotation index ["
+                    + this.annotationIndexFile + "]", e);
+            }
+        }
+    }
+
+    private void registerBundleComponents(Bundle bundle, ComponentAnnotationIndex index) throws Exception
+    {
+        ComponentManager cm = new OsgiComponentManager(bundle.getBundleContext());
+        String checksum = index != null ? ComponentAnnotationIndex.getChecksum(bundle) : null;
+        if (checksum == null) {
+            scan(bundle, cm);
+            return;
+        }
+
+        List<ComponentDescriptor< ? >> descriptors = index.getDescriptors(checksum, bundle);
+        if (descriptors != null) {
+            for (ComponentDescriptor< ? > descriptor : descriptors) {
+                cm.registerComponent(descriptor);
             }
+        } else {
+            final List<ComponentDescriptor< ? >> found = new ArrayList<ComponentDescriptor< ? >>();
+            scan(bundle, new OsgiComponentManager(bundle.getBundleContext())
+            {
+                @Override
+                public <T> void registerComponent(ComponentDescriptor<T> componentDescriptor, T componentInstance)
+                {
+                    found.add(componentDescriptor);
+                    super.registerComponent(componentDescriptor, componentInstance);
+                }
+            });
+            index.putDescriptors(checksum, found);
         }
+    }
 
-        // Step 3: For each XWiki Module, look for component annotations and register components accordingly
+    private void scan(Bundle bundle, ComponentManager cm)
+    {
+        // The loader keeps no state between two calls but isn't meant to be shared between threads
         ComponentAnnotationLoader loader = new ComponentAnnotationLoader();
         loader.enableLogging(new CommonsLoggingLogger(loader.getClass()));
-        for (Bundle bundle : getBundleContext().getBundles()) {
-            ComponentManager cm = new OsgiComponentManager(bundle.getBundleContext());
-            loader.initialize(cm, new BundleProxyClassLoader(bundle));
+        loader.initialize(cm, new BundleProxyClassLoader(bundle));
+    }
+
+    /**
+     * Run the tasks in the calling thread if there's no executor, wait for all of them otherwise.
+     */
+    private <T> void invokeAll(ExecutorService executor, List<Callable<T>> tasks)
+    {
+        try {
+            if (executor == null) {
+                for (Callable<T> task : tasks) {
+                    task.call();
+                }
+            } else {
+                for (Future<T> future : executor.invokeAll(tasks)) {
+                    future.get();
+                }
+            }
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new RuntimeException(e.getCause());
+        } catch (RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new RuntimeException(e);
         }
     }
 
@@ -0,0 +1,255 @@
+package org.xwiki.component.embed;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.xwiki.component.descriptor.ComponentInstantiationStrategy;
+import org.xwiki.component.descriptor.DefaultComponentDependency;
+import org.xwiki.component.descriptor.DefaultComponentDescriptor;
+import org.xwiki.component.internal.RoleHint;
+import org.xwiki.component.phase.Initializable;
+import org.xwiki.component.phase.InitializationException;
+
+public class AbstractComponentManagerTest
+{
+    public interface Role
+    {
+    }
+
+    public interface OtherRole
+    {
+    }
+
+    public interface DependentRole
+    {
+    }
+
+    public static class SlowSingleton implements Role, Initializable
+    {
+        static final AtomicInteger CREATED = new AtomicInteger();
+
+        static CountDownLatch started;
+
+        static CountDownLatch release;
+
+        public void initialize() throws InitializationException
+        {
+            CREATED.incrementAndGet();
+            started.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                throw new InitializationException("Interrupted", e);
+            }
+        }
+    }
+
+    public static class OtherSingleton implements OtherRole
+    {
+    }
+
+    public static class OtherPerLookup implements OtherRole
+    {
+    }
+
+    public static class DependentSingleton implements DependentRole
+    {
+        Role slow;
+    }
+
+    /**
+     * Keeps the components in a concurrent map, like a Component Manager used by several threads has to.
+     */
+    private static class MapComponentManager extends AbstractComponentManager
+    {
+        private final Map<RoleHint< ? >, Object> components = new ConcurrentHashMap<RoleHint< ? >, Object>();
+
+        @Override
+        protected <T> boolean hasComponent(RoleHint<T> roleHint)
+        {
+            return this.components.containsKey(roleHint);
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        protected <T> T getComponent(RoleHint<T> roleHint)
+        {
+            return (T) this.components.get(roleHint);
+        }
+
+        @Override
+        protected <T> void registerComponent(RoleHint<T> roleHint, Object instance)
+        {
+            this.components.put(roleHint, instance);
+        }
+
+        @Override
+        protected <T> void removeComponent(RoleHint<T> roleHint)
+        {
+            this.components.remove(roleHint);
+        }
+
+        @Override
+        protected Map<RoleHint< ? >, Object> getComponents()
+        {
+            return this.components;
+        }
+    }
+
+    private MapComponentManager componentManager;
+
+    private ExecutorService executor;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        this.componentManager = new MapComponentManager();
+        this.executor = Executors.newFixedThreadPool(16);
+        SlowSingleton.CREATED.set(0);
+        SlowSingleton.started = new CountDownLatch(1);
+        SlowSingleton.release = new CountDownLatch(1);
+
+        register(Role.class, "slow", SlowSingleton.class, ComponentInstantiationStrategy.SINGLETON);
+        register(OtherRole.class, "default", OtherSingleton.class, ComponentInstantiationStrategy.SINGLETON);
+        register(OtherRole.class, "perlookup", OtherPerLookup.class, ComponentInstantiationStrategy.PER_LOOKUP);
+    }
+
+    @After
+    public void tearDown()
+    {
+        SlowSingleton.release.countDown();
+        this.executor.shutdownNow();
+    }
+
+    private <T> void register(Class<T> role, String hint, Class< ? extends T> implementation,
+        ComponentInstantiationStrategy strategy) throws Exception
+    {
+        DefaultComponentDescriptor<T> descriptor = new DefaultComponentDescriptor<T>();
+        descriptor.setRole(role);
+        descriptor.setRoleHint(hint);
+        descriptor.setImplementation(implementation);
+        descriptor.setInstantiationStrategy(strategy);
+        this.componentManager.registerComponent(descriptor);
+    }
+
+    private Future<Role> lookupSlow()
+    {
+        return this.executor.submit(new Callable<Role>()
+        {
+            public Role call() throws Exception
+            {
+                return componentManager.lookup(Role.class, "slow");
+            }
+        });
+    }
+
+    @Test
+    public void testSingletonIsCreatedOnceByConcurrentLookups() throws Exception
+    {
+        List<Future<Role>> lookups = new ArrayList<Future<Role>>();
+        for (int i = 0; i < 16; i++) {
+            lookups.add(lookupSlow());
+        }
+        Assert.assertTrue(SlowSingleton.started.await(5, TimeUnit.SECONDS));
+        SlowSingleton.release.countDown();
+
+        Role instance = lookups.get(0).get(5, TimeUnit.SECONDS);
+        for (Future<Role> lookup : lookups) {
+            Assert.assertSame(instance, lookup.get(5, TimeUnit.SECONDS));
+        }
+        Assert.assertEquals(1, SlowSingleton.CREATED.get());
+    }
+
+    @Test
+    public void testInitializationDoesNotBlockOtherLookups() throws Exception
+    {
+        OtherRole other = this.componentManager.lookup(OtherRole.class);
+
+        Future<Role> slow = lookupSlow();
+        Assert.assertTrue(SlowSingleton.started.await(5, TimeUnit.SECONDS));
+
+        // The slow singleton is being initialized by another thread
+        Future<OtherRole> lookup = this.executor.submit(new Callable<OtherRole>()
+        {
+            public OtherRole call() throws Exception
+            {
+                return componentManager.lookup(OtherRole.class);
+            }
+        });
+        Assert.assertSame(other, lookup.get(5, TimeUnit.SECONDS));
+        Assert.assertEquals(2, this.componentManager.getComponentDescriptorList(OtherRole.class).size());
+
+        SlowSingleton.release.countDown();
+        slow.get(5, TimeUnit.SECONDS);
+    }
+
+    @Test
+    public void testDependenciesAreLookedUpWhileTheSingletonIsCreated() throws Exception
+    {
+        DefaultComponentDependency<Role> dependency = new DefaultComponentDependency<Role>();
+        dependency.setRole(Role.class);
+        dependency.setRoleHint("slow");
+        dependency.setName("slow");
+        DefaultComponentDescriptor<DependentRole> descriptor = new DefaultComponentDescriptor<DependentRole>();
+        descriptor.setRole(DependentRole.class);
+        descriptor.setImplementation(DependentSingleton.class);
+        descriptor.addComponentDependency(dependency);
+        this.componentManager.registerComponent(descriptor);
+
+        Future<Role> slow = lookupSlow();
+        Assert.assertTrue(SlowSingleton.started.await(5, TimeUnit.SECONDS));
+        Future<DependentRole> dependent = this.executor.submit(new Callable<DependentRole>()
+        {
+            public DependentRole call() throws Exception
+            {
+                return componentManager.lookup(DependentRole.class);
+            }
+        });
+        SlowSingleton.release.countDown();
+
+        Assert.assertSame(slow.get(5, TimeUnit.SECONDS),
+            ((DependentSingleton) dependent.get(5, TimeUnit.SECONDS)).slow);
+        Assert.assertEquals(1, SlowSingleton.CREATED.get());
+    }
+
+    @Test
+    public void testReleasedSingletonIsCreatedAgain() throws Exception
+    {
+        OtherRole other = this.componentManager.lookup(OtherRole.class);
+        this.componentManager.release(other);
+
+        Assert.assertNotSame(other, this.componentManager.lookup(OtherRole.class));
+    }
+
+    @Test
+    public void testLookupListAndMapUseOnlyTheRoleDescriptors() throws Exception
+    {
+        List<OtherRole> list = this.componentManager.lookupList(OtherRole.class);
+        Assert.assertEquals(2, list.size());
+
+        Map<String, OtherRole> map = this.componentManager.lookupMap(OtherRole.class);
+        Assert.assertEquals(2, map.size());
+        Assert.assertTrue(map.get("default") instanceof OtherSingleton);
+        Assert.assertTrue(map.get("perlookup") instanceof OtherPerLookup);
+        Assert.assertSame(map.get("default"), this.componentManager.lookup(OtherRole.class));
+        Assert.assertNotSame(map.get("perlookup"), this.componentManager.lookup(OtherRole.class, "perlookup"));
+
+        this.componentManager.unregisterComponent(OtherRole.class, "perlookup");
+        Assert.assertEquals(1, this.componentManager.lookupList(OtherRole.class).size());
+        Assert.assertNull(this.componentManager.getComponentDescriptor(OtherRole.class, "perlookup"));
+        Assert.assertTrue(this.componentManager.lookupList(Runnable.class).isEmpty());
+    }
+}
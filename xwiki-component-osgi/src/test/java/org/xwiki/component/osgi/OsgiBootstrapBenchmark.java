@@ -0,0 +1,169 @@
+package org.xwiki.component.osgi;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.jar.Attributes;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+
+/**
+ * Measures the time {@link OsgiBootstrap#initialize()} takes with a synthetic repository of 200 modules: once the
+ * old way, once in parallel with an empty component annotation index and once in parallel with the index written by
+ * the previous start.
+ * <p>
+ * Every start runs in a new JVM in a new working directory, so that each one gets an empty Felix cache and pays for
+ * class loading as a real start would. Run it with the test classpath:
+ * <pre>
+ * java -cp target/classes:target/test-classes:[dependencies] org.xwiki.component.osgi.OsgiBootstrapBenchmark
+ * </pre>
+ * This isn't a unit test, it's not run by the build.
+ */
+public class OsgiBootstrapBenchmark
+{
+    private static final int MODULES = 200;
+
+    /** Resources added to each module so that installing it copies and checksums a realistic amount of data. */
+    private static final int PADDING_RESOURCES = 20;
+
+    private static final int PADDING_SIZE = 8 * 1024;
+
+    private static final String COMPONENT_CLASS = SyntheticComponent.class.getName();
+
+    /**
+     * The component of each synthetic module, each module has its own copy of the class.
+     */
+    public static class SyntheticComponent implements Runnable
+    {
+        public void run()
+        {
+        }
+    }
+
+    public static void main(String[] args) throws Exception
+    {
+        if (args.length > 0) {
+            start(new File(args[0]), Integer.parseInt(args[1]), args.length > 2 ? new File(args[2]) : null);
+            return;
+        }
+
+        File root = File.createTempFile("osgi-bootstrap-benchmark", "");
+        root.delete();
+        File repository = new File(root, "modules");
+        generateRepository(repository);
+        File index = new File(root, "components.idx");
+        int threads = Math.max(2, Runtime.getRuntime().availableProcessors());
+
+        System.out.println(MODULES + " modules, " + threads + " threads");
+        System.out.println("sequential:    " + fork(root, "sequential", repository, 1, null) + " ms");
+        System.out.println("parallel cold: " + fork(root, "cold", repository, threads, index) + " ms");
+        System.out.println("parallel warm: " + fork(root, "warm", repository, threads, index) + " ms");
+    }
+
+    private static void start(File repository, int parallelism, File index)
+    {
+        long start = System.nanoTime();
+        OsgiBootstrap bootstrap = new OsgiBootstrap(new LocalModuleRepository(repository));
+        bootstrap.setParallelism(parallelism);
+        bootstrap.setAnnotationIndex(index);
+        bootstrap.initialize();
+        System.out.println((System.nanoTime() - start) / 1000000);
+
+        // The framework threads would keep the JVM alive
+        System.exit(0);
+    }
+
+    private static String fork(File root, String name, File repository, int parallelism, File index)
+        throws Exception
+    {
+        File workingDirectory = new File(root, name);
+        workingDirectory.mkdirs();
+
+        List<String> command = new ArrayList<String>();
+        command.add(new File(System.getProperty("java.home"), "bin/java").getPath());
+        // Same JVM options, the heap size for instance
+        command.addAll(ManagementFactory.getRuntimeMXBean().getInputArguments());
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        command.add(OsgiBootstrapBenchmark.class.getName());
+        command.add(repository.getAbsolutePath());
+        command.add(String.valueOf(parallelism));
+        if (index != null) {
+            command.add(index.getAbsolutePath());
+        }
+        Process process = new ProcessBuilder(command).directory(workingDirectory).redirectErrorStream(true).start();
+
+        BufferedReader output = new BufferedReader(new InputStreamReader(process.getInputStream()));
+        StringBuilder log = new StringBuilder();
+        String line;
+        String last = null;
+        while ((line = output.readLine()) != null) {
+            log.append(line).append('\n');
+            last = line;
+        }
+        if (process.waitFor() != 0) {
+            throw new RuntimeException("Start [" + name + "] failed:\n" + log);
+        }
+
+        return last;
+    }
+
+    private static void generateRepository(File repository) throws IOException
+    {
+        repository.mkdirs();
+        byte[] componentClass = readClass(COMPONENT_CLASS);
+        Random random = new Random(0);
+        byte[] padding = new byte[PADDING_SIZE];
+
+        for (int i = 0; i < MODULES; i++) {
+            Manifest manifest = new Manifest();
+            Attributes attributes = manifest.getMainAttributes();
+            attributes.put(Attributes.Name.MANIFEST_VERSION, "1.0");
+            attributes.putValue("Bundle-ManifestVersion", "2");
+            attributes.putValue("Bundle-SymbolicName", "org.xwiki.benchmark.module" + i);
+            attributes.putValue("Bundle-Version", "1.0.0");
+
+            JarOutputStream jar = new JarOutputStream(new FileOutputStream(new File(repository, "module" + i
+                + ".jar")), manifest);
+            try {
+                jar.putNextEntry(new JarEntry(COMPONENT_CLASS.replace('.', '/') + ".class"));
+                jar.write(componentClass);
+                jar.putNextEntry(new JarEntry("META-INF/components.txt"));
+                jar.write((COMPONENT_CLASS + "\n").getBytes("UTF-8"));
+                for (int j = 0; j < PADDING_RESOURCES; j++) {
+                    random.nextBytes(padding);
+                    jar.putNextEntry(new JarEntry("padding/resource" + j + ".bin"));
+                    jar.write(padding);
+                }
+            } finally {
+                jar.close();
+            }
+        }
+    }
+
+    private static byte[] readClass(String className) throws IOException
+    {
+        InputStream in =
+            OsgiBootstrapBenchmark.class.getClassLoader().getResourceAsStream(className.replace('.', '/') + ".class");
+        try {
+            ByteArrayOutputStream content = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4096];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                content.write(buffer, 0, read);
+            }
+            return content.toByteArray();
+        } finally {
+            in.close();
+        }
+    }
+}
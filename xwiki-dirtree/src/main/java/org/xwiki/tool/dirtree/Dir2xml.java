@@ -6,21 +6,36 @@ import java.io.BufferedReader;
 import java.io.Reader;
 import java.io.FileWriter;
 import java.io.BufferedWriter;
+import java.io.FilterWriter;
 import java.io.Writer;
 import java.io.IOException;
+import java.io.StringWriter;
 
 import org.apache.commons.lang.StringEscapeUtils;
 
-import java.util.LinkedList;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 import java.util.HashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.RecursiveTask;
 
 public class Dir2xml
 {
     private final String lineBreak = System.getProperty("line.separator");
 
+    /** Number of characters which are read from a file at once. */
+    private static final int BUFFER_SIZE = 8192;
+
+    /** Files bigger than this are not read ahead in parallel mode, they are streamed when their turn comes. */
+    private static final long READ_AHEAD_MAX_FILE_SIZE = 1 << 20;
+
+    /** How many files per thread are read ahead of the one which is being written in parallel mode. */
+    private static final int READ_AHEAD_FILES_PER_THREAD = 4;
+
     // Keep track of attributes for each tag so that they can be made into &!attributes files
     private final Map<String, String> attributesByTag = new HashMap<String, String>();
 
@@ -35,6 +50,12 @@ public class Dir2xml
     /** If true then avoid outputting characters which are not ascii lower 128. */
     private boolean asciiOnly;
 
+    /** If not null then directory trees are walked and files are read by this pool. */
+    private ForkJoinPool pool;
+
+    /** If not null then trees which did not change since they were last converted are skipped. */
+    private Manifest manifest;
+
     public static void main(String[] args) throws Exception
     {
         if (args.length < 1) {
@@ -43,10 +64,13 @@ public class Dir2xml
             System.out.println("-o Directory to output to");
             System.out.println("-c Try to conform to XWiki export format for escaping and do not tab in sub-elements");
             System.out.println("-a When generating XML, escape any character which is not ascii (characters 0-127)");
+            System.out.println("-p When generating XML, walk the tree and read files using this many threads");
+            System.out.println("-i When generating XML, skip trees which did not change since the last run,"
+                               + " they are remembered in this manifest file");
             return;
         }
-        File dir = null;
         File output = new File(".");
+        File manifestFile = null;
         Dir2xml d = new Dir2xml();
 
         // Get output directory if specified.
@@ -58,14 +82,42 @@ public class Dir2xml
                 d.conformMode = true;
             } else if (args[i].equals("-a")) {
                 d.asciiOnly = true;
+            } else if (args[i].equals("-p") && args.length > i + 1) {
+                i++;
+                d.setParallelism(Integer.parseInt(args[i]));
+            } else if (args[i].equals("-i") && args.length > i + 1) {
+                i++;
+                manifestFile = new File(args[i]);
             }
         }
+        if (manifestFile != null) {
+            d.setManifest(new Manifest(manifestFile, d.pool));
+        }
+
+        try {
+            d.convert(args, output);
+        } finally {
+            if (d.manifest != null) {
+                d.manifest.save();
+            }
+            if (d.pool != null) {
+                d.pool.shutdown();
+            }
+        }
+    }
+
+    /**
+     * Cycle through the arguments, converting each file to a directory tree and each directory tree to a file.
+     */
+    private void convert(String[] args, File output) throws Exception
+    {
+        File dir = null;
 
         // Cycle through files.
         for (int i = 0; i < args.length; i++) {
             if (args[i].startsWith("-")) {
-                if (args[i].equals("-o")) {
-                    // Skip -o and the argument after it.
+                if (args[i].equals("-o") || args[i].equals("-p") || args[i].equals("-i")) {
+                    // Skip the option and the argument after it.
                     i++;
                 }
             } else {
@@ -78,29 +130,47 @@ public class Dir2xml
                 }
 
                 if (dir.isDirectory()) {
-                    SchlemielsStringBuilder appendTo = new SchlemielsStringBuilder();
-                    for (File subFile : dir.listFiles()) {
-                        if (subFile.getName().equals("&!metaData")) {
-                            appendTo.append(d.readContent(subFile));
-                        }
+                    if (!this.toXML(dir, new File(output, dir.getName() + ".xml"))) {
+                        System.out.println("Unchanged since the last run, skipped: " + dir.getPath());
                     }
-                    for (File subFile : dir.listFiles()) {
-                        d.toXML(subFile, appendTo);
-                    }
-                    final String fileName = dir.getName() + ".xml";
-                    d.createFile(appendTo.toString().trim(), new ArrayList<String>(){{add(fileName);}}, output);
 
                 } else {
                     File out = new File(output, dir.getName().replaceAll("\\.[^.]*$", ""));
                     if (out.exists()) {
-                        d.deleteRecursive(out);
+                        this.deleteRecursive(out);
                     }
-                    d.fromXML(dir, out);
+                    this.fromXML(dir, out);
                 }
             }
         }
     }
 
+    /**
+     * @param threads number of threads used to walk directory trees and read files when generating XML,
+     *                0 to do it all in the calling thread. The XML is exactly the same either way.
+     */
+    public void setParallelism(int threads)
+    {
+        if (this.pool != null) {
+            this.pool.shutdown();
+        }
+        this.pool = threads > 0 ? new ForkJoinPool(threads) : null;
+    }
+
+    /**
+     * @param manifest if not null then trees which did not change since they were last converted are skipped.
+     */
+    public void setManifest(Manifest manifest)
+    {
+        this.manifest = manifest;
+    }
+
+    /** @return the options which affect the XML output, trees converted with other options are not up to date. */
+    private String getOptions()
+    {
+        return (this.conformMode ? "-c" : "") + (this.asciiOnly ? "-a" : "");
+    }
+
     private void deleteRecursive(File f)
     {
         if (f.isDirectory()) {
@@ -115,85 +185,332 @@ public class Dir2xml
         }
     }
 
-    public void toXML(final File fileOrDir, final SchlemielsStringBuilder appendTo) throws Exception
+    /**
+     * Convert a directory tree to an XML file.
+     * The document is written out as the tree is walked so only the content of one file is held in memory at a time,
+     * or in parallel mode, the content of the files which are read ahead.
+     *
+     * @param dir the directory containing the tree.
+     * @param xmlFile the {@link java.io.File} to write the XML to.
+     * @return false if the tree was skipped because it did not change since it was last converted.
+     */
+    public boolean toXML(final File dir, final File xmlFile) throws Exception
+    {
+        if (this.manifest != null && this.manifest.isUpToDate(dir, xmlFile, this.getOptions())) {
+            return false;
+        }
+        xmlFile.getAbsoluteFile().getParentFile().mkdirs();
+        Writer out = null;
+        try {
+            out = new LeadingWhitespaceTrimmingWriter(new BufferedWriter(new FileWriter(xmlFile)));
+            for (File subFile : dir.listFiles()) {
+                if (subFile.getName().equals("&!metaData")) {
+                    out.write(this.readContent(subFile));
+                }
+            }
+            for (File subFile : dir.listFiles()) {
+                this.toXML(subFile, out);
+            }
+            // Text editors all want a \n at the end of a file so we will add it here and remove it when reading.
+            out.write("\n");
+        } finally {
+            try {
+                out.close();
+            } catch (Exception e) {
+                // If it couldn't be opened then it can't be closed.
+            }
+        }
+        if (this.manifest != null) {
+            this.manifest.update(dir, xmlFile, this.getOptions());
+        }
+        return true;
+    }
+
+    public void toXML(final File fileOrDir, final Writer out) throws Exception
     {
-        this.toXML(fileOrDir, appendTo, 0);
+        this.toXML(fileOrDir, out, 0);
     }
 
-    public void toXML(final File fileOrDir, final SchlemielsStringBuilder appendTo, final int nestDepth)
+    public void toXML(final File fileOrDir, final Writer out, final int nestDepth)
         throws Exception
     {
-        String fileName = fileOrDir.getName();
-
-        if (fileName.startsWith("&!")) {
+        if (fileOrDir.getName().startsWith("&!")) {
             // special files have to be handled seperately.
             return;
         }
 
+        if (this.pool == null) {
+            this.toXML(this.listTree(fileOrDir), out, nestDepth, null);
+        } else {
+            TreeNode tree = unwrap(this.pool.submit(new ListTreeTask(fileOrDir)));
+            this.toXML(tree, out, nestDepth, new ReadAhead(tree));
+        }
+    }
+
+    private void toXML(final TreeNode node, final Writer out, final int nestDepth, final ReadAhead readAhead)
+        throws Exception
+    {
+        String fileName = node.file.getName();
+
         // remove the file number and change the escaping...
         String XMLfilename = fileNameToXML(fileName.substring(1 + fileName.indexOf('.')));
         if (asciiOnly) {
             XMLfilename = escapeNonAscii(XMLfilename);
         }
-        this.addSpaces(appendTo, nestDepth);
-        appendTo.append("<").append(XMLfilename);
-        this.addAttributes(fileOrDir, appendTo);
-        appendTo.append(">");
+        this.addSpaces(out, nestDepth);
+        out.write("<");
+        out.write(XMLfilename);
+        if (node.attributes != null) {
+            out.write(" ");
+            out.write(node.attributes);
+        }
+        out.write(">");
 
-        if (fileOrDir.isDirectory()) {
-            // Sort files by number...
-            File[] subFiles = fileOrDir.listFiles();
-            // This will blow up if the files are sparasely numbered. TODO?
-            File[] sortedFiles = new File[subFiles.length + 1];
-            for (int i = 0; i < subFiles.length; i++) {
-                String subFileName = subFiles[i].getName();
-                sortedFiles[Integer.parseInt(subFileName.substring(0, subFileName.indexOf('.')))] = subFiles[i];
+        if (node.children != null) {
+            for (TreeNode child : node.children) {
+                this.toXML(child, out, nestDepth + 1, readAhead);
             }
+            this.addSpaces(out, nestDepth);
+        } else if (readAhead != null) {
+            readAhead.writeContent(node, out);
+        } else {
+            this.writeContent(node.file, out);
+        }
 
-            for (int i = 0; i < sortedFiles.length; i++) {
-                File subFile = sortedFiles[i];
-                if (subFile == null) {
-                    continue;
+        out.write("</");
+        out.write(XMLfilename);
+        out.write(">");
+    }
+
+    /** A file or directory of the tree, listed before the XML is written. */
+    private static class TreeNode
+    {
+        private final File file;
+
+        /** The content of the &!attributes file, if there is one. */
+        private String attributes;
+
+        /** The sub elements sorted by number, null if this is a file. */
+        private List<TreeNode> children;
+
+        public TreeNode(File file)
+        {
+            this.file = file;
+        }
+    }
+
+    /**
+     * Read the attributes of a directory and sort the files in it by number.
+     *
+     * @return the files which are sub elements of the node, sorted.
+     */
+    private List<File> listChildren(final TreeNode node) throws Exception
+    {
+        List<File> children = new ArrayList<File>();
+        if (!node.file.isDirectory()) {
+            return children;
+        }
+        node.children = new ArrayList<TreeNode>();
+
+        // Sort files by number...
+        File[] subFiles = node.file.listFiles();
+        // This will blow up if the files are sparasely numbered. TODO?
+        File[] sortedFiles = new File[subFiles.length + 1];
+        for (int i = 0; i < subFiles.length; i++) {
+            String subFileName = subFiles[i].getName();
+            if (subFileName.startsWith("&!")) {
+                // special files have to be handled seperately.
+                if (subFileName.equals("&!attributes")) {
+                    node.attributes = this.readContent(subFiles[i]);
                 }
-                this.toXML(subFile, appendTo, nestDepth + 1);
-            }
-            this.addSpaces(appendTo, nestDepth);
-        } else {
-            String content = this.readContent(fileOrDir);
-            if (this.conformMode) {
-                // If we are trying to conform exactly to XWiki format, use our own escaper.
-                content = escapeXML(content);
-            } else {
-                content = StringEscapeUtils.escapeXml(content);
+                continue;
             }
-            if (asciiOnly) {
-                // If we're trying to only output ascii characters, escape again...
-                content = escapeNonAscii(content);
+            sortedFiles[Integer.parseInt(subFileName.substring(0, subFileName.indexOf('.')))] = subFiles[i];
+        }
+
+        for (int i = 0; i < sortedFiles.length; i++) {
+            if (sortedFiles[i] != null) {
+                children.add(sortedFiles[i]);
             }
-            appendTo.append(content);
         }
+        return children;
+    }
 
-        appendTo.append("</").append(XMLfilename).append(">");
+    private TreeNode listTree(final File fileOrDir) throws Exception
+    {
+        TreeNode node = new TreeNode(fileOrDir);
+        for (File child : this.listChildren(node)) {
+            node.children.add(this.listTree(child));
+        }
+        return node;
     }
 
-    private void addAttributes(final File fileOrDir, final SchlemielsStringBuilder appendTo) throws Exception
+    /** Lists a tree, forking a task for each sub directory so idle threads can steal them. */
+    private class ListTreeTask extends RecursiveTask<TreeNode>
     {
-        if (fileOrDir.isDirectory()) {
-            for (File subFile : fileOrDir.listFiles()) {
-                if (subFile.getName().equals("&!attributes")) {
-                    appendTo.append(" ").append(readContent(subFile));
-                    break;
+        private final File fileOrDir;
+
+        public ListTreeTask(File fileOrDir)
+        {
+            this.fileOrDir = fileOrDir;
+        }
+
+        protected TreeNode compute()
+        {
+            TreeNode node = new TreeNode(this.fileOrDir);
+            List<ListTreeTask> subTasks = new ArrayList<ListTreeTask>();
+            try {
+                for (File child : listChildren(node)) {
+                    subTasks.add(new ListTreeTask(child));
+                }
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+            invokeAll(subTasks);
+            for (ListTreeTask subTask : subTasks) {
+                node.children.add(subTask.join());
+            }
+            return node;
+        }
+    }
+
+    /**
+     * Reads and escapes the content of the files of a tree in the pool, a few files ahead of the one which is being
+     * written, so that the XML is written in the same order as it is in sequential mode.
+     */
+    private class ReadAhead
+    {
+        /** The files of the tree, in document order. */
+        private final List<TreeNode> files = new ArrayList<TreeNode>();
+
+        private final List<Future<String>> contents = new ArrayList<Future<String>>();
+
+        /** Index of the next file to be written. */
+        private int next;
+
+        public ReadAhead(TreeNode tree)
+        {
+            this.addFiles(tree);
+        }
+
+        private void addFiles(TreeNode node)
+        {
+            if (node.children == null) {
+                this.files.add(node);
+            } else {
+                for (TreeNode child : node.children) {
+                    this.addFiles(child);
+                }
+            }
+        }
+
+        /** Write the content of a file, the files must be written in document order. */
+        public void writeContent(TreeNode node, Writer out) throws Exception
+        {
+            if (this.files.get(this.next) != node) {
+                throw new IllegalStateException("Files must be written in document order.");
+            }
+            int readAhead = pool.getParallelism() * READ_AHEAD_FILES_PER_THREAD;
+            while (this.contents.size() < this.files.size() && this.contents.size() <= this.next + readAhead) {
+                final File file = this.files.get(this.contents.size()).file;
+                if (file.length() > READ_AHEAD_MAX_FILE_SIZE) {
+                    this.contents.add(null);
+                } else {
+                    this.contents.add(pool.submit(new Callable<String>()
+                    {
+                        public String call() throws Exception
+                        {
+                            StringWriter content = new StringWriter();
+                            Dir2xml.this.writeContent(file, content);
+                            return content.toString();
+                        }
+                    }));
                 }
             }
+
+            Future<String> content = this.contents.set(this.next, null);
+            this.next++;
+            if (content == null) {
+                Dir2xml.this.writeContent(node.file, out);
+            } else {
+                out.write(unwrap(content));
+            }
+        }
+    }
+
+    /** Wait for a task and rethrow what it threw. */
+    private static <T> T unwrap(Future<T> future) throws Exception
+    {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException && cause.getCause() instanceof Exception) {
+                // Thrown by ListTreeTask.
+                cause = cause.getCause();
+            }
+            if (cause instanceof Exception) {
+                throw (Exception) cause;
+            }
+            throw e;
         }
     }
 
-    private void addSpaces(final SchlemielsStringBuilder appendTo, final int nestDepth)
+    private void addSpaces(final Writer out, final int nestDepth) throws IOException
     {
-        appendTo.append(this.lineBreak);
+        out.write(this.lineBreak);
         if (!this.conformMode) {
             for (int i = 0; i < nestDepth; i++) {
-                appendTo.append("  ");
+                out.write("  ");
+            }
+        }
+    }
+
+    /**
+     * Escape the content of a file and write it out a buffer at a time.
+     * All of the escapers work one character at a time so the content can be split anywhere.
+     */
+    private void writeContent(File file, Writer out) throws Exception
+    {
+        Reader in = null;
+        try {
+            in = new BufferedReader(new FileReader(file));
+            char[] fileBuffer = new char[BUFFER_SIZE];
+
+            // Text editors will introduce a \n at the end of the file if there isn't one.
+            // createFile adds one and it is removed here, so the last \n is held back until we know it's not the end.
+            boolean heldBackNewline = false;
+            int numberOfCharactersInBuffer;
+            while ((numberOfCharactersInBuffer = in.read(fileBuffer)) != -1) {
+                if (numberOfCharactersInBuffer == 0) {
+                    continue;
+                }
+                if (heldBackNewline) {
+                    out.write("\n");
+                }
+                heldBackNewline = fileBuffer[numberOfCharactersInBuffer - 1] == '\n';
+                if (heldBackNewline) {
+                    numberOfCharactersInBuffer--;
+                }
+
+                String content = String.copyValueOf(fileBuffer, 0, numberOfCharactersInBuffer);
+                if (this.conformMode) {
+                    // If we are trying to conform exactly to XWiki format, use our own escaper.
+                    content = escapeXML(content);
+                } else {
+                    content = StringEscapeUtils.escapeXml(content);
+                }
+                if (asciiOnly) {
+                    // If we're trying to only output ascii characters, escape again...
+                    content = escapeNonAscii(content);
+                }
+                out.write(content);
+            }
+        } finally {
+            try {
+                in.close();
+            } catch (Exception e) {
+                // If it couldn't be opened then it can't be closed.
             }
         }
     }
@@ -250,6 +567,8 @@ public class Dir2xml
      * understand as long as I can faithfully reproduce them on the other side.
      * EG: I don't care what the attributes are or if they are namespaces, I just need to be able to have the
      *     same ones in the output as the input.
+     * The XML is read as a stream and each file is written as soon as its element is closed. Only the tag
+     * which is being read is held in memory, large element content is spilled to disk.
      *
      * @param xmlFile the {@link java.io.File} to read the XML from.
      * @param outDir create a directory tree in this location.
@@ -258,114 +577,128 @@ public class Dir2xml
     {
         State currentState = State.IN_CONTENT;
 
-        // The index of the last <, / or >
-        int lastEntityIndex  = 0;
+        // The text of the tag being read, from the < character.
+        StringBuilder tag = new StringBuilder();
 
-        // The index of the last >
-        int lastClosingBracketIndex = 0;
+        // The content since the last >
+        ContentBuffer content = new ContentBuffer(outDir);
 
         // which number element are we on.
         int number = 0;
         ArrayList<String> tagList = new ArrayList<String>();
-        SchlemielsStringBuilder meta = new SchlemielsStringBuilder();
-
-        String content = readContent(xmlFile);
+        StringBuilder meta = new StringBuilder();
 
-        for (int i = 0; i < content.length(); i++) {
-            char ch = content.charAt(i);
-
-            if (currentState == State.IN_CONTENT) {
-                if (ch == '<') {
-                    currentState = State.ON_LT_BRACKET;
-                    lastEntityIndex = i;
-                }
+        Reader in = null;
+        try {
+            in = new BufferedReader(new FileReader(xmlFile));
+            char[] buffer = new char[BUFFER_SIZE];
+            int numberOfCharactersInBuffer;
+            while ((numberOfCharactersInBuffer = in.read(buffer)) != -1) {
+                for (int i = 0; i < numberOfCharactersInBuffer; i++) {
+                    char ch = buffer[i];
+
+                    if (currentState == State.IN_CONTENT) {
+                        if (ch == '<') {
+                            currentState = State.ON_LT_BRACKET;
+                            tag.setLength(0);
+                            tag.append(ch);
+                        } else {
+                            content.append(ch);
+                        }
+                        continue;
+                    }
 
-            } else if (currentState == State.ON_LT_BRACKET && (ch == '?' || ch == '!')) {
-                currentState = State.INSIDE_META_TAG;
+                    tag.append(ch);
 
-            } else if (ch == '/' && (currentState == State.INSIDE_TAG || currentState == State.ON_LT_BRACKET)) {
-                if (currentState == State.INSIDE_TAG) {
-                    // Expecting <tag/>
-                    currentState = State.ON_SLASH_IN_TAG;
-                } else {
-                    // Expecting </tag>
-                    currentState = State.INSIDE_END_TAG;
-                }
+                    if (currentState == State.ON_LT_BRACKET && (ch == '?' || ch == '!')) {
+                        currentState = State.INSIDE_META_TAG;
 
-            } else if (ch == '>') {
-                // tag closed. If meta then write to meta file, otherwise, push to stack.
-                if (currentState == State.INSIDE_TAG) {
-
-                    // Advance the number of tags in this element.
-                    number++;
-                    numbersByStackDepth[tagList.size()] = number;
-
-                    // opening tag, push to stack.
-                    tagList.add(number + "." + XMLToFileName(content.substring(lastEntityIndex + 1, i)));
-
-                    // Switch to a new number since we are now parsing a subelement.
-                    number = 0;
-                    lastEntityIndex = i;
-                    lastClosingBracketIndex = i;
-                    currentState = State.IN_CONTENT;
-
-                } else if (currentState == State.INSIDE_META_TAG) {
-                    if (tagList.size() != 0) {
-                        throw new UnsupportedOperationException("Can't have meta data inside of a tag.\n"
-                                                                + "This is the problem: "
-                                                                + content.substring(lastEntityIndex, i + 1));
-                    }
-                    meta.append(content.substring(lastEntityIndex, i + 1));
-                    lastEntityIndex = i;
-                    lastClosingBracketIndex = i;
-                    currentState = State.IN_CONTENT;
-
-                } else if (currentState == State.ON_SLASH_IN_TAG) {
-                    // Empty <tag/>
-
-                    // Increment the number first because there is no open tag.
-                    number++;
-
-                    // <thisIsATag/>
-                    // "lastEntityIndex + 1" skips the < and "i - 1" skips > substring skips last character (/)
-                    tagList.add(number + "." + XMLToFileName(content.substring(lastEntityIndex + 1, i - 1)));
-                    createFile("", tagList, outDir);
-                    tagList.remove(tagList.size() - 1);
-
-                    lastEntityIndex = i;
-                    lastClosingBracketIndex = i;
-                    currentState = State.IN_CONTENT;
-
-                } else if (currentState == State.INSIDE_END_TAG) {
-                    // An </end> tag
-                    String lastTag = tagList.get(tagList.size() - 1);
-
-                    // Test is the content from the last < to the current position (>)
-                    // the same (when converted to filename format) as the last opened tag? (without it's number)
-                    // +2 is because we want to skip '</'
-                    if (XMLToFileName(content.substring(lastEntityIndex + 2, i)).equals(
-                            lastTag.substring(1 + lastTag.indexOf(".")))) 
+                    } else if (ch == '/'
+                        && (currentState == State.INSIDE_TAG || currentState == State.ON_LT_BRACKET))
                     {
-                        createFile(
-                            StringEscapeUtils.unescapeXml(
-                                content.substring(lastClosingBracketIndex + 1, lastEntityIndex)),
-                                    tagList, outDir);
-
-                        // drop back one level on the stack.
-                        tagList.remove(tagList.size() - 1);
-                        number = numbersByStackDepth[tagList.size()];
-
-                        currentState = State.IN_CONTENT;
-                        lastEntityIndex = i;
-                        lastClosingBracketIndex = i;
+                        if (currentState == State.INSIDE_TAG) {
+                            // Expecting <tag/>
+                            currentState = State.ON_SLASH_IN_TAG;
+                        } else {
+                            // Expecting </tag>
+                            currentState = State.INSIDE_END_TAG;
+                        }
+
+                    } else if (ch == '>') {
+                        // tag closed. If meta then write to meta file, otherwise, push to stack.
+                        if (currentState == State.INSIDE_TAG) {
+
+                            // Advance the number of tags in this element.
+                            number++;
+                            numbersByStackDepth[tagList.size()] = number;
+
+                            // opening tag, push to stack.
+                            // 1 skips the < and "length() - 1" skips the >
+                            tagList.add(number + "." + XMLToFileName(tag.substring(1, tag.length() - 1)));
+
+                            // Switch to a new number since we are now parsing a subelement.
+                            number = 0;
+                            content.discard();
+                            currentState = State.IN_CONTENT;
+
+                        } else if (currentState == State.INSIDE_META_TAG) {
+                            if (tagList.size() != 0) {
+                                throw new UnsupportedOperationException("Can't have meta data inside of a tag.\n"
+                                                                        + "This is the problem: " + tag);
+                            }
+                            meta.append(tag);
+                            content.discard();
+                            currentState = State.IN_CONTENT;
+
+                        } else if (currentState == State.ON_SLASH_IN_TAG) {
+                            // Empty <tag/>
+
+                            // Increment the number first because there is no open tag.
+                            number++;
+
+                            // <thisIsATag/>
+                            // 1 skips the < and "length() - 2" skips the />
+                            tagList.add(number + "." + XMLToFileName(tag.substring(1, tag.length() - 2)));
+                            createFile("", tagList, outDir);
+                            tagList.remove(tagList.size() - 1);
+
+                            content.discard();
+                            currentState = State.IN_CONTENT;
+
+                        } else if (currentState == State.INSIDE_END_TAG) {
+                            // An </end> tag
+                            String lastTag = tagList.get(tagList.size() - 1);
+
+                            // Test is the tag (without the </ and >) the same (when converted to filename format)
+                            // as the last opened tag? (without it's number)
+                            if (XMLToFileName(tag.substring(2, tag.length() - 1)).equals(
+                                    lastTag.substring(1 + lastTag.indexOf(".")))) 
+                            {
+                                createFile(content, tagList, outDir);
+                                content.discard();
+
+                                // drop back one level on the stack.
+                                tagList.remove(tagList.size() - 1);
+                                number = numbersByStackDepth[tagList.size()];
+
+                                currentState = State.IN_CONTENT;
+                            }
+                        }
+                    } else if (currentState == State.ON_LT_BRACKET) {
+                        // if we were on a < now we're in a tag.
+                        currentState = State.INSIDE_TAG;
+                    } else if (currentState == State.ON_SLASH_IN_TAG) {
+                        // <tag with a / in it is not a self closed tag>
+                        currentState = State.INSIDE_TAG;
                     }
                 }
-            } else if (currentState == State.ON_LT_BRACKET) {
-                // if we were on a < now we're in a tag.
-                currentState = State.INSIDE_TAG;
-            } else if (currentState == State.ON_SLASH_IN_TAG) {
-                // <tag with a / in it is not a self closed tag>
-                currentState = State.INSIDE_TAG;
+            }
+        } finally {
+            content.discard();
+            try {
+                in.close();
+            } catch (Exception e) {
+                // If it couldn't be opened then it can't be closed.
             }
         }
         if (meta.length() > 0) {
@@ -375,7 +708,12 @@ public class Dir2xml
 
     public void createFile(String content, List<String> tagList, File containingDir) throws Exception
     {
-        SchlemielsStringBuilder ssb = new SchlemielsStringBuilder();
+        this.createFile(ContentBuffer.of(content), tagList, containingDir);
+    }
+
+    private void createFile(ContentBuffer content, List<String> tagList, File containingDir) throws Exception
+    {
+        StringBuilder sb = new StringBuilder();
         for (int i = 0; i < tagList.size(); i++) {
             String tag = tagList.get(i);
             if (tag.trim().indexOf(" ") != -1) {
@@ -384,7 +722,7 @@ public class Dir2xml
                 // That is legal HTML but not XML. Let's be safe...
                 String tagNoAttribs = tag.trim();
                 tagNoAttribs = tagNoAttribs.substring(0, tagNoAttribs.indexOf(" "));
-                ssb.append(tagNoAttribs).append("/");
+                sb.append(tagNoAttribs).append("/");
 
                 // Save the attributes to be made into an &!attributes file when we reach the closing tag.
                 // We want keep trailing whitespace but not leading
@@ -405,48 +743,40 @@ public class Dir2xml
 
             } else if (i + 1 == tagList.size() && attributesByTag.get(tag) != null) {
                 // Found the closing tag for a tag with attributes, lets make an &!attributes file.
-                if (!"".equals(content.trim())) {
+                if (!content.isBlank()) {
                     throw new UnsupportedOperationException("Tags with attributes _and_ (non tag) content" 
                                                             + " not supported\nThe problem is here: "
                                                             + tag);
                 }
 
-                ssb.append(tag).append("/").append("&!attributes").append("/");
-                content = attributesByTag.get(tag);
+                sb.append(tag).append("/").append("&!attributes").append("/");
+                content = ContentBuffer.of(attributesByTag.get(tag));
             } else {
                 // nothing special, just a <tag>
-                ssb.append(tag).append("/");
+                sb.append(tag).append("/");
             }
         }
 
-        String path = ssb.toString();
+        String path = sb.toString();
         // peel of the last /
         path = path.substring(0, path.length() - 1);
         this.createFile(content, path, containingDir);
     }
 
     public void createFile(String content, String path, File containingDir) throws IOException
+    {
+        this.createFile(ContentBuffer.of(content), path, containingDir);
+    }
+
+    private void createFile(ContentBuffer content, String path, File containingDir) throws IOException
     {
         // unsafe (security) but good enough for a script...
         File file = new File(containingDir, path);
 
         // If the file was already created because it has subfiles (it's a directory)
         // let's not throw an error unless it was supposed to have content as well.
-        if (!file.exists() || !"".equals(content.trim())) {
-            Writer out = null;
-            try {
-                file.getParentFile().mkdirs();
-                out = new BufferedWriter(new FileWriter(file));
-                out.write(content);
-                // Text editors all want a \n at the end of a file so we will add it here and remove it when reading.
-                out.write("\n");
-            } finally {
-                try {
-                    out.close();
-                } catch (Exception e) {
-                    // If it couldn't be opened then it can't be closed.
-                }
-            }
+        if (!file.exists() || !content.isBlank()) {
+            content.writeTo(file);
         }
     }
 
@@ -468,7 +798,7 @@ public class Dir2xml
 
     public String escapeNonAscii(String content)
     {
-        SchlemielsStringBuilder out = new SchlemielsStringBuilder();
+        StringBuilder out = new StringBuilder();
         int charAfterLastNonAscii = 0;
         for (int i = 0; i < content.length(); i++) {
             if (content.charAt(i) > (char) 127) {
@@ -490,7 +820,7 @@ public class Dir2xml
      */
     public String escapeXML(String content)
     {
-        SchlemielsStringBuilder ssb = new SchlemielsStringBuilder();
+        StringBuilder ssb = new StringBuilder();
 
         // The index of the last non xml entity.
         int lastContent = 0;
@@ -515,85 +845,197 @@ public class Dir2xml
         return ssb.toString();
     }
 
-    public static class SchlemielsStringBuilder implements CharSequence
+    /**
+     * Drops white space at the beginning of the document, the way trimming the whole document used to.
+     */
+    private static class LeadingWhitespaceTrimmingWriter extends FilterWriter
     {
-        private final LinkedList<String> contents = new LinkedList<String>();
+        private boolean atStart = true;
 
-        private int totalLength;
+        public LeadingWhitespaceTrimmingWriter(Writer out)
+        {
+            super(out);
+        }
 
-        public SchlemielsStringBuilder append(String string)
+        public void write(int c) throws IOException
         {
-            this.contents.add(string);
-            this.totalLength += string.length();
-            return this;
+            if (atStart && c <= ' ') {
+                return;
+            }
+            atStart = false;
+            super.write(c);
         }
 
-        public SchlemielsStringBuilder append(CharSequence cs)
+        public void write(char[] cbuf, int off, int len) throws IOException
         {
-            return this.append(cs.toString());
+            this.write(String.copyValueOf(cbuf, off, len), 0, len);
         }
 
-        public String toString()
+        public void write(String str, int off, int len) throws IOException
         {
-            StringBuilder out = new StringBuilder(this.totalLength);
-            for (String str : contents) {
-                out.append(str);
+            int start = off;
+            while (atStart && start < off + len && str.charAt(start) <= ' ') {
+                start++;
+            }
+            if (start < off + len) {
+                atStart = false;
+                super.write(str, start, off + len - start);
             }
-            return out.toString();
         }
+    }
+
+    /**
+     * The content of an element as it is read by fromXML.
+     * Characters are unescaped a buffer at a time and once there are too many to keep in memory, they are spilled to
+     * a temporary file which is moved in place when the element is closed.
+     */
+    private static class ContentBuffer
+    {
+        /** Number of unescaped characters which are kept in memory before spilling to a file. */
+        private static final int SPILL_THRESHOLD = 1 << 20;
+
+        /** An & this far from the end of the buffer can't be the start of an entity. */
+        private static final int MAX_ENTITY_LENGTH = 32;
 
-        public int length()
+        /** Where to put the spill file, if null then the content is always kept in memory. */
+        private final File spillDir;
+
+        /** Escaped characters which have not been unescaped yet. */
+        private final StringBuilder escaped = new StringBuilder();
+
+        /** Unescaped characters which have not been spilled yet. */
+        private final StringBuilder unescaped = new StringBuilder();
+
+        private File spillFile;
+
+        private Writer spillWriter;
+
+        /** False if any of the spilled characters is not white space. */
+        private boolean spilledBlank = true;
+
+        public ContentBuffer(File spillDir)
         {
-            return this.totalLength;
+            this.spillDir = spillDir;
         }
 
-        public char charAt(int index) throws IndexOutOfBoundsException
+        /** @return a buffer holding already unescaped content. */
+        public static ContentBuffer of(String content)
         {
-            if (index < 0 || index >= this.totalLength) {
-                throw new IndexOutOfBoundsException("Index: " + index + " Total size: " + this.totalLength);
+            ContentBuffer buffer = new ContentBuffer(null);
+            buffer.unescaped.append(content);
+            return buffer;
+        }
+
+        public void append(char ch) throws IOException
+        {
+            this.escaped.append(ch);
+            if (this.escaped.length() >= BUFFER_SIZE) {
+                this.unescape(false);
             }
-            int i = index;
-            for (String str : contents) {
-                if (i < str.length()) {
-                    return str.charAt(i);
+        }
+
+        /**
+         * Unescape the buffered characters.
+         * Unless all is true, an & which is not followed by a ; is kept back since the entity may not be complete.
+         */
+        private void unescape(boolean all) throws IOException
+        {
+            int end = this.escaped.length();
+            if (!all) {
+                int ampersand = this.escaped.lastIndexOf("&");
+                if (ampersand != -1 && this.escaped.indexOf(";", ampersand) == -1
+                    && end - ampersand < MAX_ENTITY_LENGTH)
+                {
+                    end = ampersand;
                 }
-                i -= str.length();
             }
-            throw new RuntimeException("something went wrong.");
+            this.unescaped.append(StringEscapeUtils.unescapeXml(this.escaped.substring(0, end)));
+            this.escaped.delete(0, end);
+            if (this.spillDir != null && this.unescaped.length() >= SPILL_THRESHOLD) {
+                this.spill();
+            }
         }
 
-        /** TODO: Debug! */
-        public CharSequence subSequence(int startIndex, int endIndex) throws IndexOutOfBoundsException
+        private void spill() throws IOException
         {
-            if (startIndex > endIndex) {
-                throw new IndexOutOfBoundsException("StartIndex greater than EndIndex.\nStartIndex: " 
-                                                    + startIndex + " EndIndex: " + endIndex);
-            }
-            if (startIndex < 0 || endIndex >= this.totalLength) {
-                throw new IndexOutOfBoundsException("StartIndex: " + startIndex + " EndIndex: " + endIndex 
-                                                    + " Total size: " + this.totalLength);
-            }
-            SchlemielsStringBuilder out = new SchlemielsStringBuilder();
-            int i = startIndex;
-            boolean copying = false;
-            for (String str : contents) {
-                if (i < str.length()) {
-                    if (!copying) {
-                        copying = true;
-                        out.append(str.substring(i));
-                        i = endIndex - (i + str.length());
-                    } else {
-                        out.append(str.substring(0, i));
-                        return out;
-                    }
-                } else {
-                    if (copying) {
-                        out.append(str);
+            if (this.spillWriter == null) {
+                this.spillDir.mkdirs();
+                this.spillFile = File.createTempFile("&!dir2xml", null, this.spillDir);
+                this.spillWriter = new BufferedWriter(new FileWriter(this.spillFile));
+            }
+            this.spilledBlank = this.spilledBlank && isBlank(this.unescaped);
+            this.spillWriter.write(this.unescaped.toString());
+            this.unescaped.setLength(0);
+        }
+
+        private static boolean isBlank(CharSequence content)
+        {
+            for (int i = 0; i < content.length(); i++) {
+                if (content.charAt(i) > ' ') {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /** @return true if the content is only white space, as String.trim() sees it. */
+        public boolean isBlank() throws IOException
+        {
+            this.unescape(true);
+            return this.spilledBlank && isBlank(this.unescaped);
+        }
+
+        public void writeTo(File file) throws IOException
+        {
+            this.unescape(true);
+            file.getParentFile().mkdirs();
+            if (this.spillWriter == null) {
+                Writer out = null;
+                try {
+                    out = new BufferedWriter(new FileWriter(file));
+                    out.write(this.unescaped.toString());
+                    // Text editors all want a \n at the end of a file so we will add it here and remove it when
+                    // reading.
+                    out.write("\n");
+                } finally {
+                    try {
+                        out.close();
+                    } catch (Exception e) {
+                        // If it couldn't be opened then it can't be closed.
                     }
-                    i -= str.length();
                 }
+            } else {
+                this.spill();
+                this.spillWriter.write("\n");
+                this.spillWriter.close();
+                this.spillWriter = null;
+                if (file.exists() && !file.delete() || !this.spillFile.renameTo(file)) {
+                    throw new IOException("Couldn't move " + this.spillFile.getAbsolutePath() + " to "
+                                          + file.getAbsolutePath());
+                }
+                this.spillFile = null;
+            }
+            this.discard();
+        }
+
+        /** Forget the content and remove the spill file if there is one. */
+        public void discard()
+        {
+            this.escaped.setLength(0);
+            this.unescaped.setLength(0);
+            this.spilledBlank = true;
+            if (this.spillWriter != null) {
+                try {
+                    this.spillWriter.close();
+                } catch (IOException e) {
+                    // Nothing more can be done, we delete it anyway.
+                }
+                this.spillWriter = null;
+            }
+            if (this.spillFile != null) {
+                this.spillFile.delete();
+                this.spillFile = null;
             }
-            throw new RuntimeException("Something went wrong...");
         }
     }
 }
@@ -0,0 +1,312 @@
+package org.xwiki.tool.dirtree;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Remembers the size, modification time and hash of every file of the trees which were converted to XML so that a
+ * tree which has not changed since the last run can be skipped.
+ * The modification time is only a shortcut, if it changed but the size didn't then the file is hashed and only
+ * counts as changed if the hash is different. This way a fresh checkout of the sources does not convert everything.
+ *
+ * Format of the manifest file, one line per tree followed by one line per file in the tree:
+ * tree[tab]options[tab]xml file size[tab]xml file modification time[tab]tree directory
+ * file[tab]size[tab]modification time[tab]sha-1[tab]path relative to the tree directory
+ */
+public class Manifest
+{
+    private static final String ENCODING = "UTF-8";
+
+    private static final String TAB = "\t";
+
+    private static final String TREE = "tree";
+
+    private static final String FILE = "file";
+
+    /** The state of a file when it was last seen. */
+    private static class FileState
+    {
+        private final long size;
+
+        private final long lastModified;
+
+        private final String hash;
+
+        public FileState(long size, long lastModified, String hash)
+        {
+            this.size = size;
+            this.lastModified = lastModified;
+            this.hash = hash;
+        }
+    }
+
+    /** What was recorded for a tree. */
+    private static class TreeState
+    {
+        private String options;
+
+        private long xmlSize;
+
+        private long xmlLastModified;
+
+        private final Map<String, FileState> files = new TreeMap<String, FileState>();
+    }
+
+    private final File manifestFile;
+
+    /** Recorded trees by canonical path of the tree directory. */
+    private final Map<String, TreeState> trees = new TreeMap<String, TreeState>();
+
+    /** Used to hash files in parallel, if null then they are hashed one after the other. */
+    private final ExecutorService executor;
+
+    /**
+     * @param manifestFile the file to load the manifest from and save it to, it need not exist.
+     * @param executor used to hash files in parallel, may be null.
+     */
+    public Manifest(File manifestFile, ExecutorService executor) throws IOException
+    {
+        this.manifestFile = manifestFile;
+        this.executor = executor;
+        if (manifestFile.exists()) {
+            this.load();
+        }
+    }
+
+    private void load() throws IOException
+    {
+        BufferedReader in = null;
+        try {
+            in = new BufferedReader(new InputStreamReader(new FileInputStream(this.manifestFile), ENCODING));
+            TreeState tree = null;
+            String line;
+            while ((line = in.readLine()) != null) {
+                String[] fields = line.split(TAB, 5);
+                if (fields.length != 5) {
+                    continue;
+                }
+                if (TREE.equals(fields[0])) {
+                    tree = new TreeState();
+                    tree.options = fields[1];
+                    tree.xmlSize = Long.parseLong(fields[2]);
+                    tree.xmlLastModified = Long.parseLong(fields[3]);
+                    this.trees.put(fields[4], tree);
+                } else if (FILE.equals(fields[0]) && tree != null) {
+                    tree.files.put(fields[4],
+                        new FileState(Long.parseLong(fields[1]), Long.parseLong(fields[2]), fields[3]));
+                }
+            }
+        } finally {
+            try {
+                in.close();
+            } catch (Exception e) {
+                // If it couldn't be opened then it can't be closed.
+            }
+        }
+    }
+
+    public void save() throws IOException
+    {
+        if (this.manifestFile.getAbsoluteFile().getParentFile() != null) {
+            this.manifestFile.getAbsoluteFile().getParentFile().mkdirs();
+        }
+        Writer out = null;
+        try {
+            out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(this.manifestFile), ENCODING));
+            for (Map.Entry<String, TreeState> tree : this.trees.entrySet()) {
+                TreeState state = tree.getValue();
+                out.write(TREE + TAB + state.options + TAB + state.xmlSize + TAB + state.xmlLastModified + TAB
+                          + tree.getKey() + "\n");
+                for (Map.Entry<String, FileState> file : state.files.entrySet()) {
+                    FileState fileState = file.getValue();
+                    out.write(FILE + TAB + fileState.size + TAB + fileState.lastModified + TAB + fileState.hash
+                              + TAB + file.getKey() + "\n");
+                }
+            }
+        } finally {
+            try {
+                out.close();
+            } catch (Exception e) {
+                // If it couldn't be opened then it can't be closed.
+            }
+        }
+    }
+
+    /**
+     * @param dir the directory containing the tree.
+     * @param xmlFile the XML file which the tree is converted to.
+     * @param options the options which affect the XML output.
+     * @return true if neither the tree, the XML file nor the options changed since the tree was last recorded.
+     */
+    public boolean isUpToDate(File dir, File xmlFile, String options) throws Exception
+    {
+        TreeState recorded = this.trees.get(dir.getCanonicalPath());
+        if (recorded == null || !recorded.options.equals(options) || !xmlFile.exists()
+            || xmlFile.length() != recorded.xmlSize || xmlFile.lastModified() != recorded.xmlLastModified)
+        {
+            return false;
+        }
+
+        Map<String, File> files = listFiles(dir);
+        if (!files.keySet().equals(recorded.files.keySet())) {
+            return false;
+        }
+
+        List<String> toHash = new ArrayList<String>();
+        for (Map.Entry<String, File> file : files.entrySet()) {
+            FileState state = recorded.files.get(file.getKey());
+            if (file.getValue().length() != state.size) {
+                return false;
+            }
+            if (file.getValue().lastModified() != state.lastModified) {
+                toHash.add(file.getKey());
+            }
+        }
+
+        List<String> hashes = this.hash(files, toHash);
+        for (int i = 0; i < toHash.size(); i++) {
+            if (!hashes.get(i).equals(recorded.files.get(toHash.get(i)).hash)) {
+                return false;
+            }
+        }
+
+        // Only the modification times changed, remember them so the files need not be hashed next time.
+        this.record(dir, xmlFile, options, files, recorded, toHash, hashes);
+        return true;
+    }
+
+    /**
+     * Remember the current state of a tree after it has been converted.
+     *
+     * @param dir the directory containing the tree.
+     * @param xmlFile the XML file which the tree was converted to.
+     * @param options the options which affect the XML output.
+     */
+    public void update(File dir, File xmlFile, String options) throws Exception
+    {
+        TreeState recorded = this.trees.get(dir.getCanonicalPath());
+        Map<String, File> files = listFiles(dir);
+
+        // Files which are in the same state as last time need not be hashed again.
+        List<String> toHash = new ArrayList<String>();
+        for (Map.Entry<String, File> file : files.entrySet()) {
+            FileState state = recorded == null ? null : recorded.files.get(file.getKey());
+            if (state == null || file.getValue().length() != state.size
+                || file.getValue().lastModified() != state.lastModified)
+            {
+                toHash.add(file.getKey());
+            }
+        }
+        this.record(dir, xmlFile, options, files, recorded, toHash, this.hash(files, toHash));
+    }
+
+    private void record(File dir, File xmlFile, String options, Map<String, File> files, TreeState previous,
+        List<String> hashedPaths, List<String> hashes) throws IOException
+    {
+        Map<String, String> hashByPath = new TreeMap<String, String>();
+        for (int i = 0; i < hashedPaths.size(); i++) {
+            hashByPath.put(hashedPaths.get(i), hashes.get(i));
+        }
+
+        TreeState tree = new TreeState();
+        tree.options = options;
+        tree.xmlSize = xmlFile.length();
+        tree.xmlLastModified = xmlFile.lastModified();
+        for (Map.Entry<String, File> file : files.entrySet()) {
+            String hash = hashByPath.get(file.getKey());
+            if (hash == null) {
+                hash = previous.files.get(file.getKey()).hash;
+            }
+            tree.files.put(file.getKey(),
+                new FileState(file.getValue().length(), file.getValue().lastModified(), hash));
+        }
+        this.trees.put(dir.getCanonicalPath(), tree);
+    }
+
+    /** @return every file in the tree by path relative to the tree directory, with / as separator. */
+    private static Map<String, File> listFiles(File dir)
+    {
+        Map<String, File> files = new TreeMap<String, File>();
+        listFiles(dir, "", files);
+        return files;
+    }
+
+    private static void listFiles(File dir, String prefix, Map<String, File> files)
+    {
+        for (File file : dir.listFiles()) {
+            if (file.isDirectory()) {
+                listFiles(file, prefix + file.getName() + "/", files);
+            } else {
+                files.put(prefix + file.getName(), file);
+            }
+        }
+    }
+
+    /** @return the hashes of the given files, in the same order. */
+    private List<String> hash(final Map<String, File> files, List<String> paths) throws Exception
+    {
+        List<String> hashes = new ArrayList<String>(paths.size());
+        if (this.executor == null) {
+            for (String path : paths) {
+                hashes.add(hash(files.get(path)));
+            }
+        } else {
+            List<Callable<String>> tasks = new ArrayList<Callable<String>>(paths.size());
+            for (final String path : paths) {
+                tasks.add(new Callable<String>()
+                {
+                    public String call() throws Exception
+                    {
+                        return hash(files.get(path));
+                    }
+                });
+            }
+            for (Future<String> hash : this.executor.invokeAll(tasks)) {
+                hashes.add(hash.get());
+            }
+        }
+        return hashes;
+    }
+
+    /** @return the SHA-1 of the content of the file, in hexadecimal. */
+    public static String hash(File file) throws Exception
+    {
+        MessageDigest digest = MessageDigest.getInstance("SHA-1");
+        InputStream in = null;
+        try {
+            in = new FileInputStream(file);
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                digest.update(buffer, 0, read);
+            }
+        } finally {
+            try {
+                in.close();
+            } catch (Exception e) {
+                // If it couldn't be opened then it can't be closed.
+            }
+        }
+        StringBuilder hex = new StringBuilder();
+        for (byte b : digest.digest()) {
+            hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+        return hex.toString();
+    }
+}
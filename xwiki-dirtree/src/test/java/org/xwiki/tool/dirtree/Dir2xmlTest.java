@@ -0,0 +1,131 @@
+package org.xwiki.tool.dirtree;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.Writer;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Round trips a generated document through a directory tree.
+ */
+public class Dir2xmlTest
+{
+    private File workDir;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        this.workDir = File.createTempFile("dir2xml", "test");
+        this.workDir.delete();
+        this.workDir.mkdirs();
+    }
+
+    @After
+    public void tearDown()
+    {
+        delete(this.workDir);
+    }
+
+    private static void delete(File file)
+    {
+        if (file.isDirectory()) {
+            for (File subFile : file.listFiles()) {
+                delete(subFile);
+            }
+        }
+        file.delete();
+    }
+
+    /** Make a document which is a few levels deep, with attributes and some content bigger than a read buffer. */
+    private File createDocument() throws Exception
+    {
+        StringBuilder xml = new StringBuilder("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<xwikidoc>\n");
+        for (int i = 0; i < 20; i++) {
+            xml.append("<object>\n<name>Page").append(i).append("</name>\n");
+            xml.append("<property number=\"").append(i).append("\">\n");
+            for (int j = 0; j < 10; j++) {
+                xml.append("<value>");
+                for (int k = 0; k < i * j * 100; k++) {
+                    xml.append("a &amp; b &lt;c&gt; \u00e9\n");
+                }
+                xml.append("</value>\n");
+            }
+            xml.append("</property>\n</object>\n");
+        }
+        xml.append("</xwikidoc>");
+
+        File xmlFile = new File(this.workDir, "Page.xml");
+        Writer out = new FileWriter(xmlFile);
+        try {
+            out.write(xml.toString());
+        } finally {
+            out.close();
+        }
+        return xmlFile;
+    }
+
+    private File toXML(File tree, String outputDir, int threads) throws Exception
+    {
+        Dir2xml dir2xml = new Dir2xml();
+        dir2xml.setParallelism(threads);
+        File xmlFile = new File(new File(this.workDir, outputDir), tree.getName() + ".xml");
+        dir2xml.toXML(tree, xmlFile);
+        dir2xml.setParallelism(0);
+        return xmlFile;
+    }
+
+    private static String read(File file) throws Exception
+    {
+        return new Dir2xml().readContent(file);
+    }
+
+    @Test
+    public void testParallelOutputIsIdentical() throws Exception
+    {
+        File tree = new File(this.workDir, "Page");
+        new Dir2xml().fromXML(this.createDocument(), tree);
+
+        String sequential = read(this.toXML(tree, "sequential", 0));
+        Assert.assertEquals(sequential, read(this.toXML(tree, "parallel1", 1)));
+        Assert.assertEquals(sequential, read(this.toXML(tree, "parallel4", 4)));
+        Assert.assertTrue(sequential.startsWith("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<xwikidoc>"));
+        Assert.assertTrue(sequential.indexOf("<property number=\"19\">") != -1);
+    }
+
+    @Test
+    public void testIncrementalSkipsUnchangedTree() throws Exception
+    {
+        File tree = new File(this.workDir, "Page");
+        new Dir2xml().fromXML(this.createDocument(), tree);
+        File xmlFile = new File(this.workDir, "Out.xml");
+        File manifestFile = new File(this.workDir, "manifest");
+
+        Manifest manifest = new Manifest(manifestFile, null);
+        Dir2xml dir2xml = new Dir2xml();
+        dir2xml.setManifest(manifest);
+        Assert.assertTrue(dir2xml.toXML(tree, xmlFile));
+        Assert.assertFalse(dir2xml.toXML(tree, xmlFile));
+
+        // Only the modification time changed, the file is hashed and the tree is still up to date.
+        File name = new File(tree, "1.xwikidoc/1.object/1.name");
+        name.setLastModified(name.lastModified() - 10000);
+        Assert.assertFalse(dir2xml.toXML(tree, xmlFile));
+
+        Writer out = new FileWriter(name);
+        try {
+            out.write("Renamed\n");
+        } finally {
+            out.close();
+        }
+        Assert.assertTrue(dir2xml.toXML(tree, xmlFile));
+        Assert.assertTrue(read(xmlFile).indexOf("<name>Renamed</name>") != -1);
+
+        // The manifest is remembered between runs.
+        manifest.save();
+        Assert.assertTrue(new Manifest(manifestFile, null).isUpToDate(tree, xmlFile, ""));
+    }
+}
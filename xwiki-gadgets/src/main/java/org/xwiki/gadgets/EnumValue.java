@@ -41,6 +41,24 @@ public class EnumValue
      */
     private String displayValue;
 
+    /**
+     * Creates an empty value.
+     */
+    public EnumValue()
+    {
+    }
+
+    /**
+     * Copies another value.
+     * 
+     * @param enumValue the value to copy
+     */
+    public EnumValue(EnumValue enumValue)
+    {
+        this.value = enumValue.value;
+        this.displayValue = enumValue.displayValue;
+    }
+
     /**
      * @return the value
      */
@@ -20,6 +20,7 @@
 package org.xwiki.gadgets;
 
 import java.util.List;
+import java.util.Map;
 
 import org.xwiki.component.annotation.ComponentRole;
 import org.xwiki.rendering.macro.descriptor.MacroDescriptor;
@@ -33,10 +34,26 @@ public interface MacroService
     /**
      * Gets the sorted by name definition list of all macros.
      * 
-     * @return sorted list of all macros
+     * @return sorted list of all macros, unmodifiable
      */
     List<MacroDescriptor> getMacroDescriptors();
 
+    /**
+     * Gets the sorted by name definition list of the macros whose name starts with a prefix.
+     * 
+     * @param prefix the beginning of the macro names, the case is ignored
+     * @return sorted list of the matching macros, unmodifiable
+     */
+    List<MacroDescriptor> getMacroDescriptors(String prefix);
+
+    /**
+     * Gets the sorted by name definition lists of all macros, by default category sorted by name. The macros without
+     * default category are listed under the empty category.
+     * 
+     * @return sorted lists of all macros by category, unmodifiable
+     */
+    Map<String, List<MacroDescriptor>> getMacroDescriptorsByCategory();
+
     /**
      * Looks up a macro.
      * 
@@ -65,6 +65,16 @@ public class ModulePrefs
         this.attrs = new HashMap<String, String>();
     }
 
+    /**
+     * Copies the preferences of another instance, changing one does not change the other.
+     * 
+     * @param modulePrefs the preferences to copy
+     */
+    public ModulePrefs(ModulePrefs modulePrefs)
+    {
+        this.attrs = new HashMap<String, String>(modulePrefs.attrs);
+    }
+
     /**
      * @param key the Module Preference key attribute, like: title, title_url, description, author, author_email,
      *            screenshot, thumbnail (attributes that are supported in all containers) and other, mapped to their
@@ -19,6 +19,7 @@
  */
 package org.xwiki.gadgets;
 
+import java.util.ArrayList;
 import java.util.List;
 
 /**
@@ -71,6 +72,34 @@ public class UserPref
      */
     private List<EnumValue> enumValues;
 
+    /**
+     * Creates a user preference of type string.
+     */
+    public UserPref()
+    {
+    }
+
+    /**
+     * Copies another user preference, its enum values included, changing one does not change the other.
+     * 
+     * @param userPref the user preference to copy
+     */
+    public UserPref(UserPref userPref)
+    {
+        this.name = userPref.name;
+        this.displayName = userPref.displayName;
+        this.urlparam = userPref.urlparam;
+        this.datatype = userPref.datatype;
+        this.required = userPref.required;
+        this.defaultValue = userPref.defaultValue;
+        if (userPref.enumValues != null) {
+            this.enumValues = new ArrayList<EnumValue>(userPref.enumValues.size());
+            for (EnumValue enumValue : userPref.enumValues) {
+                this.enumValues.add(new EnumValue(enumValue));
+            }
+        }
+    }
+
     /**
      * @return required "symbolic" name of the user preference
      */
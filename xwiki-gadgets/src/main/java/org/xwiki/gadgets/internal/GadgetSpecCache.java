@@ -0,0 +1,370 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.gadgets.internal;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLConnection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.xml.parsers.ParserConfigurationException;
+
+import org.xml.sax.ContentHandler;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+import org.xml.sax.XMLReader;
+import org.xwiki.gadgets.ModulePrefs;
+import org.xwiki.gadgets.ModulePrefsHandler;
+import org.xwiki.gadgets.UserPref;
+import org.xwiki.gadgets.UserPrefsHandler;
+import org.xwiki.xml.XMLReaderFactory;
+
+/**
+ * Bounded cache of the parsed gadget specifications, by gadget URI. A specification is fetched once for both its User
+ * Preferences and its Module Preferences, and is reused until it expires, according to the Cache-Control max-age or
+ * Expires response headers or to the default time to live. An expired specification is revalidated with the ETag and
+ * Last-Modified of the previous response, and only parsed again if it changed.
+ *
+ * @version $Id$
+ */
+public class GadgetSpecCache
+{
+    /**
+     * The max-age directive of the Cache-Control header.
+     */
+    private static final Pattern MAX_AGE = Pattern.compile("max-age\\s*=\\s*(\\d+)");
+
+    /**
+     * A parsed gadget specification along with what is needed to revalidate it.
+     */
+    public static class GadgetSpec
+    {
+        /**
+         * @see #getUserPrefs()
+         */
+        private final List<UserPref> userPrefs;
+
+        /**
+         * @see #getModulePrefs()
+         */
+        private final ModulePrefs modulePrefs;
+
+        /**
+         * The ETag of the response the specification was parsed from, if any.
+         */
+        private final String etag;
+
+        /**
+         * The last modification date of the specification, 0 if unknown.
+         */
+        private final long lastModified;
+
+        /**
+         * The time after which the specification has to be revalidated.
+         */
+        private final long expires;
+
+        /**
+         * @param userPrefs the User Preferences of the gadget
+         * @param modulePrefs the Module Preferences of the gadget
+         * @param etag the ETag of the response, if any
+         * @param lastModified the last modification date of the specification, 0 if unknown
+         * @param expires the time after which the specification has to be revalidated
+         */
+        GadgetSpec(List<UserPref> userPrefs, ModulePrefs modulePrefs, String etag, long lastModified, long expires)
+        {
+            this.userPrefs = userPrefs;
+            this.modulePrefs = modulePrefs;
+            this.etag = etag;
+            this.lastModified = lastModified;
+            this.expires = expires;
+        }
+
+        /**
+         * @return the User Preferences of the gadget, shared by all the users of the cache, not to be modified
+         */
+        public List<UserPref> getUserPrefs()
+        {
+            return this.userPrefs;
+        }
+
+        /**
+         * @return the Module Preferences of the gadget, shared by all the users of the cache, not to be modified
+         */
+        public ModulePrefs getModulePrefs()
+        {
+            return this.modulePrefs;
+        }
+    }
+
+    /**
+     * The XML reader factory used to create XML readers.
+     */
+    private final XMLReaderFactory xmlReaderFactory;
+
+    /**
+     * How long a specification is used without being revalidated when the response does not say it.
+     */
+    private final long timeToLive;
+
+    /**
+     * The cached specifications, the least recently used one being evicted first.
+     */
+    private final Map<String, GadgetSpec> specs;
+
+    /**
+     * Number of specifications returned without contacting the server.
+     */
+    private long hits;
+
+    /**
+     * Number of specifications fetched and parsed.
+     */
+    private long fetches;
+
+    /**
+     * Number of expired specifications found unchanged on the server.
+     */
+    private long revalidations;
+
+    /**
+     * @param xmlReaderFactory the factory of the XML readers used to parse the specifications
+     * @param maxSize the maximum number of cached specifications
+     * @param timeToLive how long, in milliseconds, a specification is used without being revalidated when its
+     *            response has no expiration headers
+     */
+    public GadgetSpecCache(XMLReaderFactory xmlReaderFactory, final int maxSize, long timeToLive)
+    {
+        this.xmlReaderFactory = xmlReaderFactory;
+        this.timeToLive = timeToLive;
+        this.specs = new LinkedHashMap<String, GadgetSpec>(16, 0.75f, true)
+        {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, GadgetSpec> eldest)
+            {
+                return size() > maxSize;
+            }
+        };
+    }
+
+    /**
+     * @param gadgetUri URI location of gadget XML
+     * @return the parsed gadget specification
+     * @throws Exception if the specification cannot be fetched or parsed
+     */
+    public GadgetSpec getSpec(String gadgetUri) throws Exception
+    {
+        GadgetSpec cached;
+        synchronized (this.specs) {
+            cached = this.specs.get(gadgetUri);
+            if (cached != null && System.currentTimeMillis() < cached.expires) {
+                this.hits++;
+                return cached;
+            }
+        }
+
+        // fetch outside of the lock, not to block the other gadgets of the page on a slow server
+        GadgetSpec spec = fetch(gadgetUri, cached);
+        synchronized (this.specs) {
+            this.specs.put(gadgetUri, spec);
+        }
+        return spec;
+    }
+
+    /**
+     * Removes all the cached specifications.
+     */
+    public void clear()
+    {
+        synchronized (this.specs) {
+            this.specs.clear();
+        }
+    }
+
+    /**
+     * @return the number of cached specifications
+     */
+    public int size()
+    {
+        synchronized (this.specs) {
+            return this.specs.size();
+        }
+    }
+
+    /**
+     * @return the number of specifications returned without contacting the server
+     */
+    public long getHits()
+    {
+        synchronized (this.specs) {
+            return this.hits;
+        }
+    }
+
+    /**
+     * @return the number of specifications fetched and parsed
+     */
+    public long getFetches()
+    {
+        synchronized (this.specs) {
+            return this.fetches;
+        }
+    }
+
+    /**
+     * @return the number of expired specifications found unchanged on the server
+     */
+    public long getRevalidations()
+    {
+        synchronized (this.specs) {
+            return this.revalidations;
+        }
+    }
+
+    /**
+     * Fetches a gadget specification, conditionally if a previous version is known.
+     *
+     * @param gadgetUri URI location of gadget XML
+     * @param cached the expired specification, null if none
+     * @return the new specification, or the cached one with a new expiration time if it did not change
+     * @throws Exception if the specification cannot be fetched or parsed
+     */
+    private GadgetSpec fetch(String gadgetUri, GadgetSpec cached) throws Exception
+    {
+        long now = System.currentTimeMillis();
+        URLConnection connection = new URL(gadgetUri).openConnection();
+        if (cached != null) {
+            if (cached.etag != null) {
+                connection.setRequestProperty("If-None-Match", cached.etag);
+            }
+            if (cached.lastModified > 0) {
+                connection.setIfModifiedSince(cached.lastModified);
+            }
+        }
+
+        InputStream in = null;
+        try {
+            boolean notModified;
+            if (connection instanceof HttpURLConnection) {
+                notModified = ((HttpURLConnection) connection).getResponseCode() == HttpURLConnection.HTTP_NOT_MODIFIED;
+            } else {
+                // no conditional request outside of HTTP, rely on the modification date
+                in = connection.getInputStream();
+                notModified = cached != null && cached.lastModified > 0
+                    && connection.getLastModified() == cached.lastModified;
+            }
+            if (cached != null && notModified) {
+                synchronized (this.specs) {
+                    this.revalidations++;
+                }
+                return new GadgetSpec(cached.userPrefs, cached.modulePrefs, cached.etag, cached.lastModified,
+                    getExpires(connection, now));
+            }
+
+            if (in == null) {
+                in = connection.getInputStream();
+            }
+            byte[] content = read(in);
+
+            UserPrefsHandler upHandler = new UserPrefsHandler();
+            parse(gadgetUri, content, upHandler);
+            ModulePrefsHandler mpHandler = new ModulePrefsHandler();
+            parse(gadgetUri, content, mpHandler);
+
+            synchronized (this.specs) {
+                this.fetches++;
+            }
+            return new GadgetSpec(upHandler.getResult(), mpHandler.getResult(), connection.getHeaderField("ETag"),
+                connection.getLastModified(), getExpires(connection, now));
+        } finally {
+            if (in != null) {
+                in.close();
+            }
+        }
+    }
+
+    /**
+     * @param connection the connection the specification was fetched with
+     * @param now the time of the request
+     * @return the time after which the specification has to be revalidated
+     */
+    private long getExpires(URLConnection connection, long now)
+    {
+        String cacheControl = connection.getHeaderField("Cache-Control");
+        if (cacheControl != null) {
+            if (cacheControl.contains("no-cache") || cacheControl.contains("no-store")) {
+                return now;
+            }
+            Matcher matcher = MAX_AGE.matcher(cacheControl);
+            if (matcher.find()) {
+                return now + Long.parseLong(matcher.group(1)) * 1000;
+            }
+        }
+        long expiration = connection.getExpiration();
+        if (expiration > 0) {
+            return expiration;
+        }
+        return now + this.timeToLive;
+    }
+
+    /**
+     * @param gadgetUri URI location of gadget XML, used to resolve relative references
+     * @param content the gadget XML
+     * @param handler the handler receiving the parsing events
+     * @throws SAXException if the XML is not valid
+     * @throws ParserConfigurationException if no XML reader can be created
+     * @throws IOException if the content cannot be read
+     */
+    private void parse(String gadgetUri, byte[] content, ContentHandler handler) throws SAXException,
+        ParserConfigurationException, IOException
+    {
+        XMLReader xr = this.xmlReaderFactory.createXMLReader();
+        xr.setContentHandler(handler);
+        InputSource source = new InputSource(new ByteArrayInputStream(content));
+        source.setSystemId(gadgetUri);
+        xr.parse(source);
+    }
+
+    /**
+     * @param in the stream to read
+     * @return the content of the stream
+     * @throws IOException if the stream cannot be read
+     */
+    private byte[] read(InputStream in) throws IOException
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int count;
+        while ((count = in.read(buffer)) != -1) {
+            out.write(buffer, 0, count);
+        }
+        return out.toByteArray();
+    }
+}
@@ -19,39 +19,67 @@
  */
 package org.xwiki.gadgets.internal;
 
+import java.util.ArrayList;
 import java.util.List;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
-import org.xml.sax.InputSource;
-import org.xml.sax.XMLReader;
 import org.xwiki.component.annotation.Component;
 import org.xwiki.component.annotation.Requirement;
+import org.xwiki.component.phase.Initializable;
+import org.xwiki.component.phase.InitializationException;
 import org.xwiki.gadgets.GadgetService;
 import org.xwiki.gadgets.ModulePrefs;
-import org.xwiki.gadgets.ModulePrefsHandler;
 import org.xwiki.gadgets.UserPref;
-import org.xwiki.gadgets.UserPrefsHandler;
 import org.xwiki.xml.XMLReaderFactory;
 
 /**
+ * Gadget service parsing Google gadget specifications. The parsed specifications are cached, so that the User
+ * Preferences and the Module Preferences of a gadget are fetched and parsed once, see {@link GadgetSpecCache}. The
+ * cached preferences are shared, callers get copies they are free to change.
+ *
  * @version $Id$
  */
 @Component("google")
-public class GoogleGadgetService implements GadgetService
+public class GoogleGadgetService implements GadgetService, Initializable
 {
     /**
      * Default XWiki logger to report errors correctly.
      */
     private static final Log LOG = LogFactory.getLog(GoogleGadgetService.class);
 
+    /**
+     * The maximum number of cached gadget specifications.
+     */
+    private static final int CACHE_SIZE = 500;
+
+    /**
+     * How long a gadget specification is cached when its server does not say it, in milliseconds.
+     */
+    private static final long CACHE_TIME_TO_LIVE = 5 * 60 * 1000L;
+
     /**
      * The XML reader factory used to create XML readers.
      */
     @Requirement
     private XMLReaderFactory xmlReaderFactory;
 
+    /**
+     * The parsed gadget specifications.
+     */
+    private GadgetSpecCache specCache;
+
+    /**
+     * {@inheritDoc}
+     * 
+     * @see Initializable#initialize()
+     */
+    public void initialize() throws InitializationException
+    {
+        this.specCache = new GadgetSpecCache(this.xmlReaderFactory, CACHE_SIZE, CACHE_TIME_TO_LIVE);
+    }
+
     /**
      * {@inheritDoc}
      * 
@@ -60,12 +88,12 @@ public class GoogleGadgetService implements GadgetService
     public List<UserPref> parseUserPrefs(String gadgetUri)
     {
         try {
-            XMLReader xr = xmlReaderFactory.createXMLReader();
-            UserPrefsHandler upHandler = new UserPrefsHandler();
-            xr.setContentHandler(upHandler);
-            xr.parse(new InputSource(gadgetUri));
-
-            return upHandler.getResult();
+            List<UserPref> userPrefs = this.specCache.getSpec(gadgetUri).getUserPrefs();
+            List<UserPref> copies = new ArrayList<UserPref>(userPrefs.size());
+            for (UserPref userPref : userPrefs) {
+                copies.add(new UserPref(userPref));
+            }
+            return copies;
         } catch (Exception e) {
             LOG.error(String.format("Exception while parsing User Preferences from gadget XML at location %s.",
                 gadgetUri), e);
@@ -81,12 +109,7 @@ public class GoogleGadgetService implements GadgetService
     public ModulePrefs parseModulePrefs(String gadgetUri)
     {
         try {
-            XMLReader xr = xmlReaderFactory.createXMLReader();
-            ModulePrefsHandler mpHandler = new ModulePrefsHandler();
-            xr.setContentHandler(mpHandler);
-            xr.parse(new InputSource(gadgetUri));
-
-            return mpHandler.getResult();
+            return new ModulePrefs(this.specCache.getSpec(gadgetUri).getModulePrefs());
         } catch (Exception e) {
             LOG.error(String.format("Exception while parsing Module Preferences from gadget XML at location %s.",
                 gadgetUri), e);
@@ -0,0 +1,164 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.gadgets.internal;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.xwiki.rendering.macro.descriptor.MacroDescriptor;
+
+/**
+ * Immutable index of the macro descriptors, sorted by name and grouped by category, built once for a given version of
+ * the registered macros.
+ *
+ * @version $Id$
+ */
+public class MacroDescriptorIndex
+{
+    /**
+     * The category of the macros without default category.
+     */
+    public static final String NO_CATEGORY = "";
+
+    /**
+     * Orders the macro descriptors by name, ignoring the case.
+     */
+    private static final Comparator<MacroDescriptor> NAME_COMPARATOR = new Comparator<MacroDescriptor>()
+    {
+        public int compare(MacroDescriptor alice, MacroDescriptor bob)
+        {
+            return alice.getName().toLowerCase().compareTo(bob.getName().toLowerCase());
+        }
+    };
+
+    /**
+     * The version of the registered macros this index was built from.
+     */
+    private final long version;
+
+    /**
+     * The descriptors, sorted by name.
+     */
+    private final List<MacroDescriptor> descriptors;
+
+    /**
+     * The lower case names of the descriptors, in the same order, for the prefix lookups.
+     */
+    private final String[] names;
+
+    /**
+     * The descriptors sorted by name, by category sorted by name.
+     */
+    private final Map<String, List<MacroDescriptor>> descriptorsByCategory;
+
+    /**
+     * @param version the version of the registered macros the descriptors were retrieved for
+     * @param descriptors the descriptors of the registered macros
+     */
+    public MacroDescriptorIndex(long version, Collection<MacroDescriptor> descriptors)
+    {
+        this.version = version;
+
+        List<MacroDescriptor> sorted = new ArrayList<MacroDescriptor>(descriptors);
+        Collections.sort(sorted, NAME_COMPARATOR);
+        this.descriptors = Collections.unmodifiableList(sorted);
+
+        this.names = new String[sorted.size()];
+        Map<String, List<MacroDescriptor>> categories = new TreeMap<String, List<MacroDescriptor>>();
+        for (int i = 0; i < sorted.size(); i++) {
+            MacroDescriptor descriptor = sorted.get(i);
+            this.names[i] = descriptor.getName().toLowerCase();
+
+            String category = descriptor.getDefaultCategory();
+            if (category == null) {
+                category = NO_CATEGORY;
+            }
+            List<MacroDescriptor> categoryDescriptors = categories.get(category);
+            if (categoryDescriptors == null) {
+                categoryDescriptors = new ArrayList<MacroDescriptor>();
+                categories.put(category, categoryDescriptors);
+            }
+            categoryDescriptors.add(descriptor);
+        }
+
+        Map<String, List<MacroDescriptor>> byCategory = new LinkedHashMap<String, List<MacroDescriptor>>();
+        for (Map.Entry<String, List<MacroDescriptor>> entry : categories.entrySet()) {
+            byCategory.put(entry.getKey(), Collections.unmodifiableList(entry.getValue()));
+        }
+        this.descriptorsByCategory = Collections.unmodifiableMap(byCategory);
+    }
+
+    /**
+     * @return the version of the registered macros this index was built from
+     */
+    public long getVersion()
+    {
+        return this.version;
+    }
+
+    /**
+     * @return the descriptors, sorted by name
+     */
+    public List<MacroDescriptor> getDescriptors()
+    {
+        return this.descriptors;
+    }
+
+    /**
+     * @return the descriptors sorted by name, by category sorted by name
+     */
+    public Map<String, List<MacroDescriptor>> getDescriptorsByCategory()
+    {
+        return this.descriptorsByCategory;
+    }
+
+    /**
+     * @param prefix the beginning of the macro names, the case is ignored
+     * @return the descriptors whose name starts with the prefix, sorted by name
+     */
+    public List<MacroDescriptor> getDescriptors(String prefix)
+    {
+        String lowerCasePrefix = prefix.toLowerCase();
+
+        // binary search of the first name not lower than the prefix
+        int low = 0;
+        int high = this.names.length;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (this.names[middle].compareTo(lowerCasePrefix) < 0) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+
+        int end = low;
+        while (end < this.names.length && this.names[end].startsWith(lowerCasePrefix)) {
+            end++;
+        }
+        return this.descriptors.subList(low, end);
+    }
+}
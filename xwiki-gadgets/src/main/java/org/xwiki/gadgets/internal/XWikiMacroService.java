@@ -20,13 +20,15 @@
 package org.xwiki.gadgets.internal;
 
 import java.util.ArrayList;
-import java.util.Collections;
-import java.util.Comparator;
+import java.util.Arrays;
 import java.util.List;
+import java.util.Map;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
+import org.xwiki.component.event.ComponentDescriptorAddedEvent;
+import org.xwiki.component.event.ComponentDescriptorRemovedEvent;
 import org.xwiki.gadgets.MacroService;
 import org.xwiki.model.reference.EntityReferenceSerializer;
 import org.xwiki.model.reference.DocumentReference;
@@ -40,12 +42,20 @@ import org.xwiki.rendering.syntax.SyntaxFactory;
 import org.xwiki.component.annotation.Component;
 import org.xwiki.component.annotation.Requirement;
 import org.xwiki.component.logging.AbstractLogEnabled;
+import org.xwiki.component.phase.Initializable;
+import org.xwiki.component.phase.InitializationException;
+import org.xwiki.observation.EventListener;
+import org.xwiki.observation.ObservationManager;
+import org.xwiki.observation.event.Event;
 
 /**
+ * Macro service backed by the macro manager. The macro descriptors are sorted and grouped once, in a
+ * {@link MacroDescriptorIndex} which is rebuilt only after a macro is registered or unregistered.
+ *
  * @version $Id$
  */
 @Component
-public class XWikiMacroService extends AbstractLogEnabled implements MacroService
+public class XWikiMacroService extends AbstractLogEnabled implements MacroService, EventListener, Initializable
 {
     /**
      * Default XWiki logger to report errors correctly.
@@ -70,6 +80,92 @@ public class XWikiMacroService extends AbstractLogEnabled implements MacroServic
     @Requirement
     private EntityReferenceSerializer< ? > entityReferenceSerializer;
 
+    /**
+     * The observation manager notifying the registration of macros.
+     */
+    @Requirement
+    private ObservationManager observationManager;
+
+    /**
+     * The version of the registered macros, incremented each time a macro is registered or unregistered.
+     */
+    private volatile long macrosVersion;
+
+    /**
+     * The index of the macro descriptors, null until the descriptors are first asked.
+     */
+    private volatile MacroDescriptorIndex index;
+
+    /**
+     * {@inheritDoc}
+     * 
+     * @see Initializable#initialize()
+     */
+    public void initialize() throws InitializationException
+    {
+        this.observationManager.addListener(this);
+    }
+
+    /**
+     * {@inheritDoc}
+     * 
+     * @see EventListener#getName()
+     */
+    public String getName()
+    {
+        return XWikiMacroService.class.getName();
+    }
+
+    /**
+     * {@inheritDoc}
+     * 
+     * @see EventListener#getEvents()
+     */
+    public List<Event> getEvents()
+    {
+        return Arrays.<Event> asList(new ComponentDescriptorAddedEvent(Macro.class),
+            new ComponentDescriptorRemovedEvent(Macro.class));
+    }
+
+    /**
+     * {@inheritDoc}
+     * 
+     * @see EventListener#onEvent(Event, Object, Object)
+     */
+    public void onEvent(Event event, Object source, Object data)
+    {
+        synchronized (this) {
+            this.macrosVersion++;
+        }
+    }
+
+    /**
+     * @return the index of the descriptors of the registered macros, rebuilt if a macro was registered or
+     *         unregistered since it was built
+     * @throws MacroLookupException if a macro cannot be retrieved
+     */
+    private MacroDescriptorIndex getIndex() throws MacroLookupException
+    {
+        MacroDescriptorIndex current = this.index;
+        long version = this.macrosVersion;
+        if (current != null && current.getVersion() == version) {
+            return current;
+        }
+
+        // build outside of the lock; if a macro is registered meanwhile, the next call builds the index again
+        List<MacroDescriptor> descriptors = new ArrayList<MacroDescriptor>();
+        for (MacroId macroId : macroManager.getMacroIds()) {
+            descriptors.add(macroManager.getMacro(macroId).getDescriptor());
+        }
+        current = new MacroDescriptorIndex(version, descriptors);
+        synchronized (this) {
+            if (this.index == null || this.index.getVersion() < version) {
+                this.index = current;
+            }
+        }
+        return current;
+    }
+
     /**
      * {@inheritDoc}
      * 
@@ -78,22 +174,39 @@ public class XWikiMacroService extends AbstractLogEnabled implements MacroServic
     public List<MacroDescriptor> getMacroDescriptors()
     {
         try {
-            List<MacroDescriptor> descriptors = new ArrayList<MacroDescriptor>();
-            for (MacroId macroId : macroManager.getMacroIds()) {
-                descriptors.add(macroManager.getMacro(macroId).getDescriptor());
-            }
+            return getIndex().getDescriptors();
+        } catch (Exception e) {
+            LOG.error("Exception while retrieving the list of macro descriptors.", e);
+            throw new RuntimeException(e.getLocalizedMessage());
+        }
+    }
 
-            Collections.sort(descriptors, new Comparator<MacroDescriptor>()
-            {
-                public int compare(MacroDescriptor alice, MacroDescriptor bob)
-                {
-                    return alice.getName().toLowerCase().compareTo(bob.getName().toLowerCase());
-                }
-            });
+    /**
+     * {@inheritDoc}
+     * 
+     * @see MacroService#getMacroDescriptors(String)
+     */
+    public List<MacroDescriptor> getMacroDescriptors(String prefix)
+    {
+        try {
+            return getIndex().getDescriptors(prefix);
+        } catch (Exception e) {
+            LOG.error(String.format("Exception while retrieving the macro descriptors starting with %s.", prefix), e);
+            throw new RuntimeException(e.getLocalizedMessage());
+        }
+    }
 
-            return descriptors;
+    /**
+     * {@inheritDoc}
+     * 
+     * @see MacroService#getMacroDescriptorsByCategory()
+     */
+    public Map<String, List<MacroDescriptor>> getMacroDescriptorsByCategory()
+    {
+        try {
+            return getIndex().getDescriptorsByCategory();
         } catch (Exception e) {
-            LOG.error("Exception while retrieving the list of macro descriptors.", e);
+            LOG.error("Exception while retrieving the macro descriptors by category.", e);
             throw new RuntimeException(e.getLocalizedMessage());
         }
     }
@@ -0,0 +1,233 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.gadgets.internal;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.parsers.SAXParserFactory;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.xml.sax.SAXException;
+import org.xml.sax.XMLReader;
+import org.xwiki.gadgets.internal.GadgetSpecCache.GadgetSpec;
+import org.xwiki.xml.XMLReaderFactory;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Unit tests for {@link GadgetSpecCache}, with the gadget specifications served from a temporary file and from a
+ * local HTTP server.
+ *
+ * @version $Id$
+ */
+public class GadgetSpecCacheTest
+{
+    private static final String GADGET = "<?xml version=\"1.0\" encoding=\"UTF-8\"?><Module>"
+        + "<ModulePrefs title=\"%s\" height=\"200\"/>"
+        + "<UserPref name=\"city\" display_name=\"City\" default_value=\"Paris\"/>"
+        + "<Content type=\"html\"><![CDATA[Hello]]></Content></Module>";
+
+    private static final XMLReaderFactory XML_READER_FACTORY = new XMLReaderFactory()
+    {
+        public XMLReader createXMLReader() throws SAXException, ParserConfigurationException
+        {
+            return SAXParserFactory.newInstance().newSAXParser().getXMLReader();
+        }
+    };
+
+    private File gadgetFile;
+
+    private HttpServer server;
+
+    private String etag = "\"1\"";
+
+    private String title = "Weather";
+
+    private String cacheControl;
+
+    private int requests;
+
+    private int notModifiedResponses;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        this.gadgetFile = File.createTempFile("gadget", ".xml");
+        writeGadgetFile("Weather");
+
+        this.server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        this.server.createContext("/gadget.xml", new HttpHandler()
+        {
+            public void handle(HttpExchange exchange) throws IOException
+            {
+                requests++;
+                exchange.getResponseHeaders().set("ETag", etag);
+                if (cacheControl != null) {
+                    exchange.getResponseHeaders().set("Cache-Control", cacheControl);
+                }
+                if (etag.equals(exchange.getRequestHeaders().getFirst("If-None-Match"))) {
+                    notModifiedResponses++;
+                    exchange.sendResponseHeaders(304, -1);
+                } else {
+                    byte[] content = String.format(GADGET, title).getBytes("UTF-8");
+                    exchange.sendResponseHeaders(200, content.length);
+                    exchange.getResponseBody().write(content);
+                }
+                exchange.close();
+            }
+        });
+        this.server.start();
+    }
+
+    @After
+    public void tearDown()
+    {
+        this.server.stop(0);
+        this.gadgetFile.delete();
+    }
+
+    @Test
+    public void parsesUserPrefsAndModulePrefsFromOneFetch() throws Exception
+    {
+        GadgetSpecCache cache = new GadgetSpecCache(XML_READER_FACTORY, 10, 60000);
+
+        GadgetSpec spec = cache.getSpec(getHttpUri());
+
+        Assert.assertEquals("Weather", spec.getModulePrefs().get("title"));
+        Assert.assertEquals(1, spec.getUserPrefs().size());
+        Assert.assertEquals("city", spec.getUserPrefs().get(0).getName());
+        Assert.assertEquals(1, this.requests);
+        Assert.assertEquals(1, cache.getFetches());
+    }
+
+    @Test
+    public void reusesSpecUntilItExpires() throws Exception
+    {
+        GadgetSpecCache cache = new GadgetSpecCache(XML_READER_FACTORY, 10, 60000);
+        String uri = getHttpUri();
+
+        GadgetSpec spec = cache.getSpec(uri);
+        for (int i = 0; i < 20; i++) {
+            Assert.assertSame(spec, cache.getSpec(uri));
+        }
+
+        Assert.assertEquals(1, this.requests);
+        Assert.assertEquals(20, cache.getHits());
+    }
+
+    @Test
+    public void revalidatesExpiredSpecWithETag() throws Exception
+    {
+        GadgetSpecCache cache = new GadgetSpecCache(XML_READER_FACTORY, 10, 60000);
+        String uri = getHttpUri();
+        this.cacheControl = "max-age=0";
+
+        GadgetSpec spec = cache.getSpec(uri);
+        Thread.sleep(5);
+        GadgetSpec revalidated = cache.getSpec(uri);
+
+        Assert.assertSame(spec.getModulePrefs(), revalidated.getModulePrefs());
+        Assert.assertEquals(2, this.requests);
+        Assert.assertEquals(1, this.notModifiedResponses);
+        Assert.assertEquals(1, cache.getFetches());
+        Assert.assertEquals(1, cache.getRevalidations());
+
+        // the gadget changed on the server
+        this.etag = "\"2\"";
+        this.title = "Forecast";
+        Thread.sleep(5);
+        Assert.assertEquals("Forecast", cache.getSpec(uri).getModulePrefs().get("title"));
+        Assert.assertEquals(2, cache.getFetches());
+    }
+
+    @Test
+    public void revalidatesExpiredFileWithModificationDate() throws Exception
+    {
+        GadgetSpecCache cache = new GadgetSpecCache(XML_READER_FACTORY, 10, 0);
+        String uri = this.gadgetFile.toURI().toString();
+
+        GadgetSpec spec = cache.getSpec(uri);
+        Thread.sleep(5);
+        Assert.assertSame(spec.getModulePrefs(), cache.getSpec(uri).getModulePrefs());
+        Assert.assertEquals(1, cache.getFetches());
+        Assert.assertEquals(1, cache.getRevalidations());
+
+        writeGadgetFile("Forecast");
+        this.gadgetFile.setLastModified(this.gadgetFile.lastModified() + 10000);
+        Assert.assertEquals("Forecast", cache.getSpec(uri).getModulePrefs().get("title"));
+        Assert.assertEquals(2, cache.getFetches());
+    }
+
+    @Test
+    public void evictsLeastRecentlyUsedSpec() throws Exception
+    {
+        GadgetSpecCache cache = new GadgetSpecCache(XML_READER_FACTORY, 1, 60000);
+        String fileUri = this.gadgetFile.toURI().toString();
+        String httpUri = getHttpUri();
+
+        cache.getSpec(httpUri);
+        cache.getSpec(fileUri);
+        Assert.assertEquals(1, cache.size());
+
+        cache.getSpec(httpUri);
+        Assert.assertEquals(2, this.requests);
+        Assert.assertEquals(0, cache.getHits());
+    }
+
+    @Test
+    public void doesNotCacheFailures() throws Exception
+    {
+        GadgetSpecCache cache = new GadgetSpecCache(XML_READER_FACTORY, 10, 60000);
+        String uri = new File(this.gadgetFile.getPath() + ".missing").toURI().toString();
+
+        try {
+            cache.getSpec(uri);
+            Assert.fail("A missing gadget should not be parsed");
+        } catch (IOException expected) {
+            // expected
+        }
+        Assert.assertEquals(0, cache.size());
+    }
+
+    private String getHttpUri()
+    {
+        return "http://localhost:" + this.server.getAddress().getPort() + "/gadget.xml";
+    }
+
+    private void writeGadgetFile(String gadgetTitle) throws IOException
+    {
+        OutputStream out = new FileOutputStream(this.gadgetFile);
+        try {
+            out.write(String.format(GADGET, gadgetTitle).getBytes("UTF-8"));
+        } finally {
+            out.close();
+        }
+    }
+}
@@ -0,0 +1,128 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.gadgets.internal;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.lang.reflect.Field;
+import java.util.List;
+
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.parsers.SAXParserFactory;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.xml.sax.SAXException;
+import org.xml.sax.XMLReader;
+import org.xwiki.gadgets.ModulePrefs;
+import org.xwiki.gadgets.UserPref;
+import org.xwiki.xml.XMLReaderFactory;
+
+/**
+ * Unit tests for {@link GoogleGadgetService}, checking that the callers can't change the cached preferences.
+ *
+ * @version $Id$
+ */
+public class GoogleGadgetServiceTest
+{
+    private static final String GADGET = "<?xml version=\"1.0\" encoding=\"UTF-8\"?><Module>"
+        + "<ModulePrefs title=\"Weather\" height=\"200\"/>"
+        + "<UserPref name=\"unit\" display_name=\"Unit\" datatype=\"enum\" default_value=\"C\">"
+        + "<EnumValue value=\"C\" display_value=\"Celsius\"/><EnumValue value=\"F\" display_value=\"Fahrenheit\"/>"
+        + "</UserPref><Content type=\"html\"><![CDATA[Hello]]></Content></Module>";
+
+    private File gadgetFile;
+
+    private GoogleGadgetService service;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        this.gadgetFile = File.createTempFile("gadget", ".xml");
+        OutputStream out = new FileOutputStream(this.gadgetFile);
+        try {
+            out.write(GADGET.getBytes("UTF-8"));
+        } finally {
+            out.close();
+        }
+
+        this.service = new GoogleGadgetService();
+        Field field = GoogleGadgetService.class.getDeclaredField("xmlReaderFactory");
+        field.setAccessible(true);
+        field.set(this.service, new XMLReaderFactory()
+        {
+            public XMLReader createXMLReader() throws SAXException, ParserConfigurationException
+            {
+                return SAXParserFactory.newInstance().newSAXParser().getXMLReader();
+            }
+        });
+        this.service.initialize();
+    }
+
+    @After
+    public void tearDown()
+    {
+        this.gadgetFile.delete();
+    }
+
+    @Test
+    public void changingModulePrefsDoesNotChangeTheCachedOnes()
+    {
+        String uri = this.gadgetFile.toURI().toString();
+
+        ModulePrefs modulePrefs = this.service.parseModulePrefs(uri);
+        Assert.assertEquals("Weather", modulePrefs.get("title"));
+        modulePrefs.set("title", "Changed");
+        modulePrefs.set("author", "Someone");
+
+        ModulePrefs other = this.service.parseModulePrefs(uri);
+        Assert.assertNotSame(modulePrefs, other);
+        Assert.assertEquals("Weather", other.get("title"));
+        Assert.assertNull(other.get("author"));
+    }
+
+    @Test
+    public void changingUserPrefsDoesNotChangeTheCachedOnes()
+    {
+        String uri = this.gadgetFile.toURI().toString();
+
+        List<UserPref> userPrefs = this.service.parseUserPrefs(uri);
+        Assert.assertEquals(1, userPrefs.size());
+        UserPref unit = userPrefs.get(0);
+        Assert.assertEquals("unit", unit.getName());
+        Assert.assertEquals(2, unit.getEnumValues().size());
+        unit.setDefaultValue("F");
+        unit.getEnumValues().get(0).setDisplayValue("Centigrade");
+        unit.getEnumValues().remove(1);
+        userPrefs.clear();
+
+        List<UserPref> other = this.service.parseUserPrefs(uri);
+        Assert.assertEquals(1, other.size());
+        Assert.assertNotSame(unit, other.get(0));
+        Assert.assertEquals("C", other.get(0).getDefaultValue());
+        Assert.assertEquals("enum", other.get(0).getDatatype());
+        Assert.assertEquals(2, other.get(0).getEnumValues().size());
+        Assert.assertEquals("Celsius", other.get(0).getEnumValues().get(0).getDisplayValue());
+        Assert.assertEquals("F", other.get(0).getEnumValues().get(1).getValue());
+    }
+}
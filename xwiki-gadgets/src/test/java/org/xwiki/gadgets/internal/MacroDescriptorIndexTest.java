@@ -0,0 +1,147 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.gadgets.internal;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.xwiki.rendering.macro.descriptor.MacroDescriptor;
+
+/**
+ * Unit tests for {@link MacroDescriptorIndex}.
+ *
+ * @version $Id$
+ */
+public class MacroDescriptorIndexTest
+{
+    private final MacroDescriptorIndex index = new MacroDescriptorIndex(1, Arrays.asList(
+        createDescriptor("toc", "Navigation"), createDescriptor("Info", "Formatting"),
+        createDescriptor("include", null), createDescriptor("info box", "Formatting"),
+        createDescriptor("Code", "Development"), createDescriptor("velocity", "Development")));
+
+    /**
+     * Creates a macro descriptor answering only its name and its default category.
+     */
+    static MacroDescriptor createDescriptor(final String name, final String category)
+    {
+        return (MacroDescriptor) Proxy.newProxyInstance(MacroDescriptor.class.getClassLoader(),
+            new Class< ? >[] {MacroDescriptor.class}, new InvocationHandler()
+            {
+                public Object invoke(Object proxy, Method method, Object[] args)
+                {
+                    if (method.getName().equals("getName")) {
+                        return name;
+                    } else if (method.getName().equals("getDefaultCategory")) {
+                        return category;
+                    } else if (method.getName().equals("toString")) {
+                        return name;
+                    } else if (method.getName().equals("hashCode")) {
+                        return System.identityHashCode(proxy);
+                    } else if (method.getName().equals("equals")) {
+                        return proxy == args[0];
+                    }
+                    throw new UnsupportedOperationException(method.getName());
+                }
+            });
+    }
+
+    static List<String> getNames(List<MacroDescriptor> descriptors)
+    {
+        List<String> names = new ArrayList<String>();
+        for (MacroDescriptor descriptor : descriptors) {
+            names.add(descriptor.getName());
+        }
+        return names;
+    }
+
+    @Test
+    public void sortsDescriptorsByNameIgnoringCase()
+    {
+        Assert.assertEquals(Arrays.asList("Code", "include", "Info", "info box", "toc", "velocity"),
+            getNames(this.index.getDescriptors()));
+    }
+
+    @Test
+    public void emptyPrefixMatchesAllDescriptors()
+    {
+        Assert.assertEquals(getNames(this.index.getDescriptors()), getNames(this.index.getDescriptors("")));
+    }
+
+    @Test
+    public void prefixIgnoresCase()
+    {
+        Assert.assertEquals(Arrays.asList("Info", "info box"), getNames(this.index.getDescriptors("InF")));
+        Assert.assertEquals(Arrays.asList("include", "Info", "info box"), getNames(this.index.getDescriptors("IN")));
+        Assert.assertEquals(Arrays.asList("info box"), getNames(this.index.getDescriptors("Info ")));
+        Assert.assertEquals(Arrays.asList("Code"), getNames(this.index.getDescriptors("code")));
+    }
+
+    @Test
+    public void prefixAtTheEndOfTheList()
+    {
+        Assert.assertEquals(Arrays.asList("velocity"), getNames(this.index.getDescriptors("v")));
+        Assert.assertEquals(Arrays.asList("velocity"), getNames(this.index.getDescriptors("VELOCITY")));
+        Assert.assertTrue(this.index.getDescriptors("velocityx").isEmpty());
+        Assert.assertTrue(this.index.getDescriptors("z").isEmpty());
+    }
+
+    @Test
+    public void prefixMatchingNothing()
+    {
+        Assert.assertTrue(this.index.getDescriptors("a").isEmpty());
+        Assert.assertTrue(this.index.getDescriptors("j").isEmpty());
+    }
+
+    @Test
+    public void groupsDescriptorsByCategory()
+    {
+        Map<String, List<MacroDescriptor>> byCategory = this.index.getDescriptorsByCategory();
+
+        Assert.assertEquals(Arrays.asList(MacroDescriptorIndex.NO_CATEGORY, "Development", "Formatting",
+            "Navigation"), new ArrayList<String>(byCategory.keySet()));
+        Assert.assertEquals(Arrays.asList("include"), getNames(byCategory.get(MacroDescriptorIndex.NO_CATEGORY)));
+        Assert.assertEquals(Arrays.asList("Code", "velocity"), getNames(byCategory.get("Development")));
+        Assert.assertEquals(Arrays.asList("Info", "info box"), getNames(byCategory.get("Formatting")));
+    }
+
+    @Test
+    public void emptyIndex()
+    {
+        MacroDescriptorIndex empty = new MacroDescriptorIndex(0, new ArrayList<MacroDescriptor>());
+
+        Assert.assertTrue(empty.getDescriptors().isEmpty());
+        Assert.assertTrue(empty.getDescriptors("").isEmpty());
+        Assert.assertTrue(empty.getDescriptors("info").isEmpty());
+        Assert.assertTrue(empty.getDescriptorsByCategory().isEmpty());
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void descriptorsCannotBeModified()
+    {
+        this.index.getDescriptors("in").clear();
+    }
+}
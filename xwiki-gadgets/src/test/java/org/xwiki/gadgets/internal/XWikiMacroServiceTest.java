@@ -0,0 +1,161 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.gadgets.internal;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.xwiki.component.event.ComponentDescriptorAddedEvent;
+import org.xwiki.component.event.ComponentDescriptorRemovedEvent;
+import org.xwiki.rendering.macro.Macro;
+import org.xwiki.rendering.macro.MacroId;
+import org.xwiki.rendering.macro.MacroManager;
+import org.xwiki.rendering.macro.descriptor.MacroDescriptor;
+
+/**
+ * Unit tests for the index of the macro descriptors kept by {@link XWikiMacroService}, against a macro manager whose
+ * macros are registered and unregistered by the tests.
+ *
+ * @version $Id$
+ */
+public class XWikiMacroServiceTest
+{
+    /**
+     * The registered macros.
+     */
+    private final Map<MacroId, MacroDescriptor> macros = new IdentityHashMap<MacroId, MacroDescriptor>();
+
+    private int lookups;
+
+    private XWikiMacroService service;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        register("toc", "Navigation");
+        register("info", "Formatting");
+
+        MacroManager macroManager = (MacroManager) Proxy.newProxyInstance(MacroManager.class.getClassLoader(),
+            new Class< ? >[] {MacroManager.class}, new InvocationHandler()
+            {
+                public Object invoke(Object proxy, Method method, Object[] args)
+                {
+                    if (method.getName().equals("getMacroIds") && args == null) {
+                        lookups++;
+                        return new LinkedHashSet<MacroId>(macros.keySet());
+                    } else if (method.getName().equals("getMacro")) {
+                        return createMacro(macros.get(args[0]));
+                    }
+                    throw new UnsupportedOperationException(method.getName());
+                }
+            });
+
+        this.service = new XWikiMacroService();
+        Field field = XWikiMacroService.class.getDeclaredField("macroManager");
+        field.setAccessible(true);
+        field.set(this.service, macroManager);
+    }
+
+    private void register(String name, String category)
+    {
+        this.macros.put(new MacroId(name), MacroDescriptorIndexTest.createDescriptor(name, category));
+    }
+
+    private void unregister(String name)
+    {
+        for (Map.Entry<MacroId, MacroDescriptor> entry : this.macros.entrySet()) {
+            if (entry.getValue().getName().equals(name)) {
+                this.macros.remove(entry.getKey());
+                return;
+            }
+        }
+    }
+
+    private static Macro< ? > createMacro(final MacroDescriptor descriptor)
+    {
+        return (Macro< ? >) Proxy.newProxyInstance(Macro.class.getClassLoader(), new Class< ? >[] {Macro.class},
+            new InvocationHandler()
+            {
+                public Object invoke(Object proxy, Method method, Object[] args)
+                {
+                    if (method.getName().equals("getDescriptor")) {
+                        return descriptor;
+                    }
+                    throw new UnsupportedOperationException(method.getName());
+                }
+            });
+    }
+
+    @Test
+    public void buildsTheIndexOnce()
+    {
+        Assert.assertEquals(Arrays.asList("info", "toc"),
+            MacroDescriptorIndexTest.getNames(this.service.getMacroDescriptors()));
+        Assert.assertEquals(Arrays.asList("toc"),
+            MacroDescriptorIndexTest.getNames(this.service.getMacroDescriptors("T")));
+        this.service.getMacroDescriptorsByCategory();
+
+        Assert.assertEquals(1, this.lookups);
+    }
+
+    @Test
+    public void rebuildsTheIndexAfterAMacroIsRegistered()
+    {
+        Assert.assertEquals(Arrays.asList("info", "toc"),
+            MacroDescriptorIndexTest.getNames(this.service.getMacroDescriptors()));
+
+        register("include", null);
+        // not notified yet
+        Assert.assertEquals(2, this.service.getMacroDescriptors().size());
+        this.service.onEvent(new ComponentDescriptorAddedEvent(Macro.class), null, null);
+
+        Assert.assertEquals(Arrays.asList("include", "info", "toc"),
+            MacroDescriptorIndexTest.getNames(this.service.getMacroDescriptors()));
+        Assert.assertEquals(Arrays.asList("include", "info"),
+            MacroDescriptorIndexTest.getNames(this.service.getMacroDescriptors("i")));
+        Assert.assertEquals(Arrays.asList("include"), MacroDescriptorIndexTest.getNames(this.service
+            .getMacroDescriptorsByCategory().get(MacroDescriptorIndex.NO_CATEGORY)));
+        Assert.assertEquals(2, this.lookups);
+    }
+
+    @Test
+    public void rebuildsTheIndexAfterAMacroIsUnregistered()
+    {
+        Assert.assertEquals(2, this.service.getMacroDescriptors().size());
+
+        unregister("toc");
+        this.service.onEvent(new ComponentDescriptorRemovedEvent(Macro.class), null, null);
+
+        Assert.assertEquals(Arrays.asList("info"),
+            MacroDescriptorIndexTest.getNames(this.service.getMacroDescriptors()));
+        Assert.assertTrue(this.service.getMacroDescriptors("t").isEmpty());
+        Assert.assertNull(this.service.getMacroDescriptorsByCategory().get("Navigation"));
+        Assert.assertEquals(2, this.lookups);
+    }
+}
@@ -0,0 +1,133 @@
+package com.xpn.xwiki.plugin.tasks;
+
+import groovy.lang.GroovyClassLoader;
+
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.codehaus.groovy.control.CompilationFailedException;
+
+/**
+ * Cache of the compiled task scripts, keyed by the hash of their source, so that a task compiles its script once and
+ * not each time it is triggered. Each script is compiled in its own class loader, which is released with the class
+ * when the script is evicted, either because the task script changed or because more than {@link #MAX_SCRIPTS}
+ * scripts are in use.
+ */
+public class GroovyScriptCache {
+	private static Log logger = LogFactory.getLog(GroovyScriptCache.class);
+
+	/** The maximum number of compiled scripts kept, the least recently used one being evicted first. */
+	protected static final int MAX_SCRIPTS = 100;
+
+	private static final Map scripts = new LinkedHashMap(16, 0.75f, true) {
+		protected boolean removeEldestEntry(Map.Entry eldest) {
+			if (size() > MAX_SCRIPTS) {
+				evictions++;
+				return true;
+			}
+			return false;
+		}
+	};
+
+	private static long hits;
+
+	private static long misses;
+
+	private static long evictions;
+
+	private static long compilationTime;
+
+	/**
+	 * @param script the source of a Groovy script
+	 * @return the compiled script class, compiled only if the same source was not compiled before
+	 * @throws CompilationFailedException if the script cannot be compiled
+	 */
+	public static Class getScriptClass(String script) throws CompilationFailedException {
+		String key = hash(script);
+		synchronized (scripts) {
+			Class scriptClass = (Class) scripts.get(key);
+			if (scriptClass != null) {
+				hits++;
+				return scriptClass;
+			}
+		}
+
+		// compile outside of the lock, a script compiled twice concurrently is only compiled once more
+		long start = System.currentTimeMillis();
+		GroovyClassLoader loader = new GroovyClassLoader(GroovyScriptCache.class.getClassLoader());
+		Class scriptClass = loader.parseClass(script, "Task" + key + ".groovy");
+		long time = System.currentTimeMillis() - start;
+		logger.debug("Compiled task script " + key + " in " + time + " ms");
+
+		synchronized (scripts) {
+			misses++;
+			compilationTime += time;
+			scripts.put(key, scriptClass);
+		}
+		return scriptClass;
+	}
+
+	/**
+	 * Removes all the compiled scripts.
+	 */
+	public static void flush() {
+		synchronized (scripts) {
+			evictions += scripts.size();
+			scripts.clear();
+		}
+	}
+
+	public static int getSize() {
+		synchronized (scripts) {
+			return scripts.size();
+		}
+	}
+
+	public static long getHits() {
+		synchronized (scripts) {
+			return hits;
+		}
+	}
+
+	public static long getMisses() {
+		synchronized (scripts) {
+			return misses;
+		}
+	}
+
+	public static long getEvictions() {
+		synchronized (scripts) {
+			return evictions;
+		}
+	}
+
+	/**
+	 * @return the total time spent compiling scripts, in milliseconds
+	 */
+	public static long getCompilationTime() {
+		synchronized (scripts) {
+			return compilationTime;
+		}
+	}
+
+	private static String hash(String script) {
+		try {
+			byte[] digest = MessageDigest.getInstance("SHA-1").digest(script.getBytes("UTF-8"));
+			StringBuffer hex = new StringBuffer(digest.length * 2);
+			for (int i = 0; i < digest.length; i++) {
+				hex.append(Character.forDigit((digest[i] >> 4) & 0xF, 16));
+				hex.append(Character.forDigit(digest[i] & 0xF, 16));
+			}
+			return hex.toString();
+		} catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException(e.getMessage());
+		} catch (UnsupportedEncodingException e) {
+			throw new RuntimeException(e.getMessage());
+		}
+	}
+}
@@ -1,36 +1,63 @@
 package com.xpn.xwiki.plugin.tasks;
 
 import groovy.lang.Binding;
-import groovy.lang.GroovyShell;
+import groovy.lang.Script;
+
+import java.util.HashMap;
+import java.util.Map;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.codehaus.groovy.control.CompilationFailedException;
-import org.quartz.Job;
+import org.codehaus.groovy.runtime.InvokerHelper;
 import org.quartz.JobDataMap;
 import org.quartz.JobExecutionContext;
 import org.quartz.JobExecutionException;
+import org.quartz.SchedulerContext;
+import org.quartz.SchedulerException;
+import org.quartz.StatefulJob;
 
 import com.xpn.xwiki.XWiki;
 import com.xpn.xwiki.XWikiContext;
+import com.xpn.xwiki.XWikiException;
+import com.xpn.xwiki.doc.XWikiDocument;
 import com.xpn.xwiki.objects.BaseObject;
 
-public class GroovyTask implements Job {
+/**
+ * Runs the Groovy script of a task. The task is stateful so that a long running script is not started again while it
+ * is still running.
+ */
+public class GroovyTask implements StatefulJob {
 	private static Log logger = LogFactory.getLog(GroovyTask.class);
 	
 	public void execute(JobExecutionContext context) throws JobExecutionException {
 		try {
 			JobDataMap data = context.getJobDetail().getJobDataMap();
-			XWiki xwiki = (XWiki) data.get("xwiki");
-			XWikiContext xwikiContext = (XWikiContext) data.get("context");
+			SchedulerContext schedulerContext = context.getScheduler().getContext();
+			XWiki xwiki = (XWiki) schedulerContext.get("xwiki");
+			XWikiContext xwikiContext = (XWikiContext) ((XWikiContext) schedulerContext.get("context")).clone();
 			int task = data.getInt("task");
-						
-			Binding binding = new Binding(data.getWrappedMap());
-			GroovyShell shell = new GroovyShell(binding);
-			BaseObject object = xwikiContext.getDoc().getObject(TasksPlugin.TASK_CLASS, task);
-			shell.evaluate(object.getLargeStringValue("script"));
+			if (data.getString("database") != null) {
+				xwikiContext.setDatabase(data.getString("database"));
+			}
+			XWikiDocument doc = xwiki.getDocument(data.getString("document"), xwikiContext);
+			xwikiContext.setDoc(doc);
+			
+			Map variables = new HashMap(data.getWrappedMap());
+			variables.put("xwiki", xwiki);
+			variables.put("context", xwikiContext);
+			Binding binding = new Binding(variables);
+			BaseObject object = doc.getObject(TasksPlugin.TASK_CLASS, task);
+			// the compiled class is shared by the runs, but each run gets its own script instance
+			Class scriptClass = GroovyScriptCache.getScriptClass(object.getLargeStringValue("script"));
+			Script script = InvokerHelper.createScript(scriptClass, binding);
+			script.run();
 		} catch (CompilationFailedException e) {
 			throw new JobExecutionException(e);
+		} catch (SchedulerException e) {
+			throw new JobExecutionException(e);
+		} catch (XWikiException e) {
+			throw new JobExecutionException(e);
 		}
 	}
 }
\ No newline at end of file
@@ -0,0 +1,99 @@
+package com.xpn.xwiki.plugin.tasks;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.quartz.utils.ConnectionProvider;
+
+/**
+ * Connections to the database of the persistent job store of the tasks plugin, an embedded HSQLDB database by
+ * default. The Quartz tables are created the first time an HSQLDB database is used.
+ */
+public class JobStoreConnectionProvider implements ConnectionProvider {
+	private static Log logger = LogFactory.getLog(JobStoreConnectionProvider.class);
+
+	private static final String HSQLDB_SCRIPT = "tasks_hsqldb.sql";
+
+	private String url;
+
+	private String user;
+
+	private String password;
+
+	public JobStoreConnectionProvider(String driver, String url, String user, String password)
+		throws ClassNotFoundException {
+		Class.forName(driver);
+		this.url = url;
+		this.user = user;
+		this.password = password;
+	}
+
+	public Connection getConnection() throws SQLException {
+		return DriverManager.getConnection(url, user, password);
+	}
+
+	public void shutdown() throws SQLException {
+		if (isHSQLDB()) {
+			Connection connection = getConnection();
+			try {
+				connection.createStatement().execute("SHUTDOWN");
+			} finally {
+				connection.close();
+			}
+		}
+	}
+
+	/**
+	 * Creates the Quartz tables if the database is an HSQLDB database without them. The tables of the other
+	 * databases have to be created with the scripts provided by Quartz.
+	 */
+	public void initialize() throws SQLException, IOException {
+		if (!isHSQLDB()) {
+			return;
+		}
+		Connection connection = getConnection();
+		try {
+			ResultSet tables = connection.getMetaData().getTables(null, null, "QRTZ_LOCKS", null);
+			boolean exists = tables.next();
+			tables.close();
+			if (exists) {
+				return;
+			}
+
+			logger.info("Creating the tasks job store tables in " + url);
+			InputStream in = JobStoreConnectionProvider.class.getClassLoader().getResourceAsStream(HSQLDB_SCRIPT);
+			BufferedReader reader = new BufferedReader(new InputStreamReader(in, "UTF-8"));
+			Statement statement = connection.createStatement();
+			try {
+				String line;
+				while ((line = reader.readLine()) != null) {
+					line = line.trim();
+					if (line.length() > 0 && !line.startsWith("#")) {
+						statement.execute(line);
+					}
+				}
+			} finally {
+				statement.close();
+				reader.close();
+			}
+			if (!connection.getAutoCommit()) {
+				connection.commit();
+			}
+		} finally {
+			connection.close();
+		}
+	}
+
+	private boolean isHSQLDB() {
+		return url.startsWith("jdbc:hsqldb:");
+	}
+}
@@ -1,7 +1,11 @@
 package com.xpn.xwiki.plugin.tasks;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.sql.SQLException;
 import java.text.ParseException;
 import java.util.Date;
+import java.util.Properties;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -12,6 +16,9 @@ import org.quartz.Scheduler;
 import org.quartz.SchedulerException;
 import org.quartz.Trigger;
 import org.quartz.impl.StdSchedulerFactory;
+import org.quartz.impl.jdbcjobstore.HSQLDBDelegate;
+import org.quartz.impl.jdbcjobstore.JobStoreTX;
+import org.quartz.utils.DBConnectionManager;
 
 import com.xpn.xwiki.XWiki;
 import com.xpn.xwiki.XWikiContext;
@@ -27,12 +34,16 @@ public class TasksPlugin extends XWikiDefaultPlugin implements XWikiPluginInterf
 	private static Log logger = LogFactory.getLog(TasksPlugin.class);
 	
 	protected static Scheduler scheduler;
-	private JobDataMap data = new JobDataMap();
+	/** Whether the jobs are kept in a database, which requires them not to be volatile. */
+	private static boolean persistent = false;
 	
 	protected static final String TASK_CLASS = "XWiki.Task";
 	protected static final String TASK_NAME = "Task";
 	protected static final String TASK_WEB = "XWiki";
 	
+	/** Name of the Quartz data source of the persistent job store. */
+	private static final String JOB_STORE_DATA_SOURCE = "xwikiTasks";
+	
 	public TasksPlugin(String name, String className, XWikiContext context) {
 		super(name, className, context);
 		init(context);
@@ -65,13 +76,80 @@ public class TasksPlugin extends XWikiDefaultPlugin implements XWikiPluginInterf
 		return bclass;
 	}
 	
-	private static synchronized Scheduler getSchedulerInstance() throws SchedulerException {
+	/**
+	 * Creates the scheduler, configured by quartz.properties and the xwiki.plugin.tasks parameters of xwiki.cfg.
+	 * With <code>xwiki.plugin.tasks.jobstore=jdbc</code>, the jobs are stored in a database, an embedded HSQLDB
+	 * database in <code>xwiki.plugin.tasks.jobstore.directory</code> unless
+	 * <code>xwiki.plugin.tasks.jobstore.url</code> is set, so that they survive a restart,
+	 * the triggers missed while the wiki was stopped are handled according to their misfire instruction, and
+	 * several wikis sharing the database can run the same tasks once with
+	 * <code>xwiki.plugin.tasks.jobstore.clustered=1</code>.
+	 */
+	private static synchronized Scheduler getSchedulerInstance(XWikiContext context) throws SchedulerException {
 		if (scheduler == null) {
-			scheduler = StdSchedulerFactory.getDefaultScheduler();
+			XWiki xwiki = context.getWiki();
+			Properties properties = new Properties();
+			try {
+				InputStream in = TasksPlugin.class.getClassLoader().getResourceAsStream("quartz.properties");
+				if (in != null) {
+					properties.load(in);
+					in.close();
+				}
+			} catch (IOException e) {
+				throw new SchedulerException("Failed to read quartz.properties", e);
+			}
+			// bound the number of tasks running at the same time
+			properties.setProperty("org.quartz.threadPool.threadCount", xwiki.Param("xwiki.plugin.tasks.threadCount",
+				properties.getProperty("org.quartz.threadPool.threadCount", "3")));
+			
+			if ("jdbc".equals(xwiki.Param("xwiki.plugin.tasks.jobstore", "ram"))) {
+				configureJobStore(properties, xwiki);
+				persistent = true;
+			}
+			scheduler = new StdSchedulerFactory(properties).getScheduler();
 		}
 		return scheduler;
 	}
 	
+	private static void configureJobStore(Properties properties, XWiki xwiki) throws SchedulerException {
+		String url = xwiki.Param("xwiki.plugin.tasks.jobstore.url", "").trim();
+		if (url.length() == 0) {
+			// no default directory: a temporary one may be emptied by the system, losing the tasks silently
+			String directory = xwiki.Param("xwiki.plugin.tasks.jobstore.directory", "").trim();
+			if (directory.length() == 0) {
+				throw new SchedulerException("The persistent tasks job store requires "
+					+ "xwiki.plugin.tasks.jobstore.directory or xwiki.plugin.tasks.jobstore.url to be set");
+			}
+			url = "jdbc:hsqldb:file:" + directory + "/tasks";
+		}
+		try {
+			JobStoreConnectionProvider provider = new JobStoreConnectionProvider(
+				xwiki.Param("xwiki.plugin.tasks.jobstore.driver", "org.hsqldb.jdbcDriver"), url,
+				xwiki.Param("xwiki.plugin.tasks.jobstore.user", "sa"),
+				xwiki.Param("xwiki.plugin.tasks.jobstore.password", ""));
+			provider.initialize();
+			DBConnectionManager.getInstance().addConnectionProvider(JOB_STORE_DATA_SOURCE, provider);
+		} catch (ClassNotFoundException e) {
+			throw new SchedulerException("Failed to load the tasks job store driver", e);
+		} catch (SQLException e) {
+			throw new SchedulerException("Failed to initialize the tasks job store " + url, e);
+		} catch (IOException e) {
+			throw new SchedulerException("Failed to initialize the tasks job store " + url, e);
+		}
+		
+		properties.setProperty("org.quartz.jobStore.class", JobStoreTX.class.getName());
+		properties.setProperty("org.quartz.jobStore.driverDelegateClass", xwiki.Param(
+			"xwiki.plugin.tasks.jobstore.delegate", HSQLDBDelegate.class.getName()));
+		properties.setProperty("org.quartz.jobStore.dataSource", JOB_STORE_DATA_SOURCE);
+		properties.setProperty("org.quartz.jobStore.misfireThreshold", xwiki.Param(
+			"xwiki.plugin.tasks.misfireThreshold", "60000"));
+		if ("1".equals(xwiki.Param("xwiki.plugin.tasks.jobstore.clustered", "0"))) {
+			properties.setProperty("org.quartz.jobStore.isClustered", "true");
+			properties.setProperty("org.quartz.scheduler.instanceId", "AUTO");
+		}
+		logger.info("Tasks are stored in " + url);
+	}
+	
 	private void setStatusListener() throws SchedulerException {
 		StatusListener listener = new StatusListener();
 		scheduler.addSchedulerListener(listener);
@@ -81,13 +159,16 @@ public class TasksPlugin extends XWikiDefaultPlugin implements XWikiPluginInterf
 	public void init(XWikiContext context) {
 		try {
 			getTaskClass(context);
-			scheduler = getSchedulerInstance();
+			scheduler = getSchedulerInstance(context);
+			// the jobs get the wiki from the scheduler context, since it cannot be stored with them
+			scheduler.getContext().put("xwiki", context.getWiki());
+			scheduler.getContext().put("context", context);
 			setStatusListener();
 			scheduler.start();
 		} catch (XWikiException e) {
 			e.printStackTrace();
 		} catch (SchedulerException e) {
-			e.printStackTrace();
+			logger.error("Failed to start the tasks scheduler", e);
 		}
 	}
 				
@@ -107,17 +188,27 @@ public class TasksPlugin extends XWikiDefaultPlugin implements XWikiPluginInterf
 		}
 	}
 	
+	/**
+	 * @return the name of the job and trigger of a task, qualified with its wiki and document since the scheduler,
+	 *         and the job store, are shared by all the wikis
+	 */
+	public String getTaskName(BaseObject object, XWikiContext context) {
+		return context.getDatabase() + ":" + object.getName() + "#" + object.getNumber();
+	}
+	
 	public boolean scheduleTask(BaseObject object, XWikiContext context) {
 		boolean scheduled = true;
 		try {
-			String task = String.valueOf(object.getNumber());
+			String task = getTaskName(object, context);
 			
-			JobDetail job = new JobDetail(task, Scheduler.DEFAULT_GROUP, Class.forName(object.getStringValue("taskClass")), true, false, true);
-			Trigger trigger = new CronTrigger(task, Scheduler.DEFAULT_GROUP, task, Scheduler.DEFAULT_GROUP, object.getStringValue("cron"));
+			JobDetail job = new JobDetail(task, Scheduler.DEFAULT_GROUP, Class.forName(object.getStringValue("taskClass")), !persistent, false, true);
+			CronTrigger trigger = new CronTrigger(task, Scheduler.DEFAULT_GROUP, task, Scheduler.DEFAULT_GROUP, object.getStringValue("cron"));
 			
+			// only serializable values, the job may be stored in a database
+			JobDataMap data = new JobDataMap();
 			data.put("task", object.getNumber());
-			data.put("context", context);
-			data.put("xwiki", context.getWiki());
+			data.put("document", object.getName());
+			data.put("database", context.getDatabase());
 			job.setJobDataMap(data);
 			
 			scheduler.addJob(job, true);
@@ -127,9 +218,12 @@ public class TasksPlugin extends XWikiDefaultPlugin implements XWikiPluginInterf
 					object.setStringValue("status", "Paused");
 					break;
 				case Trigger.STATE_NORMAL:
-					if (getTrigger(task).compareTo(trigger) != 0)
+					// rescheduling drops the misfires pending in the job store, only do it when the task changed
+					CronTrigger current = (CronTrigger) getTrigger(task);
+					if (!trigger.getCronExpression().equals(current.getCronExpression())) {
 						logger.debug("Reschedule Task : " + object.getStringValue("taskName"));
 						scheduler.rescheduleJob(trigger.getName(), trigger.getGroup(), trigger);
+					}
 					object.setStringValue("status", "Scheduled");
 					break;
 				case Trigger.STATE_NONE:
@@ -190,6 +284,7 @@ public class TasksPlugin extends XWikiDefaultPlugin implements XWikiPluginInterf
     }
 	
 	public void flushCache() {
+		GroovyScriptCache.flush();
     }
 	
 	public void virtualInit(XWikiContext context) {
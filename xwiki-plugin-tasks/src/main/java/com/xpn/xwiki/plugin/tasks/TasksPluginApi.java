@@ -1,7 +1,9 @@
 package com.xpn.xwiki.plugin.tasks;
 
 import java.util.Date;
+import java.util.HashMap;
 import java.util.Iterator;
+import java.util.Map;
 import java.util.Vector;
 
 import org.apache.commons.logging.Log;
@@ -40,7 +42,7 @@ public class TasksPluginApi extends Api {
 
 	public void pauseTask(BaseObject object, XWikiDocument document) {
 		try {
-			plugin.pauseTask(String.valueOf(object.getNumber()));
+			plugin.pauseTask(plugin.getTaskName(object, context));
 			saveStatus("Paused", object, document);
 			logger.debug("Pause Task : " + object.getStringValue("taskName"));
 		} catch (XWikiException e) {
@@ -75,7 +77,7 @@ public class TasksPluginApi extends Api {
 
 	public void resumeTask(BaseObject object, XWikiDocument document) {
 		try {
-			plugin.resumeTask(String.valueOf(object.getNumber()));
+			plugin.resumeTask(plugin.getTaskName(object, context));
 			saveStatus("Scheduled", object, document);
 			logger.debug("Resume Task : " + object.getStringValue("taskName"));
 		} catch (XWikiException e) {
@@ -97,7 +99,7 @@ public class TasksPluginApi extends Api {
 			objects.set(object.getNumber(), null);
 			document.addObjectsToRemove(object);
 			context.getWiki().saveDocument(document, context);
-			plugin.unscheduleTask(String.valueOf(object.getNumber()));
+			plugin.unscheduleTask(plugin.getTaskName(object, context));
 			logger.debug("Delete Task : " + object.getStringValue("taskName"));
 		} catch (XWikiException e) {
 			e.printStackTrace();
@@ -105,7 +107,21 @@ public class TasksPluginApi extends Api {
 	}
 
 	public Date getNextFireTime(Object object) {
-		return plugin.getNextFireTime(String.valueOf(object.getNumber()));
+		return plugin.getNextFireTime(plugin.getTaskName(object.getXWikiObject(), context));
+	}
+
+	/**
+	 * @return the statistics of the compiled task scripts cache: number of scripts, hits, misses (compilations),
+	 *         evictions and total compilation time in milliseconds
+	 */
+	public Map getScriptCacheStatistics() {
+		Map statistics = new HashMap();
+		statistics.put("size", new Integer(GroovyScriptCache.getSize()));
+		statistics.put("hits", new Long(GroovyScriptCache.getHits()));
+		statistics.put("misses", new Long(GroovyScriptCache.getMisses()));
+		statistics.put("evictions", new Long(GroovyScriptCache.getEvictions()));
+		statistics.put("compilationTime", new Long(GroovyScriptCache.getCompilationTime()));
+		return statistics;
 	}
 
 	public TasksPlugin getPlugin() {
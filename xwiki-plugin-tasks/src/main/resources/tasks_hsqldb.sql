@@ -0,0 +1,19 @@
+# Quartz 1.4.5 tables for the persistent job store of the tasks plugin, created when missing.
+# One statement per line. The job and trigger names are qualified with the wiki and the document of the task.
+CREATE TABLE QRTZ_JOB_DETAILS (JOB_NAME VARCHAR(200) NOT NULL, JOB_GROUP VARCHAR(80) NOT NULL, DESCRIPTION VARCHAR(120), JOB_CLASS_NAME VARCHAR(128) NOT NULL, IS_DURABLE BOOLEAN NOT NULL, IS_VOLATILE BOOLEAN NOT NULL, IS_STATEFUL BOOLEAN NOT NULL, REQUESTS_RECOVERY BOOLEAN NOT NULL, JOB_DATA LONGVARBINARY, PRIMARY KEY (JOB_NAME, JOB_GROUP))
+CREATE TABLE QRTZ_JOB_LISTENERS (JOB_NAME VARCHAR(200) NOT NULL, JOB_GROUP VARCHAR(80) NOT NULL, JOB_LISTENER VARCHAR(80) NOT NULL, PRIMARY KEY (JOB_NAME, JOB_GROUP, JOB_LISTENER), FOREIGN KEY (JOB_NAME, JOB_GROUP) REFERENCES QRTZ_JOB_DETAILS (JOB_NAME, JOB_GROUP))
+CREATE TABLE QRTZ_TRIGGERS (TRIGGER_NAME VARCHAR(200) NOT NULL, TRIGGER_GROUP VARCHAR(80) NOT NULL, JOB_NAME VARCHAR(200) NOT NULL, JOB_GROUP VARCHAR(80) NOT NULL, IS_VOLATILE BOOLEAN NOT NULL, DESCRIPTION VARCHAR(120), NEXT_FIRE_TIME NUMERIC(13), PREV_FIRE_TIME NUMERIC(13), TRIGGER_STATE VARCHAR(16) NOT NULL, TRIGGER_TYPE VARCHAR(8) NOT NULL, START_TIME NUMERIC(13) NOT NULL, END_TIME NUMERIC(13), CALENDAR_NAME VARCHAR(80), MISFIRE_INSTR NUMERIC(2), PRIMARY KEY (TRIGGER_NAME, TRIGGER_GROUP), FOREIGN KEY (JOB_NAME, JOB_GROUP) REFERENCES QRTZ_JOB_DETAILS (JOB_NAME, JOB_GROUP))
+CREATE TABLE QRTZ_SIMPLE_TRIGGERS (TRIGGER_NAME VARCHAR(200) NOT NULL, TRIGGER_GROUP VARCHAR(80) NOT NULL, REPEAT_COUNT NUMERIC(7) NOT NULL, REPEAT_INTERVAL NUMERIC(12) NOT NULL, TIMES_TRIGGERED NUMERIC(7) NOT NULL, PRIMARY KEY (TRIGGER_NAME, TRIGGER_GROUP), FOREIGN KEY (TRIGGER_NAME, TRIGGER_GROUP) REFERENCES QRTZ_TRIGGERS (TRIGGER_NAME, TRIGGER_GROUP))
+CREATE TABLE QRTZ_CRON_TRIGGERS (TRIGGER_NAME VARCHAR(200) NOT NULL, TRIGGER_GROUP VARCHAR(80) NOT NULL, CRON_EXPRESSION VARCHAR(80) NOT NULL, TIME_ZONE_ID VARCHAR(80), PRIMARY KEY (TRIGGER_NAME, TRIGGER_GROUP), FOREIGN KEY (TRIGGER_NAME, TRIGGER_GROUP) REFERENCES QRTZ_TRIGGERS (TRIGGER_NAME, TRIGGER_GROUP))
+CREATE TABLE QRTZ_BLOB_TRIGGERS (TRIGGER_NAME VARCHAR(200) NOT NULL, TRIGGER_GROUP VARCHAR(80) NOT NULL, BLOB_DATA LONGVARBINARY, PRIMARY KEY (TRIGGER_NAME, TRIGGER_GROUP), FOREIGN KEY (TRIGGER_NAME, TRIGGER_GROUP) REFERENCES QRTZ_TRIGGERS (TRIGGER_NAME, TRIGGER_GROUP))
+CREATE TABLE QRTZ_TRIGGER_LISTENERS (TRIGGER_NAME VARCHAR(200) NOT NULL, TRIGGER_GROUP VARCHAR(80) NOT NULL, TRIGGER_LISTENER VARCHAR(80) NOT NULL, PRIMARY KEY (TRIGGER_NAME, TRIGGER_GROUP, TRIGGER_LISTENER), FOREIGN KEY (TRIGGER_NAME, TRIGGER_GROUP) REFERENCES QRTZ_TRIGGERS (TRIGGER_NAME, TRIGGER_GROUP))
+CREATE TABLE QRTZ_CALENDARS (CALENDAR_NAME VARCHAR(80) NOT NULL, CALENDAR LONGVARBINARY NOT NULL, PRIMARY KEY (CALENDAR_NAME))
+CREATE TABLE QRTZ_PAUSED_TRIGGER_GRPS (TRIGGER_GROUP VARCHAR(80) NOT NULL, PRIMARY KEY (TRIGGER_GROUP))
+CREATE TABLE QRTZ_FIRED_TRIGGERS (ENTRY_ID VARCHAR(95) NOT NULL, TRIGGER_NAME VARCHAR(200) NOT NULL, TRIGGER_GROUP VARCHAR(80) NOT NULL, IS_VOLATILE BOOLEAN NOT NULL, INSTANCE_NAME VARCHAR(80) NOT NULL, FIRED_TIME NUMERIC(13) NOT NULL, STATE VARCHAR(16) NOT NULL, JOB_NAME VARCHAR(200), JOB_GROUP VARCHAR(80), IS_STATEFUL BOOLEAN, REQUESTS_RECOVERY BOOLEAN, PRIMARY KEY (ENTRY_ID))
+CREATE TABLE QRTZ_SCHEDULER_STATE (INSTANCE_NAME VARCHAR(80) NOT NULL, LAST_CHECKIN_TIME NUMERIC(13) NOT NULL, CHECKIN_INTERVAL NUMERIC(13) NOT NULL, RECOVERER VARCHAR(80), PRIMARY KEY (INSTANCE_NAME))
+CREATE TABLE QRTZ_LOCKS (LOCK_NAME VARCHAR(40) NOT NULL, PRIMARY KEY (LOCK_NAME))
+INSERT INTO QRTZ_LOCKS VALUES('TRIGGER_ACCESS')
+INSERT INTO QRTZ_LOCKS VALUES('JOB_ACCESS')
+INSERT INTO QRTZ_LOCKS VALUES('CALENDAR_ACCESS')
+INSERT INTO QRTZ_LOCKS VALUES('STATE_ACCESS')
+INSERT INTO QRTZ_LOCKS VALUES('MISFIRE_ACCESS')
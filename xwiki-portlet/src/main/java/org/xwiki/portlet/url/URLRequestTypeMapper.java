@@ -24,6 +24,7 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -35,58 +36,91 @@ import org.xwiki.portlet.util.QueryStringParser;
 
 /**
  * Maps servlet URLs to portlet request types.
+ * <p>
+ * The rules read from {@code urlmapping.cfg} are compiled when the mapper is created: prefix rules are stored in a
+ * trie indexed by path segment and query string rules are pre-parsed, so that the query string of the tested URL is
+ * parsed at most once, no matter how many rules there are. When more than one rule matches an URL the rule declared
+ * first in the configuration file wins.
  * 
  * @version $Id$
  */
 public class URLRequestTypeMapper
 {
     /**
-     * Interface used to test if an URL matches some description.
+     * The character used to separate path segments.
      */
-    private static interface URLMatcher
+    private static final char PATH_SEPARATOR = '/';
+
+    /**
+     * The character that marks the start of the query string.
+     */
+    private static final char QUERY_STRING_SEPARATOR = '?';
+
+    /**
+     * A node in the prefix trie. Each child is associated with a complete path segment while the prefix rules that end
+     * in the middle of a path segment are stored as partial segments on the node that precedes them.
+     */
+    private static class PathNode
     {
         /**
-         * @param url an URL
-         * @return {@code true} if the URL matches the description, {@code false} otherwise
+         * The child nodes, indexed by path segment.
+         */
+        private final Map<String, PathNode> children = new HashMap<String, PathNode>();
+
+        /**
+         * The prefix rules that end at this node. Each rule is represented by the beginning of the next path segment
+         * (possibly empty) and the rule index. The list is sorted by rule index because rules are added in the order
+         * they are declared.
+         */
+        private final List<PartialSegment> partials = new ArrayList<PartialSegment>();
+
+        /**
+         * @param segment a path segment
+         * @return the child node associated with the given segment, created if it doesn't exist
          */
-        boolean matches(String url);
+        public PathNode getOrCreateChild(String segment)
+        {
+            PathNode child = children.get(segment);
+            if (child == null) {
+                child = new PathNode();
+                children.put(segment, child);
+            }
+            return child;
+        }
     }
 
     /**
-     * Matches URLs with a specified prefix.
+     * The end of a prefix rule, after the last path separator.
      */
-    private static class PrefixURLMatcher implements URLMatcher
+    private static class PartialSegment
     {
         /**
-         * The URL prefix.
+         * The beginning of the path segment that has to follow the path leading to the trie node.
          */
-        private final String prefix;
+        private final String text;
 
         /**
-         * Creates a new matcher that matches URLs with the give prefix.
-         * 
-         * @param prefix the URL prefix
+         * The index of the rule.
          */
-        public PrefixURLMatcher(String prefix)
-        {
-            this.prefix = prefix;
-        }
+        private final int ruleIndex;
 
         /**
-         * {@inheritDoc}
+         * Creates a new partial segment.
          * 
-         * @see URLMatcher#matches(String)
+         * @param text the beginning of the path segment
+         * @param ruleIndex the index of the rule
          */
-        public boolean matches(String url)
+        public PartialSegment(String text, int ruleIndex)
         {
-            return url.startsWith(prefix);
+            this.text = text;
+            this.ruleIndex = ruleIndex;
         }
     }
 
     /**
      * Matches URLs with a specified suffix.
      */
-    private static class SuffixURLMatcher implements URLMatcher
+    private static class SuffixRule
     {
         /**
          * The URL suffix.
@@ -94,62 +128,57 @@ public class URLRequestTypeMapper
         private final String suffix;
 
         /**
-         * Creates a new matcher that matches URLs with the given suffix.
-         * 
-         * @param suffix the URL suffix
+         * The index of the rule.
          */
-        public SuffixURLMatcher(String suffix)
-        {
-            this.suffix = suffix;
-        }
+        private final int ruleIndex;
 
         /**
-         * {@inheritDoc}
+         * Creates a new rule that matches URLs with the given suffix.
          * 
-         * @see URLMatcher#matches(String)
+         * @param suffix the URL suffix
+         * @param ruleIndex the index of the rule
          */
-        public boolean matches(String url)
+        public SuffixRule(String suffix, int ruleIndex)
         {
-            return url.endsWith(suffix);
+            this.suffix = suffix;
+            this.ruleIndex = ruleIndex;
         }
     }
 
     /**
-     * Matches URLs that have the specified query string parameters.
+     * Matches URLs that have the specified query string parameters. The expected parameters are parsed only once, when
+     * the rule is created.
      */
-    private static class QueryStringURLMatcher implements URLMatcher
+    private static class QueryStringRule
     {
         /**
-         * The object used to parse the query strings.
+         * The expected query string parameters.
          */
-        private final QueryStringParser queryStringParser = new QueryStringParser();
+        private final Map<String, List<String>> expectedParameters;
 
         /**
-         * The expected query string parameters.
+         * The index of the rule.
          */
-        private final Map<String, List<String>> expectedParameters;
+        private final int ruleIndex;
 
         /**
-         * Creates a new matcher that matches URLs with the specified query string.
+         * Creates a new rule that matches URLs with the specified query string parameters.
          * 
-         * @param queryString the query string
+         * @param expectedParameters the expected query string parameters
+         * @param ruleIndex the index of the rule
          */
-        public QueryStringURLMatcher(String queryString)
+        public QueryStringRule(Map<String, List<String>> expectedParameters, int ruleIndex)
         {
-            expectedParameters = queryStringParser.parse(queryString);
+            this.expectedParameters = expectedParameters;
+            this.ruleIndex = ruleIndex;
         }
 
         /**
-         * {@inheritDoc}
-         * 
-         * @see URLMatcher#matches(String)
+         * @param actualParameters the parameters of the tested URL
+         * @return {@code true} if the actual parameters include the expected parameters, {@code false} otherwise
          */
-        public boolean matches(String url)
+        public boolean matches(Map<String, List<String>> actualParameters)
         {
-            int queryStringPos = url.lastIndexOf('?');
-            String queryString = queryStringPos < 0 ? "" : url.substring(queryStringPos + 1);
-            Map<String, List<String>> actualParameters = queryStringParser.parse(queryString);
-            // Test if the actual parameters include the expected parameters.
             for (Map.Entry<String, List<String>> entry : expectedParameters.entrySet()) {
                 List<String> actualValues = actualParameters.get(entry.getKey());
                 if (actualValues == null) {
@@ -171,9 +200,29 @@ public class URLRequestTypeMapper
     private static final Log LOG = LogFactory.getLog(URLRequestTypeMapper.class);
 
     /**
-     * The list of matchers for each request type.
+     * The object used to parse the query strings.
+     */
+    private final QueryStringParser queryStringParser = new QueryStringParser();
+
+    /**
+     * The request type associated with each rule, indexed by rule index.
+     */
+    private final List<RequestType> ruleTypes = new ArrayList<RequestType>();
+
+    /**
+     * The root of the prefix trie.
+     */
+    private final PathNode prefixRoot = new PathNode();
+
+    /**
+     * The suffix rules, in the order they were declared.
+     */
+    private final List<SuffixRule> suffixRules = new ArrayList<SuffixRule>();
+
+    /**
+     * The query string rules, in the order they were declared.
      */
-    private final Map<RequestType, List<URLMatcher>> matchers = new HashMap<RequestType, List<URLMatcher>>();
+    private final List<QueryStringRule> queryStringRules = new ArrayList<QueryStringRule>();
 
     /**
      * Creates a new instance that maps URL to {@link RequestType} based on a configuration file.
@@ -198,6 +247,18 @@ public class URLRequestTypeMapper
         }
     }
 
+    /**
+     * Creates a new instance that maps URL to {@link RequestType} based on the given URL mapping. The caller is
+     * responsible for closing the input stream.
+     * 
+     * @param urlMapping the input stream to read the URL mapping from
+     * @throws IOException if reading the URL mapping fails
+     */
+    public URLRequestTypeMapper(InputStream urlMapping) throws IOException
+    {
+        readURLMapping(urlMapping);
+    }
+
     /**
      * Reads the URL mapping from the given input stream.
      * 
@@ -223,30 +284,84 @@ public class URLRequestTypeMapper
                 } catch (IllegalArgumentException e) {
                     // Keep the previous action.
                 }
-            } else if (line.startsWith("/")) {
-                addURLMatcher(currentRequestType, new PrefixURLMatcher(line));
-            } else if (line.startsWith("?")) {
-                addURLMatcher(currentRequestType, new QueryStringURLMatcher(line.substring(1)));
+            } else if (line.charAt(0) == PATH_SEPARATOR) {
+                addPrefixRule(line, addRule(currentRequestType));
+            } else if (line.charAt(0) == QUERY_STRING_SEPARATOR) {
+                queryStringRules.add(new QueryStringRule(queryStringParser.parse(line.substring(1)),
+                    addRule(currentRequestType)));
             } else {
-                addURLMatcher(currentRequestType, new SuffixURLMatcher(line));
+                suffixRules.add(new SuffixRule(line, addRule(currentRequestType)));
             }
         } while (true);
     }
 
     /**
-     * Adds a new URL matcher.
+     * Registers a new rule.
+     * 
+     * @param type the request type associated with the rule
+     * @return the index of the new rule
+     */
+    private int addRule(RequestType type)
+    {
+        ruleTypes.add(type);
+        return ruleTypes.size() - 1;
+    }
+
+    /**
+     * Adds a prefix rule to the trie.
+     * 
+     * @param prefix the URL prefix
+     * @param ruleIndex the index of the rule
+     */
+    private void addPrefixRule(String prefix, int ruleIndex)
+    {
+        PathNode node = prefixRoot;
+        int segmentStart = 0;
+        int segmentEnd = prefix.indexOf(PATH_SEPARATOR);
+        while (segmentEnd >= 0) {
+            node = node.getOrCreateChild(prefix.substring(segmentStart, segmentEnd));
+            segmentStart = segmentEnd + 1;
+            segmentEnd = prefix.indexOf(PATH_SEPARATOR, segmentStart);
+        }
+        node.partials.add(new PartialSegment(prefix.substring(segmentStart), ruleIndex));
+    }
+
+    /**
+     * Walks the prefix trie along the path segments of the given URL.
      * 
-     * @param type the request type
-     * @param matcher the matcher to be added
+     * @param url the URL to match
+     * @return the index of the first declared prefix rule that matches the given URL, or {@link Integer#MAX_VALUE} if
+     *         there's no such rule
      */
-    private void addURLMatcher(RequestType type, URLMatcher matcher)
+    private int matchPrefix(String url)
     {
-        List<URLMatcher> matchersForType = matchers.get(type);
-        if (matchersForType == null) {
-            matchersForType = new ArrayList<URLMatcher>();
-            matchers.put(type, matchersForType);
+        int best = Integer.MAX_VALUE;
+        PathNode node = prefixRoot;
+        int segmentStart = 0;
+        while (true) {
+            for (PartialSegment partial : node.partials) {
+                if (partial.ruleIndex >= best) {
+                    break;
+                }
+                if (url.startsWith(partial.text, segmentStart)) {
+                    best = partial.ruleIndex;
+                    break;
+                }
+            }
+            if (node.children.isEmpty()) {
+                break;
+            }
+            int segmentEnd = url.indexOf(PATH_SEPARATOR, segmentStart);
+            if (segmentEnd < 0) {
+                break;
+            }
+            node = node.children.get(url.substring(segmentStart, segmentEnd));
+            if (node == null) {
+                break;
+            }
+            segmentStart = segmentEnd + 1;
         }
-        matchersForType.add(matcher);
+        return best;
     }
 
     /**
@@ -255,13 +370,35 @@ public class URLRequestTypeMapper
      */
     public RequestType getType(String contextFreeURL)
     {
-        for (Map.Entry<RequestType, List<URLMatcher>> entry : matchers.entrySet()) {
-            for (URLMatcher matcher : entry.getValue()) {
-                if (matcher.matches(contextFreeURL)) {
-                    return entry.getKey();
+        int best = matchPrefix(contextFreeURL);
+
+        for (SuffixRule rule : suffixRules) {
+            if (rule.ruleIndex >= best) {
+                break;
+            }
+            if (contextFreeURL.endsWith(rule.suffix)) {
+                best = rule.ruleIndex;
+                break;
+            }
+        }
+
+        if (!queryStringRules.isEmpty() && queryStringRules.get(0).ruleIndex < best) {
+            // Parse the query string only once, for all the query string rules.
+            int queryStringPos = contextFreeURL.lastIndexOf(QUERY_STRING_SEPARATOR);
+            Map<String, List<String>> actualParameters =
+                queryStringPos < 0 ? Collections.<String, List<String>> emptyMap() : queryStringParser
+                    .parse(contextFreeURL.substring(queryStringPos + 1));
+            for (QueryStringRule rule : queryStringRules) {
+                if (rule.ruleIndex >= best) {
+                    break;
+                }
+                if (rule.matches(actualParameters)) {
+                    best = rule.ruleIndex;
+                    break;
                 }
             }
         }
-        return RequestType.RENDER;
+
+        return best == Integer.MAX_VALUE ? RequestType.RENDER : ruleTypes.get(best);
     }
 }
@@ -0,0 +1,127 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.portlet.url;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * JMH benchmark for {@link URLRequestTypeMapper}: maps the links of a large rewritten page using a URL mapping with 50
+ * rules. Run it with {@code org.openjdk.jmh.Main URLRequestTypeMapperBenchmark} from the test class path.
+ * 
+ * @version $Id$
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class URLRequestTypeMapperBenchmark
+{
+    /**
+     * The number of rules in the URL mapping.
+     */
+    private static final int RULE_COUNT = 50;
+
+    /**
+     * The number of links on the rewritten page.
+     */
+    private static final int LINK_COUNT = 2000;
+
+    /**
+     * The actions used to generate rules and links.
+     */
+    private static final String[] ACTIONS = {"view", "edit", "save", "cancel", "upload", "download", "export", "get",
+        "skin", "commentadd", "objectremove", "delete", "preview", "inline", "lock"};
+
+    /**
+     * The object being measured.
+     */
+    private URLRequestTypeMapper mapper;
+
+    /**
+     * The links of the rewritten page.
+     */
+    private String[] links;
+
+    /**
+     * Generates the URL mapping and the links.
+     * 
+     * @throws IOException if reading the generated URL mapping fails
+     */
+    @Setup
+    public void setUp() throws IOException
+    {
+        Random random = new Random(42);
+
+        StringBuilder urlMapping = new StringBuilder();
+        for (int i = 0; i < RULE_COUNT; i++) {
+            if (i % 20 == 0) {
+                urlMapping.append(i % 40 == 0 ? "action=\n" : "resource=\n");
+            }
+            switch (i % 10) {
+                case 8:
+                    urlMapping.append("?xpage=plain&rule=").append(i).append('\n');
+                    break;
+                case 9:
+                    urlMapping.append(".ext").append(i).append('\n');
+                    break;
+                default:
+                    urlMapping.append("/bin/").append(ACTIONS[i % ACTIONS.length]).append("/Space").append(i)
+                        .append("/\n");
+                    break;
+            }
+        }
+        mapper = new URLRequestTypeMapper(new ByteArrayInputStream(urlMapping.toString().getBytes()));
+
+        links = new String[LINK_COUNT];
+        for (int i = 0; i < LINK_COUNT; i++) {
+            StringBuilder link = new StringBuilder("/bin/");
+            link.append(ACTIONS[random.nextInt(ACTIONS.length)]).append("/Space").append(random.nextInt(RULE_COUNT));
+            link.append("/Page").append(i);
+            if (random.nextInt(4) == 0) {
+                link.append("?xpage=plain&rule=").append(random.nextInt(RULE_COUNT)).append("&language=en");
+            }
+            links[i] = link.toString();
+        }
+    }
+
+    /**
+     * Maps all the links of the page.
+     * 
+     * @param blackhole used to consume the results
+     */
+    @Benchmark
+    public void mapPageLinks(Blackhole blackhole)
+    {
+        for (String link : links) {
+            blackhole.consume(mapper.getType(link));
+        }
+    }
+}
@@ -0,0 +1,114 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.portlet.url;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+
+import junit.framework.Assert;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.xwiki.portlet.model.RequestType;
+
+/**
+ * Unit tests for {@link URLRequestTypeMapper}.
+ * 
+ * @version $Id$
+ */
+public class URLRequestTypeMapperTest
+{
+    /**
+     * The URL mapping used by the tests.
+     */
+    private static final String URL_MAPPING =
+        "action=\n/bin/save/\n/bin/sav\n\nresource=\n/bin/download/\n/resources/\n.css\n"
+            + "?xpage=plain&outputSyntax=plain\naction=\n/bin/download/Main/Upload\n";
+
+    /**
+     * The object being tested.
+     */
+    private URLRequestTypeMapper mapper;
+
+    /**
+     * Setup the tests.
+     * 
+     * @throws IOException if reading the URL mapping fails
+     */
+    @Before
+    public void setUp() throws IOException
+    {
+        mapper = new URLRequestTypeMapper(new ByteArrayInputStream(URL_MAPPING.getBytes()));
+    }
+
+    /**
+     * Tests URLs matched by prefix rules.
+     */
+    @Test
+    public void testPrefix()
+    {
+        Assert.assertEquals(RequestType.ACTION, mapper.getType("/bin/save/Main/WebHome"));
+        Assert.assertEquals(RequestType.RESOURCE, mapper.getType("/bin/download/Main/WebHome/logo.png"));
+        Assert.assertEquals(RequestType.RESOURCE, mapper.getType("/resources/icons/silk/add.png"));
+        Assert.assertEquals(RequestType.RENDER, mapper.getType("/bin/view/Main/WebHome"));
+        Assert.assertEquals(RequestType.RENDER, mapper.getType("/bin/download"));
+    }
+
+    /**
+     * Tests prefix rules that end in the middle of a path segment.
+     */
+    @Test
+    public void testPartialSegmentPrefix()
+    {
+        Assert.assertEquals(RequestType.ACTION, mapper.getType("/bin/saveandcontinue/Main/WebHome"));
+        Assert.assertEquals(RequestType.ACTION, mapper.getType("/bin/sav"));
+        Assert.assertEquals(RequestType.RENDER, mapper.getType("/bin/sa"));
+    }
+
+    /**
+     * Tests URLs matched by suffix rules.
+     */
+    @Test
+    public void testSuffix()
+    {
+        Assert.assertEquals(RequestType.RESOURCE, mapper.getType("/bin/view/Main/style.css"));
+    }
+
+    /**
+     * Tests URLs matched by query string rules.
+     */
+    @Test
+    public void testQueryString()
+    {
+        Assert.assertEquals(RequestType.RESOURCE, mapper.getType("/bin/view/A/B?outputSyntax=plain&x=y&xpage=plain"));
+        Assert.assertEquals(RequestType.RENDER, mapper.getType("/bin/view/A/B?xpage=plain"));
+        Assert.assertEquals(RequestType.RENDER, mapper.getType("/bin/view/A/B"));
+    }
+
+    /**
+     * Tests that the rule declared first wins when more than one rule matches.
+     */
+    @Test
+    public void testFirstDeclaredRuleWins()
+    {
+        Assert.assertEquals(RequestType.ACTION, mapper.getType("/bin/save/Main/style.css"));
+        Assert.assertEquals(RequestType.RESOURCE, mapper.getType("/bin/download/Main/Upload"));
+    }
+}
@@ -0,0 +1,299 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.stats.rollup;
+
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Calendar;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Pre-aggregated visit statistics. The visits are rolled up by user and by day of start of the visit: into daily
+ * buckets by the day of the end of the visit, then the daily buckets into monthly buckets. A day is rolled up once
+ * all its visits are final, i.e. once it ended more than {@link #VISIT_MARGIN} ago, since a visit only goes on while
+ * its user keeps browsing, and a month once all its days are rolled up. The periods not rolled up yet are computed
+ * when read, from the stored days and the last raw visits.
+ * 
+ * @version $Id$
+ */
+public class VisitRollup
+{
+    /**
+     * How long after its end a day is rolled up.
+     */
+    public static final long VISIT_MARGIN = 3600000L;
+
+    private static final String DAY_FORMAT = "yyyyMMdd";
+
+    private static final String MONTH_FORMAT = "yyyyMM";
+
+    /**
+     * Serializes the rollups and the backfills, which may be run by a scheduler job and an administrator at the same
+     * time.
+     */
+    private static final Object LOCK = new Object();
+
+    private final VisitRollupStore store;
+
+    /**
+     * @param store the raw visits and the storage of the rollups
+     */
+    public VisitRollup(VisitRollupStore store)
+    {
+        this.store = store;
+    }
+
+    /**
+     * @return whether the visits were rolled up, see {@link #backfill(String)}
+     */
+    public boolean isInitialized()
+    {
+        return this.store.getFirstDay() != null;
+    }
+
+    /**
+     * Rolls up the days which became final since the last rollup, along with the months they complete. Nothing is
+     * done before the first backfill.
+     * 
+     * @return whether days were rolled up
+     */
+    public boolean update()
+    {
+        return update(new Date());
+    }
+
+    boolean update(Date now)
+    {
+        Date to = getFinalEnd(now);
+        String lastDay = this.store.getLastDay();
+        if (lastDay == null || !nextDay(parseDay(lastDay)).before(to)) {
+            return false;
+        }
+        synchronized (LOCK) {
+            Date from = nextDay(parseDay(this.store.getLastDay()));
+            if (!from.before(to)) {
+                return false;
+            }
+            rollup(this.store.getFirstDay(), from, to);
+        }
+        return true;
+    }
+
+    /**
+     * Rolls up all the visits since a month, replacing the buckets already stored. The months before are read from
+     * the raw visits.
+     * 
+     * @param fromMonth the first month to roll up, formatted as yyyyMM, null or empty to start with the first visit
+     */
+    public void backfill(String fromMonth)
+    {
+        backfill(fromMonth, new Date());
+    }
+
+    void backfill(String fromMonth, Date now)
+    {
+        Date from;
+        if (fromMonth != null && fromMonth.length() > 0) {
+            if (fromMonth.length() != MONTH_FORMAT.length()) {
+                throw new IllegalArgumentException("Invalid month [" + fromMonth + "]");
+            }
+            from = parsePeriod(fromMonth);
+        } else {
+            Date firstVisit = this.store.getFirstVisit();
+            from = parsePeriod(formatMonth(firstVisit == null ? now : firstVisit));
+        }
+        synchronized (LOCK) {
+            String firstDay = formatDay(from);
+            String storedFirstDay = this.store.getFirstDay();
+            if (storedFirstDay != null && storedFirstDay.compareTo(firstDay) < 0
+                && !nextDay(parseDay(this.store.getLastDay())).before(from)) {
+                // the stored buckets before the backfilled ones are still valid
+                firstDay = storedFirstDay;
+            }
+            rollup(firstDay, from, getFinalEnd(now));
+        }
+    }
+
+    /**
+     * Returns the rolled up visits of a day or a month.
+     * 
+     * @param period the day or the month, formatted as yyyyMMdd or yyyyMM
+     * @return the rows of the period, null if the visits of the period were not rolled up
+     */
+    public Collection<VisitRow> getRows(String period)
+    {
+        String firstDay = this.store.getFirstDay();
+        if (firstDay == null) {
+            return null;
+        }
+        Date start = parsePeriod(period);
+        Date end = getPeriodEnd(period);
+        if (start.before(parseDay(firstDay))) {
+            return null;
+        }
+        Date finalEnd = nextDay(parseDay(this.store.getLastDay()));
+        if (!end.after(finalEnd)) {
+            return this.store.readRows(period);
+        }
+
+        // the rolled up days of the month, then the raw visits since the last rolled up day
+        Map<String, VisitRow> rows = new LinkedHashMap<String, VisitRow>();
+        for (Date day = start; day.before(finalEnd); day = nextDay(day)) {
+            merge(rows, this.store.readRows(formatDay(day)));
+        }
+        merge(rows, this.store.getVisits(start.after(finalEnd) ? start : finalEnd, end, false));
+        return rows.values();
+    }
+
+    /**
+     * Rolls up the days of [from, to), month by month, saving the state after each month so that an interrupted
+     * backfill goes on from there.
+     */
+    private void rollup(String firstDay, Date from, Date to)
+    {
+        Date start = from;
+        while (start.before(to)) {
+            String month = formatMonth(start);
+            Date monthEnd = getPeriodEnd(month);
+            Date end = monthEnd.before(to) ? monthEnd : to;
+
+            Map<String, Map<String, VisitRow>> days = new HashMap<String, Map<String, VisitRow>>();
+            for (VisitRow row : this.store.getVisits(start, end, true)) {
+                String day = formatDay(new Date(row.getLast()));
+                if (!days.containsKey(day)) {
+                    days.put(day, new LinkedHashMap<String, VisitRow>());
+                }
+                merge(days.get(day), Collections.singleton(row));
+            }
+            for (Date day = start; day.before(end); day = nextDay(day)) {
+                saveRows(formatDay(day), days.get(formatDay(day)));
+            }
+            if (end.equals(monthEnd)) {
+                Map<String, VisitRow> rows = new LinkedHashMap<String, VisitRow>();
+                for (Date day = parsePeriod(month); day.before(end); day = nextDay(day)) {
+                    if (day.before(start)) {
+                        merge(rows, this.store.readRows(formatDay(day)));
+                    } else if (days.containsKey(formatDay(day))) {
+                        merge(rows, days.get(formatDay(day)).values());
+                    }
+                }
+                saveRows(month, rows);
+            }
+
+            this.store.saveState(firstDay, formatDay(previousDay(end)));
+            start = end;
+        }
+    }
+
+    private void saveRows(String period, Map<String, VisitRow> rows)
+    {
+        if (rows == null) {
+            this.store.saveRows(period, Collections.<VisitRow> emptyList());
+        } else {
+            this.store.saveRows(period, rows.values());
+        }
+    }
+
+    /**
+     * Adds rows to rows by user and day, summing the counters and keeping the last end of visit.
+     * 
+     * @param target the rows by user and day
+     * @param rows the rows to add
+     */
+    static void merge(Map<String, VisitRow> target, Collection<VisitRow> rows)
+    {
+        for (VisitRow row : rows) {
+            VisitRow existing = target.get(row.getKey());
+            if (existing == null) {
+                target.put(row.getKey(), new VisitRow(row));
+            } else {
+                existing.add(row);
+            }
+        }
+    }
+
+    /**
+     * @return the end of the last final day: the visits ending before it cannot change anymore
+     */
+    static Date getFinalEnd(Date now)
+    {
+        return parseDay(formatDay(new Date(now.getTime() - VISIT_MARGIN)));
+    }
+
+    private static Date getPeriodEnd(String period)
+    {
+        Calendar cal = Calendar.getInstance();
+        cal.setTime(parsePeriod(period));
+        cal.add(period.length() == MONTH_FORMAT.length() ? Calendar.MONTH : Calendar.DATE, 1);
+        return cal.getTime();
+    }
+
+    private static Date nextDay(Date day)
+    {
+        Calendar cal = Calendar.getInstance();
+        cal.setTime(day);
+        cal.add(Calendar.DATE, 1);
+        return cal.getTime();
+    }
+
+    private static Date previousDay(Date day)
+    {
+        Calendar cal = Calendar.getInstance();
+        cal.setTime(day);
+        cal.add(Calendar.DATE, -1);
+        return cal.getTime();
+    }
+
+    private static Date parsePeriod(String period)
+    {
+        return parse(period, period.length() == MONTH_FORMAT.length() ? MONTH_FORMAT : DAY_FORMAT);
+    }
+
+    private static Date parseDay(String day)
+    {
+        return parse(day, DAY_FORMAT);
+    }
+
+    private static Date parse(String text, String pattern)
+    {
+        SimpleDateFormat format = new SimpleDateFormat(pattern);
+        format.setLenient(false);
+        try {
+            return format.parse(text);
+        } catch (ParseException e) {
+            throw new IllegalArgumentException("Invalid period [" + text + "]");
+        }
+    }
+
+    private static String formatDay(Date date)
+    {
+        return new SimpleDateFormat(DAY_FORMAT).format(date);
+    }
+
+    private static String formatMonth(Date date)
+    {
+        return new SimpleDateFormat(MONTH_FORMAT).format(date);
+    }
+}
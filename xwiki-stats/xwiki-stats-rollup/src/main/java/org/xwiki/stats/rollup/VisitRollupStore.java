@@ -0,0 +1,80 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.stats.rollup;
+
+import java.util.Collection;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * Access to the raw visit statistics and to the storage of the rollups, see {@link VisitRollup}. The periods are
+ * days formatted as yyyyMMdd and months formatted as yyyyMM.
+ * 
+ * @version $Id$
+ */
+public interface VisitRollupStore
+{
+    /**
+     * Aggregates the raw visits ending in [from, to) by user and day of start of the visit.
+     * 
+     * @param from the start of the visit ends, included
+     * @param to the end of the visit ends, excluded
+     * @param byDay whether to also group the visits by day of their end
+     * @return the aggregated rows
+     */
+    List<VisitRow> getVisits(Date from, Date to, boolean byDay);
+
+    /**
+     * @return the end of the first raw visit, null if there is no visit
+     */
+    Date getFirstVisit();
+
+    /**
+     * @param period the day or the month
+     * @return the stored rows of the period, empty if the period is not stored
+     */
+    Collection<VisitRow> readRows(String period);
+
+    /**
+     * Stores the rows of a period, replacing the stored ones.
+     * 
+     * @param period the day or the month
+     * @param rows the rows of the period, the period is removed from the storage if empty
+     */
+    void saveRows(String period, Collection<VisitRow> rows);
+
+    /**
+     * @return the first rolled up day, null if nothing was rolled up yet
+     */
+    String getFirstDay();
+
+    /**
+     * @return the last rolled up day, null if nothing was rolled up yet
+     */
+    String getLastDay();
+
+    /**
+     * Stores the rolled up days.
+     * 
+     * @param firstDay the first rolled up day
+     * @param lastDay the last rolled up day
+     */
+    void saveState(String firstDay, String lastDay);
+}
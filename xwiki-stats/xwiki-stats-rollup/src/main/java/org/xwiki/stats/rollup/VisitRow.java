@@ -0,0 +1,181 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.stats.rollup;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * The visits of a user which started on a day: their number, page views, page saves and last end.
+ * 
+ * @version $Id$
+ */
+public class VisitRow
+{
+    private static final char SEPARATOR = '\t';
+
+    private final String user;
+
+    private final String day;
+
+    private long visits;
+
+    private long views;
+
+    private long saves;
+
+    private long last;
+
+    /**
+     * @param user the user, null if unknown
+     * @param day the day of start of the visits, formatted as yyyy-MM-dd, empty if unknown
+     * @param visits the number of visits
+     * @param views the page views of the visits
+     * @param saves the page saves of the visits
+     * @param last the last end of the visits, in milliseconds
+     */
+    public VisitRow(String user, String day, long visits, long views, long saves, long last)
+    {
+        this.user = user;
+        this.day = day;
+        this.visits = visits;
+        this.views = views;
+        this.saves = saves;
+        this.last = last;
+    }
+
+    /**
+     * @param row the row to copy
+     */
+    public VisitRow(VisitRow row)
+    {
+        this(row.user, row.day, row.visits, row.views, row.saves, row.last);
+    }
+
+    public String getUser()
+    {
+        return this.user;
+    }
+
+    public String getDay()
+    {
+        return this.day;
+    }
+
+    public long getVisits()
+    {
+        return this.visits;
+    }
+
+    public long getViews()
+    {
+        return this.views;
+    }
+
+    public long getSaves()
+    {
+        return this.saves;
+    }
+
+    public long getLast()
+    {
+        return this.last;
+    }
+
+    /**
+     * @return the user and the day, identifying the row among the rows of a period
+     */
+    String getKey()
+    {
+        return this.user + SEPARATOR + this.day;
+    }
+
+    /**
+     * Adds the visits of another row of the same user and day.
+     */
+    void add(VisitRow row)
+    {
+        this.visits += row.visits;
+        this.views += row.views;
+        this.saves += row.saves;
+        this.last = Math.max(this.last, row.last);
+    }
+
+    /**
+     * @param rows the rows to format
+     * @return one line per row: user, day, visits, views, saves and last, separated by tabs
+     */
+    public static String format(Collection<VisitRow> rows)
+    {
+        StringBuffer text = new StringBuffer();
+        for (VisitRow row : rows) {
+            text.append(row.user == null ? "" : row.user).append(SEPARATOR).append(row.day);
+            text.append(SEPARATOR).append(row.visits).append(SEPARATOR).append(row.views);
+            text.append(SEPARATOR).append(row.saves).append(SEPARATOR).append(row.last).append('\n');
+        }
+        return text.toString();
+    }
+
+    /**
+     * @param text the rows formatted by {@link #format(Collection)}, can be null
+     * @return the rows
+     */
+    public static List<VisitRow> parse(String text)
+    {
+        List<VisitRow> rows = new ArrayList<VisitRow>();
+        if (text == null) {
+            return rows;
+        }
+        for (String line : text.split("\n")) {
+            if (line.length() > 0) {
+                String[] fields = line.split(String.valueOf(SEPARATOR), -1);
+                rows.add(new VisitRow(fields[0].length() == 0 ? null : fields[0], fields[1], Long
+                    .parseLong(fields[2]), Long.parseLong(fields[3]), Long.parseLong(fields[4]), Long
+                    .parseLong(fields[5])));
+            }
+        }
+        return rows;
+    }
+
+    @Override
+    public boolean equals(Object object)
+    {
+        if (!(object instanceof VisitRow)) {
+            return false;
+        }
+        VisitRow row = (VisitRow) object;
+        return getKey().equals(row.getKey()) && this.visits == row.visits && this.views == row.views
+            && this.saves == row.saves && this.last == row.last;
+    }
+
+    @Override
+    public int hashCode()
+    {
+        return getKey().hashCode();
+    }
+
+    @Override
+    public String toString()
+    {
+        return getKey() + SEPARATOR + this.visits + SEPARATOR + this.views + SEPARATOR + this.saves + SEPARATOR
+            + this.last;
+    }
+}
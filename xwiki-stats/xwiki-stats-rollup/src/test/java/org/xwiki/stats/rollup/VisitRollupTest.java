@@ -0,0 +1,333 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.stats.rollup;
+
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Unit tests for {@link VisitRollup}, checking the rolled up visits against the aggregation of the raw visits, kept
+ * in memory along with the stored buckets.
+ * 
+ * @version $Id$
+ */
+public class VisitRollupTest
+{
+    /**
+     * A raw visit.
+     */
+    private static class Visit
+    {
+        String user;
+
+        Date start;
+
+        Date end;
+
+        long views;
+
+        long saves;
+
+        Visit(String user, Date start, Date end, long views, long saves)
+        {
+            this.user = user;
+            this.start = start;
+            this.end = end;
+            this.views = views;
+            this.saves = saves;
+        }
+    }
+
+    private final List<Visit> visits = new ArrayList<Visit>();
+
+    private final Map<String, String> buckets = new TreeMap<String, String>();
+
+    private final List<String> saved = new ArrayList<String>();
+
+    private String firstDay;
+
+    private String lastDay;
+
+    private VisitRollup rollup;
+
+    @Before
+    public void setUp()
+    {
+        this.rollup = new VisitRollup(new VisitRollupStore()
+        {
+            public List<VisitRow> getVisits(Date from, Date to, boolean byDay)
+            {
+                return aggregate(from, to, byDay);
+            }
+
+            public Date getFirstVisit()
+            {
+                Date first = null;
+                for (Visit visit : visits) {
+                    if (first == null || visit.end.before(first)) {
+                        first = visit.end;
+                    }
+                }
+                return first;
+            }
+
+            public Collection<VisitRow> readRows(String period)
+            {
+                return VisitRow.parse(buckets.get(period));
+            }
+
+            public void saveRows(String period, Collection<VisitRow> rows)
+            {
+                if (rows.isEmpty()) {
+                    buckets.remove(period);
+                } else {
+                    buckets.put(period, VisitRow.format(rows));
+                    saved.add(period);
+                }
+            }
+
+            public String getFirstDay()
+            {
+                return firstDay;
+            }
+
+            public String getLastDay()
+            {
+                return lastDay;
+            }
+
+            public void saveState(String first, String last)
+            {
+                firstDay = first;
+                lastDay = last;
+            }
+        });
+    }
+
+    /**
+     * The raw aggregation: the visits ending in [from, to) by user and day of start, and by day of end if byDay.
+     */
+    private List<VisitRow> aggregate(Date from, Date to, boolean byDay)
+    {
+        Map<String, VisitRow> rows = new LinkedHashMap<String, VisitRow>();
+        for (Visit visit : this.visits) {
+            if (!visit.end.before(from) && visit.end.before(to)) {
+                String day = new SimpleDateFormat("yyyy-MM-dd").format(visit.start);
+                String key = visit.user + "\t" + day;
+                if (byDay) {
+                    key += "\t" + new SimpleDateFormat("yyyyMMdd").format(visit.end);
+                }
+                VisitRow row = new VisitRow(visit.user, day, 1, visit.views, visit.saves, visit.end.getTime());
+                if (rows.containsKey(key)) {
+                    rows.get(key).add(row);
+                } else {
+                    rows.put(key, row);
+                }
+            }
+        }
+        return new ArrayList<VisitRow>(rows.values());
+    }
+
+    private static Date date(int year, int month, int day, int hour, int minute)
+    {
+        Calendar cal = Calendar.getInstance();
+        cal.clear();
+        cal.set(year, month - 1, day, hour, minute);
+        return cal.getTime();
+    }
+
+    private void visit(String user, Date start, Date end, long views, long saves)
+    {
+        this.visits.add(new Visit(user, start, end, views, saves));
+    }
+
+    private void assertRows(String period, Date from, Date to)
+    {
+        Collection<VisitRow> rows = this.rollup.getRows(period);
+        Assert.assertNotNull(rows);
+        Assert.assertEquals(sort(aggregate(from, to, false)), sort(rows));
+    }
+
+    private static List<String> sort(Collection<VisitRow> rows)
+    {
+        List<String> lines = new ArrayList<String>();
+        for (VisitRow row : rows) {
+            lines.add(row.toString());
+        }
+        Collections.sort(lines);
+        return lines;
+    }
+
+    @Test
+    public void dayBoundaries()
+    {
+        visit("XWiki.Alice", date(2011, 3, 1, 9, 0), date(2011, 3, 1, 10, 0), 5, 1);
+        // the last instant of a day and the first one of the next day
+        visit("XWiki.Alice", date(2011, 3, 1, 23, 30), new Date(date(2011, 3, 2, 0, 0).getTime() - 1), 2, 0);
+        visit("XWiki.Bob", date(2011, 3, 1, 23, 40), date(2011, 3, 2, 0, 0), 3, 2);
+        // started on a day, ended on the next one
+        visit("XWiki.Alice", date(2011, 3, 1, 23, 50), date(2011, 3, 2, 0, 20), 4, 0);
+        visit("XWiki.Alice", date(2011, 3, 2, 8, 0), date(2011, 3, 2, 8, 30), 1, 0);
+
+        this.rollup.backfill("201103", date(2011, 3, 3, 12, 0));
+
+        Assert.assertEquals("20110301", this.firstDay);
+        Assert.assertEquals("20110302", this.lastDay);
+        Assert.assertEquals(Arrays.asList("20110301", "20110302"), new ArrayList<String>(this.buckets.keySet()));
+        assertRows("20110301", date(2011, 3, 1, 0, 0), date(2011, 3, 2, 0, 0));
+        assertRows("20110302", date(2011, 3, 2, 0, 0), date(2011, 3, 3, 0, 0));
+        assertRows("20110303", date(2011, 3, 3, 0, 0), date(2011, 3, 4, 0, 0));
+        VisitRow alice = this.rollup.getRows("20110301").iterator().next();
+        Assert.assertEquals(2, alice.getVisits());
+        Assert.assertEquals(date(2011, 3, 2, 0, 0).getTime() - 1, alice.getLast());
+        Assert.assertEquals(3, this.rollup.getRows("20110302").size());
+    }
+
+    @Test
+    public void monthBoundaries()
+    {
+        visit("XWiki.Alice", date(2011, 1, 10, 9, 0), date(2011, 1, 10, 9, 30), 5, 1);
+        visit("XWiki.Bob", date(2011, 1, 31, 22, 0), date(2011, 1, 31, 23, 0), 2, 0);
+        // started in a month, ended in the next one
+        visit("XWiki.Alice", date(2011, 1, 31, 23, 50), date(2011, 2, 1, 0, 10), 4, 2);
+        visit("XWiki.Bob", date(2011, 2, 28, 23, 0), date(2011, 3, 1, 0, 0), 1, 0);
+        visit("XWiki.Bob", date(2011, 3, 2, 9, 0), date(2011, 3, 2, 10, 0), 6, 3);
+
+        this.rollup.backfill(null, date(2011, 3, 2, 12, 0));
+
+        Assert.assertEquals("20110101", this.firstDay);
+        Assert.assertEquals("20110301", this.lastDay);
+        // the completed months are stored, not the month going on
+        Assert.assertTrue(this.buckets.containsKey("201101"));
+        Assert.assertTrue(this.buckets.containsKey("201102"));
+        Assert.assertFalse(this.buckets.containsKey("201103"));
+        assertRows("201101", date(2011, 1, 1, 0, 0), date(2011, 2, 1, 0, 0));
+        assertRows("201102", date(2011, 2, 1, 0, 0), date(2011, 3, 1, 0, 0));
+        assertRows("201103", date(2011, 3, 1, 0, 0), date(2011, 4, 1, 0, 0));
+        Assert.assertNull(this.rollup.getRows("201012"));
+
+        // the stored month is read as is
+        this.buckets.put("201102", "");
+        Assert.assertTrue(this.rollup.getRows("201102").isEmpty());
+    }
+
+    @Test
+    public void updateCompletesTheMonth()
+    {
+        visit("XWiki.Alice", date(2011, 1, 30, 9, 0), date(2011, 1, 30, 9, 30), 5, 1);
+        this.rollup.backfill("201101", date(2011, 1, 31, 0, 30));
+        Assert.assertEquals("20110129", this.lastDay);
+
+        visit("XWiki.Alice", date(2011, 1, 31, 23, 0), date(2011, 2, 1, 0, 30), 3, 0);
+        visit("XWiki.Bob", date(2011, 2, 1, 9, 0), date(2011, 2, 1, 10, 0), 2, 0);
+        Assert.assertTrue(this.rollup.update(date(2011, 2, 2, 1, 0)));
+
+        Assert.assertEquals("20110101", this.firstDay);
+        Assert.assertEquals("20110201", this.lastDay);
+        Assert.assertTrue(this.buckets.containsKey("201101"));
+        assertRows("201101", date(2011, 1, 1, 0, 0), date(2011, 2, 1, 0, 0));
+        assertRows("201102", date(2011, 2, 1, 0, 0), date(2011, 3, 1, 0, 0));
+        assertRows("20110201", date(2011, 2, 1, 0, 0), date(2011, 2, 2, 0, 0));
+
+        // nothing more to roll up
+        this.saved.clear();
+        Assert.assertFalse(this.rollup.update(date(2011, 2, 3, 0, 59)));
+        Assert.assertTrue(this.saved.isEmpty());
+    }
+
+    @Test
+    public void partialHours()
+    {
+        visit("XWiki.Alice", date(2011, 3, 1, 9, 0), date(2011, 3, 1, 10, 0), 5, 1);
+        this.rollup.backfill("201103", date(2011, 3, 2, 1, 0));
+        Assert.assertEquals("20110301", this.lastDay);
+
+        // a visit which may still go on: its day is not final before the end of the margin
+        Visit visit = new Visit("XWiki.Bob", date(2011, 3, 2, 23, 10), date(2011, 3, 2, 23, 45), 2, 0);
+        this.visits.add(visit);
+        // a visit of the current hour
+        visit("XWiki.Alice", date(2011, 3, 3, 0, 5), date(2011, 3, 3, 0, 20), 1, 0);
+
+        Assert.assertFalse(this.rollup.update(date(2011, 3, 3, 0, 30)));
+        Assert.assertEquals("20110301", this.lastDay);
+        assertRows("20110302", date(2011, 3, 2, 0, 0), date(2011, 3, 3, 0, 0));
+        assertRows("20110303", date(2011, 3, 3, 0, 0), date(2011, 3, 4, 0, 0));
+        assertRows("201103", date(2011, 3, 1, 0, 0), date(2011, 4, 1, 0, 0));
+
+        // the visit went on after midnight, so it is a visit of the next day
+        visit.end = date(2011, 3, 3, 0, 40);
+        visit.views = 4;
+        Assert.assertFalse(this.rollup.update(date(2011, 3, 3, 0, 59)));
+        Assert.assertTrue(this.rollup.update(date(2011, 3, 3, 1, 0)));
+        Assert.assertEquals("20110302", this.lastDay);
+        Assert.assertFalse(this.buckets.containsKey("20110302"));
+        assertRows("20110302", date(2011, 3, 2, 0, 0), date(2011, 3, 3, 0, 0));
+        assertRows("20110303", date(2011, 3, 3, 0, 0), date(2011, 3, 4, 0, 0));
+        assertRows("201103", date(2011, 3, 1, 0, 0), date(2011, 4, 1, 0, 0));
+    }
+
+    @Test
+    public void notRolledUp()
+    {
+        visit("XWiki.Alice", date(2011, 3, 1, 9, 0), date(2011, 3, 1, 10, 0), 5, 1);
+
+        Assert.assertFalse(this.rollup.isInitialized());
+        Assert.assertNull(this.rollup.getRows("201103"));
+        Assert.assertFalse(this.rollup.update(date(2011, 3, 5, 12, 0)));
+        Assert.assertTrue(this.buckets.isEmpty());
+    }
+
+    @Test
+    public void backfillReplacesTheStoredBuckets()
+    {
+        visit("XWiki.Alice", date(2011, 2, 10, 9, 0), date(2011, 2, 10, 10, 0), 5, 1);
+        visit("XWiki.Alice", date(2011, 3, 1, 9, 0), date(2011, 3, 1, 10, 0), 2, 0);
+        this.rollup.backfill("201102", date(2011, 3, 3, 12, 0));
+
+        // the raw visits of March were deleted
+        this.visits.remove(1);
+        this.rollup.backfill("201103", date(2011, 3, 3, 12, 0));
+
+        Assert.assertEquals("20110201", this.firstDay);
+        Assert.assertEquals("20110302", this.lastDay);
+        Assert.assertFalse(this.buckets.containsKey("20110301"));
+        assertRows("201102", date(2011, 2, 1, 0, 0), date(2011, 3, 1, 0, 0));
+        assertRows("201103", date(2011, 3, 1, 0, 0), date(2011, 4, 1, 0, 0));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void backfillFromAnInvalidMonth()
+    {
+        this.rollup.backfill("2011031", date(2011, 3, 3, 12, 0));
+    }
+}
@@ -0,0 +1,365 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xpn.xwiki.watch.server;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.xwiki.observation.EventListener;
+import org.xwiki.observation.event.DocumentDeleteEvent;
+import org.xwiki.observation.event.DocumentSaveEvent;
+import org.xwiki.observation.event.DocumentUpdateEvent;
+import org.xwiki.observation.event.Event;
+import org.xwiki.query.Query;
+import org.xwiki.query.QueryException;
+
+import com.xpn.xwiki.XWikiContext;
+import com.xpn.xwiki.XWikiException;
+import com.xpn.xwiki.doc.XWikiDocument;
+import com.xpn.xwiki.objects.BaseObject;
+
+/**
+ * Counters of the articles of the Watch spaces: number of articles, number of read and unread articles per feed and
+ * number of articles per tag. The counters of a space are computed with aggregate queries the first time they are
+ * asked for and then kept up to date from the document events, so that the feed tree polling for these numbers does
+ * not scan all the articles each time. They are computed again from the database every {@link #REFRESH_INTERVAL}
+ * milliseconds to recover from any update missed while they were loaded.
+ *
+ * @version $Id$
+ */
+public class FeedCounters implements EventListener
+{
+    private static final Log LOG = LogFactory.getLog(FeedCounters.class);
+
+    private static final String FEED_ENTRY_CLASS = "XWiki.FeedEntryClass";
+
+    /**
+     * Restricts the aggregate queries to the articles of the Watch space bound to the {@code space} parameter.
+     */
+    private static final String WHERE = " where obj.id = entry.id and obj.name like :space";
+
+    private static final String FROM = " from XWiki.FeedEntryClass as entry, BaseObject as obj" + WHERE;
+
+    private static final long REFRESH_INTERVAL = 10 * 60 * 1000L;
+
+    /**
+     * Orders the tags by name ignoring the case, without merging the tags which only differ by their case.
+     */
+    private static final Comparator<String> TAG_ORDER = new Comparator<String>()
+    {
+        public int compare(String tag1, String tag2)
+        {
+            int result = String.CASE_INSENSITIVE_ORDER.compare(tag1, tag2);
+            return result != 0 ? result : tag1.compareTo(tag2);
+        }
+    };
+
+    /**
+     * The counters of the loaded Watch spaces, by wiki and space name.
+     */
+    private final Map<String, SpaceCounters> spaces = new HashMap<String, SpaceCounters>();
+
+    private final long refreshInterval;
+
+    /**
+     * The counters of a Watch space.
+     */
+    private static class SpaceCounters
+    {
+        private final long loadTime = System.currentTimeMillis();
+
+        private int articles;
+
+        /**
+         * Number of unread and total number of articles per feed name.
+         */
+        private final Map<String, int[]> feeds = new TreeMap<String, int[]>();
+
+        private final Map<String, int[]> tags = new TreeMap<String, int[]>(TAG_ORDER);
+
+        private static void increment(Map<String, int[]> counters, String name, int unread, int count)
+        {
+            int[] counter = counters.get(name);
+            if (counter == null) {
+                counter = new int[2];
+                counters.put(name, counter);
+            }
+            counter[0] += unread;
+            counter[1] += count;
+            if (counter[1] <= 0) {
+                counters.remove(name);
+            }
+        }
+
+        /**
+         * Adds or removes the articles of a document to the counters.
+         *
+         * @param doc the document holding the articles
+         * @param delta 1 to add the articles, -1 to remove them
+         */
+        private void add(XWikiDocument doc, int delta)
+        {
+            List<BaseObject> entries = doc.getObjects(FEED_ENTRY_CLASS);
+            if (entries == null) {
+                return;
+            }
+            for (BaseObject entry : entries) {
+                if (entry == null) {
+                    continue;
+                }
+                this.articles += delta;
+                increment(this.feeds, entry.getStringValue("feedname"), delta * (1 - entry.getIntValue("read")),
+                    delta);
+                List< ? > tagList = entry.getListValue("tags");
+                if (tagList != null) {
+                    for (Object tag : tagList) {
+                        if (tag != null) {
+                            increment(this.tags, (String) tag, 0, delta);
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Counters computed again from the database every {@link #REFRESH_INTERVAL} milliseconds.
+     */
+    public FeedCounters()
+    {
+        this(REFRESH_INTERVAL);
+    }
+
+    /**
+     * @param refreshInterval the number of milliseconds after which the counters of a space are computed again from
+     *            the database
+     */
+    FeedCounters(long refreshInterval)
+    {
+        this.refreshInterval = refreshInterval;
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * @see org.xwiki.observation.EventListener#getName()
+     */
+    public String getName()
+    {
+        return getClass().getName();
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * @see org.xwiki.observation.EventListener#getEvents()
+     */
+    public List<Event> getEvents()
+    {
+        return Arrays.<Event> asList(new DocumentSaveEvent(), new DocumentUpdateEvent(), new DocumentDeleteEvent());
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * @see org.xwiki.observation.EventListener#onEvent(org.xwiki.observation.event.Event, java.lang.Object,
+     *      java.lang.Object)
+     */
+    public void onEvent(Event event, Object source, Object data)
+    {
+        XWikiDocument doc = (XWikiDocument) source;
+        XWikiContext context = (XWikiContext) data;
+        String wiki = doc.getDatabase() != null ? doc.getDatabase() : context.getDatabase();
+        XWikiDocument original = doc.getOriginalDocument();
+
+        synchronized (this.spaces) {
+            SpaceCounters counters = this.spaces.get(getKey(wiki, doc.getSpace()));
+            if (counters == null) {
+                // not loaded yet, the articles will be counted when it is
+                return;
+            }
+            if (event instanceof DocumentDeleteEvent) {
+                counters.add(original != null ? original : doc, -1);
+            } else {
+                if (event instanceof DocumentUpdateEvent && original != null) {
+                    counters.add(original, -1);
+                }
+                counters.add(doc, 1);
+            }
+        }
+    }
+
+    /**
+     * @param watchSpace the Watch space
+     * @param context the XWiki context
+     * @return the number of articles of the space
+     * @throws XWikiException if the counters of the space cannot be loaded
+     */
+    public int getArticlesCount(String watchSpace, XWikiContext context) throws XWikiException
+    {
+        SpaceCounters counters = getCounters(watchSpace, context);
+        synchronized (this.spaces) {
+            return counters.articles;
+        }
+    }
+
+    /**
+     * @param watchSpace the Watch space
+     * @param context the XWiki context
+     * @return for each feed of the space, a list with the feed name, the number of unread articles and the total number
+     *         of articles
+     * @throws XWikiException if the counters of the space cannot be loaded
+     */
+    public List<List<Object>> getNewArticlesCountPerFeeds(String watchSpace, XWikiContext context)
+        throws XWikiException
+    {
+        SpaceCounters counters = getCounters(watchSpace, context);
+        List<List<Object>> result = new ArrayList<List<Object>>();
+        synchronized (this.spaces) {
+            for (Map.Entry<String, int[]> feed : counters.feeds.entrySet()) {
+                result.add(newRow(feed.getKey(), Integer.valueOf(feed.getValue()[0]), Integer.valueOf(feed
+                    .getValue()[1])));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @param watchSpace the Watch space
+     * @param like if not empty, only the tags starting with this prefix are returned
+     * @param context the XWiki context
+     * @return for each tag used in the space, ordered by name, a list with the tag and its number of articles
+     * @throws XWikiException if the counters of the space cannot be loaded
+     */
+    public List<List<Object>> getTagsList(String watchSpace, String like, XWikiContext context)
+        throws XWikiException
+    {
+        SpaceCounters counters = getCounters(watchSpace, context);
+        String prefix = like != null ? like.toLowerCase() : "";
+        List<List<Object>> result = new ArrayList<List<Object>>();
+        synchronized (this.spaces) {
+            for (Map.Entry<String, int[]> tag : counters.tags.entrySet()) {
+                if (tag.getKey().toLowerCase().startsWith(prefix)) {
+                    result.add(newRow(tag.getKey(), Integer.valueOf(tag.getValue()[1])));
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @param columns the values of the row
+     * @return a row of results that can be sent through GWT
+     */
+    private List<Object> newRow(Object... columns)
+    {
+        List<Object> row = new ArrayList<Object>(columns.length);
+        for (Object column : columns) {
+            row.add(column);
+        }
+        return row;
+    }
+
+    private String getKey(String wiki, String space)
+    {
+        return wiki + ':' + space;
+    }
+
+    private SpaceCounters getCounters(String watchSpace, XWikiContext context) throws XWikiException
+    {
+        String key = getKey(context.getDatabase(), watchSpace);
+        SpaceCounters counters;
+        synchronized (this.spaces) {
+            counters = this.spaces.get(key);
+        }
+        if (counters == null || System.currentTimeMillis() - counters.loadTime > this.refreshInterval) {
+            // load outside of the lock not to block the saves while the aggregate queries run
+            counters = load(watchSpace, context);
+            synchronized (this.spaces) {
+                this.spaces.put(key, counters);
+            }
+        }
+        return counters;
+    }
+
+    private SpaceCounters load(String watchSpace, XWikiContext context) throws XWikiException
+    {
+        long start = System.currentTimeMillis();
+        SpaceCounters counters = new SpaceCounters();
+        List< ? > resultList = search("select count(*)" + FROM, watchSpace, context);
+        if (resultList != null && resultList.size() > 0) {
+            counters.articles = ((Number) resultList.get(0)).intValue();
+        }
+
+        resultList =
+            search("select entry.feedname, sum(1 - coalesce(entry.read, 0)), count(*)" + FROM
+                + " group by entry.feedname", watchSpace, context);
+        for (Object row : emptyIfNull(resultList)) {
+            Object[] columns = (Object[]) row;
+            String feedname = columns[0] != null ? (String) columns[0] : "";
+            SpaceCounters.increment(counters.feeds, feedname, ((Number) columns[1]).intValue(),
+                ((Number) columns[2]).intValue());
+        }
+
+        resultList =
+            search("select tag, count(*) from XWiki.FeedEntryClass as entry join entry.tags as tag, BaseObject as obj"
+                + WHERE + " group by tag", watchSpace, context);
+        for (Object row : emptyIfNull(resultList)) {
+            Object[] columns = (Object[]) row;
+            if (columns[0] != null) {
+                SpaceCounters.increment(counters.tags, (String) columns[0], 0, ((Number) columns[1]).intValue());
+            }
+        }
+
+        if (LOG.isDebugEnabled()) {
+            LOG.debug("Loaded the article counters of " + watchSpace + " in " + (System.currentTimeMillis() - start)
+                + " ms");
+        }
+        return counters;
+    }
+
+    /**
+     * Runs an aggregate query on the articles of a Watch space, the space being bound to the {@code space} parameter.
+     */
+    private List< ? > search(String statement, String watchSpace, XWikiContext context) throws XWikiException
+    {
+        try {
+            return context.getWiki().getStore().getQueryManager().createQuery(statement, Query.HQL).bindValue(
+                "space", watchSpace + ".%").execute();
+        } catch (QueryException e) {
+            throw new XWikiException(XWikiException.MODULE_XWIKI_STORE,
+                XWikiException.ERROR_XWIKI_STORE_HIBERNATE_SEARCH, "Failed to load the article counters of "
+                    + watchSpace, e);
+        }
+    }
+
+    private List< ? > emptyIfNull(List< ? > list)
+    {
+        return list != null ? list : Collections.emptyList();
+    }
+}
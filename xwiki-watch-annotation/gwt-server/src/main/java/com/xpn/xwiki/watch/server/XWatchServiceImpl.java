@@ -22,6 +22,7 @@ package com.xpn.xwiki.watch.server;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 
@@ -34,6 +35,7 @@ import org.xwiki.annotation.reference.TypedStringEntityReferenceSerializer;
 import org.xwiki.model.EntityType;
 import org.xwiki.model.reference.EntityReference;
 import org.xwiki.model.reference.EntityReferenceResolver;
+import org.xwiki.observation.ObservationManager;
 
 import com.xpn.xwiki.XWikiContext;
 import com.xpn.xwiki.XWikiException;
@@ -59,6 +61,49 @@ public class XWatchServiceImpl extends XWikiServiceImpl implements XWatchService
 
     protected static final String FEED_ENTRY_CONTENT_FIELD = "content";
 
+    /**
+     * The maximum number of annotated articles kept in the {@link #annotatedContentCache}.
+     */
+    private static final int ANNOTATED_CONTENT_CACHE_SIZE = 1000;
+
+    /**
+     * Annotated rendered content of the feed entries, keyed by the serialized reference of the content property and the
+     * document version. Rendering an article with its annotations is the most expensive part of listing the articles,
+     * and an article only needs to be rendered again when it is modified or when its annotations change.
+     */
+    private final Map<String, AnnotatedContent> annotatedContentCache =
+        new LinkedHashMap<String, AnnotatedContent>(16, 0.75f, true)
+        {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, AnnotatedContent> eldest)
+            {
+                return size() > ANNOTATED_CONTENT_CACHE_SIZE;
+            }
+        };
+
+    /**
+     * Counters of the articles per feed and per tag, maintained from the document events.
+     */
+    private FeedCounters feedCounters;
+
+    /**
+     * Annotated rendered content of a feed entry, along with the annotation set it was rendered with.
+     */
+    private static class AnnotatedContent
+    {
+        private final String annotationsKey;
+
+        private final String content;
+
+        public AnnotatedContent(String annotationsKey, String content)
+        {
+            this.annotationsKey = annotationsKey;
+            this.content = content;
+        }
+    }
+
     public List<FeedArticle> getArticles(String sql, int nb, int start) throws XWikiGWTException
     {
         try {
@@ -68,8 +113,7 @@ public class XWatchServiceImpl extends XWikiServiceImpl implements XWatchService
             for (Document doc : documents) {
                 FeedArticle current = new FeedArticle(doc);
                 // now set the content to the annotated content and the annotations in the annotations list
-                current.setContent(getAnnotatedEntryFeed(doc.getFullName()));
-                current.setAnnotations(getAnnotations(doc.getFullName()));
+                setAnnotatedContent(current, doc);
                 articles.add(current);
             }
             return articles;
@@ -83,11 +127,66 @@ public class XWatchServiceImpl extends XWikiServiceImpl implements XWatchService
         Document apiDoc = getDocument(documentName, true, true, false);
         FeedArticle article = new FeedArticle(apiDoc);
         // now set the content to the annotated content and the annotations to the annotations list
-        article.setContent(getAnnotatedEntryFeed(apiDoc.getFullName()));
-        article.setAnnotations(getAnnotations(apiDoc.getFullName()));
+        setAnnotatedContent(article, apiDoc);
         return article;
     }
 
+    /**
+     * Sets the annotated content and the annotations of the passed article. The annotations are fetched only once and
+     * the content is rendered only if the document or its annotations changed since it was last rendered.
+     * 
+     * @param article the article to fill
+     * @param doc the document of the article
+     * @throws XWikiGWTException if the annotations cannot be retrieved or the content cannot be rendered
+     */
+    private void setAnnotatedContent(FeedArticle article, Document doc) throws XWikiGWTException
+    {
+        try {
+            AnnotationService service = Utils.getComponent(AnnotationService.class);
+            String target = getFeedEntryContentReference(doc.getFullName());
+            Collection<org.xwiki.annotation.Annotation> annotations = service.getValidAnnotations(target);
+
+            String cacheKey = target + '@' + doc.getVersion();
+            String annotationsKey = getAnnotationsKey(annotations);
+            AnnotatedContent cached;
+            synchronized (this.annotatedContentCache) {
+                cached = this.annotatedContentCache.get(cacheKey);
+            }
+            if (cached == null || !cached.annotationsKey.equals(annotationsKey)) {
+                // force html syntax on the content of the feed
+                cached =
+                    new AnnotatedContent(annotationsKey, service.getAnnotatedRenderedContent(target, "html/4.01",
+                        "xhtml/1.0", annotations));
+                synchronized (this.annotatedContentCache) {
+                    this.annotatedContentCache.put(cacheKey, cached);
+                }
+            }
+
+            article.setContent(cached.content);
+            article.setAnnotations(prepareAnnotations(annotations));
+        } catch (AnnotationServiceException e) {
+            throw getXWikiGWTException(e);
+        }
+    }
+
+    /**
+     * Builds a key identifying a set of annotations with everything that is used when rendering them, so that the
+     * cached rendered content of an article is not used anymore after an annotation is added, removed or updated.
+     * 
+     * @param annotations the annotations of an article
+     * @return the key of the annotation set
+     */
+    private String getAnnotationsKey(Collection<org.xwiki.annotation.Annotation> annotations)
+    {
+        StringBuilder key = new StringBuilder();
+        for (org.xwiki.annotation.Annotation annotation : annotations) {
+            key.append(annotation.getId()).append('\0').append(annotation.getState()).append('\0');
+            key.append(annotation.getSelectionLeftContext()).append('\0').append(annotation.getSelection());
+            key.append('\0').append(annotation.getSelectionRightContext()).append('\0');
+        }
+        return key.toString();
+    }
+
     private List<Document> getDocumentsFromObjects(String sql, int nb, int start, XWikiContext context)
         throws XWikiGWTException
     {
@@ -130,17 +229,7 @@ public class XWatchServiceImpl extends XWikiServiceImpl implements XWatchService
     public int getArticlesCount(String watchSpace) throws XWikiGWTException
     {
         try {
-            XWikiContext context = getXWikiContext();
-            String articleCountQuery =
-                "select count(*) from XWiki.FeedEntryClass as entry, BaseObject as obj "
-                    + "where obj.id = entry.id and obj.name like '" + watchSpace + ".%'";
-            List resultList = context.getWiki().search(articleCountQuery, context);
-            if (resultList == null || resultList.size() < 1) {
-                return 0; // TODO: or throw exception? We didn't really expect
-                // that...
-            } else {
-                return ((Number) resultList.get(0)).intValue();
-            }
+            return getFeedCounters().getArticlesCount(watchSpace, getXWikiContext());
         } catch (Exception e) {
             throw getXWikiGWTException(e);
         }
@@ -149,13 +238,7 @@ public class XWatchServiceImpl extends XWikiServiceImpl implements XWatchService
     public List getNewArticlesCountPerFeeds(String watchSpace) throws XWikiGWTException
     {
         try {
-            String newArticlesPerFeedQuery =
-                "select entry.feedname, sum(1 - coalesce(entry.read, 0)), count(*) "
-                    + "from XWiki.FeedEntryClass as entry, BaseObject as obj "
-                    + "where obj.id = entry.id and obj.name like '" + watchSpace + ".%' group by entry.feedname";
-            XWikiContext context = getXWikiContext();
-            List resultList = context.getWiki().search(newArticlesPerFeedQuery, context);
-            return prepareResultList(resultList);
+            return getFeedCounters().getNewArticlesCountPerFeeds(watchSpace, getXWikiContext());
         } catch (XWikiException e) {
             throw getXWikiGWTException(e);
         }
@@ -164,42 +247,40 @@ public class XWatchServiceImpl extends XWikiServiceImpl implements XWatchService
     public List getTagsList(String watchSpace, String like) throws XWikiGWTException
     {
         try {
-            String tagsListQuery =
-                "select elements(entry.tags), count(*) " + " from XWiki.FeedEntryClass as entry, BaseObject as obj "
-                    + " where obj.id = entry.id and obj.name like '" + watchSpace + ".%'";
-            if (like != null && like.length() != 0) {
-                tagsListQuery += " and col_0_0_ like '" + like + "%' ";
-            }
-            String orderGroupQuery = " group by col_0_0_ order by lower(col_0_0_) asc";
-
-            XWikiContext context = getXWikiContext();
-            List resultList = context.getWiki().search(tagsListQuery + orderGroupQuery, context);
-            return prepareResultList(resultList);
+            return getFeedCounters().getTagsList(watchSpace, like, getXWikiContext());
         } catch (XWikiException e) {
             throw getXWikiGWTException(e);
         }
     }
 
     /**
-     * Transforms a list of arrays (Object[]) into a list of lists, since we cannot send Object[]'s through GWT. To be
-     * used to prepare the results returned by database search functions.
-     * 
-     * @param results the List of arrays to be wrapped
-     * @return the list, with all arrays transformed into lists
+     * @return the article counters, registered to the observation manager the first time they are used
      */
-    private List prepareResultList(List results)
+    private synchronized FeedCounters getFeedCounters()
     {
-        ArrayList newList = new ArrayList();
+        if (this.feedCounters == null) {
+            FeedCounters counters = new FeedCounters();
+            Utils.getComponent(ObservationManager.class).addListener(counters);
+            this.feedCounters = counters;
+        }
+        return this.feedCounters;
+    }
 
-        for (int i = 0; i < results.size(); i++) {
-            List currentList = new ArrayList();
-            Object[] array = (Object[]) results.get(i);
-            for (int j = 0; j < array.length; j++) {
-                currentList.add(array[j]);
+    /**
+     * {@inheritDoc}
+     *
+     * @see javax.servlet.GenericServlet#destroy()
+     */
+    @Override
+    public void destroy()
+    {
+        synchronized (this) {
+            if (this.feedCounters != null) {
+                Utils.getComponent(ObservationManager.class).removeListener(this.feedCounters.getName());
+                this.feedCounters = null;
             }
-            newList.add(currentList);
         }
-        return newList;
+        super.destroy();
     }
 
     public Map getAccessLevels(List rights, String docname) throws XWikiGWTException
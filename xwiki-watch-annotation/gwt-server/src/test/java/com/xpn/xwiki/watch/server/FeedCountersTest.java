@@ -0,0 +1,235 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xpn.xwiki.watch.server;
+
+import static org.hamcrest.Matchers.allOf;
+import static org.hamcrest.Matchers.endsWith;
+import static org.hamcrest.Matchers.startsWith;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.jmock.Expectations;
+import org.jmock.Mockery;
+import org.jmock.lib.legacy.ClassImposteriser;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.observation.event.DocumentDeleteEvent;
+import org.xwiki.observation.event.DocumentSaveEvent;
+import org.xwiki.observation.event.DocumentUpdateEvent;
+import org.xwiki.query.Query;
+import org.xwiki.query.QueryManager;
+
+import com.xpn.xwiki.XWiki;
+import com.xpn.xwiki.XWikiContext;
+import com.xpn.xwiki.doc.XWikiDocument;
+import com.xpn.xwiki.objects.BaseObject;
+import com.xpn.xwiki.store.XWikiStoreInterface;
+import com.xpn.xwiki.test.AbstractBridgedComponentTestCase;
+
+/**
+ * Unit tests for {@link FeedCounters}.
+ *
+ * @version $Id$
+ */
+public class FeedCountersTest extends AbstractBridgedComponentTestCase
+{
+    private static final String SPACE = "Watch";
+
+    private Mockery mockery = new Mockery()
+    {
+        {
+            setImposteriser(ClassImposteriser.INSTANCE);
+        }
+    };
+
+    private XWiki xwikiMock;
+
+    private QueryManager queryManagerMock;
+
+    /**
+     * The number of expected loads, naming the query mocks of each load.
+     */
+    private int loads;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        super.setUp();
+
+        this.xwikiMock = this.mockery.mock(XWiki.class);
+        final XWikiStoreInterface storeMock = this.mockery.mock(XWikiStoreInterface.class);
+        this.queryManagerMock = this.mockery.mock(QueryManager.class);
+        this.mockery.checking(new Expectations()
+        {{
+            allowing(xwikiMock).getStore();
+            will(returnValue(storeMock));
+            allowing(storeMock).getQueryManager();
+            will(returnValue(queryManagerMock));
+        }});
+
+        getContext().setWiki(this.xwikiMock);
+        getContext().setDatabase("xwiki");
+    }
+
+    @After
+    public void tearDown()
+    {
+        this.mockery.assertIsSatisfied();
+    }
+
+    /**
+     * Expect the aggregate queries computing the counters of the Watch space.
+     */
+    private void expectLoad(final int articles, final List<Object[]> feeds, final List<Object[]> tags)
+        throws Exception
+    {
+        final Query countQueryMock = this.mockery.mock(Query.class, "countQuery" + this.loads);
+        final Query feedsQueryMock = this.mockery.mock(Query.class, "feedsQuery" + this.loads);
+        final Query tagsQueryMock = this.mockery.mock(Query.class, "tagsQuery" + this.loads);
+        this.loads++;
+        this.mockery.checking(new Expectations()
+        {{
+            oneOf(queryManagerMock).createQuery(with(startsWith("select count(*)")), with(equal(Query.HQL)));
+            will(returnValue(countQueryMock));
+            oneOf(countQueryMock).bindValue("space", "Watch.%");
+            will(returnValue(countQueryMock));
+            oneOf(countQueryMock).execute();
+            will(returnValue(Collections.singletonList(Long.valueOf(articles))));
+
+            oneOf(queryManagerMock).createQuery(with(startsWith("select entry.feedname")), with(equal(Query.HQL)));
+            will(returnValue(feedsQueryMock));
+            oneOf(feedsQueryMock).bindValue("space", "Watch.%");
+            will(returnValue(feedsQueryMock));
+            oneOf(feedsQueryMock).execute();
+            will(returnValue(feeds));
+
+            // grouped by the joined tag, not by a column alias generated by Hibernate
+            oneOf(queryManagerMock).createQuery(with(allOf(startsWith("select tag, count(*)"),
+                endsWith(" group by tag"))), with(equal(Query.HQL)));
+            will(returnValue(tagsQueryMock));
+            oneOf(tagsQueryMock).bindValue("space", "Watch.%");
+            will(returnValue(tagsQueryMock));
+            oneOf(tagsQueryMock).execute();
+            will(returnValue(tags));
+        }});
+    }
+
+    private XWikiDocument newArticle(String space, String name, String feed, int read, String... tags)
+    {
+        XWikiDocument doc = new XWikiDocument(new DocumentReference("xwiki", space, name));
+        BaseObject entry = new BaseObject();
+        entry.setClassName("XWiki.FeedEntryClass");
+        entry.setName(space + "." + name);
+        entry.setStringValue("feedname", feed);
+        entry.setIntValue("read", read);
+        entry.setStringListValue("tags", Arrays.asList(tags));
+        doc.addObject("XWiki.FeedEntryClass", entry);
+        return doc;
+    }
+
+    private static List<Object[]> rows(Object[]... rows)
+    {
+        return new ArrayList<Object[]>(Arrays.asList(rows));
+    }
+
+    private static List<Object> row(Object... columns)
+    {
+        return Arrays.asList(columns);
+    }
+
+    @Test
+    public void testLoad() throws Exception
+    {
+        expectLoad(4, rows(new Object[] {"Feed1", 1L, 2L}, new Object[] {null, 0L, 2L}), rows(new Object[] {"java",
+            2L}, new Object[] {"Java", 1L}, new Object[] {"xwiki", 1L}));
+        FeedCounters counters = new FeedCounters();
+
+        Assert.assertEquals(4, counters.getArticlesCount(SPACE, getContext()));
+        Assert.assertEquals(Arrays.asList(row("", 0, 2), row("Feed1", 1, 2)), counters.getNewArticlesCountPerFeeds(
+            SPACE, getContext()));
+        // tags which only differ by their case are kept apart
+        Assert.assertEquals(Arrays.asList(row("Java", 1), row("java", 2), row("xwiki", 1)), counters.getTagsList(
+            SPACE, "", getContext()));
+        Assert.assertEquals(Arrays.asList(row("Java", 1), row("java", 2)), counters.getTagsList(SPACE, "JA",
+            getContext()));
+        Assert.assertEquals(Collections.emptyList(), counters.getTagsList(SPACE, "none", getContext()));
+    }
+
+    @Test
+    public void testAddAndRemoveEvents() throws Exception
+    {
+        expectLoad(0, rows(), rows());
+        FeedCounters counters = new FeedCounters();
+        Assert.assertEquals(0, counters.getArticlesCount(SPACE, getContext()));
+
+        XWikiDocument article = newArticle(SPACE, "Article1", "Feed1", 0, "java");
+        counters.onEvent(new DocumentSaveEvent(), article, getContext());
+        Assert.assertEquals(1, counters.getArticlesCount(SPACE, getContext()));
+        Assert.assertEquals(Arrays.asList(row("Feed1", 1, 1)), counters.getNewArticlesCountPerFeeds(SPACE,
+            getContext()));
+        Assert.assertEquals(Arrays.asList(row("java", 1)), counters.getTagsList(SPACE, "", getContext()));
+
+        // marked as read and tagged again
+        XWikiDocument updated = newArticle(SPACE, "Article1", "Feed1", 1, "Java", "xwiki");
+        updated.setOriginalDocument(article);
+        counters.onEvent(new DocumentUpdateEvent(), updated, getContext());
+        Assert.assertEquals(1, counters.getArticlesCount(SPACE, getContext()));
+        Assert.assertEquals(Arrays.asList(row("Feed1", 0, 1)), counters.getNewArticlesCountPerFeeds(SPACE,
+            getContext()));
+        Assert.assertEquals(Arrays.asList(row("Java", 1), row("xwiki", 1)), counters.getTagsList(SPACE, "",
+            getContext()));
+
+        // the articles of a space which is not loaded are not counted
+        counters.onEvent(new DocumentSaveEvent(), newArticle("Other", "Article2", "Feed1", 0), getContext());
+        Assert.assertEquals(1, counters.getArticlesCount(SPACE, getContext()));
+
+        XWikiDocument deleted = new XWikiDocument(new DocumentReference("xwiki", SPACE, "Article1"));
+        deleted.setOriginalDocument(updated);
+        counters.onEvent(new DocumentDeleteEvent(), deleted, getContext());
+        Assert.assertEquals(0, counters.getArticlesCount(SPACE, getContext()));
+        Assert.assertEquals(Collections.emptyList(), counters.getNewArticlesCountPerFeeds(SPACE, getContext()));
+        Assert.assertEquals(Collections.emptyList(), counters.getTagsList(SPACE, "", getContext()));
+    }
+
+    @Test
+    public void testRefresh() throws Exception
+    {
+        FeedCounters counters = new FeedCounters(1000);
+
+        expectLoad(1, rows(new Object[] {"Feed1", 1L, 1L}), rows());
+        Assert.assertEquals(1, counters.getArticlesCount(SPACE, getContext()));
+        Assert.assertEquals(Arrays.asList(row("Feed1", 1, 1)), counters.getNewArticlesCountPerFeeds(SPACE,
+            getContext()));
+
+        // an article saved while the counters were loaded is only counted once they are computed again
+        Thread.sleep(1100);
+        expectLoad(2, rows(new Object[] {"Feed1", 2L, 2L}), rows(new Object[] {"java", 1L}));
+        Assert.assertEquals(2, counters.getArticlesCount(SPACE, getContext()));
+        Assert.assertEquals(Arrays.asList(row("Feed1", 2, 2)), counters.getNewArticlesCountPerFeeds(SPACE,
+            getContext()));
+        Assert.assertEquals(Arrays.asList(row("java", 1)), counters.getTagsList(SPACE, "", getContext()));
+    }
+}